@@ -39,6 +39,7 @@ public class NetApp extends App {
 							o.executor = getExecutor();
 							o.scheduler = getScheduler();
 							o.inactivityTimeout = getChannelInactivityTimeout();
+							o.selectors = getNumberOfSelectors();
 						});
 					} catch (IOException ex) {
 						throw new RuntimeException(ex);
@@ -54,6 +55,10 @@ public class NetApp extends App {
 		return 5 * 60;
 	}
 
+	protected int getNumberOfSelectors() {
+		return 1;
+	}
+
 	protected ThreadPool createExecutor() {
 		return new NetThreadPool(getNumberOfCoreThreads(), getMaxNumberOfThreads(), 60L, TimeUnit.SECONDS);
 	}
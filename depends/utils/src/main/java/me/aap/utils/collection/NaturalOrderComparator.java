@@ -63,6 +63,30 @@ public class NaturalOrderComparator implements Comparator<String> {
 		}
 	}
 
+	/**
+	 * Returns a key, that can be compared with {@link #compareNatural(String, String)} instead of
+	 * comparing the original strings with ignoreCase = true. Useful when the same strings are
+	 * compared multiple times, e.g. when sorting.
+	 */
+	public static String collationKey(String s) {
+		int len = s.length();
+
+		for (int i = 0; i < len; ) {
+			int c = s.codePointAt(i);
+			if (Character.toUpperCase(c) != c) break;
+			i += Character.charCount(c);
+			if (i == len) return s;
+		}
+
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; ) {
+			int c = s.codePointAt(i);
+			sb.appendCodePoint(Character.toUpperCase(c));
+			i += Character.charCount(c);
+		}
+		return sb.toString();
+	}
+
 	public int compare(String a, String b) {
 		return compareNatural(a, b);
 	}
@@ -0,0 +1,186 @@
+package me.aap.utils.collection;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import me.aap.utils.function.Consumer;
+
+/**
+ * Thread-safe cache with weakly referenced values. The lookups do not acquire any locks.
+ * <p>
+ * Optionally, the recently accessed values are also kept in a bounded strong tier, preventing
+ * the hot values from being garbage collected, while they are referenced only by the cache.
+ * A value, that is still in the strong tier, is not added to it again on a repeated access.
+ *
+ * @author Andrey Pavlenko
+ */
+public class WeakValueCache<K, V> {
+	private final ConcurrentHashMap<K, Ref<K, V>> map = new ConcurrentHashMap<>();
+	private final ReferenceQueue<V> refQueue = new ReferenceQueue<>();
+	@Nullable
+	private final AtomicReferenceArray<V> strong;
+	private final AtomicInteger strongIdx = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public WeakValueCache() {
+		this(0);
+	}
+
+	/**
+	 * @param strongCapacity the number of the recently accessed values, kept strongly referenced.
+	 *                       Rounded up to a power of two.
+	 */
+	public WeakValueCache(int strongCapacity) {
+		strong = (strongCapacity <= 0) ? null : new AtomicReferenceArray<>(
+				(strongCapacity == 1) ? 1 : Integer.highestOneBit(strongCapacity - 1) << 1);
+	}
+
+	@Nullable
+	public V get(@NonNull K key) {
+		Ref<K, V> r = map.get(key);
+
+		if (r != null) {
+			V v = r.get();
+
+			if (v != null) {
+				hits.incrementAndGet();
+				touch(r, v);
+				return v;
+			}
+
+			if (map.remove(key, r)) evictions.incrementAndGet();
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(@NonNull K key, @NonNull V value) {
+		cleanUp();
+		Ref<K, V> ref = new Ref<>(key, value, refQueue);
+		map.put(key, ref);
+		touch(ref, value);
+	}
+
+	/**
+	 * Associates the value with the key, unless the key is already associated with a value, that
+	 * is not garbage collected yet.
+	 *
+	 * @return the existing value or null, if the specified value has been associated with the key.
+	 */
+	@Nullable
+	public V putIfAbsent(@NonNull K key, @NonNull V value) {
+		cleanUp();
+		Ref<K, V> ref = new Ref<>(key, value, refQueue);
+
+		for (; ; ) {
+			Ref<K, V> r = map.putIfAbsent(key, ref);
+
+			if (r == null) {
+				touch(ref, value);
+				return null;
+			}
+
+			V v = r.get();
+			if (v != null) return v;
+			if (map.replace(key, r, ref)) {
+				evictions.incrementAndGet();
+				touch(ref, value);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Removes the mapping, if the key is associated with the specified value or the associated
+	 * value is garbage collected.
+	 */
+	public boolean remove(@NonNull K key, @NonNull V value) {
+		cleanUp();
+		Ref<K, V> r = map.get(key);
+		if (r == null) return false;
+		V v = r.get();
+		return ((v == null) || (v == value)) && map.remove(key, r);
+	}
+
+	public void forEach(Consumer<? super V> consumer) {
+		for (Ref<K, V> r : map.values()) {
+			V v = r.get();
+			if (v != null) consumer.accept(v);
+		}
+	}
+
+	/**
+	 * Removes the entries with garbage collected values.
+	 */
+	@SuppressWarnings("unchecked")
+	public void cleanUp() {
+		for (Ref<K, V> r = (Ref<K, V>) refQueue.poll(); r != null; r = (Ref<K, V>) refQueue.poll()) {
+			if (map.remove(r.key, r)) evictions.incrementAndGet();
+		}
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "WeakValueCache{" +
+				"size=" + size() +
+				", hits=" + getHitCount() +
+				", misses=" + getMissCount() +
+				", evictions=" + getEvictionCount() +
+				'}';
+	}
+
+	private void touch(Ref<K, V> ref, V value) {
+		AtomicReferenceArray<V> s = strong;
+		if (s == null) return;
+		int slot = ref.slot;
+		if ((slot >= 0) && (s.get(slot) == value)) return;
+		slot = strongIdx.getAndIncrement() & (s.length() - 1);
+		ref.slot = slot;
+		s.lazySet(slot, value);
+	}
+
+	private static final class Ref<K, V> extends WeakReference<V> {
+		final K key;
+		// The last strong tier slot of the value. Not synchronized, a stale value only results in
+		// a duplicate entry.
+		int slot = -1;
+
+		Ref(K key, V value, ReferenceQueue<V> q) {
+			super(value, q);
+			this.key = key;
+		}
+	}
+}
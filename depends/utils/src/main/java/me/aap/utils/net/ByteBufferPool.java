@@ -0,0 +1,217 @@
+package me.aap.utils.net;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.aap.utils.BuildConfig;
+import me.aap.utils.log.Log;
+
+/**
+ * Thread-safe pool of direct byte buffers. The buffers are grouped into the power of two size
+ * classes from 4 to 64 KB. A buffer, acquired from the pool, must be released exactly once,
+ * when it's not used anymore.
+ * <p>
+ * In debug builds, the acquired buffers are tracked. A buffer, that has been garbage collected
+ * without being released, is reported as a leak, including the stack trace of acquisition.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class ByteBufferPool {
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 16;
+	private static final int MAX_POOLED = 16;
+	private static final ArrayDeque<ByteBuffer>[] pools;
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong discards = new AtomicLong();
+	private static final AtomicLong leaks = new AtomicLong();
+	private static final LeakDetector leakDetector = BuildConfig.D ? new LeakDetector() : null;
+
+	static {
+		@SuppressWarnings("unchecked") ArrayDeque<ByteBuffer>[] p =
+				new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+		for (int i = 0; i < p.length; i++) p[i] = new ArrayDeque<>(MAX_POOLED);
+		pools = p;
+	}
+
+	private ByteBufferPool() {
+	}
+
+	/**
+	 * Returns a cleared buffer with the limit set to the specified size. If the size exceeds the
+	 * largest size class, a new heap buffer is allocated, releasing of which is a no-op.
+	 */
+	public static ByteBuffer acquire(int size) {
+		int c = sizeClass(size);
+		ByteBuffer bb;
+
+		if (c < 0) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		ArrayDeque<ByteBuffer> pool = pools[c];
+
+		synchronized (pool) {
+			bb = pool.pollFirst();
+		}
+
+		if (bb != null) {
+			hits.incrementAndGet();
+			bb.clear();
+		} else {
+			misses.incrementAndGet();
+			bb = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+		}
+
+		bb.limit(size);
+		if (leakDetector != null) leakDetector.track(bb);
+		return bb;
+	}
+
+	/**
+	 * Returns a buffer, containing the remaining bytes of the source buffer. The source buffer
+	 * position is not changed.
+	 */
+	public static ByteBuffer copyOf(ByteBuffer src) {
+		ByteBuffer bb = acquire(src.remaining());
+		bb.put(src.duplicate());
+		bb.flip();
+		return bb;
+	}
+
+	public static void release(ByteBuffer bb) {
+		if (!bb.isDirect()) return;
+
+		int cap = bb.capacity();
+		if (Integer.bitCount(cap) != 1) return;
+		int c = Integer.numberOfTrailingZeros(cap) - MIN_SHIFT;
+		if ((c < 0) || (c >= pools.length)) return;
+
+		if ((leakDetector != null) && !leakDetector.untrack(bb)) {
+			Log.e(new IllegalStateException(), "Releasing a buffer, that is not acquired: ", bb);
+			return;
+		}
+
+		ArrayDeque<ByteBuffer> pool = pools[c];
+
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED) {
+				pool.addFirst(bb);
+				return;
+			}
+		}
+
+		discards.incrementAndGet();
+	}
+
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	public static long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * The number of released buffers, that have not been returned to the pool, because it's full.
+	 */
+	public static long getDiscardCount() {
+		return discards.get();
+	}
+
+	/**
+	 * The number of detected leaks. Always 0 in release builds.
+	 */
+	public static long getLeakCount() {
+		return leaks.get();
+	}
+
+	public static int getPooledCount() {
+		int n = 0;
+
+		for (ArrayDeque<ByteBuffer> pool : pools) {
+			synchronized (pool) {
+				n += pool.size();
+			}
+		}
+
+		return n;
+	}
+
+	@NonNull
+	public static String getStats() {
+		return "ByteBufferPool{" +
+				"hits=" + getHitCount() +
+				", misses=" + getMissCount() +
+				", discards=" + getDiscardCount() +
+				", leaks=" + getLeakCount() +
+				", pooled=" + getPooledCount() +
+				'}';
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= (1 << MIN_SHIFT)) return 0;
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return (shift <= MAX_SHIFT) ? shift - MIN_SHIFT : -1;
+	}
+
+	private static final class LeakDetector {
+		private final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<>();
+		private final Map<Integer, List<Ref>> refs = new HashMap<>();
+
+		synchronized void track(ByteBuffer bb) {
+			for (Ref r = (Ref) queue.poll(); r != null; r = (Ref) queue.poll()) {
+				if (!remove(r)) continue;
+				leaks.incrementAndGet();
+				Log.e(r.trace, "ByteBuffer has not been released");
+			}
+
+			Ref r = new Ref(bb, queue);
+			List<Ref> l = refs.get(r.hash);
+			if (l == null) refs.put(r.hash, l = new ArrayList<>(1));
+			l.add(r);
+		}
+
+		synchronized boolean untrack(ByteBuffer bb) {
+			List<Ref> l = refs.get(System.identityHashCode(bb));
+			if (l == null) return false;
+
+			for (int i = 0, n = l.size(); i < n; i++) {
+				Ref r = l.get(i);
+				if (r.get() != bb) continue;
+				r.clear();
+				remove(r);
+				return true;
+			}
+
+			return false;
+		}
+
+		private boolean remove(Ref r) {
+			List<Ref> l = refs.get(r.hash);
+			if ((l == null) || !l.remove(r)) return false;
+			if (l.isEmpty()) refs.remove(r.hash);
+			return true;
+		}
+	}
+
+	private static final class Ref extends WeakReference<ByteBuffer> {
+		final int hash;
+		final Throwable trace = new Throwable();
+
+		Ref(ByteBuffer bb, ReferenceQueue<ByteBuffer> q) {
+			super(bb, q);
+			hash = System.identityHashCode(bb);
+		}
+	}
+}
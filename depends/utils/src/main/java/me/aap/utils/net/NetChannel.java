@@ -8,10 +8,12 @@ import java.nio.ByteBuffer;
 
 import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.function.Supplier;
 import me.aap.utils.function.ProgressiveResultConsumer.Completion;
 import me.aap.utils.holder.Holder;
 import me.aap.utils.io.RandomAccessChannel;
 
+import static me.aap.utils.async.Completed.cancelled;
 import static me.aap.utils.async.Completed.failed;
 
 /**
@@ -76,12 +78,21 @@ public interface NetChannel extends Closeable {
 																		@Nullable Completion<Void> consumer) {
 		long[] pos = new long[]{off, len};
 		Holder<ByteBufferArraySupplier> h = (headerSupplier != null) ? new Holder<>(headerSupplier) : null;
-		ByteBuffer bb = ByteBuffer.allocate(Math.min((int) len, 8192));
+		ByteBuffer bb = ByteBufferPool.acquire((int) Math.min(len, 8192));
+		// The last write of the buffer and the completion flag, guarded by the holder
+		Holder<FutureSupplier<Void>> writing = new Holder<>();
+		boolean[] done = new boolean[1];
+		Supplier<FutureSupplier<Void>> writeBuf = () -> {
+			synchronized (writing) {
+				if (done[0]) return cancelled();
+				return writing.value = write(bb);
+			}
+		};
 
 		FutureSupplier<Void> f = Async.iterate(() -> {
 			if (pos[1] == 0) return null;
 
-			bb.position(0).limit(Math.min((int) pos[1], bb.capacity()));
+			bb.position(0).limit((int) Math.min(pos[1], bb.capacity()));
 
 			try {
 				for (int i = 0; i < 10; i++) {
@@ -106,12 +117,24 @@ public interface NetChannel extends Closeable {
 			if ((h != null) && (h.value != null)) {
 				ByteBufferArraySupplier s = h.value;
 				h.value = null;
-				return write(s).then(v -> write(bb));
+				return write(s).then(v -> writeBuf.get());
 			} else {
-				return write(bb);
+				return writeBuf.get();
 			}
 		});
 
+		f.onCompletion((r, err) -> {
+			FutureSupplier<Void> w;
+
+			synchronized (writing) {
+				done[0] = true;
+				w = writing.value;
+			}
+
+			// If cancelled, the buffer may still be queued for writing
+			if (w == null) ByteBufferPool.release(bb);
+			else w.onCompletion((v, fail) -> ByteBufferPool.release(bb));
+		});
 		if (consumer != null) f.onCompletion(consumer);
 		return f;
 	}
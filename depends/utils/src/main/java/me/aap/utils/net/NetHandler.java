@@ -71,6 +71,11 @@ public interface NetHandler extends Closeable {
 		public Executor executor;
 		public ScheduledExecutorService scheduler;
 		public int inactivityTimeout;
+		/**
+		 * The number of worker selectors. If greater than 1, the connections are distributed
+		 * between the worker selectors and a separate selector is used for accepting connections.
+		 */
+		public int selectors = 1;
 
 		Executor getExecutor() {
 			return (executor == null) ?
@@ -38,6 +38,8 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
@@ -61,21 +63,43 @@ import me.aap.utils.log.Log;
 import me.aap.utils.security.SecurityUtils;
 
 /**
+ * Selector based implementation of the {@link NetHandler}. If more than one selector is
+ * requested by {@link Opts#selectors}, the server channels are served by a dedicated acceptor
+ * selector and each accepted or connected channel is pinned to one of the worker selectors,
+ * chosen in the round-robin order. Otherwise, a single selector serves all the channels.
+ *
  * @author Andrey Pavlenko
  */
-class SelectorHandler implements NetHandler, Runnable {
+class SelectorHandler implements NetHandler {
 	private final Executor executor;
 	private final ScheduledExecutorService scheduler;
 	private final int inactivityTimeout;
-	private final Selector selector;
+	private final SelectorLoop acceptor;
+	private final SelectorLoop[] workers;
+	private final AtomicInteger nextWorker = new AtomicInteger();
 	private final ScheduledFuture<?> inactiveChannelCleaner;
-	private final Thread selectorThread;
-	private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
 
 	SelectorHandler(Opts opts) throws IOException {
 		executor = opts.getExecutor();
 		scheduler = opts.getScheduler();
-		selector = Selector.open();
+		int n = Math.max(1, opts.selectors);
+		acceptor = new SelectorLoop("SelectorHandler");
+
+		if (n == 1) {
+			workers = new SelectorLoop[]{acceptor};
+		} else {
+			workers = new SelectorLoop[n];
+
+			try {
+				for (int i = 0; i < n; i++) workers[i] = new SelectorLoop("SelectorHandler-" + (i + 1));
+			} catch (IOException ex) {
+				acceptor.close();
+				for (SelectorLoop w : workers) {
+					if (w != null) w.close();
+				}
+				throw ex;
+			}
+		}
 
 		if (opts.inactivityTimeout > 0) {
 			inactivityTimeout = opts.inactivityTimeout * 1000;
@@ -85,10 +109,6 @@ class SelectorHandler implements NetHandler, Runnable {
 			inactivityTimeout = 0;
 			inactiveChannelCleaner = null;
 		}
-
-		selectorThread = new PooledThread(this, "SelectorHandler");
-		selectorThread.setDaemon(true);
-		selectorThread.start();
 	}
 
 	@Override
@@ -96,34 +116,6 @@ class SelectorHandler implements NetHandler, Runnable {
 		close();
 	}
 
-	@Override
-	public void run() {
-		while (selector.isOpen()) {
-			try {
-				selector.select();
-
-				for (Runnable run = queue.poll(); run != null; run = queue.poll()) {
-					run.run();
-				}
-
-				Set<SelectionKey> keys = selector.selectedKeys();
-
-				for (Iterator<SelectionKey> it = keys.iterator(); it.hasNext(); ) {
-					SelectionKey k = it.next();
-					it.remove();
-
-					if (k.isValid()) {
-						Selectable select = (Selectable) k.attachment();
-						if (select != null) select.select();
-					}
-				}
-			} catch (Throwable ex) {
-				if (!selector.isOpen()) break;
-				Log.e(ex, "Selector failed");
-			}
-		}
-	}
-
 	@Override
 	public FutureSupplier<NetServer> bind(BindOpts opts) {
 		try {
@@ -140,7 +132,7 @@ class SelectorHandler implements NetHandler, Runnable {
 			RunnablePromise<NetServer> p = new RunnablePromise<>() {
 				@Override
 				protected NetServer runTask() throws ClosedChannelException {
-					channel.register(selector, OP_ACCEPT, server);
+					channel.register(acceptor.selector, OP_ACCEPT, server);
 					return server;
 				}
 
@@ -151,7 +143,7 @@ class SelectorHandler implements NetHandler, Runnable {
 				}
 			};
 
-			selectorRun(p);
+			acceptor.execute(p);
 			return p;
 		} catch (Throwable ex) {
 			return failed(ex);
@@ -204,18 +196,21 @@ class SelectorHandler implements NetHandler, Runnable {
 			Log.d("Connecting to ", addr);
 			if (!ch.connect(addr)) startTimer(p, o.connectTimeout, Timer.CONNECT);
 
-			selectorRun(() -> {
+			SelectorLoop loop = nextWorker();
+			loop.execute(() -> {
 				try {
 					boolean finished = ch.isConnected() || (ch.isConnectionPending() && ch.finishConnect());
-					SelectionKey key = ch.register(selector, finished ? 0 : OP_CONNECT);
+					SelectionKey key = ch.register(loop.selector, finished ? 0 : OP_CONNECT);
 					SelectableNetChannel nc = ((o.readTimeout | o.writeTimeout | o.sendTimeout) == 0)
-							? new SelectableNetChannel(key)
+							? new SelectableNetChannel(loop, key)
 							:
-							new SelectableNetChannelWitTimeout(key, o.readTimeout, o.writeTimeout,
+							new SelectableNetChannelWitTimeout(loop, key, o.readTimeout, o.writeTimeout,
 									o.sendTimeout);
 					Runnable exec = () -> getExecutor().execute(() -> {
 						if (o.ssl) {
+							// The client sessions are cached by host and port, thus both must be specified
 							if (o.host == null) o.host = ((InetSocketAddress) addr).getHostString();
+							if (o.port == 0) o.port = ((InetSocketAddress) addr).getPort();
 							if (o.sslEngine == null) o.sslEngine = SecurityUtils::createClientSslEngine;
 							SslChannel.create(nc, o.sslEngine.apply(o.host, o.port)).onCompletionSupply(p);
 						} else {
@@ -252,29 +247,21 @@ class SelectorHandler implements NetHandler, Runnable {
 
 	@Override
 	public void close() {
-		if (!selector.isOpen()) return;
-		selectorRun(this::doClose);
-		if (!selector.isOpen()) queue.clear();
-	}
-
-	private void doClose() {
-		for (SelectionKey k : selector.keys()) {
-			try {
-				Object a = k.attachment();
-				if (a instanceof Closeable) ((Closeable) a).close();
-				else k.channel().close();
-			} catch (Throwable ignore) {
-			}
-		}
-
-		IoUtils.close(selector);
 		if (inactiveChannelCleaner != null) inactiveChannelCleaner.cancel(false);
-		queue.clear();
+		acceptor.close();
+		if (workers[0] == acceptor) return;
+		for (SelectorLoop w : workers) w.close();
 	}
 
 	@Override
 	public boolean isOpen() {
-		return selector.isOpen();
+		if (!acceptor.isOpen()) return false;
+
+		for (SelectorLoop w : workers) {
+			if (!w.isOpen()) return false;
+		}
+
+		return true;
 	}
 
 	@Override
@@ -293,21 +280,7 @@ class SelectorHandler implements NetHandler, Runnable {
 	}
 
 	private void cleanInactive() {
-		selectorRun(() -> {
-			Set<SelectionKey> keys = selector.keys();
-			if (keys.isEmpty()) return;
-
-			long timeout = System.currentTimeMillis() - inactivityTimeout;
-
-			for (SelectionKey k : keys) {
-				try {
-					Object a = k.attachment();
-					if (a instanceof SelectableNetChannel)
-						((SelectableNetChannel) a).closeIfInactive(timeout);
-				} catch (Throwable ignore) {
-				}
-			}
-		});
+		for (SelectorLoop w : workers) w.execute(w::cleanInactive);
 	}
 
 	@SuppressWarnings({"unchecked", "rawtypes"})
@@ -330,16 +303,16 @@ class SelectorHandler implements NetHandler, Runnable {
 	}
 
 	private boolean isSelectorThread() {
-		return Thread.currentThread() == selectorThread;
+		if (acceptor.isLoopThread()) return true;
+		for (SelectorLoop w : workers) {
+			if (w.isLoopThread()) return true;
+		}
+		return false;
 	}
 
-	private void selectorRun(Runnable run) {
-		if (isSelectorThread()) {
-			run.run();
-		} else {
-			queue.add(run);
-			selector.wakeup();
-		}
+	private SelectorLoop nextWorker() {
+		SelectorLoop[] w = workers;
+		return (w.length == 1) ? w[0] : w[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % w.length];
 	}
 
 	private void startTimer(Promise<?> task, int timeout, byte type) {
@@ -403,6 +376,101 @@ class SelectorHandler implements NetHandler, Runnable {
 		void select();
 	}
 
+	private final class SelectorLoop implements Runnable {
+		final Selector selector;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		SelectorLoop(String name) throws IOException {
+			selector = Selector.open();
+			thread = new PooledThread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			while (selector.isOpen()) {
+				try {
+					selector.select();
+
+					for (Runnable run = queue.poll(); run != null; run = queue.poll()) {
+						run.run();
+					}
+
+					Set<SelectionKey> keys = selector.selectedKeys();
+
+					for (Iterator<SelectionKey> it = keys.iterator(); it.hasNext(); ) {
+						SelectionKey k = it.next();
+						it.remove();
+
+						if (k.isValid()) {
+							Selectable select = (Selectable) k.attachment();
+							if (select != null) select.select();
+						}
+					}
+				} catch (Throwable ex) {
+					if (!selector.isOpen()) break;
+					Log.e(ex, "Selector failed");
+				}
+			}
+		}
+
+		boolean isLoopThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		void execute(Runnable run) {
+			if (isLoopThread()) {
+				run.run();
+			} else {
+				queue.add(run);
+				selector.wakeup();
+			}
+		}
+
+		boolean isOpen() {
+			return !closed.get() && selector.isOpen();
+		}
+
+		void close() {
+			if (!closed.compareAndSet(false, true)) return;
+			execute(this::doClose);
+			if (!selector.isOpen()) queue.clear();
+		}
+
+		private void doClose() {
+			for (SelectionKey k : selector.keys()) {
+				try {
+					Object a = k.attachment();
+					if (a instanceof Closeable) ((Closeable) a).close();
+					else k.channel().close();
+				} catch (Throwable ignore) {
+				}
+			}
+
+			IoUtils.close(selector);
+			queue.clear();
+		}
+
+		private void cleanInactive() {
+			Set<SelectionKey> keys = selector.keys();
+			if (keys.isEmpty()) return;
+
+			long timeout = System.currentTimeMillis() - inactivityTimeout;
+
+			for (SelectionKey k : keys) {
+				try {
+					Object a = k.attachment();
+					if (a instanceof SelectableNetChannel)
+						((SelectableNetChannel) a).closeIfInactive(timeout);
+				} catch (Throwable ignore) {
+				}
+			}
+		}
+	}
+
 	private final class SelectableNetServer implements NetServer, Selectable {
 		private final ServerSocketChannel channel;
 		private final Map<SocketOption<?>, ?> opts;
@@ -446,7 +514,6 @@ class SelectorHandler implements NetHandler, Runnable {
 
 		@Override
 		public void select() {
-			SelectableNetChannel nc;
 			SocketChannel ch = null;
 
 			try {
@@ -456,10 +523,23 @@ class SelectorHandler implements NetHandler, Runnable {
 				ch.configureBlocking(false);
 				setOpts(ch, opts);
 
-				SelectionKey key = ch.register(selector, 0);
+				SocketChannel c = ch;
+				SelectorLoop loop = nextWorker();
+				loop.execute(() -> register(loop, c));
+			} catch (Throwable ex) {
+				IoUtils.close(ch);
+				Log.e(ex, "Failed to accept a connection");
+			}
+		}
+
+		private void register(SelectorLoop loop, SocketChannel ch) {
+			SelectableNetChannel nc;
+
+			try {
+				SelectionKey key = ch.register(loop.selector, 0);
 				nc = hasTimeout
-						? new SelectableNetChannelWitTimeout(key, readTimeout, writeTimeout, sendTimeout)
-						: new SelectableNetChannel(key);
+						? new SelectableNetChannelWitTimeout(loop, key, readTimeout, writeTimeout, sendTimeout)
+						: new SelectableNetChannel(loop, key);
 				key.attach(nc);
 			} catch (CancelledKeyException ignore) {
 				return;
@@ -529,6 +609,7 @@ class SelectorHandler implements NetHandler, Runnable {
 	private class SelectableNetChannel
 			extends ConcurrentQueueBase<ByteBufferArraySupplier, WritePromise>
 			implements NetChannel, Selectable {
+		private final SelectorLoop loop;
 		private final SelectionKey key;
 		@Keep
 		volatile ReadPromise reader;
@@ -537,7 +618,8 @@ class SelectorHandler implements NetHandler, Runnable {
 		private long lastActive;
 		private CloseListener closeListener;
 
-		public SelectableNetChannel(SelectionKey key) {
+		public SelectableNetChannel(SelectorLoop loop, SelectionKey key) {
+			this.loop = loop;
 			this.key = key;
 		}
 
@@ -761,7 +843,7 @@ class SelectorHandler implements NetHandler, Runnable {
 		}
 
 		private void setInterest(Completable<?> p, int interest) {
-			selectorRun(() -> {
+			loop.execute(() -> {
 				try {
 					if (key.isValid()) key.interestOps(key.interestOps() | interest);
 				} catch (Throwable ex) {
@@ -830,7 +912,7 @@ class SelectorHandler implements NetHandler, Runnable {
 			}
 
 			// Wake up selector to remove the cancelled key
-			selector.wakeup();
+			loop.selector.wakeup();
 		}
 
 		@Nonnull
@@ -849,9 +931,9 @@ class SelectorHandler implements NetHandler, Runnable {
 		private final int writeTimeout;
 		private final int sendTimeout;
 
-		SelectableNetChannelWitTimeout(SelectionKey key, int readTimeout, int writeTimeout,
-																	 int sendTimeout) {
-			super(key);
+		SelectableNetChannelWitTimeout(SelectorLoop loop, SelectionKey key, int readTimeout,
+																	 int writeTimeout, int sendTimeout) {
+			super(loop, key);
 			this.readTimeout = readTimeout;
 			this.writeTimeout = writeTimeout;
 			this.sendTimeout = sendTimeout;
@@ -1,5 +1,7 @@
 package me.aap.utils.net;
 
+import androidx.annotation.NonNull;
+
 import javax.net.ssl.SSLEngine;
 
 import me.aap.utils.async.FutureSupplier;
@@ -12,4 +14,51 @@ public interface SslChannel extends NetChannel {
 	static FutureSupplier<? extends SslChannel> create(NetChannel channel, SSLEngine engine) {
 		return SslChannelImpl.create(channel, engine);
 	}
+
+	/**
+	 * The number of completed handshakes, including the resumed ones.
+	 */
+	static long getHandshakeCount() {
+		return SslChannelImpl.handshakes.get();
+	}
+
+	/**
+	 * The number of handshakes, that resumed a cached session. The sessions are cached by the
+	 * {@link javax.net.ssl.SSLContext}, if the engine is created with the peer host and port.
+	 * The TLS 1.3 sessions, resumed by a server from a stateless ticket, are not counted.
+	 */
+	static long getResumedHandshakeCount() {
+		return SslChannelImpl.resumed.get();
+	}
+
+	static long getFailedHandshakeCount() {
+		return SslChannelImpl.failed.get();
+	}
+
+	/**
+	 * Average time of a full handshake in microseconds.
+	 */
+	static long getFullHandshakeTime() {
+		long n = getHandshakeCount() - getResumedHandshakeCount();
+		return (n <= 0) ? 0 : SslChannelImpl.fullTime.get() / n / 1000L;
+	}
+
+	/**
+	 * Average time of a resumed handshake in microseconds.
+	 */
+	static long getResumedHandshakeTime() {
+		long n = getResumedHandshakeCount();
+		return (n == 0) ? 0 : SslChannelImpl.resumedTime.get() / n / 1000L;
+	}
+
+	@NonNull
+	static String getHandshakeStats() {
+		return "SslChannel{" +
+				"handshakes=" + getHandshakeCount() +
+				", resumed=" + getResumedHandshakeCount() +
+				", failed=" + getFailedHandshakeCount() +
+				", fullTime=" + getFullHandshakeTime() +
+				", resumedTime=" + getResumedHandshakeTime() +
+				'}';
+	}
 }
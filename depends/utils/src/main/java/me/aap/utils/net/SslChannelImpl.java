@@ -8,6 +8,7 @@ import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.annotation.Nonnull;
@@ -15,13 +16,13 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
 
 import me.aap.utils.BuildConfig;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.async.Promise;
 import me.aap.utils.concurrent.ConcurrentQueueBase;
 import me.aap.utils.function.ProgressiveResultConsumer.Completion;
-import me.aap.utils.io.IoUtils;
 import me.aap.utils.log.Log;
 
 import static me.aap.utils.async.Completed.failed;
@@ -29,7 +30,6 @@ import static me.aap.utils.concurrent.NetThread.assertSslReadBuffer;
 import static me.aap.utils.concurrent.NetThread.assertSslWriteBuffer;
 import static me.aap.utils.concurrent.NetThread.getSslReadBuffer;
 import static me.aap.utils.concurrent.NetThread.getSslWriteBuffer;
-import static me.aap.utils.io.IoUtils.copyOfRange;
 import static me.aap.utils.io.IoUtils.emptyByteBufferArray;
 
 /**
@@ -38,12 +38,21 @@ import static me.aap.utils.io.IoUtils.emptyByteBufferArray;
 class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChannelImpl.Write> implements SslChannel {
 	private static final AtomicIntegerFieldUpdater<SslChannelImpl> READ_STATE = AtomicIntegerFieldUpdater.newUpdater(SslChannelImpl.class, "readState");
 	private static final ByteBuffer[] EMPTY_BUF_ARRAY = new ByteBuffer[0];
+	private static final String SEEN = SslChannelImpl.class.getName() + ".seen";
+	static final AtomicLong handshakes = new AtomicLong();
+	static final AtomicLong resumed = new AtomicLong();
+	static final AtomicLong failed = new AtomicLong();
+	static final AtomicLong fullTime = new AtomicLong();
+	static final AtomicLong resumedTime = new AtomicLong();
 	private final ByteBuffer[] writeBufArray = new ByteBuffer[1];
 	private final NetChannel channel;
 	private final SSLEngine engine;
 	private ByteBuffer tmpBuf;
 	private ByteBuffer retainedReadBuf;
 	private ByteBuffer retainedWriteBuf;
+	// Released retained buffers, reused for the next retained copy
+	private ByteBuffer spareReadBuf;
+	private ByteBuffer spareWriteBuf;
 	// 0 - idle, 1 - reading, 2 - supplying
 	private volatile int readState;
 
@@ -134,6 +143,20 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		return "SslChannel: " + getChannel();
 	}
 
+	/**
+	 * Copies the remaining bytes of the source buffer to the spare buffer, if it's large enough,
+	 * or to a new one. The source buffer position is not changed.
+	 */
+	private static ByteBuffer copyOf(ByteBuffer src, @Nullable ByteBuffer spare) {
+		int n = src.remaining();
+		ByteBuffer bb = ((spare != null) && (spare.capacity() >= n)) ? spare
+				: ByteBuffer.allocate((n <= 1024) ? 1024 : Integer.highestOneBit(n - 1) << 1);
+		bb.clear();
+		bb.put(src.duplicate());
+		bb.flip();
+		return bb;
+	}
+
 	private static int getBufferOffset(ByteBuffer[] buf) {
 		for (int i = 0; i < buf.length; i++) {
 			if (buf[i].hasRemaining()) {
@@ -210,7 +233,8 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 			assert retainedReadBuf == null;
 			assertSslReadBuffer(bb);
-			retainedReadBuf = IoUtils.copyOf(bb);
+			retainedReadBuf = copyOf(bb, spareReadBuf);
+			spareReadBuf = null;
 			// Log.d("Retaining SSL read buffer ", retainedReadBuf, ". Channel: ", SslChannelImpl.this);
 			return this;
 		}
@@ -224,7 +248,8 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 			assert retainedWriteBuf == null;
 			assertSslWriteBuffer(bb[0]);
-			retainedWriteBuf = IoUtils.copyOf(bb[0]);
+			retainedWriteBuf = copyOf(bb[0], spareWriteBuf);
+			spareWriteBuf = null;
 			// Log.d("Retaining SSL write buffer: ", retainedWriteBuf, ". Channel: ", SslChannelImpl.this);
 			return this;
 		}
@@ -234,6 +259,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			assert !bb.hasRemaining();
 			if (bb == retainedReadBuf) {
 				// Log.d("Releasing retained SSL read buffer ", bb, ". Channel: ", SslChannelImpl.this);
+				spareReadBuf = bb;
 				retainedReadBuf = null;
 			} else if (BuildConfig.D) {
 				assertSslReadBuffer(bb);
@@ -249,6 +275,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			if (bb[0] == retainedWriteBuf) {
 				assert !bb[0].hasRemaining();
 				// Log.d("Releasing retained SSL write buffer ", bb[0], ". Channel: ", SslChannelImpl.this);
+				spareWriteBuf = bb[0];
 				retainedWriteBuf = null;
 			} else if (BuildConfig.D) {
 				assertSslWriteBuffer(bb[0]);
@@ -269,7 +296,8 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 	}
 
 	private final class Handshake extends SslPromise<SslChannelImpl> {
-		private final ByteBuffer unwrapBuf = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		private final ByteBuffer unwrapBuf = ByteBufferPool.acquire(engine.getSession().getApplicationBufferSize());
+		private final long startNanos = System.nanoTime();
 
 		Handshake() {
 		}
@@ -277,9 +305,41 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		@Override
 		public boolean complete(@Nullable SslChannelImpl value) {
 			assert unwrapBuf.position() == 0;
-			assert unwrapBuf.limit() == unwrapBuf.capacity();
 			assert retainedWriteBuf == null;
-			return super.complete(value);
+			if (isDone()) return false;
+			long time = System.nanoTime() - startNanos;
+			SSLSession s = engine.getSession();
+			// A resumed session has been marked by one of the previous handshakes. The mark is kept
+			// by the cached session and, in TLS 1.3, copied by the client to the resumed session.
+			// A server, resuming a TLS 1.3 session from a stateless ticket, has no way to tell it
+			// and counts the handshake as full.
+			boolean res = s.getValue(SEEN) != null;
+			if (!res) s.putValue(SEEN, Boolean.TRUE);
+			handshakes.incrementAndGet();
+
+			if (res) {
+				resumed.incrementAndGet();
+				resumedTime.addAndGet(time);
+			} else {
+				fullTime.addAndGet(time);
+			}
+
+			if (Log.isLoggableD()) {
+				Log.d(res ? "Resumed " : "Full ", s.getProtocol(), " handshake with ", s.getPeerHost(),
+						':', s.getPeerPort(), " completed in ", time / 1000L, " us. Channel: ", getChannel());
+			}
+
+			if (!super.complete(value)) return false;
+			ByteBufferPool.release(unwrapBuf);
+			return true;
+		}
+
+		@Override
+		public boolean completeExceptionally(@NonNull Throwable ex) {
+			if (!super.completeExceptionally(ex)) return false;
+			ByteBufferPool.release(unwrapBuf);
+			failed.incrementAndGet();
+			return true;
 		}
 
 		void handshake() {
@@ -423,6 +483,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 				if (!tmpBuf.hasRemaining()) {
 					Log.d("Releasing temporary buffer " + tmpBuf, ". Channel: ", SslChannelImpl.this);
+					ByteBufferPool.release(tmpBuf);
 					tmpBuf = null;
 				}
 
@@ -488,15 +549,17 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 			try {
 				assert tmpBuf == null;
-				tmpBuf = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+				tmpBuf = ByteBufferPool.acquire(engine.getSession().getApplicationBufferSize());
 				Log.d("Unwrapping to temporary buffer " + tmpBuf, ". Channel: ", SslChannelImpl.this);
 				result = unwrap(src, tmpBuf);
 				if (result.getStatus() != SSLEngineResult.Status.OK) {
 					Log.d("Releasing temporary buffer " + tmpBuf, ". Channel: ", SslChannelImpl.this);
+					ByteBufferPool.release(tmpBuf);
 					tmpBuf = null;
 				}
 			} catch (SSLException ex) {
 				Log.e(ex, "Failed to unwrap from ", src, ". Channel: ", SslChannelImpl.this);
+				ByteBufferPool.release(tmpBuf);
 				tmpBuf = null;
 				releaseByteBuffer(src);
 				done(null, ex);
@@ -33,7 +33,6 @@ import java.util.concurrent.TimeoutException;
 import me.aap.utils.app.App;
 import me.aap.utils.app.NetApp;
 import me.aap.utils.async.FutureSupplier;
-import me.aap.utils.collection.CacheMap;
 import me.aap.utils.collection.CollectionUtils;
 import me.aap.utils.function.BiFunction;
 import me.aap.utils.function.Consumer;
@@ -49,10 +48,11 @@ import me.aap.utils.text.SharedTextBuilder;
  * @author Andrey Pavlenko
  */
 public class HttpConnection extends HttpResponseEncoder implements HttpResponseHandler, Closeable {
-	private static final CacheMap<ConnectionId, FutureSupplier<HttpConnection>> cache = new CacheMap<>(30);
 	private static final Map<URL, URL> permRedirects = new ConcurrentHashMap<>();
 	private final NetChannel channel;
 	private final Deque<BiFunction<HttpResponse, Throwable, FutureSupplier<?>>> receiveQueue = new ConcurrentLinkedDeque<>();
+	@Nullable
+	private volatile HttpConnectionPool.Slot poolSlot;
 
 	public HttpConnection(NetChannel channel) {
 		this.channel = channel;
@@ -77,6 +77,11 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		public int maxRedirects = 10;
 		public int maxReconnects = 10;
 		public int responseTimeout;
+		/**
+		 * The pool of keep-alive connections. If null, the default pool is used.
+		 */
+		@Nullable
+		public HttpConnectionPool pool;
 
 		public void url(String url) {
 			try {
@@ -106,14 +111,8 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		o.ssl = id.ssl;
 
 		if (o.keepAlive) {
-			f = cache.compute(id, (k, v) -> {
-				if ((v != null) && !v.isFailed()) {
-					HttpConnection c = v.peek();
-					if ((c == null) || c.isOpen()) return v;
-				}
-
-				return connect(o);
-			});
+			HttpConnectionPool pool = (o.pool != null) ? o.pool : HttpConnectionPool.getDefault();
+			f = pool.acquire(id, o);
 		} else {
 			f = connect(o);
 		}
@@ -122,6 +121,13 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		f.onCompletion((c, err) -> sendRequest(c, o, err, consumer));
 	}
 
+	static FutureSupplier<HttpConnection> connect(Opts o, HttpConnectionPool.Slot slot) {
+		return connect(o).map(c -> {
+			c.poolSlot = slot;
+			return c;
+		}).onFailure(err -> slot.getPool().remove(slot));
+	}
+
 	private static FutureSupplier<HttpConnection> connect(Opts o) {
 		NetHandler handler = o.handler;
 
@@ -182,6 +188,12 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 					f.thenRun(() -> close(new ConnectionClosedException("Close response received")));
 					return FutureSupplier.noOp();
 				} else {
+					HttpConnectionPool.Slot slot = poolSlot;
+					if (slot != null) f.onCompletion((r, err) -> {
+						// The connection state is unknown, if the response processing has failed
+						if (err == null) slot.getPool().release(this);
+						else close(new ConnectionClosedException("Response processing failed", err));
+					});
 					return f;
 				}
 			} catch (Throwable ex) {
@@ -209,6 +221,8 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 
 	private void close(Throwable cause) {
 		getChannel().close();
+		HttpConnectionPool.Slot slot = poolSlot;
+		if (slot != null) slot.getPool().remove(slot);
 
 		while (!receiveQueue.isEmpty()) {
 			for (Iterator<BiFunction<HttpResponse, Throwable, FutureSupplier<?>>> it = receiveQueue.iterator(); it.hasNext(); ) {
@@ -229,6 +243,11 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		close();
 	}
 
+	@Nullable
+	HttpConnectionPool.Slot getPoolSlot() {
+		return poolSlot;
+	}
+
 	@Override
 	protected HttpConnection getConnection(NetChannel channel) {
 		return this;
@@ -264,7 +283,7 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		return true;
 	}
 
-	private static final class ConnectionId {
+	static final class ConnectionId {
 		final int port;
 		final String host;
 		final boolean ssl;
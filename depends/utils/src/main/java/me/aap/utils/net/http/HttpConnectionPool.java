@@ -0,0 +1,418 @@
+package me.aap.utils.net.http;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.aap.utils.app.App;
+import me.aap.utils.app.NetApp;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.io.IoUtils;
+import me.aap.utils.log.Log;
+import me.aap.utils.net.http.HttpConnection.ConnectionId;
+import me.aap.utils.net.http.HttpConnection.Opts;
+
+/**
+ * Pool of keep-alive client connections. Up to {@link #getMaxConnectionsPerHost()} connections
+ * are opened per host. A request is assigned to an idle connection, if any, or to a new one,
+ * if the limit is not reached. Otherwise, if pipelining is enabled, the request is sent over the
+ * least loaded connection, having less than {@link #getMaxPipelinedRequests()} pending requests,
+ * or it waits in the host's FIFO queue for the first connection to become available. If the
+ * response timeout is specified, the waiting request fails with {@link TimeoutException}, when
+ * the timeout expires. The connections, that are idle for more than {@link #getIdleTimeout()} ms, are closed.
+ *
+ * @author Andrey Pavlenko
+ */
+public class HttpConnectionPool {
+	private static final HttpConnectionPool defaultPool = new HttpConnectionPool(4, 1, 30000);
+	private final Map<ConnectionId, Host> hosts = new ConcurrentHashMap<>();
+	private final int maxConnectionsPerHost;
+	private final int maxPipelinedRequests;
+	private final int idleTimeout;
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong pipelined = new AtomicLong();
+	private final AtomicLong waited = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * @param maxConnectionsPerHost the maximum number of connections per host.
+	 * @param maxPipelinedRequests  the maximum number of pending requests per connection. If 1,
+	 *                              the requests are not pipelined.
+	 * @param idleTimeout           the idle connections timeout in milliseconds.
+	 */
+	public HttpConnectionPool(int maxConnectionsPerHost, int maxPipelinedRequests, int idleTimeout) {
+		this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+		this.maxPipelinedRequests = Math.max(1, maxPipelinedRequests);
+		this.idleTimeout = idleTimeout;
+	}
+
+	public static HttpConnectionPool getDefault() {
+		return defaultPool;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public int getMaxPipelinedRequests() {
+		return maxPipelinedRequests;
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public int getConnectionCount() {
+		int n = 0;
+
+		for (Host h : hosts.values()) {
+			synchronized (h) {
+				n += h.slots.size();
+			}
+		}
+
+		return n;
+	}
+
+	public int getIdleConnectionCount() {
+		int n = 0;
+
+		for (Host h : hosts.values()) {
+			synchronized (h) {
+				for (Slot s : h.slots) {
+					if (s.pending == 0) n++;
+				}
+			}
+		}
+
+		return n;
+	}
+
+	public int getWaitingCount() {
+		int n = 0;
+
+		for (Host h : hosts.values()) {
+			synchronized (h) {
+				n += h.waiters.size();
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * The number of requests, assigned to an idle connection.
+	 */
+	public long getReuseCount() {
+		return reused.get();
+	}
+
+	public long getCreateCount() {
+		return created.get();
+	}
+
+	/**
+	 * The number of requests, pipelined over a busy connection.
+	 */
+	public long getPipelineCount() {
+		return pipelined.get();
+	}
+
+	/**
+	 * The number of requests, that have been waiting for a connection.
+	 */
+	public long getWaitCount() {
+		return waited.get();
+	}
+
+	public long getEvictionCount() {
+		return evicted.get();
+	}
+
+	@NonNull
+	public String getStats() {
+		return "HttpConnectionPool{" +
+				"connections=" + getConnectionCount() +
+				", idle=" + getIdleConnectionCount() +
+				", waiting=" + getWaitingCount() +
+				", reused=" + getReuseCount() +
+				", created=" + getCreateCount() +
+				", pipelined=" + getPipelineCount() +
+				", waited=" + getWaitCount() +
+				", evicted=" + getEvictionCount() +
+				'}';
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void closeIdle() {
+		List<HttpConnection> close = new ArrayList<>();
+
+		for (Host h : hosts.values()) {
+			synchronized (h) {
+				for (int i = h.slots.size() - 1; i >= 0; i--) {
+					Slot s = h.slots.get(i);
+					if ((s.pending != 0) || !s.conn.isDone() || s.conn.isFailed()) continue;
+					h.slots.remove(i);
+					close.add(s.conn.peek());
+				}
+
+				if (h.isEmpty()) {
+					h.removed = true;
+					hosts.remove(h.id, h);
+				}
+			}
+		}
+
+		for (HttpConnection c : close) IoUtils.close(c);
+	}
+
+	/**
+	 * Returns a connection to be used for a single request. When the response is processed,
+	 * {@link #release(HttpConnection)} must be called.
+	 */
+	FutureSupplier<HttpConnection> acquire(ConnectionId id, Opts o) {
+		for (; ; ) {
+			Host h = hosts.get(id);
+
+			if (h == null) {
+				Host nh = new Host(id);
+				h = hosts.putIfAbsent(id, nh);
+				if (h == null) h = nh;
+			}
+
+			synchronized (h) {
+				if (h.removed) continue;
+				h.purge();
+				Slot best = null;
+
+				for (Slot s : h.slots) {
+					if (s.pending == 0) {
+						if (!s.conn.isDone()) continue;
+						s.pending++;
+						reused.incrementAndGet();
+						return s.conn;
+					}
+
+					if ((best == null) || (s.pending < best.pending)) best = s;
+				}
+
+				if (h.slots.size() < maxConnectionsPerHost) {
+					created.incrementAndGet();
+					return h.create(o).conn;
+				}
+
+				if ((best != null) && (best.pending < maxPipelinedRequests)) {
+					best.pending++;
+					pipelined.incrementAndGet();
+					return best.conn;
+				}
+
+				Waiter w = new Waiter(o);
+				h.waiters.addLast(w);
+				waited.incrementAndGet();
+				if (o.responseTimeout > 0) scheduleTimeout(h, w);
+				return w;
+			}
+		}
+	}
+
+	/**
+	 * Called when a response is processed and the connection may be used for the next request.
+	 */
+	void release(HttpConnection c) {
+		Slot s = c.getPoolSlot();
+		if (s == null) return;
+		Host h = s.host;
+		Waiter w;
+
+		if (!c.isOpen()) {
+			synchronized (h) {
+				if (s.pending > 0) s.pending--;
+			}
+			remove(s);
+			return;
+		}
+
+		synchronized (h) {
+			if (s.pending > 0) s.pending--;
+			if (!h.slots.contains(s)) return;
+			w = h.nextWaiter();
+
+			if (w != null) {
+				s.pending++;
+			} else if (s.pending == 0) {
+				long time = System.currentTimeMillis();
+				s.idleSince = time;
+				scheduleEviction(c, s, time);
+			}
+		}
+
+		// The waiter may have been cancelled
+		if ((w != null) && !w.complete(c)) release(c);
+	}
+
+	/**
+	 * Called when the connection is closed or failed to connect.
+	 */
+	void remove(Slot s) {
+		Host h = s.host;
+		Waiter w;
+
+		synchronized (h) {
+			if (!h.slots.remove(s)) return;
+			w = h.nextWaiter();
+
+			if (w != null) {
+				created.incrementAndGet();
+				h.create(w.opts).conn.onCompletionSupply(w);
+			} else if (h.isEmpty()) {
+				h.removed = true;
+				hosts.remove(h.id, h);
+			}
+		}
+	}
+
+	private void scheduleTimeout(Host h, Waiter w) {
+		ScheduledExecutorService scheduler = getScheduler(h, w.opts);
+
+		if (scheduler == null) {
+			Log.w("Unable to schedule connection wait timeout - no scheduler");
+			return;
+		}
+
+		try {
+			ScheduledFuture<?> timer = scheduler.schedule(() -> {
+				synchronized (h) {
+					// Already removed by release() or remove()
+					if (!h.waiters.remove(w)) return;
+
+					if (h.isEmpty()) {
+						h.removed = true;
+						hosts.remove(h.id, h);
+					}
+				}
+
+				w.completeExceptionally(new TimeoutException("Connection wait timeout: " + w.opts.url));
+			}, w.opts.responseTimeout, SECONDS);
+			w.onCompletion((c, err) -> timer.cancel(false));
+		} catch (Throwable ex) {
+			Log.e(ex, "Failed to schedule connection wait timeout");
+		}
+	}
+
+	@Nullable
+	private static ScheduledExecutorService getScheduler(Host h, Opts o) {
+		if (o.handler != null) return o.handler.getScheduler();
+
+		for (Slot s : h.slots) {
+			FutureSupplier<HttpConnection> f = s.conn;
+			if (f.isDone() && !f.isFailed()) return f.peek().getChannel().getHandler().getScheduler();
+		}
+
+		App app = App.get();
+		return (app instanceof NetApp) ? ((NetApp) app).getNetHandler().getScheduler() : null;
+	}
+
+	private void scheduleEviction(HttpConnection c, Slot s, long idleSince) {
+		if (idleTimeout <= 0) return;
+
+		try {
+			c.getChannel().getHandler().getScheduler().schedule(() -> {
+				Host h = s.host;
+
+				synchronized (h) {
+					if ((s.pending != 0) || (s.idleSince != idleSince) || !h.slots.remove(s)) return;
+
+					if (h.isEmpty()) {
+						h.removed = true;
+						hosts.remove(h.id, h);
+					}
+				}
+
+				evicted.incrementAndGet();
+				Log.d("Closing idle connection: ", c.getChannel());
+				c.close();
+			}, idleTimeout, MILLISECONDS);
+		} catch (Throwable ex) {
+			Log.e(ex, "Failed to schedule idle connection eviction");
+		}
+	}
+
+	final class Host {
+		final ConnectionId id;
+		final List<Slot> slots = new ArrayList<>();
+		final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+		boolean removed;
+
+		Host(ConnectionId id) {
+			this.id = id;
+		}
+
+		Slot create(Opts o) {
+			Slot s = new Slot(this);
+			s.pending = 1;
+			slots.add(s);
+			s.conn = HttpConnection.connect(o, s);
+			return s;
+		}
+
+		Waiter nextWaiter() {
+			for (Waiter w = waiters.pollFirst(); w != null; w = waiters.pollFirst()) {
+				if (!w.isDone()) return w;
+			}
+			return null;
+		}
+
+		boolean isEmpty() {
+			return slots.isEmpty() && waiters.isEmpty();
+		}
+
+		private void purge() {
+			for (int i = slots.size() - 1; i >= 0; i--) {
+				FutureSupplier<HttpConnection> f = slots.get(i).conn;
+				if (!f.isDone()) continue;
+				HttpConnection c = f.isFailed() ? null : f.peek();
+				if ((c == null) || !c.isOpen()) slots.remove(i);
+			}
+		}
+	}
+
+	final class Slot {
+		final Host host;
+		FutureSupplier<HttpConnection> conn;
+		int pending;
+		long idleSince;
+
+		Slot(Host host) {
+			this.host = host;
+		}
+
+		HttpConnectionPool getPool() {
+			return HttpConnectionPool.this;
+		}
+	}
+
+	private static final class Waiter extends Promise<HttpConnection> {
+		final Opts opts;
+
+		Waiter(Opts opts) {
+			this.opts = opts;
+		}
+	}
+}
@@ -1,34 +1,48 @@
 package me.aap.utils.net.http;
 
+import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.async.Completed.failed;
 import static me.aap.utils.net.http.HttpHeader.USER_AGENT;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
+import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.async.Promise;
 import me.aap.utils.function.BooleanSupplier;
 import me.aap.utils.function.IntSupplier;
 import me.aap.utils.function.LongSupplier;
 import me.aap.utils.function.Supplier;
+import me.aap.utils.io.AsyncInputStream;
+import me.aap.utils.io.AsyncPipe;
 import me.aap.utils.io.FileUtils;
 import me.aap.utils.io.IoUtils;
 import me.aap.utils.log.Log;
+import me.aap.utils.net.NetHandler;
 import me.aap.utils.pref.BasicPreferenceStore;
 import me.aap.utils.pref.PreferenceStore;
 import me.aap.utils.pref.PreferenceStore.Pref;
@@ -47,17 +61,35 @@ public class HttpFileDownloader {
 	public static final Pref<LongSupplier> TIMESTAMP = Pref.l("TIMESTAMP", 0);
 	public static final Pref<IntSupplier> MAX_AGE = Pref.i("MAX_AGE", 0);
 	public static final Pref<BooleanSupplier> DECODE = Pref.b("DECODE", false);
+	static final long MIN_SEGMENT_SIZE = 1024 * 1024;
 	private StatusListener statusListener;
+	private NetHandler netHandler;
 	private boolean returnExistingOnFail;
+	private int maxSegments = 4;
 
 	public void setStatusListener(StatusListener statusListener) {
 		this.statusListener = statusListener;
 	}
 
+	/**
+	 * The handler to create connections with. If null, the application's handler is used.
+	 */
+	public void setNetHandler(@Nullable NetHandler netHandler) {
+		this.netHandler = netHandler;
+	}
+
 	public void setReturnExistingOnFail(boolean returnExistingOnFail) {
 		this.returnExistingOnFail = returnExistingOnFail;
 	}
 
+	/**
+	 * The maximum number of ranges to be downloaded in parallel, if the server supports byte
+	 * ranges. If 1, the file is downloaded with a single request.
+	 */
+	public void setMaxSegments(int maxSegments) {
+		this.maxSegments = Math.max(1, maxSegments);
+	}
+
 	public FutureSupplier<Status> download(String src, File dst) {
 		var prefs = new BasicPreferenceStore();
 		prefs.applyBooleanPref(DECODE, true);
@@ -65,14 +97,31 @@ public class HttpFileDownloader {
 	}
 
 	public FutureSupplier<Status> download(String src, File dst, PreferenceStore prefs) {
+		return download(src, dst, prefs, null);
+	}
+
+	public FutureSupplier<Status> download(String src, File dst, PreferenceStore prefs,
+																				 @Nullable PayloadConsumer consumer) {
 		try {
-			return download(new URL(src), dst, prefs);
+			return download(new URL(src), dst, prefs, consumer);
 		} catch (MalformedURLException ex) {
 			return failed(ex);
 		}
 	}
 
 	public FutureSupplier<Status> download(URL src, File dst, PreferenceStore prefs) {
+		return download(src, dst, prefs, null);
+	}
+
+	/**
+	 * Downloads the file as {@link #download(URL, File, PreferenceStore)} does, but, if a new
+	 * content is received, the payload is also passed to the consumer, while being downloaded.
+	 * The file is saved as received, i.e. not decoded, unless {@link #DECODE} is set, so it could
+	 * be reused for conditional requests. The consumer is not called if the existing file is
+	 * returned.
+	 */
+	public FutureSupplier<Status> download(URL src, File dst, PreferenceStore prefs,
+																				 @Nullable PayloadConsumer consumer) {
 		boolean exist = dst.isFile();
 		Promise<Status> p = new Promise<>();
 		StatusListener listener = statusListener;
@@ -108,145 +157,663 @@ public class HttpFileDownloader {
 		var cached = cache.putIfAbsent(key, p);
 		if (cached != null) return cached;
 		p.thenRun(() -> cache.remove(key, p));
+		new Download(src, dst, prefs, p, listener, consumer, exist).start();
+		return p;
+	}
 
-		var o = new HttpConnection.Opts();
-		o.url = src;
-		o.responseTimeout = prefs.getIntPref(RESP_TIMEOUT);
-		o.userAgent = prefs.getStringPref(AGENT);
-		if (exist) o.ifNonMatch = prefs.getStringPref(ETAG);
-		HttpConnection.connect(o, (resp, err) -> {
-			if (err != null) {
-				completeExceptionally(p, err, new DownloadStatus(src, dst, 0), listener);
-				return p;
+	private void completeExceptionally(Promise<Status> p, Throwable err, DownloadStatus status,
+																		 StatusListener listener) {
+		if (returnExistingOnFail && status.getLocalFile().isFile()) {
+			Log.e(err, "Failed to download: ", status.getUrl(), ". Returning existing file: ",
+					status.getLocalFile());
+			status.failure = err;
+			if (listener != null) listener.onSuccess(status);
+			p.complete(status);
+		} else {
+			Log.e(err, "Failed to download ", status.getUrl(), " to ", status.getLocalFile());
+			if (listener != null) listener.onFailure(status);
+			p.completeExceptionally(err);
+		}
+	}
+
+	private void complete(Promise<Status> p, File incomplete, DownloadStatus status,
+												PreferenceStore prefs, StatusListener listener) {
+		File dst = status.getLocalFile();
+
+		if (status.getContentEncoding() == null) {
+			try (var in = new FileInputStream(incomplete)) {
+				if ((in.read() == 0x1F) && (in.read() == 0x8B)) status.setEncoding("gzip");
+			} catch (IOException ex) {
+				Log.d(ex, "Failed to read file: ", dst);
 			}
+		}
 
-			var enc = resp.getContentEncoding();
-			if (enc == null) {
-				var path = o.url.getPath();
-				if ((path != null) && (path.endsWith(".gzip") || path.endsWith(".gz"))) enc = "gzip";
+		if (prefs.getBooleanPref(DECODE) && (status.getContentEncoding() != null)) {
+			try (var in = status.getFileStream(incomplete, true);
+					 var out = new FileOutputStream(dst)) {
+				FileUtils.copy(in, out);
+				status.setEncoding(null);
+			} catch (IOException ex) {
+				completeExceptionally(p, ex, status, listener);
+				return;
+			} finally {
+				//noinspection ResultOfMethodCallIgnored
+				incomplete.delete();
+			}
+		} else if (!incomplete.renameTo(dst)) {
+			completeExceptionally(p,
+					new IOException("Failed to rename file " + incomplete + " to " + dst),
+					status, listener);
+			//noinspection ResultOfMethodCallIgnored
+			incomplete.delete();
+			return;
+		}
+
+		try (PreferenceStore.Edit edit = prefs.editPreferenceStore()) {
+			edit.setStringPref(ETAG, status.getEtag());
+			edit.setStringPref(CHARSET, status.getCharacterEncoding());
+			edit.setStringPref(ENCODING, status.getContentEncoding());
+			edit.setLongPref(TIMESTAMP, System.currentTimeMillis());
+		}
+
+		Log.d("Downloaded ", status.getUrl(), " to ", dst);
+		if (listener != null) listener.onSuccess(status);
+		p.complete(status);
+	}
+
+	static InputStream decode(InputStream in, @Nullable String enc) throws IOException {
+		if (enc == null) return in;
+		if ("gzip".equals(enc)) return new GZIPInputStream(in, 65536);
+		if ("deflate".equals(enc)) return new InflaterInputStream(in, new Inflater(), 65536);
+		throw new IOException("Unsupported encoding: " + enc);
+	}
+
+	/**
+	 * Parses the Content-Range header value, e.g. bytes 0-1023/4096.
+	 *
+	 * @return start, end (inclusive) and total length, that is -1 if unknown, or null if the value
+	 * is invalid.
+	 */
+	@Nullable
+	static long[] parseContentRange(@Nullable CharSequence value) {
+		if (value == null) return null;
+		String v = value.toString().trim();
+		if (!v.startsWith("bytes ")) return null;
+		int dash = v.indexOf('-', 6);
+		int slash = v.indexOf('/', 6);
+		if ((dash == -1) || (slash < dash)) return null;
+
+		try {
+			long start = Long.parseLong(v.substring(6, dash).trim());
+			long end = Long.parseLong(v.substring(dash + 1, slash).trim());
+			String t = v.substring(slash + 1).trim();
+			long total = t.equals("*") ? -1 : Long.parseLong(t);
+			return (start <= end) ? new long[]{start, end, total} : null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Splits the file into segments. The first one ends at firstEnd, the rest of the file is split
+	 * into up to maxSegments segments of at least {@link #MIN_SEGMENT_SIZE}.
+	 *
+	 * @param total the file length or -1 if unknown.
+	 */
+	static List<Segment> split(long firstEnd, long total, int maxSegments) {
+		List<Segment> list = new ArrayList<>(maxSegments + 1);
+		list.add(new Segment(0, (total < 0) ? firstEnd : Math.min(firstEnd, total)));
+
+		if (total < 0) {
+			// Unknown length - the rest is downloaded with a single open-ended range
+			list.add(new Segment(firstEnd, Long.MAX_VALUE));
+			return list;
+		}
+
+		if (total <= firstEnd) return list;
+
+		long remain = total - firstEnd;
+		int n = (int) Math.max(1, Math.min(maxSegments, remain / MIN_SEGMENT_SIZE));
+		long size = remain / n;
+
+		for (int i = 0; i < n; i++) {
+			long start = firstEnd + i * size;
+			list.add(new Segment(start, (i == n - 1) ? total : start + size));
+		}
+
+		return list;
+	}
+
+	/**
+	 * A single download. The file is downloaded into the .incomplete file. If the server supports
+	 * byte ranges, the first range of {@link #MIN_SEGMENT_SIZE} is requested to find out the
+	 * file length and the rest of the file is split into up to {@link #maxSegments} ranges, that
+	 * are downloaded in parallel and written at the corresponding offsets. If the file has a
+	 * strong ETag, the progress of the ranges is persisted in the .incomplete.meta file and a
+	 * failed download is resumed from the persisted state, if the file is not changed,
+	 * what is checked with the If-Range header.
+	 * <p>
+	 * If a payload consumer is specified, the file is downloaded sequentially, without ranges,
+	 * and each received buffer is written to the file and to a pipe, that is read by the consumer.
+	 * The next buffer is not read from the network until the consumer has read the previous one.
+	 */
+	private final class Download {
+		private static final int META_VERSION = 1;
+		private static final int MAX_RETRIES = 5;
+		private final URL src;
+		private final File dst;
+		private final PreferenceStore prefs;
+		private final Promise<Status> promise;
+		private final StatusListener listener;
+		private final PayloadConsumer consumer;
+		private final boolean exist;
+		private final File partial;
+		private final File meta;
+		private DownloadStatus status;
+		private FileChannel out;
+		private volatile AsyncPipe pipe;
+		private List<Segment> segments;
+		private String etag;
+		private boolean resumable;
+		private boolean noRanges;
+		private boolean done;
+		private long lastSave;
+
+		Download(URL src, File dst, PreferenceStore prefs, Promise<Status> promise,
+						 StatusListener listener, @Nullable PayloadConsumer consumer, boolean exist) {
+			this.src = src;
+			this.dst = dst;
+			this.prefs = prefs;
+			this.promise = promise;
+			this.listener = listener;
+			this.consumer = consumer;
+			this.exist = exist;
+			noRanges = (consumer != null);
+			partial = new File(dst.getAbsolutePath() + ".incomplete");
+			meta = new File(dst.getAbsolutePath() + ".incomplete.meta");
+		}
+
+		void start() {
+			Segment first = null;
+
+			if ((consumer == null) && loadMeta()) {
+				for (Segment s : segments) {
+					if (!s.isDone()) {
+						first = s;
+						break;
+					}
+				}
+
+				if (first == null) {
+					Log.d("All segments of ", src, " are downloaded, completing");
+					segmentDone(segments.get(0), null);
+					return;
+				}
+
+				Log.d("Resuming download of ", src, " from ", status.bytesDownloaded, " bytes");
+			} else {
+				segments = null;
+				deletePartial();
 			}
-			var status = new DownloadStatus(src, dst, resp.getContentLength());
-			status.setEtag(resp.getEtag());
-			status.setCharset(resp.getCharset());
-			status.setEncoding(enc);
+
+			request(first, true);
+		}
+
+		private void request(@Nullable Segment seg, boolean first) {
+			var o = new HttpConnection.Opts();
+			o.url = src;
+			o.handler = netHandler;
+			o.responseTimeout = prefs.getIntPref(RESP_TIMEOUT);
+			o.userAgent = prefs.getStringPref(AGENT);
+
+			String range;
+			String ifRange;
+
+			if (seg != null) {
+				range = "bytes=" + seg.pos + '-' + ((seg.end == Long.MAX_VALUE) ? "" : (seg.end - 1));
+				ifRange = etag;
+			} else {
+				range = ((maxSegments > 1) && !noRanges) ? "bytes=0-" + (MIN_SEGMENT_SIZE - 1) : null;
+				ifRange = null;
+				if (exist) o.ifNonMatch = prefs.getStringPref(ETAG);
+			}
+
+			if (range != null) {
+				o.builder = b -> {
+					b.addHeader(HttpHeader.RANGE, range);
+					if (ifRange != null) b.addHeader(HttpHeader.IF_RANGE, ifRange);
+					return b.build();
+				};
+			}
+
+			HttpConnection.connect(o, (resp, err) -> {
+				if (err != null) {
+					if ((seg != null) && !first) segmentDone(seg, err);
+					else fail(err);
+					return completedVoid();
+				}
+
+				try {
+					return first ? onFirstResponse(resp, seg) : onResponse(resp, seg);
+				} catch (Throwable ex) {
+					fail(ex);
+					return failed(ex);
+				}
+			});
+		}
+
+		private FutureSupplier<?> onFirstResponse(HttpResponse resp, @Nullable Segment seg)
+				throws IOException {
 			Log.d("Response received:\n", resp);
+			int code = resp.getStatusCode();
+
+			if ((code == HttpStatusCode.RANGE_NOT_SATISFIABLE) && !noRanges) {
+				Log.d("Range not satisfiable, restarting download: ", src);
+				deletePartial();
+				segments = null;
+				status = null;
+				noRanges = true;
+				return resp.skipPayload().onCompletion((v, err) -> request(null, true));
+			}
 
-			if (resp.getStatusCode() == HttpStatusCode.NOT_MODIFIED) {
+			if (status == null) {
+				status = newStatus(resp, resp.getContentLength());
+			}
+
+			if (code == HttpStatusCode.NOT_MODIFIED) {
 				Log.d("File not modified: ", src, ". Returning existing file: ", dst);
 				if (listener != null) listener.onSuccess(status);
-				p.complete(status);
+				promise.complete(status);
 				return completedVoid();
 			}
 
-			File tmp = null;
-			try {
-				tmp = File.createTempFile(dst.getName(), ".incomplete", dst.getParentFile());
-			} catch (IOException ex) {
-				Log.e(ex, "Failed to create temporary file");
-			}
+			if (code == HttpStatusCode.PARTIAL) {
+				long[] cr = parseContentRange(resp.getContentRange());
+				long start = (seg == null) ? 0 : seg.pos;
 
-			File incomplete = (tmp == null) ? new File(dst.getAbsolutePath() + ".incomplete") : tmp;
-			return writePayload(resp, incomplete, status, listener).onCompletion((v, fail) -> {
-				if (fail != null) {
-					completeExceptionally(p, fail, status, listener);
-					//noinspection ResultOfMethodCallIgnored
-					incomplete.delete();
-					return;
+				if ((cr == null) || (cr[0] != start)) {
+					throw new IOException("Invalid Content-Range: " + resp.getContentRange());
 				}
 
-				if (status.getContentEncoding() == null) {
-					try (var in = new FileInputStream(incomplete)) {
-						if ((in.read() == 0x1F) && (in.read() == 0x8B)) status.setEncoding("gzip");
-					} catch (IOException ex) {
-						Log.d(ex, "Failed to read file: ", dst);
-					}
+				if (seg == null) {
+					long total = cr[2];
+					status = newStatus(resp, total);
+					etag = strongEtag(resp.getEtag());
+					resumable = (etag != null) && (total > 0);
+					openOutput(true);
+					segments = split(cr[1] + 1, total, maxSegments);
+					seg = segments.get(0);
+				} else {
+					openOutput(false);
 				}
 
-				if (prefs.getBooleanPref(DECODE) && (status.getContentEncoding() != null)) {
-					try (var in = status.getFileStream(incomplete, true);
-							 var out = new FileOutputStream(dst)) {
-						FileUtils.copy(in, out);
-						status.setEncoding(null);
-					} catch (IOException ex) {
-						completeExceptionally(p, ex, status, listener);
-						return;
-					} finally {
-						//noinspection ResultOfMethodCallIgnored
-						incomplete.delete();
-					}
-				} else if (!incomplete.renameTo(dst)) {
-					completeExceptionally(p,
-							new IOException("Failed to rename file " + incomplete + " to " + dst),
-							status, listener);
-					//noinspection ResultOfMethodCallIgnored
-					incomplete.delete();
-					return;
+				Segment first = seg;
+				synchronized (this) {
+					saveMeta(true);
 				}
 
-				try (PreferenceStore.Edit edit = prefs.editPreferenceStore()) {
-					edit.setStringPref(ETAG, status.getEtag());
-					edit.setStringPref(CHARSET, status.getCharacterEncoding());
-					edit.setStringPref(ENCODING, status.getContentEncoding());
-					edit.setLongPref(TIMESTAMP, System.currentTimeMillis());
+				for (Segment s : segments) {
+					if ((s != first) && !s.isDone()) request(s, false);
 				}
 
-				Log.d("Downloaded ", src, " to ", dst);
-				if (listener != null) listener.onSuccess(status);
-				p.complete(status);
+				return readSegment(resp, first);
+			}
+
+			// The whole file is returned - ranges are not supported or the file has changed
+			if (segments != null) Log.d("File changed, restarting download: ", src);
+			long len = resp.getContentLength();
+			String te = (len <= 0) ? toString(resp.getTransferEncoding()) : null;
+			if ((len <= 0) && (te == null)) len = 0;
+			status = newStatus(resp, (te != null) ? -1 : len);
+			etag = strongEtag(resp.getEtag());
+			resumable = (consumer == null) && (etag != null) && (len > 0) && resp.isAcceptRanges();
+			openOutput(true);
+			segments = new ArrayList<>(1);
+			Segment s = new Segment(0, (te != null) ? Long.MAX_VALUE : len);
+			segments.add(s);
+			synchronized (this) {
+				saveMeta(true);
+			}
+			if (consumer != null) startConsumer();
+			return readSegment(resp, s);
+		}
+
+		private FutureSupplier<?> onResponse(HttpResponse resp, Segment seg) {
+			int code = resp.getStatusCode();
+
+			if (code == HttpStatusCode.PARTIAL) {
+				long[] cr = parseContentRange(resp.getContentRange());
+				if ((cr != null) && (cr[0] == seg.pos)) return readSegment(resp, seg);
+				segmentDone(seg, new IOException("Invalid Content-Range: " + resp.getContentRange()));
+			} else if (code == HttpStatusCode.OK) {
+				resumable = false;
+				fail(new IOException("File changed while downloading: " + src));
+			} else {
+				segmentDone(seg, new HttpException("Unexpected response: " + code + ' ' + resp.getReason()));
+			}
+
+			return resp.skipPayload();
+		}
+
+		private FutureSupplier<?> readSegment(HttpResponse resp, Segment seg) {
+			seg.eos = false;
+			AsyncInputStream in = resp.readPayload(false);
+			ByteBuffer buf = ByteBuffer.allocate(65536);
+			FutureSupplier<?> f = Async.iterate(() -> {
+				if (isDone()) return null;
+
+				if (seg.eos) {
+					if (seg.end == Long.MAX_VALUE) seg.end = seg.pos;
+					else if (!seg.isDone()) throw new EOFException("Unexpected end of stream: " + seg);
+					return null;
+				}
+
+				buf.clear();
+				return in.read(buf).then(b -> {
+					int n = b.remaining();
+
+					if (n == 0) {
+						seg.eos = true;
+						return completed(b);
+					}
+
+					if (n > seg.end - seg.pos) throw new IOException("Range exceeded: " + seg);
+					ByteBuffer tee = (pipe != null) ? b.duplicate() : null;
+					for (long off = seg.pos; b.hasRemaining(); ) off += out.write(b, off);
+					progress(seg, n);
+					return (tee == null) ? completed(b) : tee(tee).map(v -> b);
+				});
+			});
+			f.onCompletion((v, err) -> {
+				// Closes the channel, if the payload is not read to the end
+				in.close();
+				segmentDone(seg, err);
 			});
-		});
+			return f;
+		}
 
-		return p;
-	}
+		private void startConsumer() {
+			AsyncPipe p = new AsyncPipe(true);
+			pipe = p;
 
-	private void completeExceptionally(Promise<Status> p, Throwable err, DownloadStatus status,
-																		 StatusListener listener) {
-		if (returnExistingOnFail && status.getLocalFile().isFile()) {
-			Log.e(err, "Failed to download: ", status.getUrl(), ". Returning existing file: ",
-					status.getLocalFile());
-			status.failure = err;
-			if (listener != null) listener.onSuccess(status);
-			p.complete(status);
-		} else {
-			Log.e(err, "Failed to download ", status.getUrl(), " to ", status.getLocalFile());
-			if (listener != null) listener.onFailure(status);
-			p.completeExceptionally(err);
+			try {
+				consumer.accept(status, new PayloadInputStream(p.asInputStream(),
+						status.getContentEncoding()));
+			} catch (Throwable ex) {
+				Log.e(ex, "Payload consumer failed: ", src);
+				pipe = null;
+				p.close(ex);
+			}
 		}
-	}
 
-	private FutureSupplier<?> writePayload(HttpResponse resp, File dst, DownloadStatus status,
-																				 StatusListener listener) {
-		try {
-			OutputStream out = new OutputStream() {
-				final OutputStream fos = new FileOutputStream(dst);
-
-				@Override
-				public void write(int b) throws IOException {
-					fos.write(b);
-					status.bytesDownloaded += 1;
-					if (listener != null) listener.onProgress(status);
+		/**
+		 * If the consumer has closed the stream, the file download is continued.
+		 */
+		private FutureSupplier<Void> tee(ByteBuffer b) {
+			AsyncPipe p = pipe;
+			if (p == null) return completedVoid();
+			return p.write(b).ifFail(err -> {
+				Log.d(err, "Payload stream closed by consumer: ", src);
+				pipe = null;
+				return null;
+			});
+		}
+
+		private void progress(Segment seg, int n) {
+			boolean save;
+
+			synchronized (this) {
+				seg.pos += n;
+				long time = System.currentTimeMillis();
+				save = resumable && ((time - lastSave) > 2000);
+				if (save) lastSave = time;
+			}
+
+			status.progress(n);
+
+			if (save) {
+				synchronized (this) {
+					saveMeta(false);
 				}
+			}
+
+			if (listener != null) {
+				synchronized (status) {
+					listener.onProgress(status);
+				}
+			}
+		}
+
+		private void segmentDone(Segment seg, @Nullable Throwable err) {
+			if (err != null) {
+				boolean retry;
 
-				@Override
-				public void write(byte[] b, int off, int len) throws IOException {
-					fos.write(b, off, len);
-					status.bytesDownloaded += len;
-					if (listener != null) listener.onProgress(status);
+				synchronized (this) {
+					if (done) return;
+					retry = resumable && (seg.retries++ < MAX_RETRIES) && (seg.end != Long.MAX_VALUE);
 				}
 
-				@Override
-				public void flush() throws IOException {
-					fos.flush();
+				if (retry) {
+					Log.d(err, "Segment download failed, retrying: ", src, " ", seg);
+					request(seg, false);
+				} else {
+					fail(err);
 				}
 
-				@Override
-				public void close() throws IOException {
-					fos.close();
+				return;
+			}
+
+			synchronized (this) {
+				if (done) return;
+				for (Segment s : segments) {
+					if (!s.isDone()) return;
 				}
-			};
-			return resp.writePayload(out).thenRun(() -> IoUtils.close(out));
-		} catch (FileNotFoundException ex) {
-			return failed(ex);
+				done = true;
+				closeOutput();
+				//noinspection ResultOfMethodCallIgnored
+				meta.delete();
+			}
+
+			AsyncPipe p = pipe;
+			if (p != null) p.endOfStream();
+
+			complete(promise, partial, status, prefs, listener);
+		}
+
+		private void fail(Throwable err) {
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				closeOutput();
+
+				if (resumable && (segments != null)) {
+					saveMeta(true);
+					Log.d("Partially downloaded file saved: ", partial);
+				} else {
+					deletePartial();
+				}
+			}
+
+			AsyncPipe p = pipe;
+			if (p != null) p.close(err);
+			if (status == null) status = new DownloadStatus(src, dst, 0);
+			completeExceptionally(promise, err, status, listener);
+		}
+
+		private synchronized boolean isDone() {
+			return done;
+		}
+
+		private DownloadStatus newStatus(HttpResponse resp, long len) {
+			var enc = resp.getContentEncoding();
+			if (enc == null) {
+				var path = src.getPath();
+				if ((path != null) && (path.endsWith(".gzip") || path.endsWith(".gz"))) enc = "gzip";
+			}
+			var st = new DownloadStatus(src, dst, len);
+			st.setEtag(resp.getEtag());
+			st.setCharset(resp.getCharset());
+			st.setEncoding(enc);
+			return st;
+		}
+
+		private void openOutput(boolean truncate) throws IOException {
+			closeOutput();
+			RandomAccessFile f = new RandomAccessFile(partial, "rw");
+			if (truncate) f.setLength(0);
+			out = f.getChannel();
+		}
+
+		private void closeOutput() {
+			IoUtils.close(out);
+		}
+
+		private void deletePartial() {
+			//noinspection ResultOfMethodCallIgnored
+			partial.delete();
+			//noinspection ResultOfMethodCallIgnored
+			meta.delete();
+		}
+
+		private boolean loadMeta() {
+			if (!partial.isFile() || !meta.isFile()) return false;
+
+			try (DataInputStream in = new DataInputStream(new FileInputStream(meta))) {
+				if (in.readInt() != META_VERSION) return false;
+				if (!src.toString().equals(in.readUTF())) return false;
+				etag = in.readUTF();
+				long len = in.readLong();
+				String enc = in.readUTF();
+				String charset = in.readUTF();
+				int n = in.readInt();
+				List<Segment> list = new ArrayList<>(n);
+				long downloaded = 0;
+
+				for (int i = 0; i < n; i++) {
+					Segment s = new Segment(in.readLong(), in.readLong());
+					s.pos = in.readLong();
+					downloaded += s.pos - s.start;
+					list.add(s);
+				}
+
+				if (list.isEmpty() || (partial.length() > len)) return false;
+				status = new DownloadStatus(src, dst, len);
+				status.setEtag(etag);
+				status.setEncoding(enc.isEmpty() ? null : enc);
+				status.setCharset(charset.isEmpty() ? null : charset);
+				status.bytesDownloaded = downloaded;
+				segments = list;
+				resumable = true;
+				return true;
+			} catch (IOException ex) {
+				Log.d(ex, "Failed to load download state: ", meta);
+				return false;
+			}
+		}
+
+		private void saveMeta(boolean force) {
+			assert Thread.holdsLock(this);
+			if (!resumable || (!force && done)) return;
+
+			try (DataOutputStream o = new DataOutputStream(new FileOutputStream(meta))) {
+				o.writeInt(META_VERSION);
+				o.writeUTF(src.toString());
+				o.writeUTF(etag);
+				o.writeLong(status.getLength());
+				o.writeUTF((status.encoding == null) ? "" : status.encoding);
+				o.writeUTF((status.charset == null) ? "" : status.charset);
+				o.writeInt(segments.size());
+
+				for (Segment s : segments) {
+					o.writeLong(s.start);
+					o.writeLong(s.end);
+					o.writeLong(s.pos);
+				}
+			} catch (IOException ex) {
+				Log.d(ex, "Failed to save download state: ", meta);
+			}
+		}
+
+		@Nullable
+		private String strongEtag(@Nullable CharSequence etag) {
+			if (etag == null) return null;
+			String e = etag.toString();
+			return e.startsWith("W/") ? null : e;
+		}
+
+		@Nullable
+		private String toString(@Nullable CharSequence s) {
+			return (s == null) ? null : s.toString();
+		}
+	}
+
+	/**
+	 * Decodes the payload on the consumer thread. If the encoding is unknown, the gzip magic
+	 * header is checked.
+	 */
+	private static final class PayloadInputStream extends InputStream {
+		private final InputStream raw;
+		private final String enc;
+		private InputStream in;
+
+		PayloadInputStream(InputStream raw, @Nullable String enc) {
+			this.raw = raw;
+			this.enc = enc;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in().read();
+		}
+
+		@Override
+		public int read(@NonNull byte[] b, int off, int len) throws IOException {
+			return in().read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (in == null) ? 0 : in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) in.close();
+			else raw.close();
+		}
+
+		private InputStream in() throws IOException {
+			if (in != null) return in;
+			if (enc != null) return in = decode(raw, enc);
+			BufferedInputStream b = new BufferedInputStream(raw, 65536);
+			b.mark(2);
+			boolean gz = (b.read() == 0x1F) && (b.read() == 0x8B);
+			b.reset();
+			return in = gz ? decode(b, "gzip") : b;
+		}
+	}
+
+	static final class Segment {
+		final long start;
+		long end;
+		long pos;
+		int retries;
+		boolean eos;
+
+		Segment(long start, long end) {
+			this.start = start;
+			this.end = end;
+			pos = start;
+		}
+
+		boolean isDone() {
+			return pos >= end;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "Segment{" + start + '-' + end + ", pos=" + pos + '}';
 		}
 	}
 
@@ -260,31 +827,43 @@ public class HttpFileDownloader {
 
 		long bytesDownloaded();
 
+		/**
+		 * @return the current download speed in bytes per second or 0 if unknown.
+		 */
+		default long getBandwidth() {
+			return 0;
+		}
+
+		/**
+		 * @return the estimated time to completion in milliseconds or -1 if unknown.
+		 */
+		default long getEta() {
+			return -1;
+		}
+
 		default InputStream getFileStream(boolean decode) throws IOException {
 			return getFileStream(getLocalFile(), decode);
 		}
 
 		default InputStream getFileStream(File file, boolean decode) throws IOException {
 			InputStream in = new FileInputStream(file);
-
-			if (decode) {
-				String enc = getContentEncoding();
-
-				if (enc != null) {
-					if ("gzip".equals(enc)) {
-						return new GZIPInputStream(in);
-					} else if ("deflate".equals(enc)) {
-						return new InflaterInputStream(in);
-					} else {
-						throw new IOException("Unsupported encoding: " + enc);
-					}
-				}
-			}
-
-			return in;
+			return decode ? decode(in, getContentEncoding()) : in;
 		}
 	}
 
+	public interface PayloadConsumer {
+
+		/**
+		 * Called on a network thread, when the payload download is started. The method must not
+		 * block - the stream should be read on a separate thread, that does not belong to the
+		 * executor of the network handler: the stream is written by the network callbacks, so the
+		 * readers, blocked on the stream, could hold the threads, required to complete the reads.
+		 * The stream is decoded according to the content encoding and must be closed by the
+		 * consumer. If the download fails, the stream read fails with the same error.
+		 */
+		void accept(Status status, InputStream payload);
+	}
+
 	public interface StatusListener {
 
 		void onProgress(Status status);
@@ -295,14 +874,18 @@ public class HttpFileDownloader {
 	}
 
 	private static final class DownloadStatus implements Status {
+		private static final long SAMPLE_INTERVAL = 500;
 		private final URL url;
 		private final File file;
 		private final long len;
 		String etag;
 		String charset;
 		String encoding;
-		long bytesDownloaded;
+		volatile long bytesDownloaded;
+		volatile long bandwidth;
 		Throwable failure;
+		private long sampleTime;
+		private long sampleBytes;
 
 		public DownloadStatus(URL url, File file, long len) {
 			this.url = url;
@@ -332,6 +915,40 @@ public class HttpFileDownloader {
 			return bytesDownloaded;
 		}
 
+		@Override
+		public long getBandwidth() {
+			return bandwidth;
+		}
+
+		@Override
+		public long getEta() {
+			long bw = bandwidth;
+			if ((bw <= 0) || (len <= 0)) return -1;
+			return Math.max(0, len - bytesDownloaded) * 1000 / bw;
+		}
+
+		/**
+		 * Adds the downloaded bytes and updates the bandwidth, that is an exponentially weighted
+		 * moving average, sampled every {@link #SAMPLE_INTERVAL} ms.
+		 */
+		synchronized void progress(int n) {
+			long bytes = bytesDownloaded += n;
+			long time = System.currentTimeMillis();
+
+			if (sampleTime == 0) {
+				sampleTime = time;
+				sampleBytes = bytes - n;
+				return;
+			}
+
+			long elapsed = time - sampleTime;
+			if (elapsed < SAMPLE_INTERVAL) return;
+			long bw = (bytes - sampleBytes) * 1000 / elapsed;
+			bandwidth = (bandwidth == 0) ? bw : (long) (bandwidth * 0.7 + bw * 0.3);
+			sampleTime = time;
+			sampleBytes = bytes;
+		}
+
 		@Override
 		public String getEtag() {
 			return etag;
@@ -375,6 +992,7 @@ public class HttpFileDownloader {
 					"\n  charset='" + charset + '\'' +
 					"\n  encoding='" + encoding + '\'' +
 					"\n  bytesDownloaded=" + bytesDownloaded +
+					"\n  bandwidth=" + bandwidth +
 					"\n  failure=" + failure +
 					"\n}";
 		}
@@ -15,6 +15,7 @@ public enum HttpHeader {
 	ACCEPT_ENCODING("Accept-Encoding", "gzip,deflate"),
 	ACCEPT_RANGES("Accept-Ranges", "bytes"),
 	AUTHORIZATION("Authorization"),
+	CACHE_CONTROL("Cache-Control", "no-cache"),
 	CONNECTION("Connection", "close"),
 	CONTENT_ENCODING("Content-Encoding"),
 	CONTENT_LENGTH("Content-Length"),
@@ -23,7 +24,10 @@ public enum HttpHeader {
 	ETAG("ETag"),
 	HOST("Host"),
 	IF_NONE_MATCH("If-None-Match"),
+	IF_RANGE("If-Range"),
+	LAST_MODIFIED("Last-Modified"),
 	LOCATION("Location"),
+	RANGE("Range"),
 	TRANSFER_ENCODING("Transfer-Encoding", "chunked"),
 	USER_AGENT("User-Agent", getAgent()),
 	;
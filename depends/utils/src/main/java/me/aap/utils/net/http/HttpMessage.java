@@ -13,7 +13,6 @@ import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.function.BiFunction;
 import me.aap.utils.io.AsyncInputStream;
 import me.aap.utils.io.AsyncOutputStream;
-import me.aap.utils.io.AsyncPipe;
 import me.aap.utils.io.IoUtils;
 import me.aap.utils.io.MemOutputStream;
 import me.aap.utils.net.NetChannel;
@@ -83,10 +82,18 @@ public interface HttpMessage {
 	FutureSupplier<?> writePayload(AsyncOutputStream out);
 
 	default AsyncInputStream readPayload() {
-		AsyncPipe pipe = new AsyncPipe(true);
-		writePayload(pipe).onFailure(pipe::close);
-		return pipe;
+		return readPayload(false);
 	}
 
+	/**
+	 * Returns the payload as a stream, that is read directly from the channel, without buffering
+	 * the whole payload in memory. The chunked transfer encoding is always decoded. If decode is
+	 * true, the gzip and deflate content encodings are decoded as well.
+	 * <p>
+	 * The returned stream must be read to the end or closed before the message handler completes.
+	 * If it's closed before the end of the payload, the connection is closed.
+	 */
+	AsyncInputStream readPayload(boolean decode);
+
 	FutureSupplier<?> skipPayload();
 }
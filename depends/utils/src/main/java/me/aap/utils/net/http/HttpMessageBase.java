@@ -1,6 +1,7 @@
 package me.aap.utils.net.http;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
+import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedNull;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.async.Completed.failed;
@@ -15,20 +16,27 @@ import static me.aap.utils.net.http.HttpVersion.HTTP_1_0;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import me.aap.utils.BuildConfig;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.async.Promise;
 import me.aap.utils.function.BiFunction;
 import me.aap.utils.function.ProgressiveResultConsumer.Completion;
+import me.aap.utils.io.AsyncInputStream;
 import me.aap.utils.io.AsyncOutputStream;
 import me.aap.utils.io.ByteBufferInputStream;
 import me.aap.utils.io.IoUtils;
 import me.aap.utils.io.MemOutputStream;
+import me.aap.utils.net.ByteBufferPool;
 import me.aap.utils.net.ByteBufferSupplier;
 import me.aap.utils.net.http.HttpError.PayloadTooLarge;
 import me.aap.utils.text.TextUtils;
@@ -48,6 +56,7 @@ abstract class HttpMessageBase implements HttpMessage {
 	int contentTypeStart = -1;
 	int contentEncodingStart = -1;
 	int transferEncodingStart = -1;
+	int contentRangeStart = -1;
 
 
 	HttpMessageBase(HttpVersion version, ByteBuffer buf, int headerStart) {
@@ -213,6 +222,43 @@ abstract class HttpMessageBase implements HttpMessage {
 		return p;
 	}
 
+	@Override
+	public AsyncInputStream readPayload(boolean decode) {
+		checkReleased();
+		long len = getContentLength();
+		CharSequence enc = decode ? getContentEncoding() : null;
+		ByteBuffer src;
+		boolean chunked;
+
+		if (len <= 0) {
+			CharSequence te = getTransferEncoding();
+			if (te == null) return AsyncInputStream.from(new ByteBufferInputStream(emptyByteBuffer()));
+
+			if (!TextUtils.equals("chunked", te)) {
+				getChannel().close();
+				return new PayloadInputStream(new IOException("Unsupported transfer encoding: " + te));
+			}
+
+			chunked = true;
+			src = buf;
+		} else {
+			chunked = false;
+			src = buf.duplicate();
+			src.position(headerEnd).limit(payloadEnd);
+		}
+
+		if ((enc != null) && !TextUtils.equals("identity", enc) && !TextUtils.equals("gzip", enc)
+				&& !TextUtils.equals("x-gzip", enc) && !TextUtils.equals("deflate", enc)) {
+			getChannel().close();
+			return new PayloadInputStream(new IOException("Unsupported content encoding: " + enc));
+		}
+
+		PayloadInputStream in = new PayloadInputStream(src, chunked ? -1 : len, enc);
+		if (chunked) src.position(src.limit());
+		releaseBuf();
+		return in;
+	}
+
 	@Override
 	public FutureSupplier<?> skipPayload() {
 		checkReleased();
@@ -328,6 +374,473 @@ abstract class HttpMessageBase implements HttpMessage {
 		}
 	}
 
+	/**
+	 * Reads the payload directly from the channel into a small pooled buffer, decoding the chunked
+	 * transfer encoding and, optionally, the gzip or deflate content encoding on the fly. The
+	 * bytes, following the payload, are returned to the message buffer, when the end of the
+	 * payload is reached. If the stream is closed before, the channel is closed, because the
+	 * remaining payload can not be skipped.
+	 */
+	private final class PayloadInputStream implements AsyncInputStream, ByteBufferSupplier,
+			Completion<ByteBuffer> {
+		private static final int BUF_SIZE = 16384;
+		private static final byte CHUNK_SIZE = 0;
+		private static final byte CHUNK_DATA = 1;
+		private static final byte CHUNK_END = 2;
+		private static final byte CHUNK_TRAILER = 3;
+		private static final byte CHUNK_DONE = 4;
+		private static final int HDR_DONE = 17;
+		private static final int FHCRC = 2;
+		private static final int FEXTRA = 4;
+		private static final int FNAME = 8;
+		private static final int FCOMMENT = 16;
+		private final boolean chunked;
+		private final Inflater inflater;
+		private final CRC32 crc;
+		private ByteBuffer in;
+		private long remain;
+		private byte chunkState;
+		private byte[] zbuf;
+		private int zpos;
+		private int zlen;
+		private byte[] zout;
+		private int hdrState;
+		private int hdrFlags;
+		private int hdrExtra;
+		private int trailerPos;
+		private long trailerCrc;
+		private long trailerSize;
+		private Promise<ByteBuffer> pending;
+		private ByteBuffer dst;
+		private int readStart;
+		private Throwable error;
+		private boolean eos;
+		private volatile boolean closed;
+
+		PayloadInputStream(ByteBuffer src, long len, @Nullable CharSequence enc) {
+			chunked = (len < 0);
+			remain = chunked ? 0 : len;
+			in = ByteBufferPool.acquire(Math.max(BUF_SIZE, src.remaining()));
+			in.put(src.duplicate()).flip();
+
+			if ((enc == null) || TextUtils.equals("identity", enc)) {
+				inflater = null;
+				crc = null;
+			} else if (TextUtils.equals("deflate", enc)) {
+				inflater = new Inflater();
+				crc = null;
+				zbuf = new byte[BUF_SIZE];
+				hdrState = HDR_DONE;
+			} else {
+				inflater = new Inflater(true);
+				crc = new CRC32();
+				zbuf = new byte[BUF_SIZE];
+			}
+		}
+
+		PayloadInputStream(Throwable err) {
+			chunked = false;
+			inflater = null;
+			crc = null;
+			in = emptyByteBuffer();
+			error = err;
+		}
+
+		@Override
+		public FutureSupplier<ByteBuffer> read(ByteBufferSupplier dst) {
+			if (error != null) return failed(error);
+			if (closed) return failed(new IOException("Stream closed"));
+			if (pending != null) return failed(new IllegalStateException("Concurrent read"));
+
+			ByteBuffer out = dst.getByteBuffer();
+
+			if (eos) {
+				out.limit(out.position());
+				return completed(out);
+			}
+
+			try {
+				if (fill(out, out.position())) return completed(out);
+			} catch (Throwable ex) {
+				return fail(ex);
+			}
+
+			Promise<ByteBuffer> p = new Promise<>();
+			pending = p;
+			this.dst = out;
+			requestInput();
+			return p;
+		}
+
+		@Override
+		public int available() {
+			if ((inflater != null) || eos || closed) return 0;
+			int n = in.remaining();
+			return (int) (chunked ? ((chunkState == CHUNK_DATA) ? Math.min(n, remain) : 0)
+					: Math.min(n, remain));
+		}
+
+		@Override
+		public boolean hasRemaining() {
+			return !eos && !closed && (error == null);
+		}
+
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			if (!eos) getChannel().close();
+
+			synchronized (this) {
+				if (pending == null) releaseBuffer();
+			}
+		}
+
+		@Override
+		public ByteBuffer getByteBuffer() {
+			return in;
+		}
+
+		@Override
+		public void onCompletion(ByteBuffer result, Throwable fail) {
+			Promise<ByteBuffer> p = pending;
+			ByteBuffer out = dst;
+
+			if (fail == null) {
+				if (result != in) {
+					in.put(result);
+					in.flip();
+				}
+
+				if ((in.position() != 0) || (in.limit() <= readStart)) {
+					fail = new EOFException("Unexpected end of payload");
+				} else if (!closed) {
+					try {
+						if (!fill(out, out.position())) {
+							requestInput();
+							return;
+						}
+					} catch (Throwable ex) {
+						fail = ex;
+					}
+				}
+			}
+
+			synchronized (this) {
+				pending = null;
+				dst = null;
+				if (closed) releaseBuffer();
+			}
+
+			if (fail != null) {
+				fail(fail);
+				p.completeExceptionally(fail);
+			} else if (closed) {
+				p.completeExceptionally(new IOException("Stream closed"));
+			} else {
+				p.complete(out);
+			}
+		}
+
+		private void requestInput() {
+			in.compact();
+
+			if (!in.hasRemaining()) {
+				in.flip();
+				onCompletion(null, new IOException("Chunk header is too long"));
+				return;
+			}
+
+			readStart = in.position();
+			getChannel().read(this, this);
+		}
+
+		/**
+		 * @return false if more input is required to read anything.
+		 */
+		private boolean fill(ByteBuffer out, int pos) throws IOException, DataFormatException {
+			while (out.hasRemaining()) {
+				int n = (inflater == null) ? copy(out) : decode(out);
+				if (n > 0) continue;
+
+				if (n < 0) {
+					endOfStream();
+					break;
+				}
+
+				if (out.position() == pos) return false;
+				break;
+			}
+
+			out.limit(out.position()).position(pos);
+			return true;
+		}
+
+		private int copy(ByteBuffer out) throws IOException {
+			ByteBuffer raw = nextRaw();
+			if (raw == null) return 0;
+			if (!raw.hasRemaining()) return -1;
+			int n = Math.min(raw.remaining(), out.remaining());
+			raw.limit(raw.position() + n);
+			out.put(raw);
+			consumed(n);
+			return n;
+		}
+
+		private int decode(ByteBuffer out) throws IOException, DataFormatException {
+			for (; ; ) {
+				if ((hdrState != HDR_DONE) && !readHeader()) return 0;
+
+				if (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						if ((zpos == zlen) && !fillZ()) return 0;
+						inflater.setInput(zbuf, zpos, zlen - zpos);
+					}
+
+					int n = inflate(out);
+					zpos = zlen - inflater.getRemaining();
+					if (n > 0) return n;
+					if (inflater.needsDictionary()) throw new ZipException("Preset dictionary is not supported");
+					continue;
+				}
+
+				if (crc == null) {
+					// Skip anything after the end of the deflate stream
+					for (ByteBuffer raw = nextRaw(); raw != null; raw = nextRaw()) {
+						if (!raw.hasRemaining()) return -1;
+						consumed(raw.remaining());
+					}
+					return 0;
+				}
+
+				if (!readTrailer()) return 0;
+
+				// Check for the next gzip member
+				if (zpos == zlen) {
+					ByteBuffer raw = nextRaw();
+					if (raw == null) return 0;
+					if (!raw.hasRemaining()) return -1;
+				}
+
+				inflater.reset();
+				crc.reset();
+				hdrState = 0;
+				trailerPos = 0;
+				trailerCrc = trailerSize = 0;
+			}
+		}
+
+		private int inflate(ByteBuffer out) throws DataFormatException {
+			int n;
+
+			if (out.hasArray()) {
+				byte[] a = out.array();
+				int off = out.arrayOffset() + out.position();
+				n = inflater.inflate(a, off, out.remaining());
+				if (n == 0) return 0;
+				if (crc != null) crc.update(a, off, n);
+				out.position(out.position() + n);
+			} else {
+				if (zout == null) zout = new byte[BUF_SIZE];
+				n = inflater.inflate(zout, 0, Math.min(zout.length, out.remaining()));
+				if (n == 0) return 0;
+				if (crc != null) crc.update(zout, 0, n);
+				out.put(zout, 0, n);
+			}
+
+			return n;
+		}
+
+		private boolean readHeader() throws IOException {
+			for (int b; hdrState != HDR_DONE; ) {
+				if ((b = nextByte()) == -1) return false;
+
+				switch (hdrState) {
+					case 0:
+						if (b != 0x1F) throw new ZipException("Not in GZIP format");
+						hdrState++;
+						break;
+					case 1:
+						if (b != 0x8B) throw new ZipException("Not in GZIP format");
+						hdrState++;
+						break;
+					case 2:
+						if (b != 8) throw new ZipException("Unsupported compression method: " + b);
+						hdrState++;
+						break;
+					case 3:
+						hdrFlags = b;
+						hdrState++;
+						break;
+					case 9: // OS
+						hdrState = nextHeaderState(9);
+						break;
+					case 10:
+						hdrExtra = b;
+						hdrState++;
+						break;
+					case 11:
+						hdrExtra |= (b << 8);
+						hdrState = (hdrExtra > 0) ? 12 : nextHeaderState(12);
+						break;
+					case 12:
+						if (--hdrExtra == 0) hdrState = nextHeaderState(12);
+						break;
+					case 13:
+					case 14:
+						if (b == 0) hdrState = nextHeaderState(hdrState);
+						break;
+					case 16:
+						hdrState = HDR_DONE;
+						break;
+					default: // MTIME, XFL, the first byte of CRC16
+						hdrState++;
+				}
+			}
+
+			return true;
+		}
+
+		private int nextHeaderState(int after) {
+			if ((after < 10) && ((hdrFlags & FEXTRA) != 0)) return 10;
+			if ((after < 13) && ((hdrFlags & FNAME) != 0)) return 13;
+			if ((after < 14) && ((hdrFlags & FCOMMENT) != 0)) return 14;
+			if ((after < 15) && ((hdrFlags & FHCRC) != 0)) return 15;
+			return HDR_DONE;
+		}
+
+		private boolean readTrailer() throws IOException {
+			for (int b; trailerPos < 8; trailerPos++) {
+				if ((b = nextByte()) == -1) return false;
+				if (trailerPos < 4) trailerCrc |= ((long) b) << (trailerPos << 3);
+				else trailerSize |= ((long) b) << ((trailerPos - 4) << 3);
+			}
+
+			if (trailerCrc != crc.getValue()) throw new ZipException("Corrupt GZIP trailer");
+			if (trailerSize != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+				throw new ZipException("Corrupt GZIP trailer");
+			}
+
+			return true;
+		}
+
+		private int nextByte() throws IOException {
+			if ((zpos == zlen) && !fillZ()) return -1;
+			return zbuf[zpos++] & 0xFF;
+		}
+
+		/**
+		 * @return false if more input is required.
+		 */
+		private boolean fillZ() throws IOException {
+			ByteBuffer raw = nextRaw();
+			if (raw == null) return false;
+			if (!raw.hasRemaining()) throw new EOFException("Unexpected end of compressed payload");
+			int n = Math.min(raw.remaining(), zbuf.length);
+			raw.get(zbuf, 0, n);
+			consumed(n);
+			zpos = 0;
+			zlen = n;
+			return true;
+		}
+
+		/**
+		 * @return a view of the available payload bytes, an empty buffer, if the end of the payload
+		 * is reached, or null if more input is required.
+		 */
+		@Nullable
+		private ByteBuffer nextRaw() throws IOException {
+			if (!chunked) {
+				if (remain == 0) return emptyByteBuffer();
+				if (!in.hasRemaining()) return null;
+				return rawView(remain);
+			}
+
+			for (; ; ) {
+				int pos = in.position();
+				int idx;
+
+				switch (chunkState) {
+					case CHUNK_DATA:
+						if (remain == 0) {
+							chunkState = CHUNK_END;
+							continue;
+						}
+
+						return in.hasRemaining() ? rawView(remain) : null;
+					case CHUNK_SIZE:
+						if ((idx = HttpUtils.indexOfChar(in, pos, in.limit(), '\n')) == -1) return null;
+
+						if ((pos == idx) || (Character.digit((char) in.get(pos), 16) == -1)) {
+							throw new IOException("Invalid chunk size");
+						}
+
+						remain = HttpUtils.parseHexLong(in, pos, idx);
+						in.position(idx + 1);
+						chunkState = (remain == 0) ? CHUNK_TRAILER : CHUNK_DATA;
+						continue;
+					case CHUNK_END:
+						if ((idx = HttpUtils.indexOfChar(in, pos, in.limit(), '\n')) == -1) return null;
+						in.position(idx + 1);
+						chunkState = CHUNK_SIZE;
+						continue;
+					case CHUNK_TRAILER:
+						if ((idx = HttpUtils.indexOfChar(in, pos, in.limit(), '\n')) == -1) return null;
+						in.position(idx + 1);
+						if ((idx == pos) || ((idx == pos + 1) && (in.get(pos) == '\r'))) chunkState = CHUNK_DONE;
+						continue;
+					default:
+						return emptyByteBuffer();
+				}
+			}
+		}
+
+		private ByteBuffer rawView(long max) {
+			ByteBuffer b = in.duplicate();
+			if (b.remaining() > max) b.limit(b.position() + (int) max);
+			return b;
+		}
+
+		private void consumed(int n) {
+			in.position(in.position() + n);
+			remain -= n;
+		}
+
+		/**
+		 * Hands the bytes, following the payload, back to the message and releases the buffer,
+		 * thus the readers, that do not close the stream, do not leak it.
+		 */
+		private void endOfStream() {
+			eos = true;
+
+			if (in.hasRemaining()) {
+				assert !buf.hasRemaining();
+				buf = IoUtils.getFrom(in);
+			}
+
+			synchronized (this) {
+				releaseBuffer();
+			}
+		}
+
+		private <T> FutureSupplier<T> fail(Throwable err) {
+			if (error == null) error = err;
+			if (!closed) close();
+			return failed(err);
+		}
+
+		/**
+		 * Releases the buffer, if not yet released.
+		 */
+		private void releaseBuffer() {
+			ByteBuffer b = in;
+			if (b == null) return;
+			in = null;
+			ByteBufferPool.release(b);
+			if (inflater != null) inflater.end();
+		}
+	}
+
 	private final class PayloadPromise<T> extends Promise<T> implements Completion<ByteBuffer>, ByteBufferSupplier {
 		private final ByteBuffer payload;
 		private final String enc;
@@ -16,8 +16,8 @@ import me.aap.utils.concurrent.NetThread;
 import me.aap.utils.function.CheckedConsumer;
 import me.aap.utils.function.Function;
 import me.aap.utils.io.ByteBufferOutputStream;
-import me.aap.utils.io.IoUtils;
 import me.aap.utils.net.ByteBufferArraySupplier;
+import me.aap.utils.net.ByteBufferPool;
 
 /**
  * @author Andrey Pavlenko
@@ -62,6 +62,7 @@ class HttpMessageBuilder implements HttpRequestBuilder, HttpResponseBuilder {
 	static ByteBufferArraySupplier supplier(Function<? super HttpMessageBuilder, ByteBuffer[]> builder) {
 		return new ByteBufferArraySupplier() {
 			ByteBuffer[] array;
+			ByteBuffer pooled;
 			boolean responseBuf;
 
 			@Override
@@ -85,7 +86,7 @@ class HttpMessageBuilder implements HttpRequestBuilder, HttpResponseBuilder {
 				if (responseBuf) {
 					if (fromIndex == 0) {
 						if (BuildConfig.D) NetThread.assertWriteBuffer(array[0]);
-						array[0] = IoUtils.copyOf(array[0]);
+						array[0] = pooled = ByteBufferPool.copyOf(array[0]);
 					}
 
 					responseBuf = false;
@@ -98,6 +99,11 @@ class HttpMessageBuilder implements HttpRequestBuilder, HttpResponseBuilder {
 			@Override
 			public void release() {
 				array = emptyByteBufferArray();
+
+				if (pooled != null) {
+					ByteBufferPool.release(pooled);
+					pooled = null;
+				}
 			}
 		};
 	}
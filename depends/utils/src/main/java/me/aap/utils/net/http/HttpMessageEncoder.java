@@ -7,11 +7,11 @@ import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.concurrent.NetThread;
 import me.aap.utils.function.Function;
 import me.aap.utils.log.Log;
+import me.aap.utils.net.ByteBufferPool;
 import me.aap.utils.net.ByteBufferSupplier;
 import me.aap.utils.net.NetChannel;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
-import static me.aap.utils.io.IoUtils.copyOfRange;
 import static me.aap.utils.io.IoUtils.emptyByteBuffer;
 
 /**
@@ -24,6 +24,7 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 	static final byte[] H_CONTENT = "oOnNtTeEnNtT--".getBytes(US_ASCII);
 	static final byte[] H_CONTENT_ENCODING = "EeNnCcOoDdIiNnGg".getBytes(US_ASCII);
 	static final byte[] H_CONTENT_LEN = "LleEnNgGtThH".getBytes(US_ASCII);
+	static final byte[] H_CONTENT_RANGE = "RraAnNgGeE".getBytes(US_ASCII);
 	static final byte[] H_CONTENT_TYPE = "TtYyPpEe".getBytes(US_ASCII);
 	static final byte[] H_TRANSFER_ENCODING = "rRaAnNsSfFeErF--EenNcCoOdDiInNgG".getBytes(US_ASCII);
 
@@ -142,6 +143,14 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 				m.contentTypeStart = -(value + m.headerStart);
 				return value;
 			}
+
+			value = headerMatch(H_CONTENT_RANGE, buf, i, end);
+
+			if (value < 0) {
+				if (value == Integer.MIN_VALUE) return Integer.MIN_VALUE;
+				m.contentRangeStart = -(value + m.headerStart);
+				return value;
+			}
 		}
 
 		return value;
@@ -201,15 +210,30 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 	}
 
 	ByteBufferSupplier retainBuf(ByteBuffer buf, int start, int end) {
-		ByteBuffer b = copyOfRange(buf, start, end);
+		ByteBuffer src = buf.duplicate();
+		src.limit(end).position(start);
+		ByteBuffer b = ByteBufferPool.copyOf(src);
 		// Log.d("Retaining buffer: ", b);
 
-		return () -> {
-			b.position(0);
-			ByteBuffer bb = NetThread.getReadBuffer();
-			if (bb.remaining() < b.remaining()) bb = ByteBuffer.allocate(getMaxLen());
-			bb.put(b);
-			return bb;
+		return new ByteBufferSupplier() {
+			boolean released;
+
+			@Override
+			public ByteBuffer getByteBuffer() {
+				assert !released;
+				b.position(0);
+				ByteBuffer bb = NetThread.getReadBuffer();
+				if (bb.remaining() < b.remaining()) bb = ByteBuffer.allocate(getMaxLen());
+				bb.put(b);
+				return bb;
+			}
+
+			@Override
+			public void release() {
+				if (released) return;
+				released = true;
+				ByteBufferPool.release(b);
+			}
 		};
 	}
 
@@ -269,10 +293,12 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 
 			result.onCompletion((r, err) -> {
 				if (err != null) {
+					if (bbs != null) bbs.release();
 					onFailure(channel, err);
 				} else if (bbs != null) {
 					assert (m.buf == bb) || !m.buf.hasRemaining();
 					ByteBuffer b = bbs.getByteBuffer();
+					bbs.release();
 					b.position(0).limit(remain);
 					read(channel, b, null);
 				} else if (channel.isOpen()) {
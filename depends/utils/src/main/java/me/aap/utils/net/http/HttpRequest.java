@@ -3,6 +3,8 @@ package me.aap.utils.net.http;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.List;
+
 /**
  * @author Andrey Pavlenko
  */
@@ -22,4 +24,17 @@ public interface HttpRequest extends HttpMessage {
 
 	@Nullable
 	Range getRange();
+
+	/**
+	 * @return the requested byte ranges, an empty list if the Range header is invalid or null if
+	 * the header is not present.
+	 */
+	@Nullable
+	List<Range> getRanges();
+
+	@Nullable
+	CharSequence getIfNoneMatch();
+
+	@Nullable
+	CharSequence getIfRange();
 }
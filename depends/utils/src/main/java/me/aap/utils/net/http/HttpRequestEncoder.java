@@ -4,6 +4,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
 import me.aap.utils.log.Log;
 import me.aap.utils.net.NetChannel;
@@ -21,6 +23,9 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
  */
 public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest> {
 	private static final byte[] H_RANGE = "aAnNgGeE".getBytes(US_ASCII);
+	private static final byte[] H_IF = "fF--".getBytes(US_ASCII);
+	private static final byte[] H_IF_NONE_MATCH = "NnoOnNeE--MmaAtTcChH".getBytes(US_ASCII);
+	private static final byte[] H_IF_RANGE = "RraAnNgGeE".getBytes(US_ASCII);
 
 	@Nullable
 	protected abstract HttpRequestHandler getHandler(CharSequence path, HttpMethod method, HttpVersion version);
@@ -174,6 +179,18 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 						i = value;
 					}
 
+					break;
+				case 'I':
+				case 'i':
+					value = encodeHeaderIf(req, buf, i, end);
+
+					if (value < 0) {
+						if (value == Integer.MIN_VALUE) break loop;
+						i = -value;
+					} else {
+						i = value;
+					}
+
 					break;
 				case 'R':
 				case 'r':
@@ -247,6 +264,23 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 		return false;
 	}
 
+	private static int encodeHeaderIf(Req req, ByteBuffer buf, int i, int end) {
+		int value = headerPrefixMatch(H_IF, buf, i + 1, end);
+		if (value >= 0) return value;
+		if (value == Integer.MIN_VALUE) return Integer.MIN_VALUE;
+		i = -value;
+		value = headerMatch(H_IF_NONE_MATCH, buf, i, end);
+
+		if (value < 0) {
+			if (value != Integer.MIN_VALUE) req.ifNoneMatchStart = -value - req.headerStart;
+			return value;
+		}
+
+		value = headerMatch(H_IF_RANGE, buf, i, end);
+		if ((value < 0) && (value != Integer.MIN_VALUE)) req.ifRangeStart = -value - req.headerStart;
+		return value;
+	}
+
 	@Override
 	protected void onMessageTooLong(NetChannel channel) {
 		onError(channel, UriTooLong.instance);
@@ -264,6 +298,8 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 		final int pathLen;
 		final int hash;
 		int rangeStart = -1;
+		int ifNoneMatchStart = -1;
+		int ifRangeStart = -1;
 
 		public Req(NetChannel channel, HttpVersion version, HttpMethod method, ByteBuffer buf, int uriStart, int uriLen,
 							 int pathLen, int hash, int headerStart) {
@@ -289,6 +325,27 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 			return (rangeStart == -1) ? null : Range.parse(buf, headerStart + rangeStart, headerEnd);
 		}
 
+		@Nullable
+		@Override
+		public List<Range> getRanges() {
+			checkReleased();
+			if (rangeStart == -1) return null;
+			List<Range> list = Range.parseList(buf, headerStart + rangeStart, headerEnd);
+			return (list != null) ? list : Collections.emptyList();
+		}
+
+		@Nullable
+		@Override
+		public CharSequence getIfNoneMatch() {
+			return getHeaderValue(ifNoneMatchStart);
+		}
+
+		@Nullable
+		@Override
+		public CharSequence getIfRange() {
+			return getHeaderValue(ifRangeStart);
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			checkReleased();
@@ -21,6 +21,14 @@ public interface HttpResponse extends HttpMessage {
 	@Nullable
 	CharSequence getEtag();
 
+	@Nullable
+	CharSequence getContentRange();
+
+	/**
+	 * @return true if the Accept-Ranges header is set to bytes.
+	 */
+	boolean isAcceptRanges();
+
 	@NonNull
 	HttpConnection getConnection();
 
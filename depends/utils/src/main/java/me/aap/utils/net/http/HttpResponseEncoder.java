@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import me.aap.utils.net.NetChannel;
+import me.aap.utils.text.TextUtils;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 
@@ -14,6 +15,7 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
  * @author Andrey Pavlenko
  */
 public abstract class HttpResponseEncoder extends HttpMessageEncoder<HttpResponse> {
+	private static final byte[] H_ACCEPT_RANGES = "cCcCeEpPtT--RraAnNgGeEsS".getBytes(US_ASCII);
 	private static final byte[] H_ETAG = "tTaAgG".getBytes(US_ASCII);
 	private static final byte[] H_LOCATION = "oOcCaAtTiIoOnN".getBytes(US_ASCII);
 
@@ -128,9 +130,22 @@ public abstract class HttpResponseEncoder extends HttpMessageEncoder<HttpRespons
 		loop:
 		for (int i = off; i < end; ) {
 			switch (buf.get(i)) {
+				case 'A':
+				case 'a':
+					int value = headerMatch(H_ACCEPT_RANGES, buf, i + 1, end);
+
+					if (value < 0) {
+						if (value == Integer.MIN_VALUE) break loop;
+						i = -value;
+						resp.acceptRangesStart = (i - resp.headerStart);
+						break;
+					}
+
+					i = value;
+					break;
 				case 'C':
 				case 'c':
-					int value = encodeHeaderC(resp, buf, i, end);
+					value = encodeHeaderC(resp, buf, i, end);
 
 					if (value < 0) {
 						if (value == Integer.MIN_VALUE) break loop;
@@ -249,6 +264,7 @@ public abstract class HttpResponseEncoder extends HttpMessageEncoder<HttpRespons
 		int reasonStart;
 		int locationStart = -1;
 		int etagStart = -1;
+		int acceptRangesStart = -1;
 
 		Resp(HttpConnection connection, HttpVersion version, ByteBuffer buf, int code, int reasonStart, int headerStart) {
 			super(version, buf, headerStart);
@@ -287,6 +303,18 @@ public abstract class HttpResponseEncoder extends HttpMessageEncoder<HttpRespons
 			return getHeaderValue(etagStart);
 		}
 
+		@Nullable
+		@Override
+		public CharSequence getContentRange() {
+			return getHeaderValue(contentRangeStart);
+		}
+
+		@Override
+		public boolean isAcceptRanges() {
+			CharSequence v = getHeaderValue(acceptRangesStart);
+			return (v != null) && TextUtils.equals("bytes", v);
+		}
+
 		@Override
 		public String toString() {
 			byte[] bytes = new byte[headerEnd - headerStart];
@@ -16,6 +16,7 @@ public interface HttpStatusCode {
 	int FORBIDDEN = 403;
 	int NOT_FOUND = 404;
 	int METHOD_NOT_ALLOWED = 405;
+	int RANGE_NOT_SATISFIABLE = 416;
 	int SERVER_ERROR = 500;
 	int SERVICE_UNAVAILABLE = 503;
 }
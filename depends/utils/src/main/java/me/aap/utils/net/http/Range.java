@@ -2,22 +2,33 @@ package me.aap.utils.net.http;
 
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
-
-import static java.lang.Long.MIN_VALUE;
-import static me.aap.utils.misc.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Andrey Pavlenko
  */
-public class Range {
+public class Range implements Comparable<Range> {
+	/**
+	 * The maximum number of ranges in a multi-range request.
+	 */
+	public static final int MAX_RANGES = 16;
+	/**
+	 * The ranges, separated by less than this number of bytes, are merged, because the part
+	 * header of a multipart response is about the same size.
+	 */
+	static final long MERGE_GAP = 128;
 	private final long start;
-	private long end;
+	private final long end;
 	private static final Range invalid = new Range(-1, -1) {
 
 		@Override
-		public void align(long length) {
+		public Range align(long length) {
+			return this;
 		}
 
 		@Override
@@ -26,34 +37,109 @@ public class Range {
 		}
 	};
 
+	/**
+	 * @param start the first byte position or, if negative, the suffix length.
+	 * @param end   the last byte position (inclusive) or {@link Long#MAX_VALUE}, if not specified.
+	 */
 	public Range(long start, long end) {
 		this.start = start;
 		this.end = end;
 	}
 
 	static Range parse(ByteBuffer bytes, int off, int end) {
-		if (!HttpUtils.starts(bytes, off, end, "bytes=")) return invalid;
+		List<Range> list = parseList(bytes, off, end);
+		return (list == null) ? invalid : list.get(0);
+	}
+
+	/**
+	 * Parses the Range header value, containing one or more comma separated byte ranges.
+	 *
+	 * @return the list of ranges in the request order or null if the value is invalid.
+	 */
+	@Nullable
+	static List<Range> parseList(ByteBuffer bytes, int off, int end) {
+		if (!HttpUtils.starts(bytes, off, end, "bytes=")) return null;
+		int eol = HttpUtils.indexOfChar(bytes, off += 6, end, "\n\r");
+		if (eol == -1) eol = end;
+		List<Range> list = new ArrayList<>(1);
+
+		for (int i = off; i < eol; ) {
+			int next = HttpUtils.indexOfChar(bytes, i, eol, ',');
+			if (next == -1) next = eol;
+			Range r = parseSpec(bytes, i, next);
+			if (r == null) return null;
+			if (list.size() == MAX_RANGES) return null;
+			list.add(r);
+			i = next + 1;
+		}
+
+		return list.isEmpty() ? null : list;
+	}
 
-		int idx = HttpUtils.indexOfChar(bytes, off += 6, end, "-\n\r");
-		if ((idx == -1) || (bytes.get(idx) != '-')) return invalid;
+	@Nullable
+	private static Range parseSpec(ByteBuffer bytes, int off, int end) {
+		while ((off < end) && (bytes.get(off) <= ' ')) off++;
+		while ((end > off) && (bytes.get(end - 1) <= ' ')) end--;
+		int idx = HttpUtils.indexOfChar(bytes, off, end, '-');
+		if (idx == -1) return null;
 
 		if (idx == off) {
-			long rangeEnd = HttpUtils.parseLong(bytes, off, end, "\n\r", MIN_VALUE);
-			assertTrue(rangeEnd < 0);
-			return (rangeEnd == MIN_VALUE) ? invalid : new Range(0, rangeEnd);
+			long suffix = parseLong(bytes, off + 1, end);
+			return (suffix <= 0) ? null : new Range(-suffix, Long.MAX_VALUE);
 		}
 
-		long rangeEnd = 0;
-		long rangeStart = HttpUtils.parseLong(bytes, off, idx, "-\n\r", MIN_VALUE);
-		if (rangeStart == MIN_VALUE) return invalid;
+		long rangeStart = parseLong(bytes, off, idx);
+		if (rangeStart < 0) return null;
+		if (idx + 1 == end) return new Range(rangeStart, Long.MAX_VALUE);
+		long rangeEnd = parseLong(bytes, idx + 1, end);
+		return (rangeEnd < rangeStart) ? null : new Range(rangeStart, rangeEnd);
+	}
 
+	private static long parseLong(ByteBuffer bytes, int off, int end) {
+		if (off == end) return -1;
+		long v = 0;
 
-		if ((++idx < end) && (bytes.get(idx) > ' ')) {
-			rangeEnd = HttpUtils.parseLong(bytes, idx, end, "\n\r", MIN_VALUE);
-			if (rangeEnd == MIN_VALUE) return invalid;
+		for (; off < end; off++) {
+			int d = bytes.get(off) - '0';
+			if ((d < 0) || (d > 9) || (v > (Long.MAX_VALUE - d) / 10)) return -1;
+			v = v * 10 + d;
 		}
 
-		return new Range(rangeStart, rangeEnd);
+		return v;
+	}
+
+	/**
+	 * Aligns the ranges to the length, drops the unsatisfiable ones, sorts and merges the
+	 * overlapping or adjacent ranges. The specified ranges are not modified.
+	 *
+	 * @return the list of satisfiable ranges, that is empty if none of the ranges is satisfiable.
+	 */
+	public static List<Range> coalesce(List<Range> ranges, long length) {
+		List<Range> list = new ArrayList<>(ranges.size());
+
+		for (Range r : ranges) {
+			r = r.align(length);
+			if (r.isSatisfiable(length)) list.add(r);
+		}
+
+		if (list.size() < 2) return list;
+		Collections.sort(list);
+		List<Range> merged = new ArrayList<>(list.size());
+		Range last = list.get(0);
+
+		for (int i = 1, n = list.size(); i < n; i++) {
+			Range r = list.get(i);
+
+			if (r.start <= last.end + MERGE_GAP) {
+				if (r.end > last.end) last = new Range(last.start, r.end);
+			} else {
+				merged.add(last);
+				last = r;
+			}
+		}
+
+		merged.add(last);
+		return merged;
 	}
 
 	public long getStart() {
@@ -64,29 +150,35 @@ public class Range {
 		return end;
 	}
 
-	public void align(long length) {
-		if (end < 0) {
-			end = length + end;
-		} else if ((end == 0) || (end >= length)) {
-			end = length - 1;
-		}
+	/**
+	 * @return this range or a new one, resolved against the specified length.
+	 */
+	public Range align(long length) {
+		if (start < 0) return new Range(Math.max(0, length + start), length - 1);
+		if (end >= length) return new Range(start, length - 1);
+		return this;
 	}
 
 	public boolean isSatisfiable(long length) {
-		return (start < length) && (end < length) && (start <= end);
+		return (start >= 0) && (start < length) && (end < length) && (start <= end);
 	}
 
 	public long getLength() {
 		return getEnd() - getStart() + 1;
 	}
 
+	@Override
+	public int compareTo(Range o) {
+		return Long.compare(start, o.start);
+	}
+
 	@NonNull
 	@Override
 	public String toString() {
 		if (start < 0) {
-			return -start + "-";
-		} else if (end < 0) {
-			return -end + "";
+			return "-" + -start;
+		} else if (end == Long.MAX_VALUE) {
+			return start + "-";
 		} else {
 			return start + "-" + end;
 		}
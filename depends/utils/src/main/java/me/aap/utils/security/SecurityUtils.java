@@ -35,6 +35,7 @@ import java.util.Date;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -328,6 +329,8 @@ public class SecurityUtils {
 	}
 
 	private static final class ClientContextHolder {
+		static final int CLIENT_SESSION_CACHE_SIZE = 128;
+		static final int CLIENT_SESSION_TIMEOUT = 12 * 60 * 60;
 		static final SSLContext context = create();
 
 		static SSLContext create() {
@@ -336,6 +339,10 @@ public class SecurityUtils {
 			try {
 				ctx = SSLContext.getInstance("TLS");
 				ctx.init(null, new TrustManager[]{InsecureTrustManager.instance}, null);
+				// Resume the sessions of the recently connected hosts
+				SSLSessionContext sc = ctx.getClientSessionContext();
+				sc.setSessionCacheSize(CLIENT_SESSION_CACHE_SIZE);
+				sc.setSessionTimeout(CLIENT_SESSION_TIMEOUT);
 			} catch (Exception ex) {
 				throw new RuntimeException(ex);
 			}
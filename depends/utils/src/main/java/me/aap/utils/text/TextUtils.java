@@ -13,6 +13,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.text.Normalizer;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
@@ -294,6 +295,20 @@ public class TextUtils {
 		return false;
 	}
 
+	/**
+	 * Removes diacritical marks and converts the string to lower case.
+	 */
+	public static String normalize(String s) {
+		s = Normalizer.normalize(s, Normalizer.Form.NFD);
+		try (SharedTextBuilder b = SharedTextBuilder.get()) {
+			for (int i = 0, n = s.length(); i < n; i++) {
+				char c = s.charAt(i);
+				if (Character.getType(c) != Character.NON_SPACING_MARK) b.append(toLowerCase(c));
+			}
+			return b.toString();
+		}
+	}
+
 	public static boolean isBlank(CharSequence s) {
 		for (int i = 0, n = s.length(); i < n; i++) {
 			if (s.charAt(i) > ' ') return false;
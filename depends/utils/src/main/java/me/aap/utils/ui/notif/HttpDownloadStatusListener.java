@@ -4,6 +4,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.os.Build;
+import android.text.format.Formatter;
 
 import androidx.annotation.DrawableRes;
 import androidx.core.app.NotificationCompat;
@@ -25,6 +26,7 @@ import static android.content.Context.NOTIFICATION_SERVICE;
  */
 public class HttpDownloadStatusListener implements HttpFileDownloader.StatusListener {
 	private static final AtomicInteger idCounter = new AtomicInteger();
+	private final Context ctx;
 	private final String channelId;
 	private final NotificationManagerCompat mgr;
 	private final NotificationCompat.Builder builder;
@@ -36,6 +38,7 @@ public class HttpDownloadStatusListener implements HttpFileDownloader.StatusList
 	}
 
 	public HttpDownloadStatusListener(Context ctx, String channelId, String channelName) {
+		this.ctx = ctx;
 		this.channelId = channelId;
 		mgr = NotificationManagerCompat.from(ctx);
 		builder = new NotificationCompat.Builder(ctx, channelId);
@@ -72,6 +75,14 @@ public class HttpDownloadStatusListener implements HttpFileDownloader.StatusList
 			builder.setProgress((int) (total >>> shift), (int) (status.bytesDownloaded() >>> shift), false);
 		}
 
+		long bw = status.getBandwidth();
+
+		if (bw > 0) {
+			String speed = Formatter.formatShortFileSize(ctx, bw) + "/s";
+			long eta = status.getEta();
+			builder.setSubText((eta < 0) ? speed : speed + ", " + formatEta(eta));
+		}
+
 		mgr.notify(channelId, id, builder.build());
 	}
 
@@ -87,6 +98,14 @@ public class HttpDownloadStatusListener implements HttpFileDownloader.StatusList
 		mgr.notify(channelId, id, builder.build());
 	}
 
+	private static String formatEta(long millis) {
+		long sec = (millis + 999) / 1000;
+		if (sec < 60) return sec + "s";
+		long min = sec / 60;
+		if (min < 60) return min + "m " + (sec % 60) + 's';
+		return (min / 60) + "h " + (min % 60) + 'm';
+	}
+
 	private static int progressShift(long total) {
 		if (total <= Integer.MAX_VALUE) return 0;
 
@@ -0,0 +1,486 @@
+package me.aap.utils.vfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import me.aap.utils.async.Async;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.concurrent.ThreadPool;
+import me.aap.utils.io.AsyncInputStream;
+import me.aap.utils.io.IoUtils;
+import me.aap.utils.io.RandomAccessChannel;
+import me.aap.utils.log.Log;
+import me.aap.utils.net.ByteBufferArraySupplier;
+import me.aap.utils.net.NetChannel;
+import me.aap.utils.resource.Rid;
+import me.aap.utils.security.SecurityUtils;
+
+/**
+ * Persistent, size-bounded cache of remote file blocks. Each file is stored in a sparse data
+ * file, containing only the downloaded blocks at their original offsets, and an index file with
+ * the bitmap of the downloaded blocks. The files are named by the hash of the resource id, the
+ * file length and the last modification time, so that a changed file is not served from the
+ * stale cache. If the modification time is unknown, a file, rewritten with the same length, is
+ * served from the stale cache. When the cache size exceeds the limit, the least recently used
+ * files are evicted.
+ * <p>
+ * The missing blocks are downloaded one block ahead of the channel. When a file is opened for
+ * the first time, the last blocks are prefetched in background, because the media containers
+ * often keep the index at the end of file (e.g. MP4 moov atom or MKV cues).
+ * <p>
+ * The cache must be closed, when no longer needed, to stop the download threads.
+ *
+ * @author Andrey Pavlenko
+ */
+public class BlockCache implements Closeable {
+	static final int BLOCK_SIZE = 1024 * 1024;
+	private static final int VERSION = 1;
+	private static final int HEADER_LEN = 12;
+	private static final int TAIL_BLOCKS = 2;
+	private static final int EVICT_CHECK_BLOCKS = 16;
+	private static final String DATA_EXT = ".data";
+	private static final String IDX_EXT = ".idx";
+	private final File dir;
+	private final long maxSize;
+	private final Map<String, Entry> entries = new HashMap<>();
+	// The tasks, submitted after close, are cancelled
+	private final ThreadPool executor = new ThreadPool(3, 3, 30L, SECONDS,
+			new LinkedBlockingQueue<>(), (task, pool) -> ((Future<?>) task).cancel(false));
+	private int addedBlocks = EVICT_CHECK_BLOCKS;
+	private boolean evicting;
+
+	public BlockCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns true if the file is worth caching, i.e. it's a remote file, the length of which is
+	 * known and exceeds the block size.
+	 */
+	public boolean isCacheable(VirtualFile file, VirtualFile.Info info) {
+		return (info.getLength() > BLOCK_SIZE) && (info.getContentEncoding() == null) &&
+				(info.getLocalFile() == null) && file.getVirtualFileSystem().isRemote();
+	}
+
+	/**
+	 * Stops the download threads. The subsequent transfers are not cached.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @param lastModified the last modification time of the file or 0, if unknown. In the latter
+	 *                     case, the cache could serve stale data, if the file is rewritten with
+	 *                     the same length, because the cache key is not changed.
+	 */
+	public FutureSupplier<Void> transfer(VirtualFile file, long fileLen, long lastModified,
+																			 NetChannel channel, long off, long len,
+																			 @Nullable ByteBufferArraySupplier header) {
+		if (executor.isShutdown()) return file.transferTo(channel, off, len, header);
+		Entry e;
+
+		try {
+			e = acquire(file.getRid(), fileLen, lastModified);
+		} catch (Throwable ex) {
+			Log.e(ex, "Failed to open cache of ", file);
+			return file.transferTo(channel, off, len, header);
+		}
+
+		boolean tail;
+
+		synchronized (entries) {
+			tail = !e.tailRequested;
+			e.tailRequested = true;
+		}
+
+		if (tail) prefetchTail(file, e);
+
+		if (len < 0) len = fileLen - off;
+		Transfer t = new Transfer(e, file, channel, off, Math.min(fileLen, off + len), header);
+		return Async.iterate(t::next).onCompletion((r, err) -> t.close());
+	}
+
+	private Entry acquire(Rid rid, long length, long lastModified) throws IOException {
+		String key = key(rid, length, lastModified);
+
+		synchronized (entries) {
+			Entry e = entries.get(key);
+
+			if (e == null) {
+				if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Failed to create " + dir);
+				e = new Entry(key, length);
+				entries.put(key, e);
+			}
+
+			e.refs++;
+			return e;
+		}
+	}
+
+	static String key(Rid rid, long length, long lastModified) {
+		return SecurityUtils.sha256String(UTF_8, rid.toString(), "#", String.valueOf(length), "#",
+				String.valueOf(lastModified));
+	}
+
+	private void release(Entry e) {
+		synchronized (entries) {
+			if (--e.refs != 0) return;
+			entries.remove(e.key);
+			e.close();
+		}
+	}
+
+	private void prefetchTail(VirtualFile file, Entry e) {
+		if (e.blocks <= TAIL_BLOCKS * 2) return;
+		int first = e.blocks - TAIL_BLOCKS;
+		boolean missing = false;
+
+		for (int b = first; b < e.blocks; b++) {
+			if (e.has(b)) continue;
+			missing = true;
+			break;
+		}
+
+		if (!missing) return;
+
+		synchronized (entries) {
+			e.refs++;
+		}
+
+		executor.submitTask(() -> {
+			AsyncInputStream in = null;
+
+			try {
+				for (int b = first; b < e.blocks; b++) {
+					if (e.has(b)) {
+						IoUtils.close(in);
+						in = null;
+						continue;
+					}
+
+					if (in == null) in = file.getInputStream(e.blockOffset(b));
+					e.put(b, read(in, e.blockSize(b)));
+					blockAdded();
+				}
+			} finally {
+				IoUtils.close(in);
+			}
+		}).onCompletion((r, err) -> {
+			if (err != null) Log.d(err, "Failed to prefetch the tail of ", file);
+			release(e);
+		});
+	}
+
+	private void blockAdded() {
+		synchronized (entries) {
+			if ((++addedBlocks < EVICT_CHECK_BLOCKS) || evicting || executor.isShutdown()) return;
+			addedBlocks = 0;
+			evicting = true;
+		}
+
+		executor.submitTask(this::evict).onCompletion((r, err) -> {
+			if (err != null) Log.e(err, "Failed to evict cached blocks");
+			synchronized (entries) {
+				evicting = false;
+			}
+		});
+	}
+
+	void evict() {
+		File[] files = dir.listFiles((d, n) -> n.endsWith(IDX_EXT));
+		if ((files == null) || (files.length == 0)) return;
+
+		long[] sizes = new long[files.length];
+		long[] times = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		long total = 0;
+
+		for (int i = 0; i < files.length; i++) {
+			File f = files[i];
+			order[i] = i;
+			times[i] = f.lastModified();
+			long size = 0;
+
+			try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+				byte[] bitmap = new byte[(int) Math.max(0, raf.length() - HEADER_LEN)];
+				raf.seek(HEADER_LEN);
+				raf.readFully(bitmap);
+				for (byte b : bitmap) size += Integer.bitCount(b & 0xFF);
+			} catch (IOException ex) {
+				Log.d(ex, "Failed to read cache index ", f);
+			}
+
+			sizes[i] = size * BLOCK_SIZE;
+			total += sizes[i];
+		}
+
+		if (total <= maxSize) return;
+
+		long target = maxSize - maxSize / 10;
+		Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+
+		for (int i : order) {
+			if (total <= target) break;
+			File idx = files[i];
+			String name = idx.getName();
+			String key = name.substring(0, name.length() - IDX_EXT.length());
+
+			synchronized (entries) {
+				if (entries.containsKey(key)) continue;
+				if (!idx.delete()) Log.d("Failed to delete ", idx);
+				File data = new File(dir, key + DATA_EXT);
+				if (data.exists() && !data.delete()) Log.d("Failed to delete ", data);
+			}
+
+			total -= sizes[i];
+		}
+
+		Log.d("Cached blocks evicted. Cache size: ", total);
+	}
+
+	private static ByteBuffer read(AsyncInputStream in, int size) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(size);
+
+		while (buf.hasRemaining()) {
+			int pos = buf.position();
+			in.read(() -> buf).get();
+			int n = buf.limit() - pos;
+			if (n <= 0) throw new IOException("Unexpected end of stream");
+			buf.limit(size).position(pos + n);
+		}
+
+		buf.flip();
+		return buf;
+	}
+
+	private final class Transfer {
+		final Entry entry;
+		final VirtualFile file;
+		final NetChannel channel;
+		final long end;
+		long pos;
+		ByteBufferArraySupplier header;
+		AsyncInputStream in;
+		long inPos;
+		FutureSupplier<ByteBuffer> prefetch;
+		int prefetchBlock = -1;
+
+		Transfer(Entry entry, VirtualFile file, NetChannel channel, long pos, long end,
+						 ByteBufferArraySupplier header) {
+			this.entry = entry;
+			this.file = file;
+			this.channel = channel;
+			this.pos = pos;
+			this.end = end;
+			this.header = header;
+		}
+
+		FutureSupplier<Void> next() {
+			if (pos >= end) return null;
+
+			int b = entry.block(pos);
+			long p = pos;
+			long n = Math.min(end, entry.blockOffset(b) + BLOCK_SIZE) - p;
+			ByteBufferArraySupplier h = header;
+			pos += n;
+			header = null;
+
+			if ((prefetchBlock != b) && entry.has(b)) {
+				return channel.send(entry.channel, p, n, h);
+			}
+
+			return load(b).then(buf -> {
+				prefetch(b + 1);
+				int start = (int) (p - entry.blockOffset(b));
+				ByteBuffer data = buf.duplicate();
+				data.position(start).limit(start + (int) n);
+				ByteBufferArraySupplier bbs = () -> new ByteBuffer[]{data};
+				return channel.write((h == null) ? bbs : ByteBufferArraySupplier.wrap(h, bbs));
+			});
+		}
+
+		private FutureSupplier<ByteBuffer> load(int b) {
+			if (prefetchBlock == b) {
+				FutureSupplier<ByteBuffer> f = prefetch;
+				prefetch = null;
+				prefetchBlock = -1;
+				return f;
+			}
+
+			return executor.submitTask(() -> loadBlock(b));
+		}
+
+		private void prefetch(int b) {
+			if ((b >= entry.blocks) || (entry.blockOffset(b) >= end) || entry.has(b)) return;
+			prefetchBlock = b;
+			prefetch = executor.submitTask(() -> loadBlock(b));
+		}
+
+		private ByteBuffer loadBlock(int b) throws Exception {
+			long off = entry.blockOffset(b);
+			int size = entry.blockSize(b);
+
+			if (entry.has(b)) {
+				ByteBuffer buf = ByteBuffer.allocate(size);
+
+				while (buf.hasRemaining()) {
+					if (entry.channel.read(buf, off + buf.position()) == -1) break;
+				}
+
+				if (!buf.hasRemaining()) {
+					buf.flip();
+					return buf;
+				}
+			}
+
+			if ((in == null) || (inPos != off)) {
+				IoUtils.close(in);
+				in = null;
+				in = file.getInputStream(off);
+				inPos = off;
+			}
+
+			ByteBuffer buf = read(in, size);
+			inPos += size;
+
+			try {
+				entry.put(b, buf);
+				blockAdded();
+			} catch (IOException ex) {
+				Log.d(ex, "Failed to cache block ", b, " of ", file);
+			}
+
+			return buf;
+		}
+
+		void close() {
+			FutureSupplier<ByteBuffer> p = prefetch;
+
+			if (p == null) {
+				IoUtils.close(in);
+				release(entry);
+			} else {
+				prefetch = null;
+				p.onCompletion((r, err) -> {
+					IoUtils.close(in);
+					release(entry);
+				});
+			}
+		}
+	}
+
+	private final class Entry {
+		final String key;
+		final long length;
+		final int blocks;
+		final byte[] bitmap;
+		final RandomAccessFile dataFile;
+		final RandomAccessFile idxFile;
+		final RandomAccessChannel channel;
+		int refs;
+		boolean tailRequested;
+
+		Entry(String key, long length) throws IOException {
+			this.key = key;
+			this.length = length;
+			blocks = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			bitmap = new byte[(blocks + 7) / 8];
+			File data = new File(dir, key + DATA_EXT);
+			File idx = new File(dir, key + IDX_EXT);
+			boolean valid = false;
+
+			if (idx.isFile() && (idx.length() == HEADER_LEN + bitmap.length) && data.isFile()) {
+				try (RandomAccessFile raf = new RandomAccessFile(idx, "r")) {
+					if ((raf.readInt() == VERSION) && (raf.readLong() == length)) {
+						raf.readFully(bitmap);
+						valid = true;
+					}
+				} catch (IOException ex) {
+					Log.d(ex, "Failed to read cache index ", idx);
+				}
+			}
+
+			if (!valid) {
+				Arrays.fill(bitmap, (byte) 0);
+				if (data.exists() && !data.delete()) Log.d("Failed to delete ", data);
+			}
+
+			idxFile = new RandomAccessFile(idx, "rw");
+
+			try {
+				if (!valid) {
+					idxFile.setLength(0);
+					idxFile.writeInt(VERSION);
+					idxFile.writeLong(length);
+					idxFile.write(bitmap);
+				} else if (!idx.setLastModified(System.currentTimeMillis())) {
+					Log.d("Failed to update last modified time of ", idx);
+				}
+
+				dataFile = new RandomAccessFile(data, "rw");
+				channel = RandomAccessChannel.wrap(dataFile.getChannel());
+			} catch (IOException ex) {
+				IoUtils.close(idxFile);
+				throw ex;
+			}
+		}
+
+		int block(long pos) {
+			return (int) (pos / BLOCK_SIZE);
+		}
+
+		long blockOffset(int b) {
+			return (long) b * BLOCK_SIZE;
+		}
+
+		int blockSize(int b) {
+			return (int) Math.min(BLOCK_SIZE, length - blockOffset(b));
+		}
+
+		synchronized boolean has(int b) {
+			return (bitmap[b >> 3] & (1 << (b & 7))) != 0;
+		}
+
+		void put(int b, ByteBuffer buf) throws IOException {
+			ByteBuffer src = buf.duplicate();
+			for (long off = blockOffset(b); src.hasRemaining(); ) {
+				channel.write(src, off + src.position());
+			}
+
+			synchronized (this) {
+				int i = b >> 3;
+				bitmap[i] |= (1 << (b & 7));
+				idxFile.seek(HEADER_LEN + i);
+				idxFile.write(bitmap[i]);
+			}
+		}
+
+		void close() {
+			channel.close();
+			IoUtils.close(idxFile, dataFile);
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return key;
+		}
+	}
+}
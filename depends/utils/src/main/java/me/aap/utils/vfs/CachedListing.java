@@ -0,0 +1,105 @@
+package me.aap.utils.vfs;
+
+import static me.aap.utils.async.Completed.completed;
+import static me.aap.utils.async.Completed.completedNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import me.aap.utils.app.App;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.log.Log;
+import me.aap.utils.resource.Rid;
+
+/**
+ * Children of a network folder, served from the file system's {@link ListingCache}, if available.
+ * In this case, the listing is revalidated in background against the folder's last modification
+ * time and the up-to-date children are returned by {@link #getUpdatedChildren()}.
+ *
+ * @author Andrey Pavlenko
+ */
+public abstract class CachedListing {
+	private final NetResourceBase<?> folder;
+	private volatile FutureSupplier<List<VirtualResource>> updatedChildren;
+
+	public CachedListing(NetResourceBase<?> folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * Lists the folder on the remote side.
+	 */
+	protected abstract FutureSupplier<ListingCache.Listing> loadListing();
+
+	protected abstract VirtualResource createChild(ListingCache.Entry e);
+
+	public FutureSupplier<List<VirtualResource>> getChildren() {
+		ListingCache cache = ((NetFileSystemBase) folder.getVirtualFileSystem()).getListingCache();
+
+		if (cache == null) {
+			updatedChildren = completedNull();
+			return loadListing().map(this::toResources);
+		}
+
+		Rid rid = folder.getRid();
+		return App.get().execute(() -> cache.get(rid)).then(cached -> {
+			if (cached == null) {
+				updatedChildren = completedNull();
+				return loadListing().map(l -> {
+					cache.put(rid, l);
+					return toResources(l);
+				});
+			}
+
+			updatedChildren = revalidate(cache, rid, cached);
+			return completed(toResources(cached));
+		});
+	}
+
+	/**
+	 * Returns the up-to-date children, if the list returned by the last {@link #getChildren()}
+	 * call was served from the cache and the folder has changed since, or null otherwise.
+	 */
+	public FutureSupplier<List<VirtualResource>> getUpdatedChildren() {
+		FutureSupplier<List<VirtualResource>> u = updatedChildren;
+		return (u != null) ? u : completedNull();
+	}
+
+	public void invalidate() {
+		ListingCache cache = ((NetFileSystemBase) folder.getVirtualFileSystem()).getListingCache();
+		if (cache != null) cache.remove(folder.getRid());
+	}
+
+	private FutureSupplier<List<VirtualResource>> revalidate(ListingCache cache, Rid rid,
+																													 ListingCache.Listing cached) {
+		return folder.loadLastModified().then(lm -> {
+			if ((lm != 0) && (lm == cached.getLastModified())) return completedNull();
+
+			return loadListing().map(l -> {
+				if (l.getEntries().equals(cached.getEntries())) {
+					if (l.getLastModified() != cached.getLastModified()) cache.put(rid, l);
+					return null;
+				}
+
+				cache.put(rid, l);
+				return toResources(l);
+			});
+		}).ifFail(err -> {
+			Log.d(err, "Failed to revalidate cached listing of ", rid);
+			return null;
+		});
+	}
+
+	private List<VirtualResource> toResources(ListingCache.Listing l) {
+		List<ListingCache.Entry> entries = l.getEntries();
+		if (entries.isEmpty()) return Collections.emptyList();
+		List<VirtualResource> children = new ArrayList<>(entries.size());
+		for (ListingCache.Entry e : entries) {
+			VirtualResource c = createChild(e);
+			if (c instanceof NetResourceBase) ((NetResourceBase<?>) c).setLastModified(e.getLastModified());
+			children.add(c);
+		}
+		return children;
+	}
+}
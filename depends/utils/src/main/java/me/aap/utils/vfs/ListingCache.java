@@ -0,0 +1,242 @@
+package me.aap.utils.vfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.aap.utils.log.Log;
+import me.aap.utils.resource.Rid;
+import me.aap.utils.security.SecurityUtils;
+
+/**
+ * Persistent cache of folder listings. Each listing is stored in a separate file, named by the
+ * hash of the folder's resource id. The total size of the cache directory is limited - when
+ * exceeded, the least recently used listings are deleted.
+ *
+ * @author Andrey Pavlenko
+ */
+public class ListingCache {
+	private static final int VERSION = 1;
+	private static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+	private static final int TRIM_INTERVAL = 32;
+	private final File dir;
+	private final long maxSize;
+	private final AtomicInteger puts = new AtomicInteger();
+
+	public ListingCache(File dir) {
+		this(dir, DEFAULT_MAX_SIZE);
+	}
+
+	public ListingCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	@Nullable
+	public Listing get(Rid rid) {
+		File f = file(rid);
+		if (!f.isFile()) return null;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if (in.readInt() != VERSION) return null;
+			long lastModified = in.readLong();
+			int size = in.readInt();
+			List<Entry> entries = new ArrayList<>(size);
+
+			for (int i = 0; i < size; i++) {
+				entries.add(new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong()));
+			}
+
+			if (!f.setLastModified(System.currentTimeMillis())) Log.d("Failed to touch ", f);
+			return new Listing(lastModified, entries);
+		} catch (Throwable ex) {
+			Log.d(ex, "Failed to read cached listing of ", rid);
+			remove(rid);
+			return null;
+		}
+	}
+
+	public void put(Rid rid, Listing listing) {
+		File f = file(rid);
+		File tmp = new File(dir, f.getName() + '.' + Thread.currentThread().getId() + ".tmp");
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.w("Failed to create directory ", dir);
+			return;
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(VERSION);
+			out.writeLong(listing.getLastModified());
+			out.writeInt(listing.getEntries().size());
+
+			for (Entry e : listing.getEntries()) {
+				out.writeUTF(e.getName());
+				out.writeBoolean(e.isFolder());
+				out.writeLong(e.getLength());
+				out.writeLong(e.getLastModified());
+			}
+		} catch (Throwable ex) {
+			Log.d(ex, "Failed to cache listing of ", rid);
+			tmp.delete();
+			return;
+		}
+
+		if (!tmp.renameTo(f)) {
+			Log.d("Failed to rename ", tmp, " to ", f);
+			tmp.delete();
+		}
+
+		if ((puts.getAndIncrement() % TRIM_INTERVAL) == 0) trim();
+	}
+
+	public void remove(Rid rid) {
+		File f = file(rid);
+		if (f.isFile() && !f.delete()) Log.d("Failed to delete ", f);
+	}
+
+	/**
+	 * Deletes the stale temporary files and, if the cache size exceeds the limit, the least recently
+	 * used listings, until the size is reduced to 3/4 of the limit.
+	 */
+	public synchronized void trim() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+
+		long size = 0;
+		int count = 0;
+		long[] time = new long[files.length];
+		Integer[] idx = new Integer[files.length];
+		long now = System.currentTimeMillis();
+
+		for (File f : files) {
+			if (!f.isFile()) continue;
+			long lm = f.lastModified();
+
+			if (f.getName().endsWith(".tmp")) {
+				// Not renamed within an hour - left after a failure
+				if ((now - lm) > 3600000) f.delete();
+				continue;
+			}
+
+			size += f.length();
+			time[count] = lm;
+			files[count] = f;
+			idx[count] = count++;
+		}
+
+		if (size <= maxSize) return;
+
+		Arrays.sort(idx, 0, count, (a, b) -> Long.compare(time[a], time[b]));
+		long limit = maxSize * 3 / 4;
+
+		for (int i = 0; (i < count) && (size > limit); i++) {
+			File f = files[idx[i]];
+			long len = f.length();
+			if (f.delete()) size -= len;
+			else Log.d("Failed to delete ", f);
+		}
+	}
+
+	private File file(Rid rid) {
+		return new File(dir, SecurityUtils.sha256String(UTF_8, rid.toString()));
+	}
+
+	public static final class Listing {
+		private final long lastModified;
+		private final List<Entry> entries;
+
+		public Listing(long lastModified, List<Entry> entries) {
+			this.lastModified = lastModified;
+			this.entries = entries;
+		}
+
+		/**
+		 * The last modification time of the folder at the time of listing.
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public List<Entry> getEntries() {
+			return entries;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			Listing listing = (Listing) o;
+			return lastModified == listing.lastModified && entries.equals(listing.entries);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(lastModified, entries);
+		}
+	}
+
+	public static final class Entry {
+		private final String name;
+		private final boolean folder;
+		private final long length;
+		private final long lastModified;
+
+		public Entry(String name, boolean folder, long length, long lastModified) {
+			this.name = name;
+			this.folder = folder;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isFolder() {
+			return folder;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			Entry entry = (Entry) o;
+			return folder == entry.folder && length == entry.length &&
+					lastModified == entry.lastModified && name.equals(entry.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, folder, length, lastModified);
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -3,10 +3,12 @@ package me.aap.utils.vfs;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import me.aap.utils.app.App;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.function.Supplier;
 import me.aap.utils.log.Log;
@@ -30,6 +32,7 @@ public abstract class NetFileSystemBase implements VirtualFileSystem {
 	private final Provider provider;
 	private final PreferenceStore ps;
 	private volatile List<VirtualFolder> roots;
+	private volatile ListingCache listingCache;
 
 	protected NetFileSystemBase(Provider provider, PreferenceStore ps) {
 		this.provider = provider;
@@ -108,6 +111,40 @@ public abstract class NetFileSystemBase implements VirtualFileSystem {
 
 	protected abstract Pref<Supplier<String[]>> getRootsPref();
 
+	/**
+	 * Returns the persistent cache of folder listings or null, if the listings must not be cached.
+	 */
+	@Nullable
+	public ListingCache getListingCache() {
+		ListingCache c = listingCache;
+
+		if (c == null) {
+			synchronized (this) {
+				if ((c = listingCache) == null) {
+					String name = "ls-" + getProvider().getSupportedSchemes().iterator().next();
+					listingCache = c = new ListingCache(new File(App.get().getCacheDir(), name));
+				}
+			}
+		}
+
+		return c;
+	}
+
+	@Override
+	public int getMaxConcurrentReads() {
+		return 2;
+	}
+
+	@Override
+	public int getReadAheadBuffers() {
+		return 3;
+	}
+
+	@Override
+	public boolean isRemote() {
+		return true;
+	}
+
 	@NonNull
 	@Override
 	public Provider getProvider() {
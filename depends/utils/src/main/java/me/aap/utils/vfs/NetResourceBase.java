@@ -86,6 +86,10 @@ public class NetResourceBase<R extends VirtualFolder> implements VirtualResource
 		return completed(0L);
 	}
 
+	void setLastModified(long lastModified) {
+		this.lastModified = completed(lastModified);
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
@@ -0,0 +1,378 @@
+package me.aap.utils.vfs;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.aap.utils.async.Completed.failed;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.concurrent.ThreadPool;
+import me.aap.utils.io.AsyncInputStream;
+import me.aap.utils.io.IoUtils;
+import me.aap.utils.log.Log;
+import me.aap.utils.net.ByteBufferArraySupplier;
+import me.aap.utils.net.NetChannel;
+
+/**
+ * Pipelined transfer of a file, that has no random access channel, to a network channel.
+ * The file is read ahead on a background thread into a ring of buffers, while the previously
+ * read buffers are being written to the channel. The read size is adapted to the observed
+ * read bandwidth, so that filling a single buffer takes about {@link #TARGET_READ_TIME} ms.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class ReadAheadTransfer {
+	private static final int MIN_READ_SIZE = 32 * 1024;
+	private static final int MAX_READ_SIZE = 1024 * 1024;
+	private static final long TARGET_READ_TIME = 50;
+	private static final AtomicInteger activeTransfers = new AtomicInteger();
+	private static final AtomicLong totalBytes = new AtomicLong();
+	private static final AtomicLong totalReadTime = new AtomicLong();
+	private static final AtomicLong totalStallTime = new AtomicLong();
+	private static volatile ThreadPool executor;
+	private final TransferPromise result = new TransferPromise();
+	private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>();
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+	private final AsyncInputStream in;
+	private final NetChannel channel;
+	private final int maxBuffers;
+	private final long startTime = System.nanoTime();
+	private ByteBufferArraySupplier header;
+	private long remain;
+	private int allocated;
+	private int readSize = MIN_READ_SIZE;
+	private double bandwidth;
+	private boolean reading;
+	private boolean writing;
+	private boolean eos;
+	private boolean closed;
+	private long bytes;
+	private long readTime;
+	private long stallTime;
+	private long stallStart;
+
+	private ReadAheadTransfer(AsyncInputStream in, NetChannel channel, long len,
+														@Nullable ByteBufferArraySupplier header, int buffers) {
+		this.in = in;
+		this.channel = channel;
+		this.header = header;
+		this.remain = (len < 0) ? Long.MAX_VALUE : len;
+		this.maxBuffers = Math.max(2, buffers);
+	}
+
+	/**
+	 * @param buffers the maximum number of buffers, including the one being written.
+	 */
+	public static FutureSupplier<Void> transfer(VirtualFile file, NetChannel channel, long off,
+																							long len, @Nullable ByteBufferArraySupplier header,
+																							int buffers) {
+		AsyncInputStream in;
+
+		try {
+			in = file.getInputStream(off);
+		} catch (Throwable ex) {
+			return failed(ex);
+		}
+
+		ReadAheadTransfer t = new ReadAheadTransfer(in, channel, len, header, buffers);
+		activeTransfers.incrementAndGet();
+
+		synchronized (t) {
+			t.reading = true;
+			t.stallStart = t.startTime;
+		}
+
+		t.submitRead();
+		return t.result;
+	}
+
+	public static int getActiveTransfers() {
+		return activeTransfers.get();
+	}
+
+	/**
+	 * Total number of bytes, read by all transfers.
+	 */
+	public static long getTotalBytes() {
+		return totalBytes.get();
+	}
+
+	/**
+	 * Average read throughput of all transfers in bytes per second.
+	 */
+	public static long getReadThroughput() {
+		long t = totalReadTime.get();
+		return (t == 0) ? 0 : totalBytes.get() * 1000000000L / t;
+	}
+
+	/**
+	 * Total time in milliseconds, the channels were idle, waiting for data to be read.
+	 */
+	public static long getTotalStallTime() {
+		return totalStallTime.get() / 1000000L;
+	}
+
+	public static String getStats() {
+		return "ReadAheadTransfer{" +
+				"active=" + getActiveTransfers() +
+				", bytes=" + getTotalBytes() +
+				", throughput=" + getReadThroughput() +
+				", stallTime=" + getTotalStallTime() +
+				'}';
+	}
+
+	private void submitRead() {
+		try {
+			getExecutor().execute(this::read);
+		} catch (Throwable ex) {
+			synchronized (this) {
+				reading = false;
+			}
+			fail(ex);
+		}
+	}
+
+	private void read() {
+		ByteBuffer buf;
+		int size;
+
+		synchronized (this) {
+			if (result.isDone()) {
+				reading = false;
+				close();
+				return;
+			}
+
+			size = (int) Math.min(readSize, remain);
+			buf = free.pollFirst();
+
+			if (buf == null) {
+				allocated++;
+				buf = ByteBuffer.allocate(size);
+			} else if (buf.capacity() < size) {
+				buf = ByteBuffer.allocate(size);
+			}
+		}
+
+		buf.clear().limit(size);
+		fill(buf, size, System.nanoTime());
+	}
+
+	private void fill(ByteBuffer buf, int size, long readStart) {
+		for (; ; ) {
+			FutureSupplier<ByteBuffer> f = in.read(() -> buf);
+
+			if (!f.isDone()) {
+				f.onCompletion((b, err) -> {
+					if (onRead(buf, size, b, err, readStart)) fill(buf, size, readStart);
+				});
+				return;
+			}
+
+			if (!onRead(buf, size, f.isFailed() ? null : f.peek(), f.getFailure(), readStart)) return;
+		}
+	}
+
+	/**
+	 * Continues reading into the same buffer until it's full or the end of stream is reached.
+	 *
+	 * @return true if more data must be read into the buffer.
+	 */
+	private boolean onRead(ByteBuffer buf, int size, ByteBuffer b, Throwable err, long readStart) {
+		if (err != null) {
+			synchronized (this) {
+				reading = false;
+			}
+			fail(err);
+			return false;
+		}
+
+		int end = (b == null) ? buf.position() : b.limit();
+
+		if ((end > buf.position()) && (end < size) && !result.isDone()) {
+			buf.limit(size).position(end);
+			return true;
+		}
+
+		buf.limit(end).position(0);
+		onFilled(buf, System.nanoTime() - readStart);
+		return false;
+	}
+
+	private void onFilled(ByteBuffer buf, long time) {
+		int n = buf.remaining();
+		ByteBuffer write = null;
+		ByteBufferArraySupplier hdr = null;
+		boolean read = false;
+		boolean done = false;
+
+		synchronized (this) {
+			reading = false;
+
+			if (result.isDone()) {
+				close();
+				return;
+			}
+
+			bytes += n;
+			readTime += time;
+			remain -= n;
+			if ((n == 0) || (remain <= 0)) eos = true;
+			adaptReadSize(n, time);
+
+			// The header must be written even if the file is empty
+			if ((n > 0) || (header != null)) filled.addLast(buf);
+			else free.addLast(buf);
+
+			if (!writing && ((write = filled.pollFirst()) != null)) {
+				writing = true;
+				hdr = header;
+				header = null;
+				stallTime += System.nanoTime() - stallStart;
+			}
+
+			if (!eos && hasFreeBuffer()) read = reading = true;
+			else if (eos && !writing) done = true;
+		}
+
+		if (write != null) write(write, hdr);
+		if (read) submitRead();
+		if (done) done();
+	}
+
+	private void write(ByteBuffer buf, @Nullable ByteBufferArraySupplier hdr) {
+		ByteBufferArraySupplier bbs = () -> new ByteBuffer[]{buf};
+		if (hdr != null) bbs = ByteBufferArraySupplier.wrap(hdr, bbs);
+		channel.write(bbs).onCompletion((r, err) -> onWritten(buf, err));
+	}
+
+	private void onWritten(ByteBuffer buf, Throwable err) {
+		if (err != null) {
+			fail(err);
+			return;
+		}
+
+		ByteBuffer write;
+		boolean read = false;
+		boolean done = false;
+
+		synchronized (this) {
+			free.addLast(buf);
+			write = filled.pollFirst();
+
+			if (write == null) {
+				writing = false;
+				if (eos) done = !reading;
+				else stallStart = System.nanoTime();
+			}
+
+			if (!reading && !eos && !result.isDone()) read = reading = true;
+		}
+
+		if (write != null) write(write, null);
+		if (read) submitRead();
+		if (done) done();
+	}
+
+	private void adaptReadSize(int n, long time) {
+		if ((n < readSize) || (time <= 0)) return;
+		double bw = (double) n / time;
+		bandwidth = (bandwidth == 0) ? bw : bandwidth * 0.7 + bw * 0.3;
+		long size = (long) (bandwidth * TARGET_READ_TIME * 1000000L);
+		size = Math.max(MIN_READ_SIZE, Math.min(MAX_READ_SIZE, size));
+		readSize = Integer.highestOneBit((int) size);
+	}
+
+	private boolean hasFreeBuffer() {
+		return !free.isEmpty() || (allocated < maxBuffers);
+	}
+
+	private void done() {
+		if (result.complete(null)) onComplete();
+		synchronized (this) {
+			close();
+		}
+	}
+
+	private void fail(Throwable err) {
+		if (result.completeExceptionally(err)) onComplete();
+		synchronized (this) {
+			if (!reading) close();
+		}
+	}
+
+	private void close() {
+		assert Thread.holdsLock(this);
+		if (closed) return;
+		closed = true;
+		IoUtils.close(in);
+		filled.clear();
+		free.clear();
+	}
+
+	private void onComplete() {
+		long b;
+		long rt;
+		long st;
+
+		synchronized (this) {
+			b = bytes;
+			rt = readTime;
+			st = stallTime;
+		}
+
+		activeTransfers.decrementAndGet();
+		totalBytes.addAndGet(b);
+		totalReadTime.addAndGet(rt);
+		totalStallTime.addAndGet(st);
+
+		if (Log.isLoggableD()) {
+			long time = System.nanoTime() - startTime;
+			Log.d("Transferred ", b, " bytes to ", channel, " in ", time / 1000000L,
+					" ms, read throughput: ", (rt == 0) ? 0 : b * 1000000000L / rt,
+					" bytes/s, stall time: ", st / 1000000L, " ms");
+		}
+	}
+
+	private static ThreadPool getExecutor() {
+		ThreadPool e = executor;
+
+		if (e == null) {
+			synchronized (ReadAheadTransfer.class) {
+				if ((e = executor) == null) {
+					executor = e = new ThreadPool(4, 4, 30L, SECONDS);
+				}
+			}
+		}
+
+		return e;
+	}
+
+	private final class TransferPromise extends Promise<Void> {
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning)) return false;
+			onComplete();
+
+			synchronized (ReadAheadTransfer.this) {
+				if (!reading) close();
+			}
+
+			return true;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return getStats();
+		}
+	}
+}
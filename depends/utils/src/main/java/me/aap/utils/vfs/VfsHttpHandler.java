@@ -1,18 +1,36 @@
 package me.aap.utils.vfs;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.net.http.HttpHeader.ACCEPT_RANGES;
+import static me.aap.utils.net.http.HttpHeader.CACHE_CONTROL;
 import static me.aap.utils.net.http.HttpHeader.CONNECTION;
 import static me.aap.utils.net.http.HttpHeader.CONTENT_LENGTH;
 import static me.aap.utils.net.http.HttpHeader.CONTENT_RANGE;
+import static me.aap.utils.net.http.HttpHeader.CONTENT_TYPE;
+import static me.aap.utils.net.http.HttpHeader.ETAG;
+import static me.aap.utils.net.http.HttpHeader.LAST_MODIFIED;
 import static me.aap.utils.net.http.HttpResponseBuilder.supplier;
 import static me.aap.utils.net.http.HttpVersion.HTTP_1_1;
 
+import androidx.annotation.Nullable;
+
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
 
+import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.holder.IntHolder;
+import me.aap.utils.io.IoUtils;
+import me.aap.utils.io.RandomAccessChannel;
 import me.aap.utils.log.Log;
+import me.aap.utils.net.ByteBufferArraySupplier;
 import me.aap.utils.net.NetChannel;
 import me.aap.utils.net.http.HttpError;
 import me.aap.utils.net.http.HttpError.Forbidden;
@@ -29,15 +47,27 @@ import me.aap.utils.resource.Rid;
 import me.aap.utils.vfs.local.LocalFileSystem;
 
 /**
+ * Serves virtual files over HTTP. Single and multiple byte ranges are supported, the requested
+ * ranges are coalesced and multiple ranges are sent as a multipart/byteranges response.
+ * The responses contain an ETag, derived from the file length and modification time, that
+ * is used to answer conditional (If-None-Match) and If-Range requests.
+ *
  * @author Andrey Pavlenko
  */
 public class VfsHttpHandler implements HttpRequestHandler {
 	public static final String HTTP_PATH = "/vfs";
 	public static final String HTTP_QUERY = "resource=";
 	private final VfsManager mgr;
+	@Nullable
+	private final BlockCache blockCache;
 
 	public VfsHttpHandler(VfsManager mgr) {
+		this(mgr, null);
+	}
+
+	public VfsHttpHandler(VfsManager mgr, @Nullable BlockCache blockCache) {
 		this.mgr = mgr;
+		this.blockCache = blockCache;
 	}
 
 	@Override
@@ -49,7 +79,9 @@ public class VfsHttpHandler implements HttpRequestHandler {
 			return NotFound.instance.write(channel);
 		}
 
-		Range range = req.getRange();
+		List<Range> ranges = req.getRanges();
+		CharSequence ifNoneMatch = toString(req.getIfNoneMatch());
+		CharSequence ifRange = toString(req.getIfRange());
 		HttpMethod method = req.getMethod();
 		HttpVersion version = req.getVersion();
 		boolean close = req.isConnectionClose();
@@ -66,19 +98,34 @@ public class VfsHttpHandler implements HttpRequestHandler {
 			}
 
 			VirtualFile file = (VirtualFile) result;
+			FutureSupplier<Long> lastModified = file.getLastModified().ifFail(err -> 0L);
+
+			file.getInfo().and(lastModified).onCompletion((h, err) -> {
+				VirtualFile.Info info = (err == null) ? h.value1 : null;
 
-			file.getInfo().onCompletion((info, err) -> {
-				if ((err != null) || (info == null)) {
+				if (info == null) {
 					ServiceUnavailable.instance.write(channel);
 					return;
 				}
 
 				long len = info.getLength();
+				long mtime = (h.value2 == null) ? 0 : h.value2;
+				String etag = getEtag(info, mtime);
+
+				if ((etag != null) && (ifNoneMatch != null) && matches(ifNoneMatch, etag)) {
+					reply(channel, channel.write(supplier(b -> buildNotModified(b, version, etag, close))),
+							close);
+					return;
+				}
+
+				List<Range> rl = null;
 
-				if ((len >= 0) && (range != null)) {
-					range.align(len);
+				// If the validator doesn't match or the Range header is invalid, the whole file is sent
+				if ((len >= 0) && (ranges != null) && !ranges.isEmpty() &&
+						((ifRange == null) || ifRange.equals(etag))) {
+					rl = Range.coalesce(ranges, len);
 
-					if (!range.isSatisfiable(len)) {
+					if (rl.isEmpty()) {
 						HttpError.RangeNotSatisfiable.instance.write(channel);
 						return;
 					}
@@ -86,32 +133,85 @@ public class VfsHttpHandler implements HttpRequestHandler {
 
 				FutureSupplier<Void> reply;
 
-				if (method == HttpMethod.HEAD) {
-					reply = channel.write(supplier(b -> buildResponse(b, version, info, range, close)));
-				} else if (range != null) {
-					long start = range.getStart();
-					reply = getFileForTransfer(file, info).transferTo(channel, start,
-							range.getEnd() - start + 1,
-							supplier(b -> buildResponse(b, version, info, range, close)));
+				if ((rl != null) && (rl.size() > 1)) {
+					Multipart mp = new Multipart(rl, len);
+					ByteBufferArraySupplier hdr =
+							supplier(b -> buildResponse(b, version, info, mp, close, etag, mtime));
+					reply = (method == HttpMethod.HEAD) ? channel.write(hdr)
+							: transfer(file, info, mtime, channel, mp, hdr);
 				} else {
-					reply = getFileForTransfer(file, info).transferTo(channel, 0, len,
-							supplier(b -> buildResponse(b, version, info, null, close)));
-				}
+					Range range = (rl != null) ? rl.get(0) : null;
+					ByteBufferArraySupplier hdr =
+							supplier(b -> buildResponse(b, version, info, range, close, etag, mtime));
 
-				reply.onCompletion((r, f) -> {
-					if (f != null) {
-						Log.d(f, "Failed to send HTTP response - closing channel ", channel);
-						channel.close();
-					} else if (close) {
-						channel.close();
+					if (method == HttpMethod.HEAD) {
+						reply = channel.write(hdr);
+					} else if (range != null) {
+						reply = transfer(file, info, mtime, channel, range.getStart(), range.getLength(),
+								hdr);
+					} else {
+						reply = transfer(file, info, mtime, channel, 0, len, hdr);
 					}
-				});
+				}
+
+				reply(channel, reply, close);
 			});
 		});
 
 		return completedVoid();
 	}
 
+	private static void reply(NetChannel channel, FutureSupplier<Void> reply, boolean close) {
+		reply.onCompletion((r, f) -> {
+			if (f != null) {
+				Log.d(f, "Failed to send HTTP response - closing channel ", channel);
+				channel.close();
+			} else if (close) {
+				channel.close();
+			}
+		});
+	}
+
+	/**
+	 * @param lastModified the last modification time of the file or 0, if unknown.
+	 */
+	protected FutureSupplier<Void> transfer(VirtualFile file, VirtualFile.Info info,
+																					long lastModified, NetChannel channel, long off,
+																					long len, ByteBufferArraySupplier header) {
+		BlockCache cache = blockCache;
+		if ((cache != null) && cache.isCacheable(file, info)) {
+			return cache.transfer(file, info.getLength(), lastModified, channel, off, len, header);
+		}
+		return getFileForTransfer(file, info).transferTo(channel, off, len, header);
+	}
+
+	/**
+	 * Sends the multipart/byteranges payload. If the file has a random access channel, e.g. a
+	 * local file or a content provider file, backed by a file descriptor, the channel is opened
+	 * once and all the parts are sent from it with {@link NetChannel#send}.
+	 */
+	protected FutureSupplier<Void> transfer(VirtualFile file, VirtualFile.Info info,
+																					long lastModified, NetChannel channel, Multipart mp,
+																					ByteBufferArraySupplier header) {
+		BlockCache cache = blockCache;
+		RandomAccessChannel rac = ((cache != null) && cache.isCacheable(file, info)) ? null
+				: getFileForTransfer(file, info).getChannel();
+		List<Range> ranges = mp.ranges;
+		int n = ranges.size();
+		IntHolder part = new IntHolder();
+
+		return Async.iterate(() -> {
+			int i = part.value++;
+			if (i > n) return null;
+			ByteBufferArraySupplier hdr = mp.header(i);
+			if (i == 0) hdr = ByteBufferArraySupplier.wrap(header, hdr);
+			if (i == n) return channel.write(hdr);
+			Range r = ranges.get(i);
+			return (rac != null) ? channel.send(rac, r.getStart(), r.getLength(), hdr)
+					: transfer(file, info, lastModified, channel, r.getStart(), r.getLength(), hdr);
+		}).onCompletion((r, err) -> IoUtils.close(rac));
+	}
+
 	protected VirtualFile getFileForTransfer(VirtualFile f, VirtualFile.Info i) {
 		File local = i.getLocalFile();
 		return (local != null) ? LocalFileSystem.getInstance().getFile(local) : f;
@@ -125,8 +225,20 @@ public class VfsHttpHandler implements HttpRequestHandler {
 		return Rid.create(Rid.decode(q.subSequence(HTTP_QUERY.length(), q.length())));
 	}
 
+	/**
+	 * @return a strong ETag, derived from the file length and the last modification time, or
+	 * null if any of them is unknown.
+	 */
+	@Nullable
+	protected String getEtag(VirtualFile.Info info, long lastModified) {
+		long len = info.getLength();
+		if ((len < 0) || (lastModified <= 0)) return null;
+		return "\"" + Long.toHexString(len) + '-' + Long.toHexString(lastModified) + '"';
+	}
+
 	protected ByteBuffer[] buildResponse(HttpResponseBuilder b, HttpVersion version,
-																			 VirtualFile.Info info, Range range, boolean close) {
+																			 VirtualFile.Info info, Range range, boolean close,
+																			 @Nullable String etag, long lastModified) {
 		long len = info.getLength();
 
 		if (len < 0) {
@@ -147,11 +259,70 @@ public class VfsHttpHandler implements HttpRequestHandler {
 
 		b.addHeader(ACCEPT_RANGES);
 		b.addHeader(CONTENT_LENGTH, contentLen);
+		addCacheHeaders(b, etag, lastModified);
+		if (close) b.addHeader(CONNECTION);
+		else if (version != HTTP_1_1) b.addHeader(CONNECTION, "Keep-Alive");
+		return build(b, info);
+	}
+
+	protected ByteBuffer[] buildResponse(HttpResponseBuilder b, HttpVersion version,
+																			 VirtualFile.Info info, Multipart mp, boolean close,
+																			 @Nullable String etag, long lastModified) {
+		b.setStatusPartial(version);
+		b.addHeader(ACCEPT_RANGES);
+		b.addHeader(CONTENT_TYPE, "multipart/byteranges; boundary=" + mp.boundary);
+		b.addHeader(CONTENT_LENGTH, mp.getContentLength());
+		addCacheHeaders(b, etag, lastModified);
 		if (close) b.addHeader(CONNECTION);
 		else if (version != HTTP_1_1) b.addHeader(CONNECTION, "Keep-Alive");
 		return build(b, info);
 	}
 
+	protected ByteBuffer[] buildNotModified(HttpResponseBuilder b, HttpVersion version,
+																					String etag, boolean close) {
+		b.setStatus(version, "304 Not Modified");
+		b.addHeader(ETAG, etag);
+		b.addHeader(CACHE_CONTROL);
+		if (close) b.addHeader(CONNECTION);
+		else if (version != HTTP_1_1) b.addHeader(CONNECTION, "Keep-Alive");
+		return b.build();
+	}
+
+	/**
+	 * The responses may be cached, but must be revalidated, what is cheap with the ETag.
+	 */
+	private static void addCacheHeaders(HttpResponseBuilder b, @Nullable String etag,
+																			long lastModified) {
+		if (etag == null) return;
+		b.addHeader(ETAG, etag);
+		b.addHeader(CACHE_CONTROL);
+		if (lastModified > 0) b.addHeader(LAST_MODIFIED, formatDate(lastModified));
+	}
+
+	private static String formatDate(long time) {
+		SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return f.format(new Date(time));
+	}
+
+	private static boolean matches(CharSequence ifNoneMatch, String etag) {
+		String v = ifNoneMatch.toString();
+		if (v.trim().equals("*")) return true;
+
+		for (String t : v.split(",")) {
+			t = t.trim();
+			if (t.startsWith("W/")) t = t.substring(2);
+			if (t.equals(etag)) return true;
+		}
+
+		return false;
+	}
+
+	@Nullable
+	private static String toString(@Nullable CharSequence s) {
+		return (s == null) ? null : s.toString();
+	}
+
 	private ByteBuffer[] build(HttpResponseBuilder b, VirtualFile.Info info) {
 		String enc = info.getContentEncoding();
 		if (enc == null) return b.build();
@@ -160,4 +331,44 @@ public class VfsHttpHandler implements HttpRequestHandler {
 		else b.addHeader(HttpHeader.CONTENT_ENCODING, enc);
 		return b.build();
 	}
+
+	/**
+	 * The multipart/byteranges payload layout.
+	 */
+	protected static final class Multipart {
+		final List<Range> ranges;
+		final String boundary;
+		private final byte[][] headers;
+
+		Multipart(List<Range> ranges, long len) {
+			this.ranges = ranges;
+			boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+			int n = ranges.size();
+			headers = new byte[n + 1][];
+
+			for (int i = 0; i < n; i++) {
+				Range r = ranges.get(i);
+				headers[i] = ("\r\n--" + boundary + "\r\nContent-Range: bytes " + r.getStart() + '-' +
+						r.getEnd() + '/' + len + "\r\n\r\n").getBytes(US_ASCII);
+			}
+
+			headers[n] = ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+		}
+
+		long getContentLength() {
+			long len = 0;
+			for (byte[] h : headers) len += h.length;
+			for (Range r : ranges) len += r.getLength();
+			return len;
+		}
+
+		/**
+		 * @return the header of the specified part or the closing delimiter, if the index is
+		 * equal to the number of parts.
+		 */
+		ByteBufferArraySupplier header(int i) {
+			byte[] h = headers[i];
+			return () -> new ByteBuffer[]{ByteBuffer.wrap(h)};
+		}
+	}
 }
@@ -19,6 +19,7 @@ import me.aap.utils.async.FutureRef;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.collection.CollectionUtils;
 import me.aap.utils.collection.LruMap;
+import me.aap.utils.io.IoUtils;
 import me.aap.utils.log.Log;
 import me.aap.utils.net.NetHandler;
 import me.aap.utils.net.NetServer;
@@ -202,15 +203,25 @@ public class VfsManager {
 		return App.get().execute(() -> {
 			NetHandler handler = NetApp.get().getNetHandler();
 			HttpConnectionHandler httpHandler = new HttpConnectionHandler();
-			VfsHttpHandler vfsHandler = new VfsHttpHandler(this);
+			BlockCache blockCache = getBlockCache();
+			VfsHttpHandler vfsHandler = new VfsHttpHandler(this, blockCache);
 			httpHandler.addHandler(HTTP_PATH, (path, method, version) -> vfsHandler);
 			return handler.bind(o -> {
 				o.host = "localhost";
 				o.handler = httpHandler;
-			});
+			}).onFailure(err -> IoUtils.close(blockCache));
 		}).then(bind -> bind);
 	}
 
+	/**
+	 * Returns the cache of remote file blocks, used by the HTTP server, or null if the blocks
+	 * must not be cached. The cache lives as long as the server.
+	 */
+	@Nullable
+	protected BlockCache getBlockCache() {
+		return null;
+	}
+
 	private boolean useCache() {
 		return cache != Collections.EMPTY_MAP;
 	}
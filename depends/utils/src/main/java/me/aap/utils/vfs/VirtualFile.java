@@ -97,7 +97,12 @@ public interface VirtualFile extends VirtualResource {
 	default FutureSupplier<Void> transferTo(NetChannel channel, long off, long len,
 																					@Nullable ByteBufferArraySupplier header) {
 		RandomAccessChannel rac = getChannel();
-		if (rac != null) return channel.send(rac, off, len, header);
+		if (rac != null) {
+			return channel.send(rac, off, len, header).onCompletion((r, err) -> IoUtils.close(rac));
+		}
+
+		int buffers = getVirtualFileSystem().getReadAheadBuffers();
+		if (buffers > 0) return ReadAheadTransfer.transfer(this, channel, off, len, header, buffers);
 
 		AsyncInputStream vis = null;
 
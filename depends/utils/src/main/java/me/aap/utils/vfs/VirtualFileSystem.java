@@ -35,6 +35,29 @@ public interface VirtualFileSystem {
 		return completedEmptyList();
 	}
 
+	/**
+	 * Returns the recommended maximum number of files, that could be read concurrently,
+	 * e.g. when extracting media metadata.
+	 */
+	default int getMaxConcurrentReads() {
+		return 4;
+	}
+
+	/**
+	 * Returns the number of buffers, used for the read-ahead, when a file is transferred to a
+	 * network channel or 0 if the files must be transferred sequentially.
+	 */
+	default int getReadAheadBuffers() {
+		return 0;
+	}
+
+	/**
+	 * Returns true if the resources of this file system are accessed over the network.
+	 */
+	default boolean isRemote() {
+		return false;
+	}
+
 	default boolean isSupportedResource(Rid rid) {
 		return getProvider().getSupportedSchemes().contains(rid.getScheme());
 	}
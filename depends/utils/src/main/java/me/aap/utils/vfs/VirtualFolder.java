@@ -19,6 +19,14 @@ public interface VirtualFolder extends VirtualResource {
 
 	FutureSupplier<List<VirtualResource>> getChildren();
 
+	/**
+	 * Returns the up-to-date children, if the list returned by {@link #getChildren()} was served
+	 * from a cache and the folder has changed since, or null otherwise.
+	 */
+	default FutureSupplier<List<VirtualResource>> getUpdatedChildren() {
+		return completedNull();
+	}
+
 	default Filter filterChildren() {
 		return new BasicFilter(this);
 	}
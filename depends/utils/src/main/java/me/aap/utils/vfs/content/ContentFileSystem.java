@@ -43,6 +43,11 @@ public class ContentFileSystem implements VirtualFileSystem {
 		uriToPathMap = preferFiles ? App.get().getSharedPreferences("uri_to_path", MODE_PRIVATE) : null;
 	}
 
+	@Override
+	public int getMaxConcurrentReads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
 	@NonNull
 	@Override
 	public Provider getProvider() {
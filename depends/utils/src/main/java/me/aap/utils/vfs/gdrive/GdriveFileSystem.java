@@ -181,6 +181,16 @@ public class GdriveFileSystem implements VirtualFileSystem {
 		return provider;
 	}
 
+	@Override
+	public int getReadAheadBuffers() {
+		return 3;
+	}
+
+	@Override
+	public boolean isRemote() {
+		return true;
+	}
+
 	String getEmail() {
 		return email;
 	}
@@ -55,6 +55,11 @@ public class LocalFileSystem implements VirtualFileSystem {
 		return instance;
 	}
 
+	@Override
+	public int getMaxConcurrentReads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
 	@NonNull
 	@Override
 	public Provider getProvider() {
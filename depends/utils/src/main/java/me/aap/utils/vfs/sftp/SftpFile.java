@@ -35,6 +35,11 @@ class SftpFile extends SftpResource implements VirtualFile {
 		super(root, path, parent);
 	}
 
+	SftpFile(@NonNull SftpRoot root, @NonNull String path, VirtualFolder parent, long length) {
+		super(root, path, parent);
+		this.length = completed(length);
+	}
+
 	@Override
 	public FutureSupplier<Long> getLength() {
 		if (length != null) return length;
@@ -3,6 +3,7 @@ package me.aap.utils.vfs.sftp;
 import androidx.annotation.NonNull;
 
 import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.SftpATTRS;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,6 +13,9 @@ import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.log.Log;
 import me.aap.utils.text.SharedTextBuilder;
+import me.aap.utils.vfs.CachedListing;
+import me.aap.utils.vfs.ListingCache.Entry;
+import me.aap.utils.vfs.ListingCache.Listing;
 import me.aap.utils.vfs.VirtualFolder;
 import me.aap.utils.vfs.VirtualResource;
 
@@ -19,6 +23,17 @@ import me.aap.utils.vfs.VirtualResource;
  * @author Andrey Pavlenko
  */
 class SftpFolder extends SftpResource implements VirtualFolder {
+	private final CachedListing listing = new CachedListing(this) {
+		@Override
+		protected FutureSupplier<Listing> loadListing() {
+			return SftpFolder.this.loadListing();
+		}
+
+		@Override
+		protected VirtualResource createChild(Entry e) {
+			return SftpFolder.this.createChild(e);
+		}
+	};
 
 	SftpFolder(@NonNull SftpRoot root, @NonNull String path) {
 		super(root, path);
@@ -30,31 +45,49 @@ class SftpFolder extends SftpResource implements VirtualFolder {
 
 	@Override
 	public FutureSupplier<List<VirtualResource>> getChildren() {
-		SftpRoot root = getRoot();
-		return root.useChannel(ch -> {
+		return listing.getChildren();
+	}
+
+	@Override
+	public FutureSupplier<List<VirtualResource>> getUpdatedChildren() {
+		return listing.getUpdatedChildren();
+	}
+
+	private FutureSupplier<Listing> loadListing() {
+		return getRoot().useChannel(ch -> {
 			@SuppressWarnings("unchecked") List<LsEntry> ls = ch.ls(getPath());
-			if (ls.isEmpty()) return Collections.emptyList();
+			if (ls.isEmpty()) return new Listing(0, Collections.emptyList());
 
-			List<VirtualResource> children = new ArrayList<>(ls.size());
+			List<Entry> entries = new ArrayList<>(ls.size());
+			long lastModified = 0;
 
-			try (SharedTextBuilder tb = SharedTextBuilder.get()) {
-				tb.append(getPath()).append('/');
-				int len = tb.length();
+			for (LsEntry e : ls) {
+				String name = e.getFilename();
+				SftpATTRS a = e.getAttrs();
 
-				for (LsEntry e : ls) {
-					String name = e.getFilename();
-					if (name.equals(".") || name.equals("..")) continue;
-					tb.setLength(len);
-					String p = tb.append(name).toString();
-					if (e.getAttrs().isDir()) children.add(new SftpFolder(root, p, this));
-					else children.add(new SftpFile(root, p, this));
+				if (name.equals(".")) {
+					lastModified = a.getMTime() * 1000L;
+					continue;
+				} else if (name.equals("..")) {
+					continue;
 				}
+
+				entries.add(new Entry(name, a.isDir(), a.getSize(), a.getMTime() * 1000L));
 			}
 
-			return children;
+			return new Listing(lastModified, entries);
 		});
 	}
 
+	private VirtualResource createChild(Entry e) {
+		SftpRoot root = getRoot();
+
+		try (SharedTextBuilder tb = SharedTextBuilder.get()) {
+			String p = tb.append(getPath()).append('/').append(e.getName()).toString();
+			return e.isFolder() ? new SftpFolder(root, p, this) : new SftpFile(root, p, this, e.getLength());
+		}
+	}
+
 	@Override
 	public boolean canDelete() {
 		return true;
@@ -67,6 +100,7 @@ class SftpFolder extends SftpResource implements VirtualFolder {
 				getRoot().useChannel(ch -> {
 					try {
 						ch.rmdir(getPath());
+						listing.invalidate();
 						return true;
 					} catch (Exception ex) {
 						Log.e(ex, "Failed to delete directory ", getPath());
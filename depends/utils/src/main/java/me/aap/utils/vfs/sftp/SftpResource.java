@@ -29,7 +29,7 @@ class SftpResource extends NetResourceBase<SftpRoot> {
 
 	@Override
 	protected FutureSupplier<Long> loadLastModified() {
-		return lstat().map(s -> s.getATime() * 1000L);
+		return lstat().map(s -> s.getMTime() * 1000L);
 	}
 
 	FutureSupplier<SftpATTRS> lstat() {
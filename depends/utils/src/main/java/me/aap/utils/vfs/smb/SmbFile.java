@@ -39,6 +39,11 @@ class SmbFile extends SmbResource implements VirtualFile {
 		super(root, path, parent);
 	}
 
+	SmbFile(@NonNull SmbRoot root, @NonNull String path, VirtualFolder parent, long length) {
+		super(root, path, parent);
+		this.length = completed(length);
+	}
+
 	@Override
 	public FutureSupplier<Long> getLength() {
 		if (length != null) return length;
@@ -13,6 +13,9 @@ import java.util.List;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.log.Log;
 import me.aap.utils.text.SharedTextBuilder;
+import me.aap.utils.vfs.CachedListing;
+import me.aap.utils.vfs.ListingCache.Entry;
+import me.aap.utils.vfs.ListingCache.Listing;
 import me.aap.utils.vfs.VirtualFolder;
 import me.aap.utils.vfs.VirtualResource;
 
@@ -20,6 +23,17 @@ import me.aap.utils.vfs.VirtualResource;
  * @author Andrey Pavlenko
  */
 class SmbFolder extends SmbResource implements VirtualFolder {
+	private final CachedListing listing = new CachedListing(this) {
+		@Override
+		protected FutureSupplier<Listing> loadListing() {
+			return SmbFolder.this.loadListing();
+		}
+
+		@Override
+		protected VirtualResource createChild(Entry e) {
+			return SmbFolder.this.createChild(e);
+		}
+	};
 
 	SmbFolder(@NonNull SmbRoot root, @NonNull String path) {
 		super(root, path);
@@ -31,34 +45,47 @@ class SmbFolder extends SmbResource implements VirtualFolder {
 
 	@Override
 	public FutureSupplier<List<VirtualResource>> getChildren() {
-		SmbRoot root = getRoot();
-		return root.useShare(s -> {
-			List<FileIdBothDirectoryInformation> info = s.list(smbPath());
-			List<VirtualResource> ls = new ArrayList<>(info.size());
+		return listing.getChildren();
+	}
 
-			try (SharedTextBuilder tb = SharedTextBuilder.get()) {
-				tb.append(getPath()).append('/');
-				int len = tb.length();
+	@Override
+	public FutureSupplier<List<VirtualResource>> getUpdatedChildren() {
+		return listing.getUpdatedChildren();
+	}
 
-				for (FileIdBothDirectoryInformation i : info) {
-					String name = i.getFileName();
-					if (name.equals(".") || name.equals("..")) continue;
+	private FutureSupplier<Listing> loadListing() {
+		return getRoot().useShare(s -> {
+			List<FileIdBothDirectoryInformation> info = s.list(smbPath());
+			List<Entry> entries = new ArrayList<>(info.size());
+			long lastModified = 0;
 
-					tb.setLength(len);
-					String p = tb.append(name).toString();
+			for (FileIdBothDirectoryInformation i : info) {
+				String name = i.getFileName();
 
-					if (EnumWithValue.EnumUtils.isSet(i.getFileAttributes(), FILE_ATTRIBUTE_DIRECTORY)) {
-						ls.add(new SmbFolder(root, p, this));
-					} else {
-						ls.add(new SmbFile(root, p, this));
-					}
+				if (name.equals(".")) {
+					lastModified = i.getChangeTime().toEpochMillis();
+					continue;
+				} else if (name.equals("..")) {
+					continue;
 				}
+
+				boolean dir = EnumWithValue.EnumUtils.isSet(i.getFileAttributes(), FILE_ATTRIBUTE_DIRECTORY);
+				entries.add(new Entry(name, dir, i.getEndOfFile(), i.getChangeTime().toEpochMillis()));
 			}
 
-			return ls;
+			return new Listing(lastModified, entries);
 		});
 	}
 
+	private VirtualResource createChild(Entry e) {
+		SmbRoot root = getRoot();
+
+		try (SharedTextBuilder tb = SharedTextBuilder.get()) {
+			String p = tb.append(getPath()).append('/').append(e.getName()).toString();
+			return e.isFolder() ? new SmbFolder(root, p, this) : new SmbFile(root, p, this, e.getLength());
+		}
+	}
+
 	@Override
 	public boolean canDelete() {
 		return true;
@@ -70,6 +97,7 @@ class SmbFolder extends SmbResource implements VirtualFolder {
 		return getRoot().useShare(s -> {
 			try {
 				s.rmdir(getPath(), true);
+				listing.invalidate();
 				return true;
 			} catch (Exception ex) {
 				Log.e(ex, "Failed to delete folder ", getPath());
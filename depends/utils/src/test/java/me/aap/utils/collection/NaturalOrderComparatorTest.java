@@ -40,4 +40,19 @@ public class NaturalOrderComparatorTest extends Assertions {
 		assertTrue(NaturalOrderComparator.compareNatural("a11", "a2BBb", true) > 0);
 		assertTrue(NaturalOrderComparator.compareNatural("A011", "A0002BbB", true) > 0);
 	}
+
+	@Test
+	public void testCollationKey() {
+		String[] s = {"", "a", "A", "a0", "A00", "a00a", "A0B", "A011A", "a01b", "z", "A1B", "a2", "a11", "a2BBb", "\u00e9", "\u00c9b"};
+		for (String a : s) {
+			for (String b : s) {
+				int expected = Integer.signum(NaturalOrderComparator.compareNatural(a, b, true));
+				int actual = Integer.signum(NaturalOrderComparator.compareNatural(
+						NaturalOrderComparator.collationKey(a), NaturalOrderComparator.collationKey(b)));
+				assertEquals(expected, actual, a + " <> " + b);
+			}
+		}
+		String upper = "ABC1";
+		assertSame(upper, NaturalOrderComparator.collationKey(upper));
+	}
 }
@@ -0,0 +1,70 @@
+package me.aap.utils.collection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class WeakValueCacheTest extends Assertions {
+
+	@Test
+	public void testGetPut() {
+		WeakValueCache<String, Object> c = new WeakValueCache<>();
+		Object v1 = new Object();
+		Object v2 = new Object();
+
+		assertNull(c.get("a"));
+		c.put("a", v1);
+		assertSame(v1, c.get("a"));
+		assertSame(v1, c.putIfAbsent("a", v2));
+		assertFalse(c.remove("a", v2));
+		assertTrue(c.remove("a", v1));
+		assertNull(c.putIfAbsent("a", v2));
+		assertSame(v2, c.get("a"));
+		assertEquals(2, c.getHitCount());
+		assertEquals(1, c.getMissCount());
+	}
+
+	@Test
+	public void testStrongTier() throws InterruptedException {
+		WeakValueCache<Integer, Object> c = new WeakValueCache<>(4);
+		for (int i = 0; i < 8; i++) c.put(i, new Object());
+
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		for (int i = 4; i < 8; i++) assertNotNull(c.get(i));
+	}
+
+	@Test
+	public void testStrongCapacityOne() throws InterruptedException {
+		WeakValueCache<Integer, Object> c = new WeakValueCache<>(1);
+		c.put(0, new Object());
+		assertNotNull(c.get(0));
+		c.put(1, new Object());
+		gc();
+		assertNotNull(c.get(1));
+	}
+
+	@Test
+	public void testRepeatedHits() throws InterruptedException {
+		WeakValueCache<Integer, Object> c = new WeakValueCache<>(2);
+		c.put(0, new Object());
+		c.put(1, new Object());
+		// The repeated hits must not push the other value out of the strong tier
+		for (int i = 0; i < 3; i++) assertNotNull(c.get(0));
+		gc();
+		assertNotNull(c.get(0));
+		assertNotNull(c.get(1));
+	}
+
+	private static void gc() throws InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+	}
+}
@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -55,6 +57,31 @@ public class NetHandlerTest extends Assertions {
 
 	@RepeatedTest(10)
 	public void test() throws Exception {
+		transfer(handler);
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {1, 3})
+	public void testSelectors(int selectors) throws Exception {
+		NetHandler handler = NetHandler.create(o -> {
+			o.executor = exec;
+			o.selectors = selectors;
+		});
+
+		try {
+			transfer(handler);
+			assertTrue(handler.isOpen());
+		} finally {
+			handler.close();
+		}
+
+		assertFalse(handler.isOpen());
+		// Closing twice is a no-op
+		handler.close();
+		assertFalse(handler.isOpen());
+	}
+
+	private static void transfer(NetHandler handler) throws Exception {
 		int nclients = 100;
 		AtomicBoolean failed = new AtomicBoolean();
 
@@ -142,4 +169,44 @@ public class NetHandlerTest extends Assertions {
 			assertTrue(ex.getCause() instanceof TimeoutException);
 		}
 	}
+
+	@Test
+	public void testSslResumption() throws Exception {
+		int nconn = 20;
+		byte[] msg = new byte[1024];
+		NetServer server = handler.bind(o -> {
+			o.ssl = true;
+			o.handler = ch -> ch.write(ByteBuffer.wrap(msg)).thenRun(ch::close);
+		}).get();
+		SocketAddress addr = server.getBindAddress();
+		long hs = SslChannel.getHandshakeCount();
+		long res = SslChannel.getResumedHandshakeCount();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < nconn; i++) {
+			NetChannel ch = handler.connect(o -> {
+				o.address = addr;
+				o.ssl = true;
+			}).get(10, TimeUnit.SECONDS);
+			int[] len = new int[1];
+
+			ch.read().thenIterate(b -> {
+				ByteBuffer bb = b.get();
+				if (!bb.hasRemaining()) return null;
+				len[0] += bb.remaining();
+				return ch.read();
+			}).get(10, TimeUnit.SECONDS);
+
+			ch.close();
+			assertEquals(msg.length, len[0]);
+		}
+
+		long time = (System.nanoTime() - start) / 1000000L;
+		server.close();
+		Log.i(nconn, " TLS connections in ", time, " ms: ", SslChannel.getHandshakeStats());
+
+		// Both client and server handshakes are counted
+		assertEquals(2L * nconn, SslChannel.getHandshakeCount() - hs);
+		assertTrue(SslChannel.getResumedHandshakeCount() - res >= nconn - 1);
+	}
 }
@@ -0,0 +1,170 @@
+package me.aap.utils.net.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static me.aap.utils.async.Completed.completedVoid;
+import static me.aap.utils.async.Completed.failed;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.concurrent.NetThreadPool;
+import me.aap.utils.io.MemOutputStream;
+import me.aap.utils.misc.TestUtils;
+import me.aap.utils.net.NetHandler;
+import me.aap.utils.net.NetServer;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class HttpConnectionPoolTest extends Assertions {
+	private static ExecutorService exec;
+	private static NetHandler handler;
+	private static NetServer server;
+	private static String url;
+	private static volatile Promise<Void> gate;
+
+	@BeforeAll
+	public static void setUpClass() throws Exception {
+		TestUtils.enableTestMode();
+		exec = new NetThreadPool(2);
+		handler = NetHandler.create(o -> o.executor = exec);
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/ok", (p, m, v) -> req -> reply(req));
+		// Replies, when the gate is open
+		http.addHandler("/slow", (p, m, v) -> req -> gate.then(r -> reply(req)));
+		server = handler.bind(o -> o.handler = http).get();
+		url = "http://127.0.0.1:" + ((InetSocketAddress) server.getBindAddress()).getPort();
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		server.close();
+		handler.close();
+		exec.shutdown();
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		HttpConnectionPool pool = new HttpConnectionPool(2, 1, 30000);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals("ok", get(pool, "/ok", 0, false).get(10, TimeUnit.SECONDS));
+			awaitIdle(pool);
+		}
+
+		assertEquals(1, pool.getCreateCount());
+		assertEquals(2, pool.getReuseCount());
+		assertEquals(1, pool.getConnectionCount());
+		assertEquals(1, pool.getIdleConnectionCount());
+		pool.closeIdle();
+		assertEquals(0, pool.getConnectionCount());
+	}
+
+	@Test
+	public void testWaitersServedInOrder() throws Exception {
+		HttpConnectionPool pool = new HttpConnectionPool(1, 1, 30000);
+		gate = new Promise<>();
+		FutureSupplier<String> slow = get(pool, "/slow", 0, false);
+		FutureSupplier<String> w1 = get(pool, "/ok", 0, false);
+		FutureSupplier<String> w2 = get(pool, "/ok", 0, false);
+		assertEquals(2, pool.getWaitingCount());
+		assertFalse(w1.isDone());
+
+		gate.complete(null);
+		assertEquals("ok", slow.get(10, TimeUnit.SECONDS));
+		assertEquals("ok", w1.get(10, TimeUnit.SECONDS));
+		assertEquals("ok", w2.get(10, TimeUnit.SECONDS));
+		assertEquals(1, pool.getCreateCount());
+		assertEquals(2, pool.getWaitCount());
+		assertEquals(0, pool.getWaitingCount());
+		pool.closeIdle();
+	}
+
+	@Test
+	public void testWaitTimeout() throws Exception {
+		HttpConnectionPool pool = new HttpConnectionPool(1, 1, 30000);
+		gate = new Promise<>();
+		FutureSupplier<String> slow = get(pool, "/slow", 0, false);
+		FutureSupplier<String> w = get(pool, "/ok", 1, false);
+		assertEquals(1, pool.getWaitingCount());
+
+		ExecutionException ex = assertThrows(ExecutionException.class, () -> w.get(10, TimeUnit.SECONDS));
+		assertInstanceOf(TimeoutException.class, ex.getCause());
+		assertEquals(0, pool.getWaitingCount());
+		assertFalse(slow.isDone());
+
+		// The connection is still usable
+		gate.complete(null);
+		assertEquals("ok", slow.get(10, TimeUnit.SECONDS));
+		assertEquals("ok", get(pool, "/ok", 1, false).get(10, TimeUnit.SECONDS));
+		assertEquals(1, pool.getCreateCount());
+		pool.closeIdle();
+	}
+
+	@Test
+	public void testDiscardOnFailure() throws Exception {
+		HttpConnectionPool pool = new HttpConnectionPool(1, 1, 30000);
+		assertEquals("ok", get(pool, "/ok", 0, true).get(10, TimeUnit.SECONDS));
+		// The failed connection is not reused
+		assertEquals("ok", get(pool, "/ok", 0, false).get(10, TimeUnit.SECONDS));
+		awaitIdle(pool);
+		assertEquals(2, pool.getCreateCount());
+		assertEquals(0, pool.getReuseCount());
+		assertEquals(1, pool.getConnectionCount());
+		pool.closeIdle();
+	}
+
+	/**
+	 * The connection is released after the response consumer completes, i.e. after the response
+	 * future is completed.
+	 */
+	private static void awaitIdle(HttpConnectionPool pool) throws InterruptedException {
+		for (int i = 0; (i < 1000) && (pool.getIdleConnectionCount() == 0); i++) Thread.sleep(10);
+	}
+
+	/**
+	 * @param fail if true, the response consumer fails after the payload is read.
+	 */
+	private static FutureSupplier<String> get(HttpConnectionPool pool, String path, int timeout,
+																						boolean fail) {
+		Promise<String> p = new Promise<>();
+		HttpConnection.connect(o -> {
+			o.url(url + path);
+			o.handler = handler;
+			o.pool = pool;
+			o.responseTimeout = timeout;
+			o.maxReconnects = 0;
+		}, (resp, err) -> {
+			if (err != null) {
+				p.completeExceptionally(err);
+				return completedVoid();
+			}
+
+			return new MemOutputStream().readFrom(resp.readPayload()).then(out -> {
+				p.complete(new String(out.getBuffer(), 0, out.getCount(), US_ASCII));
+				return fail ? failed(new IOException("Consumer failed")) : completedVoid();
+			});
+		});
+		return p;
+	}
+
+	private static FutureSupplier<?> reply(HttpRequest req) {
+		HttpVersion version = req.getVersion();
+		return req.getChannel().write(HttpResponseBuilder.supplier(b -> {
+			b.setStatusOk(version);
+			return b.build(ByteBuffer.wrap("ok".getBytes(US_ASCII)));
+		}));
+	}
+}
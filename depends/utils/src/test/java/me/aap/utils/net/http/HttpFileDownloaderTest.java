@@ -0,0 +1,331 @@
+package me.aap.utils.net.http;
+
+import static me.aap.utils.net.http.HttpFileDownloader.MIN_SEGMENT_SIZE;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.concurrent.NetThreadPool;
+import me.aap.utils.misc.TestUtils;
+import me.aap.utils.net.NetHandler;
+import me.aap.utils.net.NetServer;
+import me.aap.utils.net.http.HttpFileDownloader.Segment;
+import me.aap.utils.pref.BasicPreferenceStore;
+import me.aap.utils.vfs.VfsHttpHandler;
+import me.aap.utils.vfs.VfsManager;
+import me.aap.utils.vfs.local.LocalFileSystem;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class HttpFileDownloaderTest extends Assertions {
+	private static ExecutorService exec;
+	private static NetHandler handler;
+
+	@BeforeAll
+	public static void setUpClass() throws IOException {
+		TestUtils.enableTestMode();
+		exec = new NetThreadPool(2);
+		handler = NetHandler.create(o -> o.executor = exec);
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		handler.close();
+		exec.shutdown();
+	}
+
+	@Test
+	public void testParseContentRange() {
+		assertArrayEquals(new long[]{0, 1023, 4096},
+				HttpFileDownloader.parseContentRange("bytes 0-1023/4096"));
+		assertArrayEquals(new long[]{5, 9, -1}, HttpFileDownloader.parseContentRange("bytes 5-9/*"));
+		assertArrayEquals(new long[]{1, 1, 2},
+				HttpFileDownloader.parseContentRange(" bytes 1 - 1 / 2 "));
+		assertNull(HttpFileDownloader.parseContentRange(null));
+		assertNull(HttpFileDownloader.parseContentRange(""));
+		assertNull(HttpFileDownloader.parseContentRange("bytes */4096"));
+		assertNull(HttpFileDownloader.parseContentRange("items 0-1/2"));
+		assertNull(HttpFileDownloader.parseContentRange("bytes 9-5/10"));
+		assertNull(HttpFileDownloader.parseContentRange("bytes a-b/c"));
+		assertNull(HttpFileDownloader.parseContentRange("bytes 0-1"));
+	}
+
+	@Test
+	public void testSplit() {
+		// The file is smaller than the first segment
+		List<Segment> list = HttpFileDownloader.split(MIN_SEGMENT_SIZE, 100, 4);
+		assertEquals(1, list.size());
+		assertSegment(list.get(0), 0, 100);
+
+		// Unknown length
+		list = HttpFileDownloader.split(MIN_SEGMENT_SIZE, -1, 4);
+		assertEquals(2, list.size());
+		assertSegment(list.get(0), 0, MIN_SEGMENT_SIZE);
+		assertSegment(list.get(1), MIN_SEGMENT_SIZE, Long.MAX_VALUE);
+
+		// The rest is less than 2 segments
+		long total = MIN_SEGMENT_SIZE + MIN_SEGMENT_SIZE / 2;
+		list = HttpFileDownloader.split(MIN_SEGMENT_SIZE, total, 4);
+		assertEquals(2, list.size());
+		assertSegment(list.get(1), MIN_SEGMENT_SIZE, total);
+
+		// Each segment is at least MIN_SEGMENT_SIZE
+		total = 3 * MIN_SEGMENT_SIZE + 11;
+		checkSplit(HttpFileDownloader.split(MIN_SEGMENT_SIZE, total, 4), total, 3);
+
+		// No more than maxSegments
+		total = 100 * MIN_SEGMENT_SIZE + 3;
+		checkSplit(HttpFileDownloader.split(MIN_SEGMENT_SIZE, total, 4), total, 5);
+		checkSplit(HttpFileDownloader.split(MIN_SEGMENT_SIZE, total, 1), total, 2);
+	}
+
+	@Test
+	public void testDownload() throws Exception {
+		File src = createFile(3 * MIN_SEGMENT_SIZE + 12345);
+		File dst = tmpFile();
+		NetServer server = startServer();
+
+		try {
+			byte[] data = Files.readAllBytes(src.toPath());
+			HttpFileDownloader d = new HttpFileDownloader();
+			d.setNetHandler(handler);
+			HttpFileDownloader.Status st = d.download(url(server, src), dst).get(30, TimeUnit.SECONDS);
+			assertEquals(data.length, st.getLength());
+			assertArrayEquals(data, Files.readAllBytes(dst.toPath()));
+			assertFalse(new File(dst + ".incomplete").exists());
+			assertFalse(new File(dst + ".incomplete.meta").exists());
+
+			// Without ranges
+			d.setMaxSegments(1);
+			assertTrue(dst.delete());
+			d.download(url(server, src), dst).get(30, TimeUnit.SECONDS);
+			assertArrayEquals(data, Files.readAllBytes(dst.toPath()));
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		File src = createFile(3 * MIN_SEGMENT_SIZE + 12345);
+		File dst = tmpFile();
+		NetServer server = startServer();
+
+		try {
+			byte[] data = Files.readAllBytes(src.toPath());
+			String url = url(server, src);
+			HttpFileDownloader d = new HttpFileDownloader();
+			d.setNetHandler(handler);
+			String etag = d.download(url, dst).get(30, TimeUnit.SECONDS).getEtag();
+			assertNotNull(etag);
+			assertTrue(dst.delete());
+
+			// The first segment and a half of the second one are downloaded. The downloaded
+			// bytes are marked to make sure, they are not requested again.
+			List<Segment> segments = HttpFileDownloader.split(MIN_SEGMENT_SIZE, data.length, 4);
+			assertEquals(3, segments.size());
+			Segment s0 = segments.get(0);
+			Segment s1 = segments.get(1);
+			s0.pos = s0.end;
+			s1.pos = s1.start + (s1.end - s1.start) / 2;
+			byte[] expected = data.clone();
+			Arrays.fill(expected, 0, (int) s0.end, (byte) 1);
+			Arrays.fill(expected, (int) s1.start, (int) s1.pos, (byte) 2);
+			writePartial(dst, Arrays.copyOf(expected, (int) s1.pos));
+			writeMeta(dst, url, etag, data.length, segments);
+
+			d.download(url, dst).get(30, TimeUnit.SECONDS);
+			assertArrayEquals(expected, Files.readAllBytes(dst.toPath()));
+			assertFalse(new File(dst + ".incomplete.meta").exists());
+
+			// The file has changed - the If-Range does not match and the whole file is downloaded
+			writePartial(dst, Arrays.copyOf(expected, (int) s1.pos));
+			writeMeta(dst, url, "\"changed\"", data.length, segments);
+			assertTrue(dst.delete());
+			d.download(url, dst).get(30, TimeUnit.SECONDS);
+			assertArrayEquals(data, Files.readAllBytes(dst.toPath()));
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testResumeCompleted() throws Exception {
+		byte[] data = Files.readAllBytes(createFile(MIN_SEGMENT_SIZE + 10).toPath());
+		File dst = tmpFile();
+		// Nothing is listening on this port, the file must be completed without requests
+		String url = "http://127.0.0.1:1/file";
+		List<Segment> segments = HttpFileDownloader.split(MIN_SEGMENT_SIZE, data.length, 4);
+		for (Segment s : segments) s.pos = s.end;
+		writePartial(dst, data);
+		writeMeta(dst, url, "\"etag\"", data.length, segments);
+
+		HttpFileDownloader d = new HttpFileDownloader();
+		d.setNetHandler(handler);
+		HttpFileDownloader.Status st = d.download(url, dst).get(30, TimeUnit.SECONDS);
+		assertEquals("\"etag\"", st.getEtag());
+		assertArrayEquals(data, Files.readAllBytes(dst.toPath()));
+		assertFalse(new File(dst + ".incomplete").exists());
+		assertFalse(new File(dst + ".incomplete.meta").exists());
+	}
+
+	/**
+	 * Several payloads are streamed concurrently by a network handler with a single thread. Each
+	 * payload is read by a blocking reader on a separate thread, not on the executor, that writes
+	 * the payloads, otherwise the blocked readers could hold all its threads.
+	 */
+	@Test
+	public void testConcurrentStreams() throws Exception {
+		ExecutorService e = new NetThreadPool(1);
+		NetHandler h = NetHandler.create(o -> o.executor = e);
+		NetServer server = startServer(h);
+
+		try {
+			int n = 4;
+			File[] src = new File[n];
+			File[] dst = new File[n];
+			List<Promise<byte[]>> payloads = new ArrayList<>(n);
+			List<FutureSupplier<HttpFileDownloader.Status>> downloads = new ArrayList<>(n);
+			HttpFileDownloader d = new HttpFileDownloader();
+			d.setNetHandler(h);
+
+			for (int i = 0; i < n; i++) {
+				src[i] = createFile(MIN_SEGMENT_SIZE + i * 12345L);
+				dst[i] = tmpFile();
+				Promise<byte[]> payload = new Promise<>();
+				payloads.add(payload);
+				downloads.add(d.download(url(server, src[i]), dst[i], new BasicPreferenceStore(),
+						(st, in) -> readPayload(in, payload)));
+			}
+
+			for (int i = 0; i < n; i++) {
+				byte[] data = Files.readAllBytes(src[i].toPath());
+				assertEquals(data.length, downloads.get(i).get(30, TimeUnit.SECONDS).getLength());
+				assertArrayEquals(data, payloads.get(i).get(30, TimeUnit.SECONDS));
+				assertArrayEquals(data, Files.readAllBytes(dst[i].toPath()));
+			}
+		} finally {
+			server.close();
+			h.close();
+			e.shutdown();
+		}
+	}
+
+	private static void assertSegment(Segment s, long start, long end) {
+		assertEquals(start, s.start);
+		assertEquals(end, s.end);
+		assertEquals(start, s.pos);
+	}
+
+	private static void checkSplit(List<Segment> list, long total, int count) {
+		assertEquals(count, list.size());
+		assertSegment(list.get(0), 0, MIN_SEGMENT_SIZE);
+
+		for (int i = 1; i < count; i++) {
+			Segment s = list.get(i);
+			assertEquals(list.get(i - 1).end, s.start);
+			assertTrue((s.end - s.start) >= MIN_SEGMENT_SIZE);
+		}
+
+		assertEquals(total, list.get(count - 1).end);
+	}
+
+	private static File createFile(long len) throws IOException {
+		File f = tmpFile();
+		byte[] data = new byte[(int) len];
+		new Random().nextBytes(data);
+		data[0] = 0; // Not a gzip header
+		Files.write(f.toPath(), data);
+		return f;
+	}
+
+	private static File tmpFile() throws IOException {
+		File f = File.createTempFile("download", ".bin");
+		f.deleteOnExit();
+		assertTrue(f.delete());
+		new File(f + ".incomplete").deleteOnExit();
+		new File(f + ".incomplete.meta").deleteOnExit();
+		return f;
+	}
+
+	private static void writePartial(File dst, byte[] data) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(dst + ".incomplete", "rw")) {
+			f.setLength(0);
+			f.write(data);
+		}
+	}
+
+	private static void writeMeta(File dst, String url, String etag, long len,
+																List<Segment> segments) throws IOException {
+		try (DataOutputStream o = new DataOutputStream(new FileOutputStream(dst + ".incomplete.meta"))) {
+			o.writeInt(1);
+			o.writeUTF(url);
+			o.writeUTF(etag);
+			o.writeLong(len);
+			o.writeUTF("");
+			o.writeUTF("");
+			o.writeInt(segments.size());
+
+			for (Segment s : segments) {
+				o.writeLong(s.start);
+				o.writeLong(s.end);
+				o.writeLong(s.pos);
+			}
+		}
+	}
+
+	private static void readPayload(InputStream payload, Promise<byte[]> p) {
+		new Thread("PayloadReader") {
+			@Override
+			public void run() {
+				try (InputStream in = payload) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buf = new byte[4096];
+					for (int i = in.read(buf); i != -1; i = in.read(buf)) out.write(buf, 0, i);
+					p.complete(out.toByteArray());
+				} catch (Throwable ex) {
+					p.completeExceptionally(ex);
+				}
+			}
+		}.start();
+	}
+
+	private static NetServer startServer() throws Exception {
+		return startServer(handler);
+	}
+
+	private static NetServer startServer(NetHandler handler) throws Exception {
+		VfsHttpHandler vfsHandler = new VfsHttpHandler(new VfsManager(LocalFileSystem.getInstance()));
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler(VfsHttpHandler.HTTP_PATH, (path, method, version) -> vfsHandler);
+		return handler.bind(o -> o.handler = http).get();
+	}
+
+	private static String url(NetServer server, File f) throws IOException {
+		int port = ((InetSocketAddress) server.getBindAddress()).getPort();
+		return "http://127.0.0.1:" + port + VfsHttpHandler.HTTP_PATH + '?' +
+				VfsHttpHandler.HTTP_QUERY + URLEncoder.encode("file://" + f.getAbsolutePath(), "UTF-8");
+	}
+}
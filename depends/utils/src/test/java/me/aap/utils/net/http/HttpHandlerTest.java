@@ -8,13 +8,24 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
+import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
@@ -677,6 +688,211 @@ public class HttpHandlerTest extends Assertions {
 		Thread.sleep(1000000000);
 	}
 
+	@Test
+	public void testRangeParse() {
+		assertRanges("bytes=0-0", 100, "0-0");
+		assertRanges("bytes=-10", 100, "90-99");
+		assertRanges("bytes=-200", 100, "0-99");
+		assertRanges("bytes=10-", 100, "10-99");
+		assertRanges("bytes=90-200", 100, "90-99");
+		assertRanges("bytes= 0-9 , 20-29", 100, "0-9", "20-29");
+		assertNull(parseRanges("bytes=abc"));
+		assertNull(parseRanges("bytes=5-3"));
+		assertNull(parseRanges("bytes=-0"));
+		assertNull(parseRanges("items=0-1"));
+
+		StringBuilder sb = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < Range.MAX_RANGES; i++) sb.append(',').append(i * 1000).append('-');
+		assertEquals(Range.MAX_RANGES, requireNonNull(parseRanges(sb.toString())).size());
+		assertNull(parseRanges(sb.append(",1-1").toString()));
+	}
+
+	@Test
+	public void testRangeCoalesce() {
+		List<Range> ranges = requireNonNull(parseRanges("bytes=500-599,0-99,50-149,-10,2000-"));
+		List<String> orig = new ArrayList<>(ranges.size());
+		for (Range r : ranges) orig.add(r.toString());
+		List<Range> c = Range.coalesce(ranges, 1000);
+		assertEquals(Arrays.asList("0-149", "500-599", "990-999"), toStrings(c));
+		// The requested ranges are not modified
+		assertEquals(orig, toStrings(ranges));
+
+		// The ranges, separated by less than MERGE_GAP, are merged
+		c = Range.coalesce(requireNonNull(parseRanges("bytes=0-9,100-109")), 1000);
+		assertEquals(Arrays.asList("0-109"), toStrings(c));
+
+		assertTrue(Range.coalesce(requireNonNull(parseRanges("bytes=1000-,2000-2999")), 1000)
+				.isEmpty());
+	}
+
+	@Test
+	public void testVfsRanges() throws Exception {
+		File file = File.createTempFile("range", ".bin");
+		file.deleteOnExit();
+		byte[] data = new byte[10000];
+		new Random().nextBytes(data);
+		Files.write(file.toPath(), data);
+
+		VfsManager mgr = new VfsManager(LocalFileSystem.getInstance());
+		VfsHttpHandler vfsHandler = new VfsHttpHandler(mgr);
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler(VfsHttpHandler.HTTP_PATH, (path, method, version) -> vfsHandler);
+		NetServer server = handler.bind(o -> o.handler = http).get();
+
+		try {
+			int port = ((InetSocketAddress) server.getBindAddress()).getPort();
+			String rid = "file://" + file.getAbsolutePath();
+			String uri = VfsHttpHandler.HTTP_PATH + '?' + VfsHttpHandler.HTTP_QUERY +
+					URLEncoder.encode(rid, "UTF-8");
+
+			Resp resp = get(port, uri);
+			assertEquals(200, resp.status);
+			assertArrayEquals(data, resp.body);
+			String etag = resp.headers.get("etag");
+			assertNotNull(etag);
+
+			resp = get(port, uri, "Range: bytes=-100");
+			assertEquals(206, resp.status);
+			assertEquals("bytes 9900-9999/10000", resp.headers.get("content-range"));
+			assertArrayEquals(Arrays.copyOfRange(data, 9900, 10000), resp.body);
+
+			resp = get(port, uri, "Range: bytes=0-0");
+			assertEquals(206, resp.status);
+			assertArrayEquals(Arrays.copyOfRange(data, 0, 1), resp.body);
+
+			// Overlapping ranges are merged into a single part
+			resp = get(port, uri, "Range: bytes=100-199,150-299");
+			assertEquals(206, resp.status);
+			assertEquals("bytes 100-299/10000", resp.headers.get("content-range"));
+			assertArrayEquals(Arrays.copyOfRange(data, 100, 300), resp.body);
+
+			resp = get(port, uri, "Range: bytes=5000-5009,0-9,20000-");
+			assertEquals(206, resp.status);
+			String ct = requireNonNull(resp.headers.get("content-type"));
+			assertTrue(ct.startsWith("multipart/byteranges; boundary="));
+			assertEquals(resp.body.length, Long.parseLong(resp.headers.get("content-length")));
+			String boundary = ct.substring(ct.indexOf('=') + 1);
+			Map<String, byte[]> parts = parseMultipart(resp.body, boundary);
+			assertEquals(2, parts.size());
+			assertArrayEquals(Arrays.copyOfRange(data, 0, 10), parts.get("bytes 0-9/10000"));
+			assertArrayEquals(Arrays.copyOfRange(data, 5000, 5010), parts.get("bytes 5000-5009/10000"));
+
+			resp = get(port, uri, "Range: bytes=10000-,20000-20001");
+			assertEquals(416, resp.status);
+
+			// Invalid or too many ranges are ignored
+			resp = get(port, uri, "Range: bytes=abc");
+			assertEquals(200, resp.status);
+			assertArrayEquals(data, resp.body);
+			StringBuilder sb = new StringBuilder("Range: bytes=0-0");
+			for (int i = 1; i <= Range.MAX_RANGES; i++) sb.append(',').append(i * 100).append('-');
+			resp = get(port, uri, sb.toString());
+			assertEquals(200, resp.status);
+			assertArrayEquals(data, resp.body);
+
+			resp = get(port, uri, "Range: bytes=0-9", "If-Range: " + etag);
+			assertEquals(206, resp.status);
+			assertArrayEquals(Arrays.copyOfRange(data, 0, 10), resp.body);
+			resp = get(port, uri, "Range: bytes=0-9", "If-Range: \"other\"");
+			assertEquals(200, resp.status);
+			assertArrayEquals(data, resp.body);
+
+			resp = get(port, uri, "If-None-Match: " + etag);
+			assertEquals(304, resp.status);
+			assertEquals(0, resp.body.length);
+		} finally {
+			server.close();
+			assertTrue(file.delete());
+		}
+	}
+
+	private static void assertRanges(String header, long len, String... expected) {
+		List<Range> ranges = requireNonNull(parseRanges(header));
+		List<String> aligned = new ArrayList<>(ranges.size());
+		for (Range r : ranges) aligned.add(r.align(len).toString());
+		assertEquals(Arrays.asList(expected), aligned);
+	}
+
+	private static List<Range> parseRanges(String header) {
+		ByteBuffer bb = ByteBuffer.wrap(header.getBytes(US_ASCII));
+		return Range.parseList(bb, 0, bb.limit());
+	}
+
+	private static List<String> toStrings(List<Range> ranges) {
+		List<String> l = new ArrayList<>(ranges.size());
+		for (Range r : ranges) l.add(r.toString());
+		return l;
+	}
+
+	private static Resp get(int port, String uri, String... headers) throws IOException {
+		try (Socket s = new Socket("localhost", port)) {
+			StringBuilder req = new StringBuilder("GET ").append(uri).append(" HTTP/1.1\r\n")
+					.append("Host: localhost\r\nConnection: close\r\n");
+			for (String h : headers) req.append(h).append("\r\n");
+			OutputStream out = s.getOutputStream();
+			out.write(req.append("\r\n").toString().getBytes(US_ASCII));
+			out.flush();
+
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			for (int n = in.read(buf); n != -1; n = in.read(buf)) bytes.write(buf, 0, n);
+			byte[] r = bytes.toByteArray();
+
+			int hdrEnd = indexOf(r, "\r\n\r\n".getBytes(US_ASCII), 0);
+			assertTrue(hdrEnd > 0);
+			String[] lines = new String(r, 0, hdrEnd, US_ASCII).split("\r\n");
+			Resp resp = new Resp();
+			resp.status = Integer.parseInt(lines[0].split(" ")[1]);
+
+			for (int i = 1; i < lines.length; i++) {
+				int idx = lines[i].indexOf(':');
+				resp.headers.put(lines[i].substring(0, idx).trim().toLowerCase(),
+						lines[i].substring(idx + 1).trim());
+			}
+
+			resp.body = Arrays.copyOfRange(r, hdrEnd + 4, r.length);
+			return resp;
+		}
+	}
+
+	private static Map<String, byte[]> parseMultipart(byte[] body, String boundary) {
+		Map<String, byte[]> parts = new HashMap<>();
+		byte[] delim = ("\r\n--" + boundary).getBytes(US_ASCII);
+		byte[] crlf2 = "\r\n\r\n".getBytes(US_ASCII);
+		assertEquals(0, indexOf(body, delim, 0));
+
+		for (int off = 0; ; ) {
+			off += delim.length;
+			if ((body[off] == '-') && (body[off + 1] == '-')) break;
+			int hdrEnd = indexOf(body, crlf2, off);
+			String hdr = new String(body, off, hdrEnd - off, US_ASCII).trim();
+			assertTrue(hdr.startsWith("Content-Range: "));
+			int next = indexOf(body, delim, hdrEnd + 4);
+			parts.put(hdr.substring(15), Arrays.copyOfRange(body, hdrEnd + 4, next));
+			off = next;
+		}
+
+		return parts;
+	}
+
+	private static int indexOf(byte[] a, byte[] b, int from) {
+		outer:
+		for (int i = from, n = a.length - b.length; i <= n; i++) {
+			for (int j = 0; j < b.length; j++) {
+				if (a[i + j] != b[j]) continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static final class Resp {
+		int status;
+		final Map<String, String> headers = new HashMap<>();
+		byte[] body;
+	}
+
 	@Test
 	@Disabled
 	public void vfsHttpServer() throws Exception {
@@ -0,0 +1,199 @@
+package me.aap.utils.net.http;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.concurrent.NetThreadPool;
+import me.aap.utils.io.MemOutputStream;
+import me.aap.utils.misc.TestUtils;
+import me.aap.utils.net.ByteBufferPool;
+import me.aap.utils.net.NetChannel;
+import me.aap.utils.net.NetHandler;
+import me.aap.utils.net.NetServer;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class HttpPayloadTest extends Assertions {
+	private static ExecutorService exec;
+	private static NetHandler handler;
+
+	@BeforeAll
+	public static void setUpClass() throws IOException {
+		TestUtils.enableTestMode();
+		exec = new NetThreadPool(2);
+		handler = NetHandler.create(o -> o.executor = exec);
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		handler.close();
+		exec.shutdown();
+	}
+
+	@Test
+	public void testChunked() throws Exception {
+		byte[] resp = ("HTTP/1.1 200 OK\r\n" +
+				"Transfer-Encoding: chunked\r\n\r\n" +
+				"7;ext=value\r\nHello, \r\n" +
+				"6\r\nWorld!\r\n" +
+				"0\r\n" +
+				"X-Trailer: value\r\n\r\n").getBytes(US_ASCII);
+		assertArrayEquals("Hello, World!".getBytes(US_ASCII), read(resp, 1, false)[0]);
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		byte[] data = randomText(100000);
+		byte[] gz = gzip(data);
+		byte[] resp = concat(("HTTP/1.1 200 OK\r\n" +
+				"Content-Encoding: gzip\r\n" +
+				"Content-Length: " + gz.length + "\r\n\r\n").getBytes(US_ASCII), gz);
+		assertArrayEquals(data, read(resp, 1, true)[0]);
+		// Not decoded
+		assertArrayEquals(gz, read(resp, 1, false)[0]);
+	}
+
+	@Test
+	public void testChunkedMultiMemberGzip() throws Exception {
+		byte[] d1 = randomText(30000);
+		byte[] d2 = randomText(50000);
+		byte[] gz = concat(gzip(d1), gzip(d2));
+		ByteArrayOutputStream resp = new ByteArrayOutputStream();
+		resp.write(("HTTP/1.1 200 OK\r\n" +
+				"Content-Encoding: gzip\r\n" +
+				"Transfer-Encoding: chunked\r\n\r\n").getBytes(US_ASCII));
+
+		for (int off = 0; off < gz.length; ) {
+			int n = Math.min(gz.length - off, 7000);
+			resp.write((Integer.toHexString(n) + "\r\n").getBytes(US_ASCII));
+			resp.write(gz, off, n);
+			resp.write("\r\n".getBytes(US_ASCII));
+			off += n;
+		}
+
+		resp.write("0\r\n\r\n".getBytes(US_ASCII));
+		assertArrayEquals(concat(d1, d2), read(resp.toByteArray(), 1, true)[0]);
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		byte[] data = randomText(20000);
+		byte[] gz = gzip(data);
+		byte[] resp = concat(
+				("HTTP/1.1 200 OK\r\n" +
+						"Transfer-Encoding: chunked\r\n\r\n" +
+						"3\r\nabc\r\n0\r\n\r\n").getBytes(US_ASCII),
+				("HTTP/1.1 200 OK\r\n" +
+						"Content-Encoding: gzip\r\n" +
+						"Content-Length: " + gz.length + "\r\n\r\n").getBytes(US_ASCII), gz,
+				("HTTP/1.1 200 OK\r\n" +
+						"Content-Length: 3\r\n\r\n" +
+						"xyz").getBytes(US_ASCII));
+		long leaks = ByteBufferPool.getLeakCount();
+		byte[][] payloads = read(resp, 3, true);
+		assertArrayEquals("abc".getBytes(US_ASCII), payloads[0]);
+		assertArrayEquals(data, payloads[1]);
+		assertArrayEquals("xyz".getBytes(US_ASCII), payloads[2]);
+
+		// The streams are read to the end, but not closed. Check, that the buffers are released.
+		System.gc();
+		ByteBufferPool.release(ByteBufferPool.acquire(1));
+		assertEquals(leaks, ByteBufferPool.getLeakCount());
+	}
+
+	/**
+	 * Sends the specified number of requests over a single connection. The server replies to the
+	 * last request with the specified bytes, that must contain all the responses. Thus, all the
+	 * responses are received after all the requests are sent.
+	 */
+	private static byte[][] read(byte[] responses, int n, boolean decode) throws Exception {
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		String last = String.valueOf(n - 1);
+		HttpRequestHandler reqHandler = req -> {
+			NetChannel ch = req.getChannel();
+			CharSequence q = req.getQuery();
+			if ((q != null) && q.toString().equals(last)) ch.write(() -> ByteBuffer.wrap(responses));
+			return req.skipPayload().map(v -> null);
+		};
+		http.addHandler("/test", (p, m, v) -> reqHandler);
+		NetServer server = handler.bind(o -> o.handler = http).get();
+		SocketAddress addr = server.getBindAddress();
+		byte[][] payloads = new byte[n][];
+		Promise<Void> done = new Promise<>();
+
+		try {
+			NetChannel ch = handler.connect(o -> o.address = addr).get();
+			HttpConnection c = new HttpConnection(ch);
+
+			for (int i = 0; i < n; i++) {
+				int idx = i;
+				c.sendRequest(b -> {
+					b.setRequest("/test?" + idx, HttpMethod.GET);
+					b.addHeader(HttpHeader.ACCEPT_ENCODING);
+					return b.build();
+				}, (resp, err) -> {
+					if (err != null) {
+						done.completeExceptionally(err);
+						return done;
+					}
+
+					FutureSupplier<MemOutputStream> r =
+							new MemOutputStream().readFrom(resp.readPayload(decode));
+					return r.onCompletion((out, fail) -> {
+						if (fail != null) {
+							done.completeExceptionally(fail);
+							return;
+						}
+
+						payloads[idx] = Arrays.copyOf(out.getBuffer(), out.getCount());
+						if (idx == n - 1) done.complete(null);
+					});
+				});
+			}
+
+			done.get(10, TimeUnit.SECONDS);
+			ch.close();
+			return payloads;
+		} finally {
+			server.close();
+		}
+	}
+
+	private static byte[] randomText(int len) {
+		Random rnd = new Random();
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) b[i] = (byte) ('a' + rnd.nextInt(8));
+		return b;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+			gz.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] a : arrays) out.write(a, 0, a.length);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,312 @@
+package me.aap.utils.vfs;
+
+import static me.aap.utils.async.Completed.completed;
+import static me.aap.utils.async.Completed.failed;
+import static me.aap.utils.vfs.BlockCache.BLOCK_SIZE;
+
+import androidx.annotation.NonNull;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.concurrent.NetThreadPool;
+import me.aap.utils.io.AsyncInputStream;
+import me.aap.utils.misc.TestUtils;
+import me.aap.utils.net.NetChannel;
+import me.aap.utils.net.NetHandler;
+import me.aap.utils.net.NetServer;
+import me.aap.utils.resource.Rid;
+import me.aap.utils.vfs.local.LocalFileSystem;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class BlockCacheTest extends Assertions {
+	private static ExecutorService exec;
+	private static NetHandler handler;
+	@TempDir
+	File dir;
+
+	@BeforeAll
+	public static void setUpClass() throws IOException {
+		TestUtils.enableTestMode();
+		exec = new NetThreadPool(2);
+		handler = NetHandler.create(o -> o.executor = exec);
+	}
+
+	@AfterAll
+	public static void tearDownClass() {
+		handler.close();
+		exec.shutdown();
+	}
+
+	@Test
+	public void testIsCacheable() throws Exception {
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			RemoteFile remote = new RemoteFile("remote", BLOCK_SIZE + 1);
+			assertTrue(cache.isCacheable(remote, remote.getInfo().get()));
+
+			RemoteFile small = new RemoteFile("small", BLOCK_SIZE);
+			assertFalse(cache.isCacheable(small, small.getInfo().get()));
+
+			File f = new File(dir, "local");
+			Files.write(f.toPath(), new byte[BLOCK_SIZE + 1]);
+			VirtualFile local = LocalFileSystem.getInstance().getFile(f);
+			assertFalse(cache.isCacheable(local, local.getInfo().get()));
+		}
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		// 4 blocks, the last one is partial. The tail is not prefetched.
+		RemoteFile f = new RemoteFile("file", 3 * BLOCK_SIZE + 12345);
+
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			assertArrayEquals(f.data, transfer(cache, f, 0, -1));
+			assertEquals(f.data.length, f.read.get());
+
+			// Served from the cache
+			assertArrayEquals(f.data, transfer(cache, f, 0, -1));
+			assertEquals(f.data.length, f.read.get());
+		}
+	}
+
+	@Test
+	public void testPartialBlocks() throws Exception {
+		RemoteFile f = new RemoteFile("file", 3 * BLOCK_SIZE + 12345);
+
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			// A range within a block - the whole block is downloaded
+			assertArrayEquals(f.range(100, 200), transfer(cache, f, 100, 200));
+			assertEquals(BLOCK_SIZE, f.read.get());
+
+			// A range, crossing the block boundary. The first block is cached.
+			long off = BLOCK_SIZE - 1000;
+			assertArrayEquals(f.range(off, 2000), transfer(cache, f, off, 2000));
+			assertEquals(2L * BLOCK_SIZE, f.read.get());
+
+			// The last partial block
+			off = f.data.length - 10000;
+			assertArrayEquals(f.range(off, 10000), transfer(cache, f, off, -1));
+			assertEquals(2L * BLOCK_SIZE + 12345, f.read.get());
+
+			// All the blocks, except the third one, are cached
+			assertArrayEquals(f.data, transfer(cache, f, 0, -1));
+			assertEquals(3L * BLOCK_SIZE + 12345, f.read.get());
+		}
+	}
+
+	@Test
+	public void testIndexPersistence() throws Exception {
+		RemoteFile f = new RemoteFile("file", 2 * BLOCK_SIZE + 1);
+
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			assertArrayEquals(f.range(0, 10), transfer(cache, f, 0, 10));
+			assertEquals(BLOCK_SIZE, f.read.get());
+		}
+
+		// The index is reloaded by a new cache instance
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			assertArrayEquals(f.range(0, BLOCK_SIZE), transfer(cache, f, 0, BLOCK_SIZE));
+			assertEquals(BLOCK_SIZE, f.read.get());
+		}
+
+		// The file length has changed - the stale blocks are not used
+		RemoteFile changed = new RemoteFile("file", 2 * BLOCK_SIZE + 2);
+
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			assertArrayEquals(changed.range(0, 10), transfer(cache, changed, 0, 10));
+			assertEquals(BLOCK_SIZE, changed.read.get());
+		}
+	}
+
+	@Test
+	public void testModified() throws Exception {
+		RemoteFile f = new RemoteFile("file", 2 * BLOCK_SIZE);
+
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			assertArrayEquals(f.data, transfer(cache, f, 0, -1));
+			assertEquals(2L * BLOCK_SIZE, f.read.get());
+		}
+
+		// The file is rewritten with the same length - the stale blocks are not used
+		RemoteFile changed = new RemoteFile("file", 2 * BLOCK_SIZE);
+		changed.lastModified = f.lastModified + 1000;
+
+		try (BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE)) {
+			assertArrayEquals(changed.data, transfer(cache, changed, 0, -1));
+			assertEquals(2L * BLOCK_SIZE, changed.read.get());
+		}
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		RemoteFile f1 = new RemoteFile("file1", 2 * BLOCK_SIZE);
+		RemoteFile f2 = new RemoteFile("file2", 2 * BLOCK_SIZE);
+		RemoteFile f3 = new RemoteFile("file3", 2 * BLOCK_SIZE);
+
+		try (BlockCache cache = new BlockCache(dir, 5L * BLOCK_SIZE)) {
+			for (RemoteFile f : Arrays.asList(f1, f2, f3)) transfer(cache, f, 0, -1);
+
+			// The second file is the least recently used one
+			long time = System.currentTimeMillis();
+			assertTrue(cacheFile(f1, ".idx").setLastModified(time - 1000));
+			assertTrue(cacheFile(f2, ".idx").setLastModified(time - 100000));
+			assertTrue(cacheFile(f3, ".idx").setLastModified(time - 2000));
+
+			// 6 blocks exceed the limit, the second file is evicted
+			cache.evict();
+			assertFalse(cacheFile(f2, ".idx").exists());
+			assertFalse(cacheFile(f2, ".data").exists());
+			assertTrue(cacheFile(f1, ".idx").exists());
+			assertTrue(cacheFile(f3, ".idx").exists());
+
+			transfer(cache, f1, 0, -1);
+			transfer(cache, f3, 0, -1);
+			assertEquals(2L * BLOCK_SIZE, f1.read.get());
+			assertEquals(2L * BLOCK_SIZE, f3.read.get());
+			assertArrayEquals(f2.data, transfer(cache, f2, 0, -1));
+			assertEquals(4L * BLOCK_SIZE, f2.read.get());
+		}
+	}
+
+	@Test
+	public void testClosed() throws Exception {
+		RemoteFile f = new RemoteFile("file", 2 * BLOCK_SIZE);
+		BlockCache cache = new BlockCache(dir, 100L * BLOCK_SIZE);
+		cache.close();
+		// Transferred without caching
+		assertArrayEquals(f.data, transfer(cache, f, 0, -1));
+		assertArrayEquals(f.data, transfer(cache, f, 0, -1));
+		assertEquals(2L * f.data.length, f.read.get());
+	}
+
+	private File cacheFile(RemoteFile f, String ext) {
+		return new File(dir, BlockCache.key(f.getRid(), f.data.length, f.lastModified) + ext);
+	}
+
+	private static byte[] transfer(BlockCache cache, RemoteFile f, long off, long len)
+			throws Exception {
+		NetServer server = handler.bind(o -> o.handler = ch ->
+				cache.transfer(f, f.data.length, f.lastModified, ch, off, len, null).onCompletion((r, err) -> {
+					if (err != null) err.printStackTrace();
+					ch.close();
+				})).get();
+
+		try {
+			SocketAddress addr = server.getBindAddress();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			NetChannel ch = handler.connect(o -> o.address = addr).get(10, TimeUnit.SECONDS);
+
+			ch.read().thenIterate(b -> {
+				ByteBuffer bb = b.get();
+				if (!bb.hasRemaining()) return null;
+				byte[] a = new byte[bb.remaining()];
+				bb.get(a);
+				out.write(a, 0, a.length);
+				return ch.read();
+			}).get(30, TimeUnit.SECONDS);
+
+			ch.close();
+			return out.toByteArray();
+		} finally {
+			server.close();
+		}
+	}
+
+	private static final class RemoteFileSystem implements VirtualFileSystem {
+		static final RemoteFileSystem instance = new RemoteFileSystem();
+
+		@NonNull
+		@Override
+		public Provider getProvider() {
+			throw new UnsupportedOperationException();
+		}
+
+		@NonNull
+		@Override
+		public FutureSupplier<? extends VirtualResource> getResource(Rid rid) {
+			return failed(new IOException("Not found: " + rid));
+		}
+
+		@Override
+		public boolean isRemote() {
+			return true;
+		}
+	}
+
+	private static final class RemoteFile implements VirtualFile {
+		final String name;
+		final byte[] data;
+		final AtomicLong read = new AtomicLong();
+		long lastModified = 1000000;
+
+		RemoteFile(String name, int len) {
+			this.name = name;
+			data = new byte[len];
+			new Random().nextBytes(data);
+		}
+
+		byte[] range(long off, int len) {
+			return Arrays.copyOfRange(data, (int) off, (int) off + len);
+		}
+
+		@NonNull
+		@Override
+		public VirtualFileSystem getVirtualFileSystem() {
+			return RemoteFileSystem.instance;
+		}
+
+		@NonNull
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@NonNull
+		@Override
+		public Rid getRid() {
+			return Rid.create("remote://host/" + name);
+		}
+
+		@Override
+		public FutureSupplier<Long> getLength() {
+			return completed((long) data.length);
+		}
+
+		@Override
+		public FutureSupplier<Long> getLastModified() {
+			return completed(lastModified);
+		}
+
+		@Override
+		public AsyncInputStream getInputStream(long offset) {
+			return AsyncInputStream.from(new ByteArrayInputStream(data, (int) offset,
+					data.length - (int) offset) {
+				@Override
+				public synchronized int read(byte[] b, int off, int len) {
+					int n = super.read(b, off, len);
+					if (n > 0) read.addAndGet(n);
+					return n;
+				}
+			});
+		}
+	}
+}
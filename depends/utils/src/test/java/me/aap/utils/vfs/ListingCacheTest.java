@@ -0,0 +1,95 @@
+package me.aap.utils.vfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.aap.utils.resource.Rid;
+import me.aap.utils.security.SecurityUtils;
+import me.aap.utils.vfs.ListingCache.Entry;
+import me.aap.utils.vfs.ListingCache.Listing;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class ListingCacheTest extends Assertions {
+	@TempDir
+	File dir;
+
+	@Test
+	public void testPutGetRemove() {
+		ListingCache cache = new ListingCache(dir);
+		Rid rid = Rid.create("smb://host/share/folder");
+		assertNull(cache.get(rid));
+
+		Listing l = new Listing(123, Arrays.asList(new Entry("file", false, 10, 1),
+				new Entry("folder", true, 0, 2)));
+		cache.put(rid, l);
+		assertEquals(l, cache.get(rid));
+		assertNull(cache.get(Rid.create("smb://host/share/other")));
+
+		cache.remove(rid);
+		assertNull(cache.get(rid));
+	}
+
+	@Test
+	public void testTrim() {
+		Listing l = listing(100);
+		ListingCache cache = new ListingCache(dir, Long.MAX_VALUE);
+		cache.put(rid(0), l);
+		long size = file(0).length();
+		long time = System.currentTimeMillis() - 100000;
+
+		cache = new ListingCache(dir, 10 * size);
+		for (int i = 0; i < 10; i++) {
+			cache.put(rid(i), l);
+			assertTrue(file(i).setLastModified(time + i * 1000));
+		}
+
+		// Recently used
+		assertNotNull(cache.get(rid(0)));
+		// Left after a failure
+		File tmp = new File(dir, "stale.tmp");
+		writeTmp(tmp, time - 7200000);
+
+		// 11 listings exceed the limit, 4 least recently used are deleted
+		cache.put(rid(10), l);
+		cache.trim();
+		assertFalse(tmp.exists());
+		assertTrue(file(0).isFile());
+		for (int i = 1; i <= 4; i++) assertFalse(file(i).isFile());
+		for (int i = 5; i <= 10; i++) assertTrue(file(i).isFile());
+		assertEquals(7, dir.listFiles().length);
+	}
+
+	private File file(int i) {
+		return new File(dir, SecurityUtils.sha256String(UTF_8, rid(i).toString()));
+	}
+
+	private static void writeTmp(File f, long time) {
+		try {
+			assertTrue(f.createNewFile());
+			assertTrue(f.setLastModified(time));
+		} catch (IOException ex) {
+			fail(ex);
+		}
+	}
+
+	private static Rid rid(int i) {
+		return Rid.create("sftp://host/folder" + i);
+	}
+
+	private static Listing listing(int size) {
+		List<Entry> entries = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) entries.add(new Entry("file" + i, false, i, i));
+		return new Listing(0, entries);
+	}
+}
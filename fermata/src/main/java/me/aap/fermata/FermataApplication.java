@@ -113,6 +113,11 @@ public class FermataApplication extends NetSplitCompatApp {
 		return 5;
 	}
 
+	@Override
+	protected int getNumberOfSelectors() {
+		return 2;
+	}
+
 	@NonNull
 	@Override
 	public File getLogFile() {
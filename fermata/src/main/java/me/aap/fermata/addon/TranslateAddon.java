@@ -26,6 +26,7 @@ import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.collection.CacheMap;
 import me.aap.utils.function.Supplier;
+import me.aap.utils.log.Log;
 import me.aap.utils.misc.ChangeableCondition;
 import me.aap.utils.pref.PreferenceSet;
 import me.aap.utils.pref.PreferenceStore;
@@ -75,8 +76,10 @@ public class TranslateAddon implements FermataAddon {
 	public FutureSupplier<Translator> getTranslator(PreferenceStore ps, String srcLang,
 																									String targetLang) {
 		var key = srcLang + "->" + targetLang;
+		var model = ps.getStringPref(IMPL);
 		var p = cache.computeIfAbsent(key,
-				k -> getImpl(ps).then(impl -> impl.getTranslator(srcLang, targetLang)));
+				k -> getImpl(ps).then(impl -> impl.getTranslator(srcLang, targetLang))
+						.map(tr -> TranslationMemory.get().wrap(model, srcLang, targetLang, tr)));
 		if (!requireNonNull(p).isDone()) p.onSuccess(tr -> cache.put(key, completed(tr)));
 		return p;
 	}
@@ -159,6 +162,27 @@ public class TranslateAddon implements FermataAddon {
 	public interface Translator {
 		FutureSupplier<String> translate(String text);
 
+		/**
+		 * Translates the texts, preserving the order. By default, the texts are translated
+		 * concurrently, one text per call, and a text, that failed to translate, gets null in
+		 * its slot, instead of failing the whole batch. The implementations, that are able to
+		 * translate multiple texts in one run, should override this method.
+		 */
+		default FutureSupplier<List<String>> translate(List<String> texts) {
+			var translations = new ArrayList<FutureSupplier<String>>(texts.size());
+			for (var text : texts) {
+				translations.add(translate(text).ifFail(err -> {
+					Log.e(err, "Failed to translate: ", text);
+					return null;
+				}));
+			}
+			return Async.forEach(f -> f, translations).map(v -> {
+				var result = new ArrayList<String>(translations.size());
+				for (var f : translations) result.add(f.peek());
+				return result;
+			});
+		}
+
 		default boolean supportsBatch() {
 			return false;
 		}
@@ -0,0 +1,356 @@
+package me.aap.fermata.addon;
+
+import static java.util.Collections.singletonList;
+import static me.aap.utils.async.Completed.completed;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.aap.fermata.addon.TranslateAddon.Translator;
+import me.aap.utils.app.App;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.collection.LruMap;
+import me.aap.utils.db.SQLite;
+import me.aap.utils.log.Log;
+
+/**
+ * Persistent translation memory with an in-memory LRU front. The translations are keyed by
+ * the model, the language pair and the source text with normalized whitespaces. The memory is
+ * consulted before invoking the translator, thus replaying the same content does not require
+ * translation. The number of stored translations is limited to {@link #MAX_SIZE}, the least
+ * recently used ones are evicted. The access time of a stored translation is updated on both
+ * database and in-memory hits.
+ *
+ * @author Andrey Pavlenko
+ */
+public class TranslationMemory {
+	private static final int MEM_SIZE = 1024;
+	private static final int MAX_SIZE = 100000;
+	private static final int TRIM_INTERVAL = 1000;
+	// Update the access time of a stored translation not more often than once a day
+	private static final long TOUCH_INTERVAL = 24 * 60 * 60000L;
+	private static final String TABLE = "Translations";
+	private static final String COL_KEY = "Key";
+	private static final String COL_TRANSLATION = "Translation";
+	private static final String COL_TIME = "Time";
+	private static TranslationMemory instance;
+	private final LruMap<String, Cached> mem = new LruMap<>(MEM_SIZE);
+	private final AtomicLong memHits = new AtomicLong();
+	private final AtomicLong dbHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	@Nullable
+	private final SQLite db;
+	// Accessed in the database queue only
+	private SQLiteStatement insert;
+	private SQLiteStatement touch;
+	private int inserted;
+
+	/**
+	 * @param file the database file or null, if the translations must be kept in memory only.
+	 */
+	TranslationMemory(@Nullable File file) {
+		if (file == null) {
+			db = null;
+			return;
+		}
+
+		db = SQLite.get(file);
+		db.execute(d -> {
+			d.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + COL_KEY + " VARCHAR PRIMARY KEY, " +
+					COL_TRANSLATION + " VARCHAR NOT NULL, " + COL_TIME + " INTEGER NOT NULL)");
+			d.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + COL_TIME + " ON " + TABLE + "(" +
+					COL_TIME + ")");
+			trim(d);
+		}).onFailure(err -> Log.e(err, "Failed to create translation memory table"));
+	}
+
+	public static synchronized TranslationMemory get() {
+		if (instance == null) {
+			instance = new TranslationMemory(new File(App.get().getCacheDir(), "translations.db"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns a translator, that looks up the translations in the memory before invoking the
+	 * specified translator and stores the new translations.
+	 */
+	public Translator wrap(String model, String srcLang, String tgtLang, Translator tr) {
+		return new MemTranslator(model + '|' + srcLang + '|' + tgtLang + '|', tr);
+	}
+
+	/**
+	 * The number of translations, found in the memory or in the database.
+	 */
+	public long getHitCount() {
+		return memHits.get() + dbHits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * The percentage of the translations, found in the memory or in the database.
+	 */
+	public int getHitRate() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return (total == 0) ? 0 : (int) (hits * 100 / total);
+	}
+
+	@NonNull
+	public String getStats() {
+		return "TranslationMemory{" +
+				"memHits=" + memHits.get() +
+				", dbHits=" + dbHits.get() +
+				", misses=" + getMissCount() +
+				", hitRate=" + getHitRate() +
+				'}';
+	}
+
+	/**
+	 * Returns the translations of the specified keys, the missing translations are null.
+	 */
+	private FutureSupplier<String[]> get(String[] keys) {
+		var result = new String[keys.length];
+		long now = System.currentTimeMillis();
+		List<String> touched = null;
+		int found = 0;
+
+		synchronized (mem) {
+			for (int i = 0; i < keys.length; i++) {
+				var c = mem.get(keys[i]);
+				if (c == null) continue;
+				result[i] = c.translation;
+				found++;
+
+				if (now - c.time > TOUCH_INTERVAL) {
+					c.time = now;
+					if (touched == null) touched = new ArrayList<>();
+					touched.add(keys[i]);
+				}
+			}
+		}
+
+		memHits.addAndGet(found);
+		if (touched != null) touch(touched, now);
+		if (found == keys.length) return completed(result);
+
+		if (db == null) {
+			misses.addAndGet(keys.length - found);
+			return completed(result);
+		}
+
+		return db.query(d -> {
+			var times = new long[keys.length];
+
+			for (int i = 0; i < keys.length; i++) {
+				if (result[i] != null) continue;
+
+				try (Cursor c = d.rawQuery("SELECT " + COL_TRANSLATION + ", " + COL_TIME + " FROM " +
+						TABLE + " WHERE " + COL_KEY + " = ?", new String[]{keys[i]})) {
+					if (!c.moveToFirst()) {
+						misses.incrementAndGet();
+						continue;
+					}
+
+					result[i] = c.getString(0);
+					times[i] = c.getLong(1);
+					dbHits.incrementAndGet();
+
+					if (now - times[i] > TOUCH_INTERVAL) {
+						touch(d, keys[i], now);
+						times[i] = now;
+					}
+				}
+			}
+
+			synchronized (mem) {
+				for (int i = 0; i < keys.length; i++) {
+					if (times[i] != 0) mem.put(keys[i], new Cached(result[i], times[i]));
+				}
+			}
+
+			return result;
+		}).ifFail(err -> {
+			Log.e(err, "Failed to query translation memory");
+			return result;
+		});
+	}
+
+	/**
+	 * Stores the translations. The null translations are skipped.
+	 */
+	private void put(String[] keys, List<String> translations) {
+		long now = System.currentTimeMillis();
+
+		synchronized (mem) {
+			for (int i = 0; i < keys.length; i++) {
+				var t = translations.get(i);
+				if (t != null) mem.put(keys[i], new Cached(t, now));
+			}
+		}
+
+		if (db == null) return;
+
+		db.execute(d -> {
+			if (insert == null) {
+				insert = d.compileStatement("INSERT OR REPLACE INTO " + TABLE + " (" + COL_KEY + ", " +
+						COL_TRANSLATION + ", " + COL_TIME + ") VALUES (?, ?, ?)");
+			}
+
+			int count = 0;
+			d.beginTransaction();
+
+			try {
+				for (int i = 0; i < keys.length; i++) {
+					var t = translations.get(i);
+					if (t == null) continue;
+					insert.bindString(1, keys[i]);
+					insert.bindString(2, t);
+					insert.bindLong(3, now);
+					insert.executeInsert();
+					count++;
+				}
+				d.setTransactionSuccessful();
+			} finally {
+				d.endTransaction();
+			}
+
+			if ((inserted += count) >= TRIM_INTERVAL) {
+				inserted = 0;
+				trim(d);
+			}
+		}).onFailure(err -> Log.e(err, "Failed to store translations"));
+	}
+
+	/**
+	 * Updates the access time of the translations, found in memory.
+	 */
+	private void touch(List<String> keys, long time) {
+		if (db == null) return;
+		db.execute(d -> {
+			for (var k : keys) touch(d, k, time);
+		}).onFailure(err -> Log.e(err, "Failed to update translation memory"));
+	}
+
+	private void touch(SQLiteDatabase d, String key, long time) {
+		if (touch == null) {
+			touch = d.compileStatement("UPDATE " + TABLE + " SET " + COL_TIME + " = ? WHERE " +
+					COL_KEY + " = ?");
+		}
+
+		touch.bindLong(1, time);
+		touch.bindString(2, key);
+		touch.executeUpdateDelete();
+	}
+
+	private static void trim(SQLiteDatabase d) {
+		long n = DatabaseUtils.queryNumEntries(d, TABLE) - MAX_SIZE;
+		if (n <= 0) return;
+		Log.d("Evicting ", n, " translations from translation memory");
+		d.execSQL("DELETE FROM " + TABLE + " WHERE " + COL_KEY + " IN (SELECT " + COL_KEY +
+				" FROM " + TABLE + " ORDER BY " + COL_TIME + " LIMIT " + n + ")");
+	}
+
+	/**
+	 * Trims and collapses the whitespaces.
+	 */
+	static String normalize(String text) {
+		var sb = new StringBuilder(text.length());
+		boolean space = false;
+
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+			} else {
+				if (space) sb.append(' ');
+				sb.append(c);
+				space = false;
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private final class MemTranslator implements Translator {
+		private final String prefix;
+		private final Translator tr;
+
+		MemTranslator(String prefix, Translator tr) {
+			this.prefix = prefix;
+			this.tr = tr;
+		}
+
+		@Override
+		public FutureSupplier<String> translate(String text) {
+			var key = new String[]{prefix + normalize(text)};
+			return get(key).then(r -> {
+				if (r[0] != null) return completed(r[0]);
+				return tr.translate(text).onSuccess(t -> put(key, singletonList(t)));
+			});
+		}
+
+		@Override
+		public FutureSupplier<List<String>> translate(List<String> texts) {
+			int n = texts.size();
+			var keys = new String[n];
+			for (int i = 0; i < n; i++) keys[i] = prefix + normalize(texts.get(i));
+
+			return get(keys).then(r -> {
+				var missing = new ArrayList<String>();
+				for (int i = 0; i < n; i++) {
+					if (r[i] == null) missing.add(texts.get(i));
+				}
+				if (missing.isEmpty()) return completed(Arrays.asList(r));
+
+				return tr.translate(missing).map(translated -> {
+					var missingKeys = new String[missing.size()];
+					for (int i = 0, j = 0; i < n; i++) {
+						if (r[i] != null) continue;
+						missingKeys[j] = keys[i];
+						r[i] = translated.get(j++);
+					}
+					put(missingKeys, translated);
+					return Arrays.asList(r);
+				});
+			});
+		}
+
+		@Override
+		public boolean supportsBatch() {
+			return tr.supportsBatch();
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return getStats();
+	}
+
+	private static final class Cached {
+		final String translation;
+		// The access time, stored in the database
+		long time;
+
+		Cached(String translation, long time) {
+			this.translation = translation;
+			this.time = time;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package me.aap.fermata.media.engine;
 
 import static android.content.Context.MODE_PRIVATE;
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static me.aap.fermata.util.Utils.getLauncherColor;
 import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedNull;
@@ -47,18 +48,29 @@ import java.lang.ref.SoftReference;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.aap.fermata.FermataApplication;
 import me.aap.fermata.provider.FermataContentProvider;
 import me.aap.fermata.vfs.FermataVfsManager;
 import me.aap.utils.app.App;
 import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
 import me.aap.utils.async.PromiseQueue;
 import me.aap.utils.collection.CollectionUtils;
+import me.aap.utils.concurrent.ThreadPool;
 import me.aap.utils.function.CheckedSupplier;
 import me.aap.utils.function.IntSupplier;
 import me.aap.utils.io.MemOutputStream;
@@ -75,14 +87,35 @@ import me.aap.utils.ui.UiUtils;
  * @author Andrey Pavlenko
  */
 public class BitmapCache {
+	private static final long MAX_ICONS_SIZE = 64 * 1024 * 1024;
+	private static final long MAX_IMAGES_SIZE = 128 * 1024 * 1024;
+	private static final long TRIM_INTERVAL = 3600;
+	// The disk cache is trimmed, when this number of bytes has been written since the last trim
+	private static final long TRIM_WRITTEN = MAX_ICONS_SIZE / 8;
+	private static final int MAX_REUSABLE = 4;
+	private static final int DECODERS =
+			Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
 	private final File iconsCache;
 	private final File imageCache;
 	private final String iconsCacheUri;
 	private final String imageCacheUri;
 	private final SharedPreferences prefs;
 	private final Map<String, Ref> cache = new HashMap<>();
+	private final LinkedHashMap<String, Bitmap> memCache = new LinkedHashMap<>(64, 0.75f, true);
+	private final long memCacheMaxSize = Runtime.getRuntime().maxMemory() / 8;
+	private long memCacheSize;
+	private final List<Bitmap> reusable = new ArrayList<>(MAX_REUSABLE);
 	private final ReferenceQueue<Bitmap> refQueue = new ReferenceQueue<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicBoolean trimming = new AtomicBoolean();
 	private final PromiseQueue queue = new PromiseQueue(App.get().getExecutor());
+	// The most recent requests are decoded first, i.e. the currently visible items
+	private final ThreadPool decoder = new ThreadPool(DECODERS, DECODERS, 30, SECONDS, new LifoQueue());
+	private final Map<String, SharedLoad> loading = new HashMap<>();
 	private final Map<String, String> invalidBitmapUris = new ConcurrentHashMap<>();
 
 	public BitmapCache() {
@@ -93,6 +126,7 @@ public class BitmapCache {
 		iconsCacheUri = Uri.fromFile(iconsCache).toString() + '/';
 		imageCacheUri = Uri.fromFile(imageCache).toString() + '/';
 		prefs = getContext().getSharedPreferences("image-cache", MODE_PRIVATE);
+		App.get().getScheduler().scheduleWithFixedDelay(this::trim, 60, TRIM_INTERVAL, SECONDS);
 	}
 
 	public boolean isResourceImageAvailable(Uri uri) {
@@ -137,25 +171,69 @@ public class BitmapCache {
 			bm = getCachedBitmap(u);
 		}
 
-		if (bm != null) return completed(bm);
+		if (bm != null) {
+			hits.incrementAndGet();
+			return completed(bm);
+		}
+
+		misses.incrementAndGet();
+		String key = (iconUri != null) ? iconUri : u;
 
 		if (u.startsWith("http://") || u.startsWith("https://")) {
-			return loadHttpBitmap(u, iconUri, size);
+			return coalesce(key, () -> loadHttpBitmap(u, iconUri, size));
+		}
+
+		return coalesce(key, () -> decoder.submitTask(() -> loadBitmap(ctx, u, iconUri, cache, size)));
+	}
+
+	/**
+	 * Concurrent requests for the same bitmap share the same loading task. The task is cancelled
+	 * when all the requests are cancelled.
+	 */
+	private FutureSupplier<Bitmap> coalesce(String key,
+																					CheckedSupplier<FutureSupplier<Bitmap>, Throwable> load) {
+		SharedLoad s;
+		boolean start;
+
+		synchronized (loading) {
+			s = loading.get(key);
+			start = (s == null);
+
+			if (start) {
+				s = new SharedLoad(key);
+				loading.put(key, s);
+			}
+
+			s.refs++;
 		}
 
-		return queue.enqueue(() -> loadBitmap(ctx, u, iconUri, cache, size));
+		FutureSupplier<Bitmap> ref = s.newRef();
+		if (start) s.start(load);
+		return ref;
 	}
 
+	/**
+	 * Looks up the bitmap in the memory cache first. If not found, looks up the softly referenced
+	 * bitmaps, evicted from the memory cache, and returns it back to the memory cache, if found.
+	 */
 	@Nullable
 	private Bitmap getCachedBitmap(String uri) {
 		synchronized (cache) {
+			Bitmap bm = memCache.get(uri);
+			if (bm != null) return bm;
+
 			clearRefs();
 			Ref r = cache.get(uri);
 
 			if (r != null) {
-				Bitmap bm = r.get();
-				if (bm != null) return bm;
-				else cache.remove(uri);
+				bm = r.get();
+
+				if (bm != null) {
+					memCachePut(uri, bm);
+					return bm;
+				} else {
+					cache.remove(uri);
+				}
 			}
 
 			return null;
@@ -170,7 +248,12 @@ public class BitmapCache {
 			if (bm != null) return bm;
 			File iconFile = new File(iconsCache, iconUri.substring(iconsCacheUri.length()));
 			if (iconFile.isFile()) bm = loadBitmap(ctx, iconUri, cache ? uri : null, 0);
-			if (bm != null) return bm;
+
+			if (bm != null) {
+				touch(iconFile);
+				return bm;
+			}
+
 			bm = loadBitmap(ctx, uri, cache ? iconUri : null, size);
 			if (cache && (bm != null)) saveIcon(bm, iconFile);
 		} else {
@@ -191,8 +274,15 @@ public class BitmapCache {
 
 			switch (scheme) {
 				case "file":
-					try (ParcelFileDescriptor fd = ctx.getContentResolver().openFileDescriptor(u, "r")) {
-						if (fd != null) bm = BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor());
+					String path = u.getPath();
+					File f = (path == null) ? null : new File(path);
+
+					if ((f != null) && f.canRead()) {
+						bm = decodeFile(f, size);
+					} else {
+						try (ParcelFileDescriptor fd = ctx.getContentResolver().openFileDescriptor(u, "r")) {
+							if (fd != null) bm = BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor());
+						}
 					}
 					break;
 				case ContentResolver.SCHEME_ANDROID_RESOURCE:
@@ -223,7 +313,7 @@ public class BitmapCache {
 			}
 
 			if (bm == null) return null;
-			if (size != 0) bm = resizedBitmap(bm, size);
+			if (size != 0) bm = resize(bm, size);
 			return (cacheUri != null) ? cacheBitmap(cacheUri, bm) : bm;
 		} catch (Exception ex) {
 			Log.d(ex, "Failed to load bitmap: ", uri);
@@ -231,28 +321,40 @@ public class BitmapCache {
 		}
 	}
 
-	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private FutureSupplier<Bitmap> loadHttpBitmap(String uri, String cacheUri, int size) {
-		return downloadImage(uri).then(s -> {
-			if (s == null) return completedNull();
-			try (InputStream is = s.getFileStream(true)) {
-				Bitmap bm = BitmapFactory.decodeStream(is);
-
-				if (bm == null) {
-					File f = s.getLocalFile();
-					if (f != null) f.delete();
-					invalidBitmapUris.put(uri, uri);
-					return failed(new IOException("Failed to decode image: " + uri));
-				} else {
-					if (size != 0) bm = resizedBitmap(bm, size);
-					if (cacheUri != null) bm = cacheBitmap(cacheUri, bm);
-					return completed(bm);
+		return downloadImage(uri).then(s -> (s == null) ? completedNull()
+				: decoder.submitTask(() -> decodeHttpBitmap(uri, s, cacheUri, size)));
+	}
+
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	private Bitmap decodeHttpBitmap(String uri, Status s, String cacheUri, int size)
+			throws IOException {
+		File f = s.getLocalFile();
+
+		try {
+			Bitmap bm;
+
+			if ((f != null) && (s.getContentEncoding() == null)) {
+				bm = decodeFile(f, size);
+			} else {
+				try (InputStream is = s.getFileStream(true)) {
+					bm = BitmapFactory.decodeStream(is);
 				}
-			} catch (Exception ex) {
+			}
+
+			if (bm == null) {
+				if (f != null) f.delete();
 				invalidBitmapUris.put(uri, uri);
-				return failed(ex);
+				throw new IOException("Failed to decode image: " + uri);
+			} else {
+				if (size != 0) bm = resize(bm, size);
+				if (cacheUri != null) bm = cacheBitmap(cacheUri, bm);
+				return bm;
 			}
-		});
+		} catch (IOException | RuntimeException ex) {
+			invalidBitmapUris.put(uri, uri);
+			throw ex;
+		}
 	}
 
 	public FutureSupplier<Status> downloadImage(String uri) {
@@ -275,10 +377,11 @@ public class BitmapCache {
 		ImagePrefs ip = new ImagePrefs(prefs, path);
 		HttpFileDownloader d = new HttpFileDownloader();
 		d.setReturnExistingOnFail(true);
-		return d.download(uri, dst, ip).onFailure(ex -> {
-			Log.d(ex, "Failed to download image: ", uri);
-			invalidBitmapUris.put(uri, uri);
-		});
+		return d.download(uri, dst, ip).onSuccess(st -> written(st.bytesDownloaded()))
+				.onFailure(ex -> {
+					Log.d(ex, "Failed to download image: ", uri);
+					invalidBitmapUris.put(uri, uri);
+				});
 	}
 
 	public synchronized FutureSupplier<Uri> addImage(String uri,
@@ -296,6 +399,7 @@ public class BitmapCache {
 					} catch (Exception ex) {
 						Log.e(ex, "Failed to save image: ", f);
 					}
+					written(f.length());
 				}
 				return Uri.fromFile(f);
 			}
@@ -337,14 +441,212 @@ public class BitmapCache {
 
 			if (cachedRef != null) {
 				Bitmap cached = cachedRef.get();
-				if (cached != null) return cached;
+
+				if (cached != null) {
+					memCachePut(uri, cached);
+					return cached;
+				}
+
 				cache.put(uri, ref);
 			}
 
+			memCachePut(uri, bm);
 			return bm;
 		}
 	}
 
+	private void memCachePut(String uri, Bitmap bm) {
+		Bitmap old = memCache.put(uri, bm);
+		if (old != null) memCacheSize -= old.getAllocationByteCount();
+		memCacheSize += bm.getAllocationByteCount();
+
+		// The evicted bitmaps are still softly referenced
+		for (Iterator<Bitmap> it = memCache.values().iterator();
+				 (memCacheSize > memCacheMaxSize) && it.hasNext(); ) {
+			Bitmap e = it.next();
+			if (e == bm) continue;
+			it.remove();
+			memCacheSize -= e.getAllocationByteCount();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Decodes the file, reusing one of the bitmaps, released by {@link #resize(Bitmap, int)}.
+	 * If size is not 0, the image is downsampled by the largest power of 2, that keeps the
+	 * larger dimension not less than the size.
+	 */
+	@Nullable
+	private Bitmap decodeFile(File f, int size) {
+		String path = f.getPath();
+		BitmapFactory.Options o = new BitmapFactory.Options();
+		o.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, o);
+		int w = o.outWidth;
+		int h = o.outHeight;
+		if ((w <= 0) || (h <= 0)) return null;
+
+		int sample = 1;
+		if (size > 0) {
+			while ((Math.max(w, h) / (sample * 2)) >= size) sample *= 2;
+		}
+
+		o.inJustDecodeBounds = false;
+		o.inSampleSize = sample;
+		o.inMutable = true;
+		o.inBitmap = takeReusable(((w + sample - 1) / sample) * ((h + sample - 1) / sample) * 4);
+		if (o.inBitmap == null) return BitmapFactory.decodeFile(path, o);
+
+		try {
+			Bitmap bm = BitmapFactory.decodeFile(path, o);
+			reuses.incrementAndGet();
+			return bm;
+		} catch (IllegalArgumentException ex) {
+			Log.d(ex, "Failed to reuse bitmap");
+			o.inBitmap = null;
+			return BitmapFactory.decodeFile(path, o);
+		}
+	}
+
+	private Bitmap resize(Bitmap bm, int size) {
+		Bitmap resized = resizedBitmap(bm, size);
+		if ((resized != bm) && bm.isMutable()) releaseReusable(bm);
+		return resized;
+	}
+
+	@Nullable
+	private Bitmap takeReusable(int byteCount) {
+		synchronized (reusable) {
+			Bitmap match = null;
+
+			for (Bitmap bm : reusable) {
+				int count = bm.getAllocationByteCount();
+				if ((count >= byteCount) && ((match == null) || (count < match.getAllocationByteCount()))) {
+					match = bm;
+				}
+			}
+
+			if (match != null) reusable.remove(match);
+			return match;
+		}
+	}
+
+	private void releaseReusable(Bitmap bm) {
+		synchronized (reusable) {
+			if (reusable.size() == MAX_REUSABLE) reusable.remove(0);
+			reusable.add(bm);
+		}
+	}
+
+	/**
+	 * Trims the disk cache on the executor, unless it's already being trimmed.
+	 */
+	private void trim() {
+		if (!trimming.compareAndSet(false, true)) return;
+		written.set(0);
+		App.get().getExecutor().submit(() -> {
+			try {
+				trimDiskCache();
+			} catch (Throwable ex) {
+				Log.e(ex, "Failed to trim image cache");
+			} finally {
+				trimming.set(false);
+			}
+		});
+	}
+
+	private void written(long len) {
+		if (written.addAndGet(len) > TRIM_WRITTEN) trim();
+	}
+
+	/**
+	 * Deletes the least recently used icons and downloaded images, if the total size exceeds
+	 * the limit. The images, saved by {@link #saveBitmap(Bitmap, TextBuilder)} are referenced
+	 * from the metadata database and are never deleted.
+	 */
+	private void trimDiskCache() {
+		List<File> icons = new ArrayList<>();
+		listFiles(iconsCache, icons);
+		int n = trim(icons, MAX_ICONS_SIZE);
+
+		Set<String> paths = new HashSet<>();
+		for (String k : prefs.getAll().keySet()) {
+			int idx = k.lastIndexOf('#');
+			if (idx > 0) paths.add(k.substring(0, idx));
+		}
+
+		List<File> images = new ArrayList<>(paths.size());
+		for (String path : paths) {
+			File f = new File(imageCache, path);
+			if (f.isFile()) images.add(f);
+		}
+
+		int m = trim(images, MAX_IMAGES_SIZE);
+		if (m != 0) cleanUpPrefs();
+		Log.i("Image cache: deleted ", n, " icons and ", m, " images. ", this);
+	}
+
+	private static int trim(List<File> files, long maxSize) {
+		long total = 0;
+		long[] lastModified = new long[files.size()];
+
+		for (int i = 0; i < lastModified.length; i++) {
+			File f = files.get(i);
+			total += f.length();
+			lastModified[i] = f.lastModified();
+		}
+
+		if (total <= maxSize) return 0;
+
+		Integer[] order = new Integer[lastModified.length];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+		int deleted = 0;
+
+		for (int i = 0; (i < order.length) && (total > maxSize); i++) {
+			File f = files.get(order[i]);
+			long len = f.length();
+			if (!f.delete()) continue;
+			total -= len;
+			deleted++;
+		}
+
+		return deleted;
+	}
+
+	private static void listFiles(File dir, List<File> files) {
+		File[] ls = dir.listFiles();
+		if (ls == null) return;
+
+		for (File f : ls) {
+			if (f.isDirectory()) listFiles(f, files);
+			else files.add(f);
+		}
+	}
+
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	private static void touch(File f) {
+		long time = System.currentTimeMillis();
+		if ((time - f.lastModified()) > 24 * 3600000L) f.setLastModified(time);
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		long size;
+		synchronized (cache) {
+			size = memCacheSize;
+		}
+		return "BitmapCache{" +
+				"memSize=" + size +
+				", memMaxSize=" + memCacheMaxSize +
+				", hits=" + hits.get() +
+				", misses=" + misses.get() +
+				", evictions=" + evictions.get() +
+				", reuses=" + reuses.get() +
+				'}';
+	}
+
 	private static int getIconSize(Context ctx) {
 		return 3 * smallIconSize(ctx);
 	}
@@ -411,6 +713,8 @@ public class BitmapCache {
 		} catch (Exception ex) {
 			Log.e(ex, "Failed to save icon: ", f);
 		}
+
+		written(f.length());
 	}
 
 	private String toIconUri(String imageUri, int size) {
@@ -451,6 +755,73 @@ public class BitmapCache {
 		}
 	}
 
+	private final class SharedLoad extends Promise<Bitmap> {
+		final String key;
+		volatile FutureSupplier<Bitmap> task;
+		int refs;
+
+		SharedLoad(String key) {
+			this.key = key;
+		}
+
+		void start(CheckedSupplier<FutureSupplier<Bitmap>, Throwable> load) {
+			FutureSupplier<Bitmap> t;
+
+			try {
+				t = load.get();
+			} catch (Throwable ex) {
+				t = failed(ex);
+			}
+
+			task = t;
+			if (isCancelled()) t.cancel();
+
+			t.onCompletion((bm, err) -> {
+				synchronized (loading) {
+					CollectionUtils.remove(loading, key, this);
+				}
+
+				if (err != null) completeExceptionally(err);
+				else complete(bm);
+			});
+		}
+
+		FutureSupplier<Bitmap> newRef() {
+			Promise<Bitmap> ref = new Promise<Bitmap>() {
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					if (!super.cancel(mayInterruptIfRunning)) return false;
+					release();
+					return true;
+				}
+			};
+			onCompletion((bm, err) -> {
+				if (err != null) ref.completeExceptionally(err);
+				else ref.complete(bm);
+			});
+			return ref;
+		}
+
+		private void release() {
+			synchronized (loading) {
+				if (--refs != 0) return;
+				CollectionUtils.remove(loading, key, this);
+			}
+
+			cancel();
+			FutureSupplier<Bitmap> t = task;
+			if (t != null) t.cancel();
+		}
+	}
+
+	private static final class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+		@Override
+		public boolean offer(Runnable r) {
+			return offerFirst(r);
+		}
+	}
+
 	private static final class Ref extends SoftReference<Bitmap> {
 		final Object key;
 
@@ -9,6 +9,7 @@ import static me.aap.fermata.media.sub.SubGrid.Position.BOTTOM_RIGHT;
 import static me.aap.utils.async.Completed.cancelled;
 import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedEmptyList;
+import static me.aap.utils.async.Completed.completedNull;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.collection.CollectionUtils.comparing;
 import static me.aap.utils.text.TextUtils.timeToString;
@@ -23,9 +24,11 @@ import java.util.List;
 
 import me.aap.fermata.BuildConfig;
 import me.aap.fermata.addon.SubGenAddon;
+import me.aap.fermata.addon.TranslateAddon;
 import me.aap.fermata.media.sub.FileSubtitles;
 import me.aap.fermata.media.sub.SubGrid;
 import me.aap.fermata.media.sub.SubScheduler;
+import me.aap.fermata.media.sub.SubTranslator;
 import me.aap.fermata.media.sub.Subtitles;
 import me.aap.fermata.ui.view.VideoView;
 import me.aap.utils.app.App;
@@ -217,6 +220,7 @@ public abstract class MediaEngineBase implements MediaEngine {
 				new ArrayList<>(3);
 		private int delay;
 		private SubScheduler sub;
+		private SubTranslator translator;
 		private SubtitleStreamInfo streamInfo;
 		private FutureSupplier<SubScheduler> loading = cancelled();
 
@@ -320,11 +324,44 @@ public abstract class MediaEngineBase implements MediaEngine {
 				if ((sg == null) || (sub != null) || (inf != streamInfo)) return null;
 				sub = new SubScheduler(App.get().getHandler(), sg, this,
 						MediaEngineBase.this::subSchedulerClock);
+				if (inf.getFiles().size() == 1) translate(sg, inf);
 				if ((state == STATE_PLAYING) && !consumers.isEmpty()) start();
 				return sub;
 			});
 		}
 
+		/**
+		 * Translates the file subtitles ahead of playback, if translation is enabled. The source
+		 * language is taken from the stream info or from the preferences, if not detected.
+		 */
+		private void translate(SubGrid sg, SubtitleStreamInfo inf) {
+			var src = getSource();
+			if (src == null) return;
+			var ps = src.getPrefs();
+			if (!ps.getBooleanPref(SubGenAddon.TRANSLATE)) return;
+
+			var srcLang = inf.getIsoLanguage();
+			if (srcLang == null) srcLang = ps.getStringPref(SubGenAddon.LANG);
+			if ((srcLang == null) || srcLang.equals("auto")) {
+				Log.d("Unable to translate subtitles - unknown language: ", inf.getFiles().get(0));
+				return;
+			}
+
+			var lang = srcLang;
+			var targetLang = ps.getStringPref(SubGenAddon.TRANSLATE_LANG);
+			if (lang.equals(targetLang)) return;
+
+			TranslateAddon.get().then(a -> (a == null) ? completedNull() :
+					a.getTranslator(ps, lang, targetLang)).main().onSuccess(tr -> {
+				if ((tr == null) || (sub == null) || (sub.getSubtitles() != sg)) return;
+				var t = translator = new SubTranslator(sg, tr);
+				if (videoView != null) prepareDrawer(videoView);
+				getSubtitlePosition().main().onSuccess(pos -> {
+					if (t == translator) t.seek(pos + delay);
+				});
+			}).onFailure(err -> Log.e(err, "Failed to get translator"));
+		}
+
 		@Override
 		public void accept(SubGrid.Position position, Subtitles.Text text) {
 			for (var c : consumers) c.accept(position, text);
@@ -357,6 +394,7 @@ public abstract class MediaEngineBase implements MediaEngine {
 					}
 				}
 				sub.start(pos, delay, speed);
+				if (translator != null) translator.seek(pos + delay);
 			}));
 		}
 
@@ -370,12 +408,17 @@ public abstract class MediaEngineBase implements MediaEngine {
 					sub.stop(false);
 					sub = null;
 				}
+				if (translator != null) {
+					translator.cancel();
+					translator = null;
+				}
 				consumers.clear();
 			}
 		}
 
 		void sync(long position, float speed, boolean restart) {
 			if (sub == null) return;
+			if (translator != null) translator.seek(position + getSubtitleDelay());
 			if (restart) {
 				sub.stop(false);
 				sub.start(position, getSubtitleDelay(), speed);
@@ -387,7 +430,7 @@ public abstract class MediaEngineBase implements MediaEngine {
 
 		private void prepareDrawer(VideoView videoView) {
 			boolean dbl = (streamInfo != null) && (streamInfo.getFiles().size() == 2) ||
-					(streamInfo instanceof SubtitleStreamInfo.Generated);
+					(streamInfo instanceof SubtitleStreamInfo.Generated) || (translator != null);
 			videoView.prepareSubDrawer(dbl);
 		}
 	}
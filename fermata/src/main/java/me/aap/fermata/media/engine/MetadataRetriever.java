@@ -4,19 +4,21 @@ import static android.os.Build.VERSION.SDK_INT;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static me.aap.fermata.media.pref.MediaPrefs.MEDIA_SCANNER_DEFAULT;
 import static me.aap.fermata.media.pref.MediaPrefs.MEDIA_SCANNER_SYSTEM;
 import static me.aap.fermata.media.pref.MediaPrefs.MEDIA_SCANNER_VLC;
+import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedEmptyList;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.security.SecurityUtils.SHA1_DIGEST_LEN;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.media.MediaMetadata;
 import android.net.Uri;
@@ -30,7 +32,9 @@ import java.io.Closeable;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -49,6 +53,7 @@ import me.aap.utils.pref.PreferenceStore;
 import me.aap.utils.pref.PreferenceStore.Pref;
 import me.aap.utils.text.SharedTextBuilder;
 import me.aap.utils.text.TextBuilder;
+import me.aap.utils.text.TextUtils;
 import me.aap.utils.vfs.VirtualFileSystem;
 import me.aap.utils.vfs.VirtualResource;
 import me.aap.utils.vfs.content.ContentFileSystem;
@@ -60,6 +65,10 @@ import me.aap.utils.vfs.local.LocalFileSystem;
  */
 public class MetadataRetriever implements Closeable {
 	private static final String TABLE = "Metadata";
+	private static final String FTS_TABLE = "MetadataFts";
+	private static final int FTS_MAX_CANDIDATES = 5000;
+	private static final int BATCH_SIZE = 200;
+	private static final long BATCH_DELAY = 3000;
 	private static final String COL_ID = "Id";
 	private static final String COL_TITLE = "Title";
 	private static final String COL_ALBUM = "Album";
@@ -71,6 +80,10 @@ public class MetadataRetriever implements Closeable {
 	private static final String COL_ART = "Art";
 	private static final String COL_DURATION = "Duration";
 	private static final String COL_ID_PATTERN = COL_ID + " LIKE ? AND NOT " + COL_ID + " LIKE ?";
+	private static final String INSERT = "INSERT OR IGNORE INTO " + TABLE + " (" + COL_ID + ", " +
+			COL_TITLE + ", " + COL_ALBUM + ", " + COL_ARTIST + ", " + COL_ALBUM_ARTIST + ", " +
+			COL_COMPOSER + ", " + COL_WRITER + ", " + COL_GENRE + ", " + COL_DURATION + ", " + COL_ART +
+			") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 	private static final String[] QUERY_COLUMNS =
 			{COL_ID, COL_TITLE, COL_ALBUM, COL_ARTIST, COL_DURATION, COL_ART};
 	private static final byte ART_URI = 0;
@@ -99,6 +112,13 @@ public class MetadataRetriever implements Closeable {
 	@Nullable
 	private final SQLiteDatabase db;
 	private final PromiseQueue queue = new PromiseQueue(App.get().getExecutor());
+	private final MetadataScheduler scheduler = new MetadataScheduler();
+	private final Map<String, MetaBuilder> pendingInserts = new LinkedHashMap<>();
+	private final Map<String, Long> pendingDurations = new HashMap<>();
+	private boolean flushScheduled;
+	private SQLiteStatement insert;
+	private SQLiteStatement durationUpdate;
+	private SQLiteStatement ftsInsert;
 
 	public MetadataRetriever(MediaEngineManager mgr) {
 		this.mgr = mgr;
@@ -131,17 +151,35 @@ public class MetadataRetriever implements Closeable {
 
 	@Override
 	public void close() {
-		if (db != null) db.close();
+		scheduler.close();
+		if (db == null) return;
+		queue.enqueue(() -> {
+			flush();
+			if (insert != null) insert.close();
+			if (durationUpdate != null) durationUpdate.close();
+			if (ftsInsert != null) ftsInsert.close();
+			db.close();
+			return null;
+		});
 	}
 
 	public FutureSupplier<MetadataBuilder> getMediaMetadata(PlayableItem item) {
-		return queue.enqueue(() -> load(item));
+		return queue.enqueue(() -> queryMetadata(item)).then(meta -> {
+			if (meta != null) return completed(meta);
+			return scheduler.schedule(item, () -> extract(item))
+					.then(mb -> queue.enqueue(() -> save(mb, item)));
+		});
 	}
 
-	private MetadataBuilder load(PlayableItem item) {
-		MetadataBuilder meta = queryMetadata(item);
-		if (meta != null) return meta;
+	/**
+	 * Start the metadata extraction of the specified item before the other pending items,
+	 * e.g. when the item becomes visible.
+	 */
+	public void prioritize(PlayableItem item) {
+		scheduler.prioritize(item);
+	}
 
+	private MetaBuilder extract(PlayableItem item) {
 		MetaBuilder mb = new MetaBuilder();
 		VirtualResource res = item.getResource();
 		VirtualFileSystem fs = res.getVirtualFileSystem();
@@ -149,7 +187,7 @@ public class MetadataRetriever implements Closeable {
 		if (fs instanceof LocalFileSystem) {
 			try {
 				if (queryMediaStore(item, mb)) {
-					insertMetadata(mb, item);
+					mb.save = true;
 					return mb;
 				}
 			} catch (Throwable ex) {
@@ -158,7 +196,7 @@ public class MetadataRetriever implements Closeable {
 		} else if ((fs instanceof ContentFileSystem) || "content".equals(res.getRid().getScheme())) {
 			try {
 				if (queryContentProvider(item, mb)) {
-					insertMetadata(mb, item);
+					mb.save = true;
 					return mb;
 				}
 			} catch (Throwable ex) {
@@ -178,14 +216,18 @@ public class MetadataRetriever implements Closeable {
 				if (mgr.vlcPlayer != null) mgr.vlcPlayer.getMediaMetadata(mb, item);
 		}
 
-		if (item.isCacheable()) {
+		mb.save = item.isCacheable();
+		return mb;
+	}
+
+	private MetadataBuilder save(MetaBuilder mb, PlayableItem item) {
+		if (mb.save) {
 			try {
 				insertMetadata(mb, item);
 			} catch (Throwable ex) {
-				Log.e(ex, "Failed to update MediaStore");
+				Log.e(ex, "Failed to save media metadata");
 			}
 		}
-
 		return mb;
 	}
 
@@ -352,6 +394,7 @@ public class MetadataRetriever implements Closeable {
 																																		BrowsableItem br) {
 		if (db == null) return queue.enqueue(() -> queryMediaStore(br));
 		return queue.enqueue(() -> {
+			flush();
 			Map<String, MetadataBuilder> m = query(idPattern);
 			return m.isEmpty() ? queryMediaStore(br) : m;
 		});
@@ -362,45 +405,124 @@ public class MetadataRetriever implements Closeable {
 	}
 
 	public FutureSupplier<List<String>> queryIds(String pattern, int max) {
-		return (db != null) ? queue.enqueue(() -> {
-			List<String> ids = new ArrayList<>(max);
-			try (Cursor c = db.query(TABLE, new String[]{COL_ID},
-					COL_TITLE + " = ? OR " + COL_ARTIST + " = ? OR " + COL_ALBUM + " = ? LIMIT " + max,
-					new String[]{pattern, pattern, pattern}, null, null, null)) {
-				while (c.moveToNext()) ids.add(c.getString(0));
+		if (db == null) return completedEmptyList();
+		return queue.enqueue(() -> {
+			flush();
+			if (ftsInsert != null) {
+				try {
+					return queryFts(pattern, max);
+				} catch (Throwable ex) {
+					Log.e(ex, "Full-text search failed: ", pattern);
+				}
 			}
-			if (!ids.isEmpty()) return ids;
+			return queryLike(pattern, max);
+		});
+	}
 
-			String[] p = {'%' + pattern + '%'};
-			try (Cursor c = db.query(TABLE, new String[]{COL_ID}, COL_TITLE + " LIKE ?  LIMIT " + max, p,
-					null, null, null)) {
-				while (c.moveToNext()) ids.add(c.getString(0));
+	private List<String> queryFts(String pattern, int max) {
+		assert db != null;
+		String query = TextUtils.normalize(pattern).trim();
+		List<String> tokens = tokenize(query);
+		if (tokens.isEmpty()) return emptyList();
+
+		String match;
+		try (SharedTextBuilder tb = SharedTextBuilder.get()) {
+			for (String t : tokens) {
+				if (tb.length() != 0) tb.append(' ');
+				tb.append(t).append('*');
 			}
-			if (!ids.isEmpty()) return ids;
-			try (Cursor c = db.query(TABLE, new String[]{COL_ID}, COL_ARTIST + " LIKE ?  LIMIT + " + max,
-					p, null, null, null)) {
-				while (c.moveToNext()) ids.add(c.getString(0));
+			match = tb.toString();
+		}
+
+		List<FtsMatch> matches = new ArrayList<>();
+		try (Cursor c = db.rawQuery("SELECT " + TABLE + '.' + COL_ID + ", " + FTS_TABLE + '.' +
+				COL_TITLE + ", " + FTS_TABLE + '.' + COL_ARTIST + ", " + FTS_TABLE + '.' + COL_ALBUM +
+				" FROM " + FTS_TABLE + " JOIN " + TABLE + " ON " + TABLE + ".rowid = " + FTS_TABLE +
+				".docid WHERE " + FTS_TABLE + " MATCH ? LIMIT " + FTS_MAX_CANDIDATES, new String[]{match})) {
+			while (c.moveToNext()) {
+				int score = score(c.getString(1), query, tokens, 3) + score(c.getString(2), query, tokens, 2)
+						+ score(c.getString(3), query, tokens, 1);
+				matches.add(new FtsMatch(c.getString(0), score));
 			}
-			if (!ids.isEmpty()) return ids;
-			try (Cursor c = db.query(TABLE, new String[]{COL_ID}, COL_ALBUM + " LIKE ?  LIMIT " + max, p,
-					null, null, null)) {
-				while (c.moveToNext()) ids.add(c.getString(0));
+		}
+
+		if (matches.isEmpty()) return emptyList();
+		Collections.sort(matches);
+		int size = Math.min(max, matches.size());
+		List<String> ids = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			ids.add(matches.get(i).id);
+		}
+		return ids;
+	}
+
+	private static List<String> tokenize(String s) {
+		List<String> tokens = new ArrayList<>();
+		for (int i = 0, n = s.length(), start = -1; i <= n; i++) {
+			if ((i < n) && Character.isLetterOrDigit(s.charAt(i))) {
+				if (start == -1) start = i;
+			} else if (start != -1) {
+				tokens.add(s.substring(start, i));
+				start = -1;
 			}
-			return ids.isEmpty() ? emptyList() : ids;
-		}) : completedEmptyList();
+		}
+		return tokens;
+	}
+
+	private static int score(String field, String query, List<String> tokens, int weight) {
+		if (field == null) return 0;
+		if (field.equals(query)) return 100 * weight;
+		int n = 0;
+		for (String t : tokens) {
+			if (field.contains(t)) n++;
+		}
+		return (n == tokens.size()) ? 10 * weight : n * weight;
+	}
+
+	private List<String> queryLike(String pattern, int max) {
+		assert db != null;
+		List<String> ids = new ArrayList<>(max);
+		try (Cursor c = db.query(TABLE, new String[]{COL_ID},
+				COL_TITLE + " = ? OR " + COL_ARTIST + " = ? OR " + COL_ALBUM + " = ? LIMIT " + max,
+				new String[]{pattern, pattern, pattern}, null, null, null)) {
+			while (c.moveToNext()) ids.add(c.getString(0));
+		}
+		if (!ids.isEmpty()) return ids;
+
+		String[] p = {'%' + pattern + '%'};
+		try (Cursor c = db.query(TABLE, new String[]{COL_ID}, COL_TITLE + " LIKE ?  LIMIT " + max, p,
+				null, null, null)) {
+			while (c.moveToNext()) ids.add(c.getString(0));
+		}
+		if (!ids.isEmpty()) return ids;
+		try (Cursor c = db.query(TABLE, new String[]{COL_ID}, COL_ARTIST + " LIKE ?  LIMIT " + max,
+				p, null, null, null)) {
+			while (c.moveToNext()) ids.add(c.getString(0));
+		}
+		if (!ids.isEmpty()) return ids;
+		try (Cursor c = db.query(TABLE, new String[]{COL_ID}, COL_ALBUM + " LIKE ?  LIMIT " + max, p,
+				null, null, null)) {
+			while (c.moveToNext()) ids.add(c.getString(0));
+		}
+		return ids.isEmpty() ? emptyList() : ids;
 	}
 
 	public FutureSupplier<Void> clearMetadata(String idPattern) {
-		return (db != null) ? queue.enqueue(() -> clear(idPattern)) : completedVoid();
+		return (db != null) ? queue.enqueue(() -> {
+			flush();
+			return clear(idPattern);
+		}) : completedVoid();
 	}
 
 	public void updateDuration(PlayableItem item, long duration) {
 		if (db == null) return;
 
 		queue.enqueue(() -> {
-			ContentValues values = new ContentValues(1);
-			values.put(COL_DURATION, duration);
-			db.update(TABLE, values, COL_ID + " = ?", new String[]{item.getId()});
+			String id = item.getId();
+			MetaBuilder pending = pendingInserts.get(id);
+			if (pending != null) pending.putLong(MediaMetadata.METADATA_KEY_DURATION, duration);
+			else pendingDurations.put(id, duration);
+			scheduleFlush();
 			return null;
 		});
 	}
@@ -433,8 +555,13 @@ public class MetadataRetriever implements Closeable {
 	private Void clear(String idPattern) {
 		try {
 			String not = SharedTextBuilder.get().append(idPattern).append("%/%").releaseString();
+			String[] args = {idPattern, not};
 			assert db != null;
-			db.delete(TABLE, COL_ID_PATTERN, new String[]{idPattern, not});
+			if (ftsInsert != null) {
+				db.delete(FTS_TABLE, "docid IN (SELECT rowid FROM " + TABLE + " WHERE " + COL_ID_PATTERN +
+						')', args);
+			}
+			db.delete(TABLE, COL_ID_PATTERN, args);
 		} catch (Throwable ex) {
 			Log.d(ex, "Failed to clear media metadata");
 		}
@@ -443,8 +570,11 @@ public class MetadataRetriever implements Closeable {
 
 	private MetadataBuilder queryMetadata(PlayableItem item) {
 		if (db == null) return null;
+		String id = item.getOrigId();
+		MetaBuilder pending = pendingInserts.get(id);
+		if (pending != null) return pending;
 
-		try (Cursor c = db.query(TABLE, QUERY_COLUMNS, COL_ID + " = ?", new String[]{item.getOrigId()},
+		try (Cursor c = db.query(TABLE, QUERY_COLUMNS, COL_ID + " = ?", new String[]{id},
 				null, null, null); SharedTextBuilder tb = SharedTextBuilder.get()) {
 			if (!c.moveToNext()) return null;
 			MetadataBuilder meta = new MetaBuilder();
@@ -491,6 +621,8 @@ public class MetadataRetriever implements Closeable {
 		Bitmap bm = meta.image;
 
 		if (bm != null) {
+			meta.image = null;
+
 			try (SharedTextBuilder tb = SharedTextBuilder.get()) {
 				byte[] hash = bitmapCache.saveBitmap(bm, tb);
 
@@ -498,7 +630,7 @@ public class MetadataRetriever implements Closeable {
 					meta.setImageUri(bitmapCache.getImageUri(hash, tb));
 					byte[] art = Arrays.copyOf(hash, hash.length + 1);
 					art[hash.length] = ART_HASH;
-					meta.setArt(art);
+					meta.art = art;
 				}
 			}
 		} else {
@@ -508,12 +640,86 @@ public class MetadataRetriever implements Closeable {
 				byte[] b = uri.getBytes(UTF_8);
 				byte[] art = Arrays.copyOf(b, b.length + 1);
 				art[b.length] = ART_URI;
-				meta.setArt(art);
+				meta.art = art;
+			}
+		}
+
+		meta.id = id;
+		pendingDurations.remove(id);
+		if (pendingInserts.putIfAbsent(id, meta) != null) return;
+		if (pendingInserts.size() >= BATCH_SIZE) flush();
+		else scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled) return;
+		flushScheduled = true;
+		App.get().getScheduler().schedule(() -> queue.enqueue(() -> {
+			flush();
+			return null;
+		}), BATCH_DELAY, MILLISECONDS);
+	}
+
+	/**
+	 * Writes the pending inserts and updates in a single transaction. Must be called from the queue.
+	 */
+	private void flush() {
+		flushScheduled = false;
+		if ((db == null) || (pendingInserts.isEmpty() && pendingDurations.isEmpty())) return;
+
+		try {
+			db.beginTransaction();
+
+			try {
+				if (!pendingInserts.isEmpty()) {
+					if (insert == null) insert = db.compileStatement(INSERT);
+
+					for (MetaBuilder meta : pendingInserts.values()) {
+						meta.bind(insert);
+						long rowId = insert.executeInsert();
+						if ((rowId != -1) && (ftsInsert != null)) {
+							insertFts(rowId, meta.title, meta.artist, meta.album);
+						}
+					}
+				}
+
+				if (!pendingDurations.isEmpty()) {
+					if (durationUpdate == null) {
+						durationUpdate = db.compileStatement("UPDATE " + TABLE + " SET " + COL_DURATION +
+								" = ? WHERE " + COL_ID + " = ?");
+					}
+
+					for (Map.Entry<String, Long> e : pendingDurations.entrySet()) {
+						durationUpdate.bindLong(1, e.getValue());
+						durationUpdate.bindString(2, e.getKey());
+						durationUpdate.executeUpdateDelete();
+					}
+				}
+
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
 			}
+		} catch (Throwable ex) {
+			Log.e(ex, "Failed to save media metadata");
+		} finally {
+			pendingInserts.clear();
+			pendingDurations.clear();
 		}
+	}
 
-		meta.setId(id);
-		meta.insert(db);
+	private void insertFts(long rowId, String title, String artist, String album) {
+		SQLiteStatement st = ftsInsert;
+		st.bindLong(1, rowId);
+		bindNormalized(st, 2, title);
+		bindNormalized(st, 3, artist);
+		bindNormalized(st, 4, album);
+		st.executeInsert();
+	}
+
+	private static void bindNormalized(SQLiteStatement st, int idx, String value) {
+		if (value == null) st.bindNull(idx);
+		else st.bindString(idx, TextUtils.normalize(value));
 	}
 
 	private void createTable() {
@@ -524,6 +730,7 @@ public class MetadataRetriever implements Closeable {
 
 		if (ps.getIntPref(version) < 70) {
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE);
 			ps.applyIntPref(version, BuildConfig.VERSION_CODE);
 		}
 
@@ -533,23 +740,88 @@ public class MetadataRetriever implements Closeable {
 						COL_ALBUM_ARTIST + " VARCHAR, " + COL_COMPOSER + " VARCHAR, " + COL_WRITER +
 						" VARCHAR, " + COL_GENRE + " VARCHAR, " + COL_DURATION + " INTEGER, " + COL_ART +
 						" BLOB " + ");");
+		createFtsTable();
+	}
+
+	/**
+	 * Full-text index over the normalized (see {@link TextUtils#normalize(String)}) title, artist
+	 * and album. The docid of an index row is the rowid of the corresponding metadata row.
+	 */
+	private void createFtsTable() {
+		assert db != null;
+
+		try {
+			boolean exists;
+			try (Cursor c = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+					new String[]{FTS_TABLE})) {
+				exists = c.moveToNext();
+			}
+
+			if (!exists) {
+				db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE + " USING fts4(" + COL_TITLE + ", " +
+						COL_ARTIST + ", " + COL_ALBUM + ")");
+			}
+
+			ftsInsert = db.compileStatement("INSERT INTO " + FTS_TABLE + "(docid, " + COL_TITLE + ", " +
+					COL_ARTIST + ", " + COL_ALBUM + ") VALUES (?, ?, ?, ?)");
+			if (exists) return;
+
+			db.beginTransaction();
+			try (Cursor c = db.query(TABLE, new String[]{"rowid", COL_TITLE, COL_ARTIST, COL_ALBUM},
+					null, null, null, null, null)) {
+				while (c.moveToNext()) {
+					insertFts(c.getLong(0), c.getString(1), c.getString(2), c.getString(3));
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (Throwable ex) {
+			Log.e(ex, "Failed to create full-text search index");
+			ftsInsert = null;
+		}
+	}
+
+	private static final class FtsMatch implements Comparable<FtsMatch> {
+		final String id;
+		final int score;
+
+		FtsMatch(String id, int score) {
+			this.id = id;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(FtsMatch o) {
+			return Integer.compare(o.score, score);
+		}
 	}
 
 	private static final class MetaBuilder extends MetadataBuilder {
-		private final ContentValues values = new ContentValues(10);
+		String id;
+		String title;
+		String album;
+		String artist;
+		String albumArtist;
+		String composer;
+		String writer;
+		String genre;
+		long duration;
+		byte[] art;
 		boolean durationSet;
+		boolean save;
 		Bitmap image;
 
 		@Override
 		public void putString(String k, String v) {
 			switch (k) {
-				case MediaMetadataCompat.METADATA_KEY_TITLE -> values.put(COL_TITLE, v);
-				case MediaMetadataCompat.METADATA_KEY_ALBUM -> values.put(COL_ALBUM, v);
-				case MediaMetadataCompat.METADATA_KEY_ARTIST -> values.put(COL_ARTIST, v);
-				case MediaMetadataCompat.METADATA_KEY_ALBUM_ARTIST -> values.put(COL_ALBUM_ARTIST, v);
-				case MediaMetadataCompat.METADATA_KEY_COMPOSER -> values.put(COL_COMPOSER, v);
-				case MediaMetadataCompat.METADATA_KEY_WRITER -> values.put(COL_WRITER, v);
-				case MediaMetadataCompat.METADATA_KEY_GENRE -> values.put(COL_GENRE, v);
+				case MediaMetadataCompat.METADATA_KEY_TITLE -> title = v;
+				case MediaMetadataCompat.METADATA_KEY_ALBUM -> album = v;
+				case MediaMetadataCompat.METADATA_KEY_ARTIST -> artist = v;
+				case MediaMetadataCompat.METADATA_KEY_ALBUM_ARTIST -> albumArtist = v;
+				case MediaMetadataCompat.METADATA_KEY_COMPOSER -> composer = v;
+				case MediaMetadataCompat.METADATA_KEY_WRITER -> writer = v;
+				case MediaMetadataCompat.METADATA_KEY_GENRE -> genre = v;
 				case MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI -> {
 					setImageUri(v);
 					return;
@@ -562,7 +834,7 @@ public class MetadataRetriever implements Closeable {
 		@Override
 		public void putLong(String key, long value) {
 			if (MediaMetadata.METADATA_KEY_DURATION.equals(key)) {
-				values.put(COL_DURATION, value);
+				duration = value;
 				durationSet = true;
 			}
 
@@ -575,16 +847,23 @@ public class MetadataRetriever implements Closeable {
 			else super.putBitmap(key, value);
 		}
 
-		void setId(String id) {
-			values.put(COL_ID, id);
-		}
-
-		void setArt(byte[] art) {
-			values.put(COL_ART, art);
+		void bind(SQLiteStatement st) {
+			st.bindString(1, id);
+			bind(st, 2, title);
+			bind(st, 3, album);
+			bind(st, 4, artist);
+			bind(st, 5, albumArtist);
+			bind(st, 6, composer);
+			bind(st, 7, writer);
+			bind(st, 8, genre);
+			st.bindLong(9, duration);
+			if (art == null) st.bindNull(10);
+			else st.bindBlob(10, art);
 		}
 
-		void insert(SQLiteDatabase db) {
-			db.insert(TABLE, null, values);
+		private static void bind(SQLiteStatement st, int idx, String value) {
+			if (value == null) st.bindNull(idx);
+			else st.bindString(idx, value);
 		}
 	}
 }
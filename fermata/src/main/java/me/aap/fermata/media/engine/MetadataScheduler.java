@@ -0,0 +1,173 @@
+package me.aap.fermata.media.engine;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.aap.utils.async.Completed.cancelled;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import me.aap.fermata.media.lib.MediaLib.PlayableItem;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.concurrent.ThreadPool;
+import me.aap.utils.function.CheckedSupplier;
+import me.aap.utils.vfs.VirtualFileSystem;
+import me.aap.utils.vfs.VirtualResource;
+
+/**
+ * Runs metadata extraction tasks in parallel. The number of concurrent tasks is limited per
+ * file system by {@link VirtualFileSystem#getMaxConcurrentReads()}. The pending tasks are
+ * started in the FIFO order, unless an item is prioritized with {@link #prioritize(PlayableItem)}.
+ * The scheduler must be closed, when no longer needed, to stop the threads.
+ *
+ * @author Andrey Pavlenko
+ */
+final class MetadataScheduler {
+	private final ThreadPool executor;
+	private final Map<VirtualFileSystem, Group> groups = new HashMap<>();
+	// The same item may be scheduled multiple times
+	private final Map<PlayableItem, List<Task<?>>> pending = new HashMap<>();
+	private boolean closed;
+
+	MetadataScheduler() {
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		// The tasks, rejected after close, are cancelled
+		executor = new ThreadPool(threads, threads, 30L, SECONDS, new LinkedBlockingQueue<>(),
+				(task, pool) -> ((Task<?>) task).cancel());
+	}
+
+	<T> FutureSupplier<T> schedule(PlayableItem item, CheckedSupplier<T, Throwable> task) {
+		VirtualResource res = item.getResource();
+		VirtualFileSystem fs = (res == null) ? null : res.getVirtualFileSystem();
+		Task<T> t;
+
+		synchronized (this) {
+			if (closed) return cancelled();
+			Group g = groups.get(fs);
+
+			if (g == null) {
+				int max = (fs == null) ? 1 : Math.max(1, fs.getMaxConcurrentReads());
+				g = new Group(max);
+				groups.put(fs, g);
+			}
+
+			t = new Task<>(g, item, task);
+			g.queue.addLast(t);
+			List<Task<?>> list = pending.get(item);
+
+			if (list == null) {
+				list = new ArrayList<>(1);
+				pending.put(item, list);
+			}
+
+			list.add(t);
+		}
+
+		run();
+		return t;
+	}
+
+	void prioritize(PlayableItem item) {
+		synchronized (this) {
+			List<Task<?>> list = pending.get(item);
+			if (list == null) return;
+
+			for (int i = list.size() - 1; i >= 0; i--) {
+				Task<?> t = list.get(i);
+				if (t.group.queue.removeFirstOccurrence(t)) t.group.queue.addFirst(t);
+			}
+		}
+	}
+
+	/**
+	 * Cancels the pending tasks and stops the threads.
+	 */
+	void close() {
+		List<Task<?>> cancel = new ArrayList<>();
+
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+
+			for (Group g : groups.values()) {
+				cancel.addAll(g.queue);
+				g.queue.clear();
+			}
+
+			pending.clear();
+		}
+
+		executor.shutdown();
+		for (Task<?> t : cancel) t.cancel();
+	}
+
+	private void run() {
+		for (; ; ) {
+			Task<?> t = null;
+
+			synchronized (this) {
+				for (Group g : groups.values()) {
+					if ((g.running >= g.max) || g.queue.isEmpty()) continue;
+					t = g.queue.pollFirst();
+					removePending(t);
+					g.running++;
+					break;
+				}
+			}
+
+			if (t == null) return;
+			executor.execute(t);
+		}
+	}
+
+	private void removePending(Task<?> t) {
+		List<Task<?>> list = pending.get(t.item);
+		if (list == null) return;
+		list.remove(t);
+		if (list.isEmpty()) pending.remove(t.item);
+	}
+
+	private void done(Group g) {
+		synchronized (this) {
+			g.running--;
+		}
+		run();
+	}
+
+	private static final class Group {
+		final ArrayDeque<Task<?>> queue = new ArrayDeque<>();
+		final int max;
+		int running;
+
+		Group(int max) {
+			this.max = max;
+		}
+	}
+
+	private final class Task<T> extends Promise<T> implements Runnable {
+		final Group group;
+		final PlayableItem item;
+		final CheckedSupplier<T, Throwable> task;
+
+		Task(Group group, PlayableItem item, CheckedSupplier<T, Throwable> task) {
+			this.group = group;
+			this.item = item;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!isDone()) complete(task.get());
+			} catch (Throwable ex) {
+				completeExceptionally(ex);
+			} finally {
+				done(group);
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@ import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedEmptyList;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.collection.CollectionUtils.filterMap;
+import static me.aap.utils.collection.NaturalOrderComparator.collationKey;
 import static me.aap.utils.collection.NaturalOrderComparator.compareNatural;
 
 import android.support.v4.media.MediaMetadataCompat;
@@ -16,7 +17,6 @@ import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
@@ -46,6 +46,7 @@ public abstract class BrowsableItemBase extends ItemBase implements BrowsableIte
 	@SuppressWarnings("unused")
 	private volatile FutureSupplier<List<Item>> children;
 	private FutureSupplier<Iterator<PlayableItem>> shuffle;
+	private volatile SortKeys sortKeys;
 
 	public BrowsableItemBase(String id, @Nullable BrowsableItem parent, @Nullable VirtualResource resource) {
 		super(id, parent, resource);
@@ -135,14 +136,26 @@ public abstract class BrowsableItemBase extends ItemBase implements BrowsableIte
 					playable = filterMap(children, PlayableItem.class::isInstance, PlayableItem.class::cast);
 				}
 
-				return playable.isEmpty() ? completedVoid() : Async.forEach(PlayableItem::getMediaData, playable);
+				return playable.isEmpty() ? completedVoid() : loadMediaData(playable);
 			});
 		} else {
 			List<PlayableItem> playable = filterMap(children, PlayableItem.class::isInstance, PlayableItem.class::cast);
-			return playable.isEmpty() ? completedVoid() : Async.forEach(PlayableItem::getMediaData, playable);
+			return playable.isEmpty() ? completedVoid() : loadMediaData(playable);
 		}
 	}
 
+	/**
+	 * Requests the media data of all the items at once, so the metadata retriever could
+	 * extract it in parallel, and waits for completion.
+	 */
+	private static FutureSupplier<Void> loadMediaData(List<PlayableItem> playable) {
+		List<FutureSupplier<MediaMetadataCompat>> data = new ArrayList<>(playable.size());
+		for (PlayableItem p : playable) {
+			data.add(p.getMediaData());
+		}
+		return Async.forEach(d -> d, data);
+	}
+
 	protected FutureSupplier<String> buildTitle(int seqNum, BrowsableItemPrefs parentPrefs) {
 		String name = getName();
 		try (SharedTextBuilder tb = SharedTextBuilder.get()) {
@@ -219,6 +232,7 @@ public abstract class BrowsableItemBase extends ItemBase implements BrowsableIte
 	@Override
 	public FutureSupplier<Void> refresh() {
 		FutureSupplier<List<Item>> list = CHILDREN.get(this);
+		sortKeys = null;
 		if (list == null) return super.updateTitles();
 
 		return list.then(children -> Async.forEach(i -> {
@@ -242,6 +256,13 @@ public abstract class BrowsableItemBase extends ItemBase implements BrowsableIte
 		}
 	}
 
+	/**
+	 * Discards the loaded children, so they are listed again on the next request.
+	 */
+	protected void resetChildren() {
+		CHILDREN.set(this, null);
+	}
+
 	void setChildren(List<Item> c) {
 		SortedItems sorted = new SortedItems(c);
 		setSeqNum(sorted);
@@ -262,16 +283,19 @@ public abstract class BrowsableItemBase extends ItemBase implements BrowsableIte
 
 		switch (prefs.getSortByPref()) {
 			case BrowsableItemPrefs.SORT_BY_FILE_NAME:
-				Collections.sort(sorted, (i1, i2) -> compareByFile(i1, i2, desc));
+				SortKeys fk = getSortKeys(list);
+				fk.sort(sorted, fk.fileNames(), desc);
 				break;
 			case BrowsableItemPrefs.SORT_BY_NAME:
-				Collections.sort(sorted, (i1, i2) -> compareByName(i1, i2, desc));
+				SortKeys nk = getSortKeys(list);
+				nk.sort(sorted, nk.names(), desc);
 				break;
 			case BrowsableItemPrefs.SORT_BY_DATE:
-				return getDates(list).then(dates -> {
-					Collections.sort(sorted, (i1, i2) -> compareByDate(i1, i2, list, dates, desc));
+				SortKeys dk = getSortKeys(list);
+				return dk.dates().map(dates -> {
+					dk.sort(sorted, dates, desc);
 					setSeqNum(sorted);
-					return completed(sorted);
+					return sorted;
 				});
 			case BrowsableItemPrefs.SORT_BY_RND:
 				shuffle(sorted);
@@ -282,96 +306,156 @@ public abstract class BrowsableItemBase extends ItemBase implements BrowsableIte
 		return completed(sorted);
 	}
 
+	private SortKeys getSortKeys(List<Item> list) {
+		SortKeys keys = sortKeys;
+		if ((keys != null) && keys.isFor(list)) return keys;
+		return sortKeys = new SortKeys(list);
+	}
+
 	private void setSeqNum(SortedItems sorted) {
 		for (int i = 0; i < sorted.size(); i++) {
 			((ItemBase) sorted.get(i)).setSeqNum(i + 1);
 		}
 	}
 
-	private int compareByFile(Item i1, Item i2, boolean desc) {
-		if (i1 instanceof BrowsableItem) {
-			if (i2 instanceof BrowsableItem) {
-				VirtualResource f1 = i1.getResource();
-				VirtualResource f2 = i2.getResource();
-				return (f1 != null) && (f2 != null) ? compareNatural(f1.getName(), f2.getName(), desc, true) :
-						compareNatural(name(i1), name(i2), desc, true);
-			} else {
-				return -1;
-			}
-		} else if (i2 instanceof BrowsableItem) {
-			return 1;
-		} else {
-			VirtualResource f1 = i1.getResource();
-			VirtualResource f2 = i2.getResource();
-			return (f1 != null) && (f2 != null) ? compareNatural(f1.getName(), f2.getName(), desc, true) :
-					compareNatural(name(i1), name(i2), desc, true);
+	private static String name(Item i) {
+		if (i instanceof BrowsableItem) {
+			return i.getName();
+		} else if (i instanceof PlayableItem) {
+			MediaMetadataCompat md = ((PlayableItem) i).getMediaData().peek();
+			String title = (md != null) ? md.getString(MediaMetadataCompat.METADATA_KEY_TITLE) : null;
+			if (title != null) return title;
 		}
+
+		return i.getResource().getName();
 	}
 
-	protected int compareByName(Item i1, Item i2, boolean desc) {
-		if (i1 instanceof BrowsableItem) {
-			return (i2 instanceof BrowsableItem) ? compareNatural(name(i1), name(i2), desc, true) : -1;
-		} else if (i2 instanceof BrowsableItem) {
-			return 1;
-		} else {
-			return compareNatural(name(i1), name(i2), desc, true);
-		}
+	private static String fileName(Item i) {
+		VirtualResource r = i.getResource();
+		return (r != null) ? r.getName() : name(i);
 	}
 
-	private int compareByDate(Item i1, Item i2, List<Item> list, long[] dates, boolean desc) {
-		if (i1 instanceof BrowsableItem) {
-			if (i2 instanceof BrowsableItem) {
-				return desc ? compareDate(i2, i1, list, dates) : compareDate(i1, i2, list, dates);
-			} else {
-				return -1;
+	/**
+	 * Sort keys of the children, computed once per item and reused by the subsequent sortings
+	 * of the same list. Folders always precede files, regardless of the sort order.
+	 */
+	private static final class SortKeys {
+		private final Item[] items;
+		private final boolean[] folders;
+		private String[] fileNames;
+		private String[] names;
+		private FutureSupplier<long[]> dates;
+
+		SortKeys(List<Item> list) {
+			int size = list.size();
+			items = list.toArray(new Item[size]);
+			folders = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				folders[i] = items[i] instanceof BrowsableItem;
 			}
-		} else if (i2 instanceof BrowsableItem) {
-			return 1;
-		} else if (desc) {
-			return compareDate(i2, i1, list, dates);
-		} else {
-			return compareDate(i1, i2, list, dates);
 		}
-	}
 
-	private int compareDate(Item i1, Item i2, List<Item> list, long[] dates) {
-		int idx1 = -1;
-		int idx2 = -1;
+		boolean isFor(List<Item> list) {
+			if (list.size() != items.length) return false;
+			for (int i = 0; i < items.length; i++) {
+				if (list.get(i) != items[i]) return false;
+			}
+			return true;
+		}
 
-		for (int i = 0; i < list.size(); i++) {
-			Item item = list.get(i);
+		String[] fileNames() {
+			String[] keys = fileNames;
+			if (keys != null) return keys;
+			keys = new String[items.length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = collationKey(fileName(items[i]));
+			}
+			return fileNames = keys;
+		}
 
-			if (item == i1) {
-				idx1 = i;
-				if (idx2 != -1) break;
-			} else if (item == i2) {
-				idx2 = i;
-				if (idx1 != -1) break;
+		String[] names() {
+			String[] keys = names;
+			if (keys != null) return keys;
+			keys = new String[items.length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = collationKey(name(items[i]));
 			}
+			return names = keys;
 		}
 
-		long d1 = (idx1 != -1) ? dates[idx1] : 0;
-		long d2 = (idx2 != -1) ? dates[idx2] : 0;
-		return Long.compare(d1, d2);
-	}
+		FutureSupplier<long[]> dates() {
+			FutureSupplier<long[]> d = dates;
+			if ((d != null) && !d.isFailed()) return d;
+
+			IntHolder i = new IntHolder();
+			long[] keys = new long[items.length];
+			d = Async.forEach(item -> {
+				VirtualResource r = item.getResource();
+				if (r == null) {
+					i.value++;
+					return completedVoid();
+				}
+				return r.getLastModified().onSuccess(t -> keys[i.value++] = t);
+			}, items).map(v -> keys);
+			return dates = d;
+		}
 
-	private static FutureSupplier<long[]> getDates(List<Item> list) {
-		IntHolder i = new IntHolder();
-		long[] dates = new long[list.size()];
-		return Async.forEach(item -> item.getResource().getLastModified()
-				.onSuccess(d -> dates[i.value++] = d), list).map(v -> dates);
-	}
+		void sort(List<Item> sorted, String[] keys, boolean desc) {
+			sort(sorted, (a, b) -> desc ? compareNatural(keys[b], keys[a]) : compareNatural(keys[a], keys[b]));
+		}
 
-	private static String name(Item i) {
-		if (i instanceof BrowsableItem) {
-			return i.getName();
-		} else if (i instanceof PlayableItem) {
-			MediaMetadataCompat md = ((PlayableItem) i).getMediaData().peek();
-			String title = (md != null) ? md.getString(MediaMetadataCompat.METADATA_KEY_TITLE) : null;
-			if (title != null) return title;
+		void sort(List<Item> sorted, long[] keys, boolean desc) {
+			sort(sorted, (a, b) -> desc ? Long.compare(keys[b], keys[a]) : Long.compare(keys[a], keys[b]));
 		}
 
-		return i.getResource().getName();
+		private void sort(List<Item> sorted, IndexComparator cmp) {
+			boolean[] folders = this.folders;
+			int[] idx = new int[items.length];
+			for (int i = 0; i < idx.length; i++) {
+				idx[i] = i;
+			}
+
+			mergeSort(idx, new int[idx.length], 0, idx.length, (a, b) -> {
+				if (folders[a]) return folders[b] ? cmp.compare(a, b) : -1;
+				else return folders[b] ? 1 : cmp.compare(a, b);
+			});
+
+			for (int i = 0; i < idx.length; i++) {
+				sorted.set(i, items[idx[i]]);
+			}
+		}
+
+		/**
+		 * Stable sort of the indexes in the range [from, to), tmp is a buffer of the same length.
+		 */
+		private static void mergeSort(int[] idx, int[] tmp, int from, int to, IndexComparator cmp) {
+			if (to - from < 8) {
+				for (int i = from + 1; i < to; i++) {
+					int v = idx[i];
+					int j = i - 1;
+					for (; (j >= from) && (cmp.compare(idx[j], v) > 0); j--) {
+						idx[j + 1] = idx[j];
+					}
+					idx[j + 1] = v;
+				}
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			mergeSort(idx, tmp, from, mid, cmp);
+			mergeSort(idx, tmp, mid, to, cmp);
+			if (cmp.compare(idx[mid - 1], idx[mid]) <= 0) return;
+
+			System.arraycopy(idx, from, tmp, from, to - from);
+			for (int i = from, l = from, r = mid; i < to; i++) {
+				if ((r == to) || ((l < mid) && (cmp.compare(tmp[l], tmp[r]) <= 0))) idx[i] = tmp[l++];
+				else idx[i] = tmp[r++];
+			}
+		}
+
+		private interface IndexComparator {
+			int compare(int a, int b);
+		}
 	}
 
 	private static final class LoadChildren extends Promise<List<Item>> {
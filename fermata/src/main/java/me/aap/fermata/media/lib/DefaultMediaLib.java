@@ -14,16 +14,11 @@ import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import me.aap.fermata.BuildConfig;
@@ -39,6 +34,7 @@ import me.aap.fermata.vfs.FermataVfsManager;
 import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.collection.CollectionUtils;
+import me.aap.utils.collection.WeakValueCache;
 import me.aap.utils.event.BasicEventBroadcaster;
 import me.aap.utils.function.Consumer;
 import me.aap.utils.function.Function;
@@ -60,8 +56,8 @@ public class DefaultMediaLib extends BasicEventBroadcaster<PreferenceStore.Liste
 	private final DefaultPlaylists playlists;
 	private final MediaEngineManager mediaEngineManager;
 	private final MetadataRetriever metadataRetriever;
-	private final Map<String, WeakRef<Item>> itemCache = new HashMap<>();
-	private final ReferenceQueue<Item> itemRefQueue = new ReferenceQueue<>();
+	private final WeakValueCache<String, Item> itemCache = new WeakValueCache<>(64);
+	private final Object cacheLock = new Object();
 	@Nullable
 	private final AtvInterface atvInterface;
 
@@ -139,9 +135,7 @@ public class DefaultMediaLib extends BasicEventBroadcaster<PreferenceStore.Liste
 	@Nullable
 	@Override
 	public Item getCachedItem(CharSequence id) {
-		synchronized (cacheLock()) {
-			return getFromCache(id.toString());
-		}
+		return getFromCache(id.toString());
 	}
 
 	@Nullable
@@ -152,7 +146,7 @@ public class DefaultMediaLib extends BasicEventBroadcaster<PreferenceStore.Liste
 			Item i = getFromCache(iid);
 			if (i != null) return i;
 			i = create.apply(iid);
-			itemCache.put(iid, new WeakRef<>(id, i, itemRefQueue));
+			itemCache.put(iid, i);
 			return i;
 		}
 	}
@@ -277,66 +271,46 @@ public class DefaultMediaLib extends BasicEventBroadcaster<PreferenceStore.Liste
 	@Override
 	public void onPreferenceChanged(PreferenceStore store, List<Pref<?>> prefs) {
 		if (prefs.contains(BrowsableItemPrefs.SHOW_TRACK_ICONS)) {
-			synchronized (itemCache) {
-				for (Iterator<WeakRef<Item>> it = itemCache.values().iterator(); it.hasNext(); ) {
-					WeakRef<Item> r = it.next();
-					Item i = r.get();
-					if (i == null) it.remove();
-					else i.updateTitles();
-				}
-			}
+			itemCache.cleanUp();
+			itemCache.forEach(Item::updateTitles);
 		}
 	}
 
+	/**
+	 * The lock must be held while checking the cache and creating a new item, to prevent
+	 * concurrent creation of the items with the same id. The lookups do not require the lock.
+	 */
 	public Object cacheLock() {
-		return itemCache;
+		return cacheLock;
 	}
 
 	void addToCache(Item i) {
-		synchronized (itemCache) {
-			clearRefs(itemCache, itemRefQueue);
-			String id = i.getId();
-			if (BuildConfig.D && itemCache.containsKey(id)) {
+		String id = i.getId();
+
+		if (BuildConfig.D) {
+			Item cached = itemCache.putIfAbsent(id, i);
+			if (cached != null) {
 				throw new AssertionError(
-						"Unable to add item " + i + ". Item with id=" + id + "already exists: " +
-								itemCache.get(id));
+						"Unable to add item " + i + ". Item with id=" + id + "already exists: " + cached);
 			}
-			itemCache.put(id, new WeakRef<>(id, i, itemRefQueue));
+		} else {
+			itemCache.put(id, i);
 		}
 	}
 
 	public void removeFromCache(Item i) {
-		synchronized (itemCache) {
-			clearRefs(itemCache, itemRefQueue);
-			if (i == null) return;
-			String id = i.getId();
-			WeakRef<Item> r = itemCache.get(id);
-			if (r == null) return;
-			Item cached = r.get();
-			if ((cached == null) || (cached == i)) itemCache.remove(id);
-		}
+		if (i == null) itemCache.cleanUp();
+		else itemCache.remove(i.getId(), i);
 	}
 
 	public Item getFromCache(String id) {
-		synchronized (itemCache) {
-			clearRefs(itemCache, itemRefQueue);
-			WeakRef<Item> r = itemCache.get(id);
-
-			if (r != null) {
-				Item cached = r.get();
-				if (cached != null) return cached;
-				else itemCache.remove(id);
-			}
-		}
-
-		return null;
+		return itemCache.get(id);
 	}
 
 	@Override
 	public void clearCache() {
-		synchronized (itemCache) {
-			clearRefs(itemCache, itemRefQueue);
-		}
+		itemCache.cleanUp();
+		if (BuildConfig.D) Log.d("Item cache: ", itemCache);
 	}
 
 	public void cleanUpPrefs() {
@@ -388,23 +362,7 @@ public class DefaultMediaLib extends BasicEventBroadcaster<PreferenceStore.Liste
 		}
 	}
 
-	@SuppressWarnings("rawtypes")
-	private static void clearRefs(Map map, ReferenceQueue q) {
-		for (WeakRef r = (WeakRef) q.poll(); r != null; r = (WeakRef) q.poll()) {
-			CollectionUtils.remove(map, r.key, r);
-		}
-	}
-
 	private void log(Throwable ex) {
 		Log.e(ex, "Error occurred");
 	}
-
-	private static final class WeakRef<V> extends WeakReference<V> {
-		final Object key;
-
-		public WeakRef(Object key, V value, ReferenceQueue<V> q) {
-			super(value, q);
-			this.key = key;
-		}
-	}
 }
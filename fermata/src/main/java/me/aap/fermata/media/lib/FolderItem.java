@@ -6,6 +6,7 @@ import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 
 import me.aap.fermata.BuildConfig;
@@ -14,6 +15,7 @@ import me.aap.fermata.media.lib.MediaLib.Item;
 import me.aap.fermata.media.pref.FolderItemPrefs;
 import me.aap.fermata.util.Utils;
 import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.event.ListenerLeakDetector;
 import me.aap.utils.io.FileUtils;
 import me.aap.utils.resource.Rid;
 import me.aap.utils.vfs.VirtualFile;
@@ -25,6 +27,7 @@ import me.aap.utils.vfs.local.LocalFileSystem;
 
 import static me.aap.utils.async.Completed.completed;
 import static me.aap.utils.async.Completed.completedNull;
+import static me.aap.utils.concurrent.ConcurrentUtils.ensureMainThread;
 
 /**
  * @author Andrey Pavlenko
@@ -32,6 +35,7 @@ import static me.aap.utils.async.Completed.completedNull;
 public class FolderItem extends BrowsableItemBase implements FolderItemPrefs {
 	public static final String SCHEME = "folder";
 	private volatile FutureSupplier<Uri> iconUri;
+	private List<Item.ChangeListener> listeners;
 
 	private FolderItem(String id, BrowsableItem parent, VirtualFolder file) {
 		super(id, parent, file);
@@ -112,7 +116,41 @@ public class FolderItem extends BrowsableItemBase implements FolderItemPrefs {
 
 	@Override
 	protected FutureSupplier<List<Item>> listChildren() {
-		return getResource().getChildren().map(this::ls);
+		VirtualFolder folder = getResource();
+		return folder.getChildren().map(ls -> {
+			folder.getUpdatedChildren().main().onSuccess(updated -> {
+				if (updated == null) return;
+				resetChildren();
+				notifyListeners();
+			});
+			return ls(ls);
+		});
+	}
+
+	@Override
+	public boolean addChangeListener(Item.ChangeListener l) {
+		ensureMainThread(true);
+		List<Item.ChangeListener> listeners = this.listeners;
+		if (listeners == null) this.listeners = listeners = new LinkedList<>();
+		else if (listeners.contains(l)) return true;
+		listeners.add(l);
+		if (BuildConfig.D) ListenerLeakDetector.add(this, l);
+		return true;
+	}
+
+	@Override
+	public boolean removeChangeListener(Item.ChangeListener l) {
+		ensureMainThread(true);
+		List<Item.ChangeListener> listeners = this.listeners;
+		if ((listeners == null) || !listeners.remove(l)) return false;
+		if (BuildConfig.D) ListenerLeakDetector.remove(this, l);
+		return true;
+	}
+
+	private void notifyListeners() {
+		List<Item.ChangeListener> listeners = this.listeners;
+		if ((listeners == null) || listeners.isEmpty()) return;
+		for (Item.ChangeListener l : new ArrayList<>(listeners)) l.mediaItemChanged(this);
 	}
 
 	private List<Item> ls(List<VirtualResource> ls) {
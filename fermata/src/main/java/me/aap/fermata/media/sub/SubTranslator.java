@@ -0,0 +1,143 @@
+package me.aap.fermata.media.sub;
+
+import static me.aap.utils.async.Completed.cancelled;
+import static me.aap.utils.misc.Assert.assertMainThread;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.aap.fermata.addon.TranslateAddon.Translator;
+import me.aap.utils.app.App;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.log.Log;
+
+/**
+ * Translates the subtitles ahead of playback. The texts are translated in batches, one batch at
+ * a time, in the order of the distance from the current playback position - the next text, the
+ * previous one, the one after the next and so on. The position is updated on seek, thus the
+ * nearest texts are always translated first. The translations are stored in the texts, the
+ * already translated texts are skipped.
+ * <p>
+ * The streams are not translated, their texts are translated as they are generated.
+ * All methods must be called on the main thread.
+ *
+ * @author Andrey Pavlenko
+ */
+public class SubTranslator {
+	private static final int BATCH_SIZE = 8;
+	private final SubGrid subtitles;
+	private final Translator translator;
+	private FutureSupplier<?> pending = cancelled();
+	private long time;
+	private boolean started;
+	private boolean cancelled;
+
+	public SubTranslator(SubGrid subtitles, Translator translator) {
+		this.subtitles = subtitles;
+		this.translator = translator;
+	}
+
+	public SubGrid getSubtitles() {
+		return subtitles;
+	}
+
+	/**
+	 * Starts translation from the specified time or, if already started, changes the position,
+	 * the next batch is selected from.
+	 */
+	public void seek(long time) {
+		assertMainThread();
+		this.time = time;
+		if (started || cancelled) return;
+		started = true;
+		next();
+	}
+
+	public void cancel() {
+		assertMainThread();
+		cancelled = true;
+		pending.cancel();
+	}
+
+	private void next() {
+		if (cancelled) return;
+		var batch = nextBatch();
+
+		if (batch.isEmpty()) {
+			Log.d("All subtitles translated");
+			return;
+		}
+
+		var texts = new ArrayList<String>(batch.size());
+		for (var t : batch) texts.add(t.getText());
+
+		pending = translator.translate(texts).main().onCompletion((r, err) -> {
+			if (cancelled) return;
+
+			if (err != null) {
+				Log.e(err, "Failed to translate subtitles");
+				// Restart on the next seek
+				started = false;
+				return;
+			}
+
+			for (int i = 0, n = batch.size(); i < n; i++) {
+				var tr = (i < r.size()) ? r.get(i) : null;
+				// Not translated - do not retry
+				batch.get(i).setTranslation((tr == null) ? "" : tr.trim());
+			}
+			// Do not recurse, if the translations are returned synchronously
+			App.get().getHandler().submit(this::next);
+		});
+	}
+
+	private List<Subtitles.Text> nextBatch() {
+		var batch = new ArrayList<Subtitles.Text>(BATCH_SIZE);
+
+		for (var e : subtitles) {
+			var s = e.getValue();
+			if (s instanceof Subtitles.Stream) continue;
+
+			for (int n = s.size(), idx = indexOf(s, time), ahead = idx, behind = idx - 1;
+					 (ahead < n) || (behind >= 0); ahead++, behind--) {
+				if ((ahead < n) && add(batch, s.get(ahead))) return batch;
+				if ((behind >= 0) && add(batch, s.get(behind))) return batch;
+			}
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Adds the text to the batch, if not yet translated, and returns true if the batch is full.
+	 */
+	private static boolean add(List<Subtitles.Text> batch, Subtitles.Text text) {
+		if (text.getTranslation() != null) return false;
+
+		if (text.getText().trim().isEmpty()) {
+			text.setTranslation("");
+			return false;
+		}
+
+		batch.add(text);
+		return batch.size() == BATCH_SIZE;
+	}
+
+	/**
+	 * Returns the index of the first text, ending after the specified time.
+	 * Unlike {@link Subtitles#getNext(long)}, this does not change the cursor of the subtitles.
+	 */
+	private static int indexOf(Subtitles s, long time) {
+		int low = 0;
+		int high = s.size() - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			var t = s.get(mid);
+			if (t.getTime() + t.getDuration() <= time) low = mid + 1;
+			else high = mid - 1;
+		}
+
+		return low;
+	}
+}
@@ -90,6 +90,7 @@ public class MediaItemView extends ConstraintLayout
 	private VectorDrawableCompat watchingVideoDrawable;
 	private VectorDrawableCompat archiveLabelDrawable;
 	private FutureSupplier<MediaDescriptionCompat> loading;
+	private FutureSupplier<Bitmap> loadingIcon;
 
 	public MediaItemView(Context ctx, AttributeSet attrs) {
 		super(ctx, attrs, R.attr.appMediaItemStyle);
@@ -169,6 +170,7 @@ public class MediaItemView extends ConstraintLayout
 	public void rebind(@Nullable MediaItemWrapper oldItem, @Nullable MediaItemWrapper newItem) {
 		if (oldItem == newItem) return;
 		cancelLoading();
+		cancelIconLoading();
 		if (oldItem != null) oldItem.getItem().removeChangeListener(this);
 		if ((newItem == null) || (getVisibility() != VISIBLE)) return;
 		boolean hasListener = newItem.getItem().addChangeListener(this);
@@ -191,6 +193,12 @@ public class MediaItemView extends ConstraintLayout
 		loading = null;
 	}
 
+	private void cancelIconLoading() {
+		if (loadingIcon == null) return;
+		loadingIcon.cancel();
+		loadingIcon = null;
+	}
+
 	private FutureSupplier<MediaDescriptionCompat> load(MediaItemWrapper w, boolean showLoading) {
 		cancelLoading();
 		Item i = w.getItem();
@@ -228,23 +236,27 @@ public class MediaItemView extends ConstraintLayout
 						Uri uri = md.getIconUri();
 
 						if ((uri != null) && !SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())) {
-							FutureSupplier<Bitmap> loadIcon =
-									i.getLib().getBitmap(uri.toString(), true, true).main()
-											.onCompletion((bm, err) -> {
-												if (getItemWrapper() != w) return;
-
-												ImageView icon = getIcon();
-												icon.clearAnimation();
-												cancelLoading();
-
-												if (bm != null) {
-													icon.setImageTintList(null);
-													icon.setImageBitmap(bm);
-												} else {
-													icon.setImageTintList(iconTint);
-													icon.setImageResource(i.getIcon());
-												}
-											});
+							// Request the new icon before cancelling the old one, that might be the same
+							FutureSupplier<Bitmap> bitmap = i.getLib().getBitmap(uri.toString(), true, true);
+							cancelIconLoading();
+							loadingIcon = bitmap;
+							FutureSupplier<Bitmap> loadIcon = bitmap.main()
+									.onCompletion((bm, err) -> {
+										if (loadingIcon == bitmap) loadingIcon = null;
+										if ((getItemWrapper() != w) || isCancellation(err)) return;
+
+										ImageView icon = getIcon();
+										icon.clearAnimation();
+										cancelLoading();
+
+										if (bm != null) {
+											icon.setImageTintList(null);
+											icon.setImageBitmap(bm);
+										} else {
+											icon.setImageTintList(iconTint);
+											icon.setImageResource(i.getIcon());
+										}
+									});
 
 							if (!loadIcon.isDone()) {
 								ImageView icon = getIcon();
@@ -258,6 +270,7 @@ public class MediaItemView extends ConstraintLayout
 							icon.setImageTintList(iconTint);
 							icon.setImageResource(i.getIcon());
 							cancelLoading();
+							cancelIconLoading();
 						}
 					}
 				});
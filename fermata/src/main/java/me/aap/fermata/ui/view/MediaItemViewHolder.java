@@ -4,6 +4,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
 
+import me.aap.fermata.media.lib.MediaLib.PlayableItem;
+
 /**
  * @author Andrey Pavlenko
  */
@@ -44,6 +46,9 @@ public class MediaItemViewHolder extends RecyclerView.ViewHolder {
 		itemWrapper = wrapper;
 		wrapper.setViewHolder(this);
 		getItemView().rebind(old, wrapper);
+		if (wrapper.getItem() instanceof PlayableItem pi) {
+			pi.getLib().getMetadataRetriever().prioritize(pi);
+		}
 	}
 
 	void attached() {
@@ -9,6 +9,7 @@ import android.content.Context;
 
 import androidx.annotation.StringRes;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,6 +26,7 @@ import me.aap.utils.module.DynamicModuleInstaller;
 import me.aap.utils.pref.PreferenceStore;
 import me.aap.utils.pref.PreferenceStore.Pref;
 import me.aap.utils.ui.activity.ActivityBase;
+import me.aap.utils.vfs.BlockCache;
 import me.aap.utils.vfs.VfsException;
 import me.aap.utils.vfs.VfsManager;
 import me.aap.utils.vfs.VirtualFileSystem;
@@ -47,6 +49,7 @@ public class FermataVfsManager extends VfsManager {
 	private static final String GDRIVE_CLASS = "me.aap.fermata.vfs.gdrive.Provider";
 	private static final String SFTP_CLASS = "me.aap.fermata.vfs.sftp.Provider";
 	private static final String SMB_CLASS = "me.aap.fermata.vfs.smb.Provider";
+	private static final long BLOCK_CACHE_SIZE = 256L * 1024 * 1024;
 
 	public FermataVfsManager() {
 		super(filesystems());
@@ -74,6 +77,12 @@ public class FermataVfsManager extends VfsManager {
 		}
 	}
 
+	@Override
+	protected BlockCache getBlockCache() {
+		File dir = new File(FermataApplication.get().getCacheDir(), "blocks");
+		return new BlockCache(dir, BLOCK_CACHE_SIZE);
+	}
+
 	private static FutureSupplier<MainActivity> getActivity(Context ctx, @StringRes int moduleName) {
 		String name = ctx.getString(moduleName);
 		String title = ctx.getString(R.string.module_installation, name);
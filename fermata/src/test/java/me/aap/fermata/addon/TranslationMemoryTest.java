@@ -0,0 +1,120 @@
+package me.aap.fermata.addon;
+
+import static me.aap.utils.async.Completed.completed;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.aap.fermata.addon.TranslateAddon.Translator;
+import me.aap.utils.async.FutureSupplier;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class TranslationMemoryTest extends Assert {
+
+	@Test
+	public void testNormalize() {
+		assertEquals("a b c", TranslationMemory.normalize("  a \t b\n\nc  "));
+		assertEquals("a", TranslationMemory.normalize("a"));
+		assertEquals("", TranslationMemory.normalize(""));
+		assertEquals("", TranslationMemory.normalize(" \n "));
+	}
+
+	@Test
+	public void testKeyNormalization() throws Exception {
+		var mem = new TranslationMemory(null);
+		var tr = new TestTranslator();
+		var t = mem.wrap("model", "en", "de", tr);
+
+		assertEquals("HELLO  WORLD", t.translate("Hello  world").get());
+		// The same text with different whitespaces
+		assertEquals("HELLO  WORLD", t.translate(" Hello world\n").get());
+		assertEquals(List.of("Hello  world"), tr.texts);
+
+		// Different model or language pair
+		mem.wrap("model2", "en", "de", tr).translate("Hello world").get();
+		mem.wrap("model", "en", "fr", tr).translate("Hello world").get();
+		assertEquals(3, tr.texts.size());
+	}
+
+	@Test
+	public void testPartialHits() throws Exception {
+		var mem = new TranslationMemory(null);
+		var tr = new TestTranslator();
+		var t = mem.wrap("model", "en", "de", tr);
+
+		assertEquals(List.of("A", "B"), t.translate(List.of("a", "b")).get());
+		assertEquals(List.of("A", "C", "B", "D"), t.translate(List.of("a", "c", "b", "d")).get());
+		// Only the missing texts are translated
+		assertEquals(List.of("a", "b", "c", "d"), tr.texts);
+		assertEquals(List.of("D", "C"), t.translate(List.of("d", "c")).get());
+		assertEquals(4, tr.texts.size());
+	}
+
+	@Test
+	public void testNullTranslations() throws Exception {
+		var mem = new TranslationMemory(null);
+		var tr = new TestTranslator();
+		var t = mem.wrap("model", "en", "de", tr);
+
+		assertEquals(Arrays.asList("A", null), t.translate(List.of("a", "null")).get());
+		assertNull(t.translate("null").get());
+		// The null translation is not stored
+		assertEquals(List.of("a", "null", "null"), tr.texts);
+		assertEquals("A", t.translate("a").get());
+		assertEquals(3, tr.texts.size());
+	}
+
+	@Test
+	public void testHitRate() throws Exception {
+		var mem = new TranslationMemory(null);
+		var t = mem.wrap("model", "en", "de", new TestTranslator());
+		assertEquals(0, mem.getHitRate());
+
+		t.translate(List.of("a", "b", "c", "d")).get();
+		assertEquals(0, mem.getHitCount());
+		assertEquals(4, mem.getMissCount());
+		assertEquals(0, mem.getHitRate());
+
+		t.translate(List.of("a", "b", "c", "e")).get();
+		assertEquals(3, mem.getHitCount());
+		assertEquals(5, mem.getMissCount());
+		assertEquals(37, mem.getHitRate());
+
+		t.translate("e").get();
+		t.translate("e").get();
+		assertEquals(5, mem.getHitCount());
+		assertEquals(5, mem.getMissCount());
+		assertEquals(50, mem.getHitRate());
+	}
+
+	/**
+	 * Converts the texts to upper case, "null" is translated to null.
+	 */
+	private static final class TestTranslator implements Translator {
+		final List<String> texts = new ArrayList<>();
+
+		@Override
+		public FutureSupplier<String> translate(String text) {
+			texts.add(text);
+			return completed(text.equals("null") ? null : text.toUpperCase());
+		}
+
+		@Override
+		public FutureSupplier<List<String>> translate(List<String> texts) {
+			var result = new ArrayList<String>(texts.size());
+			for (var text : texts) result.add(translate(text).peek());
+			return completed(result);
+		}
+
+		@Override
+		public boolean supportsBatch() {
+			return true;
+		}
+	}
+}
@@ -556,21 +556,28 @@ public class ExoPlayerEngine extends MediaEngineBase implements Player.Listener
 		}
 
 		private void perItemTranslate(Translator tr, String targetLang, List<Subtitles.Text> subs) {
-			for (var t : subs) {
-				tr.translate(t.getText()).onCompletion((r, err) -> {
-					if (err != null) {
-						Log.e(err);
-						return;
-					}
-					t.setTranslation(r.trim());
-					var translated = new Subtitles.Text(t.getTranslation(), t.getTime(), t.getDuration());
-					App.get().run(() -> {
-						if (!targetLang.equals(transLang)) return;
-						if (subTransStream == null) subTransStream = new Subtitles.Stream();
-						subTransStream.add(translated);
-					});
+			var texts = new ArrayList<String>(subs.size());
+			for (var t : subs) texts.add(t.getText());
+			tr.translate(texts).onCompletion((r, err) -> {
+				if (err != null) {
+					Log.e(err);
+					return;
+				}
+
+				var translated = new ArrayList<Subtitles.Text>(subs.size());
+				for (int i = 0, n = Math.min(subs.size(), r.size()); i < n; i++) {
+					var text = r.get(i);
+					if (text == null) continue; // Failed to translate
+					var t = subs.get(i);
+					t.setTranslation(text.trim());
+					translated.add(new Subtitles.Text(t.getTranslation(), t.getTime(), t.getDuration()));
+				}
+				App.get().run(() -> {
+					if (!targetLang.equals(transLang)) return;
+					if (subTransStream == null) subTransStream = new Subtitles.Stream();
+					subTransStream.add(translated);
 				});
-			}
+			});
 		}
 
 		private void setSubGenTimeOffset(ExoPlayerEngine eng) {
@@ -0,0 +1,114 @@
+package me.aap.fermata.opusmt;
+
+import static org.junit.Assume.assumeTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.aap.utils.log.Log;
+
+/**
+ * Compares the decoding with the past key values against re-feeding the full prefix on a fixed
+ * corpus. The model must be downloaded by the application, the default one is opus-mt-en-de,
+ * a different one could be specified with the instrumentation argument opusmtModel, e.g.
+ * -e opusmtModel opus-mt-en-fr. The benchmark is skipped, if the model is not found.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OpusMtModelBenchmark extends Assert {
+	private static final int WARMUP_ROUNDS = 1;
+	private static final int ROUNDS = 3;
+	private static final List<String> CORPUS = Arrays.asList(
+			"Hello.",
+			"Where are you going?",
+			"I don't know what to say.",
+			"The weather is nice today.",
+			"Could you please open the window?",
+			"She has been working here for ten years.",
+			"We missed the last train, so we took a taxi home.",
+			"The meeting has been postponed until next Monday morning.",
+			"If it rains tomorrow, the concert will be held indoors.",
+			"He told me that he had never seen anything like that before.",
+			"The museum is closed on Mondays, but it is open late on Fridays.",
+			"After the long journey, they were too tired to unpack their bags.",
+			"Scientists have discovered a new species of frog in the rainforest.",
+			"Please make sure that all the doors are locked before you leave the house.",
+			"The children were playing in the garden while their parents were cooking dinner.",
+			"It is important to drink enough water, especially when the weather is hot.",
+			"The company announced that it would open three new offices in Europe next year.",
+			"Although the film received poor reviews, it was a great success at the box office.",
+			"I would have called you earlier, but my phone battery died in the middle of the day.",
+			"The old bridge, which was built more than two hundred years ago, is still in use today."
+	);
+
+	@Test
+	public void benchmarkDecoding() throws Exception {
+		var args = InstrumentationRegistry.getArguments();
+		var ctx = InstrumentationRegistry.getInstrumentation().getTargetContext();
+		var name = args.getString("opusmtModel", "opus-mt-en-de");
+		var dir = new File(ctx.getCacheDir(), "opusmt/" + name);
+		var encoder = new File(dir, "encoder_model.onnx");
+		var decoder = new File(dir, "decoder_model.onnx");
+		var withPast = new File(dir, "decoder_with_past_model.onnx");
+		var tokenizer = new File(dir, "tokenizer.json");
+		assumeTrue("Model not found: " + dir, encoder.isFile() && decoder.isFile() &&
+				withPast.isFile() && tokenizer.isFile());
+
+		var tok = SentencePieceTokenizer.load(tokenizer);
+		var cached = new OpusMtModel(encoder, decoder, withPast, tok, tok);
+		var full = new OpusMtModel(encoder, decoder, null, tok, tok);
+
+		var cachedResult = new ArrayList<String>(CORPUS.size());
+		var fullResult = new ArrayList<String>(CORPUS.size());
+		long cachedTime = run(cached, cachedResult);
+		long fullTime = run(full, fullResult);
+		// Both decoding modes must produce the same greedy output
+		assertEquals(fullResult, cachedResult);
+
+		int tokens = 0;
+		for (var text : cachedResult) tokens += tok.encode(text, -1).length;
+		tokens *= ROUNDS;
+		Log.i("OPUS-MT decoding of ", CORPUS.size(), " sentences, ", ROUNDS, " rounds, ", tokens,
+				" tokens. With past: ", cachedTime / 1000000L, " ms, ", cachedTime / tokens / 1000L,
+				" us/token. Full prefix: ", fullTime / 1000000L, " ms, ", fullTime / tokens / 1000L,
+				" us/token. Speedup: ", String.format("%.2f", (double) fullTime / cachedTime));
+
+		// The whole corpus per run, in batches of similar length
+		long cachedBatchTime = runBatch(cached);
+		long fullBatchTime = runBatch(full);
+		Log.i("OPUS-MT batched decoding. With past: ", cachedBatchTime / 1000000L,
+				" ms. Full prefix: ", fullBatchTime / 1000000L, " ms. Speedup: ",
+				String.format("%.2f", (double) fullBatchTime / cachedBatchTime));
+	}
+
+	/**
+	 * @return the time of the measured rounds in nanoseconds.
+	 */
+	private static long run(OpusMtModel model, List<String> result) throws Exception {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			for (var text : CORPUS) model.translate(text, -1);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			result.clear();
+			for (var text : CORPUS) result.add(model.translate(text, -1));
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runBatch(OpusMtModel model) throws Exception {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) model.translate(CORPUS, -1);
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) model.translate(CORPUS, -1);
+		return System.nanoTime() - start;
+	}
+}
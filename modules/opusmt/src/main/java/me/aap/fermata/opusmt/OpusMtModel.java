@@ -1,51 +1,164 @@
 package me.aap.fermata.opusmt;
 
-import static java.util.Arrays.copyOf;
+import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
 import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
 import me.aap.utils.io.IoUtils;
+import me.aap.utils.log.Log;
 
+/**
+ * Greedy OPUS-MT translation. If the model has a decoder with past key values, only the last
+ * token is decoded at each step, reusing the key/value cache of the previous steps. Otherwise,
+ * the whole prefix is decoded at each step. Multiple texts are translated in padded batches
+ * with the attention mask, excluding the padding.
+ */
 class OpusMtModel {
 	private static final int MAX_OUTPUT_LEN = 100;
 	private static final float MAX_LEN_FACTOR = 1.5f;
+	private static final String PAST_PREFIX = "past_key_values";
+	private static final String PRESENT_PREFIX = "present";
+	private static final int MAX_BATCH_SIZE = 8;
+	private static final int MAX_BATCH_TOKENS = 512;
+	private static final int MAX_PAD_FACTOR = 2;
 	private static final OrtEnvironment env = OrtEnvironment.getEnvironment();
 
 	private final OrtSession encoder;
 	private final OrtSession decoder;
+	@Nullable
+	private final OrtSession decoderWithPast;
+	private final String[] pastNames;
+	private final String[] presentNames;
 	private final SentencePieceTokenizer srcTok;
 	private final SentencePieceTokenizer tgtTok;
+	// Direct buffers, backing the decoder input tensors without copying
+	private final LongBuffer decIds = allocLong(MAX_BATCH_SIZE * (MAX_OUTPUT_LEN + 1));
+	private final LongBuffer tokenIds = allocLong(MAX_BATCH_SIZE);
+	private long tokens;
+	private long decodeTime;
 
-	OpusMtModel(File encoder, File decoder, SentencePieceTokenizer srcTok,
-							SentencePieceTokenizer tgtTok) throws Exception {
+	OpusMtModel(File encoder, File decoder, @Nullable File decoderWithPast,
+							SentencePieceTokenizer srcTok, SentencePieceTokenizer tgtTok) throws Exception {
 		this.srcTok = srcTok;
 		this.tgtTok = tgtTok;
 		var opts = new OrtSession.SessionOptions();
 		try {opts.addNnapi();} catch (Exception ignored) {}
 		this.encoder = env.createSession(encoder.getAbsolutePath(), opts);
 		this.decoder = env.createSession(decoder.getAbsolutePath(), opts);
+
+		OrtSession withPast = null;
+		var past = new ArrayList<String>();
+		var present = new ArrayList<String>();
+
+		if (decoderWithPast != null) {
+			try {
+				withPast = env.createSession(decoderWithPast.getAbsolutePath(), opts);
+				var outputs = this.decoder.getOutputNames();
+
+				for (var name : withPast.getInputNames()) {
+					if (!name.startsWith(PAST_PREFIX)) continue;
+					var p = PRESENT_PREFIX + name.substring(PAST_PREFIX.length());
+					if (!outputs.contains(p)) throw new IllegalArgumentException("No decoder output " + p);
+					past.add(name);
+					present.add(p);
+				}
+
+				if (past.isEmpty()) throw new IllegalArgumentException("No past key values input");
+			} catch (Exception err) {
+				Log.w(err, "Decoder with past is not supported: ", decoderWithPast);
+				IoUtils.close(withPast);
+				withPast = null;
+				past.clear();
+				present.clear();
+			}
+		}
+
+		this.decoderWithPast = withPast;
+		pastNames = past.toArray(new String[0]);
+		presentNames = present.toArray(new String[0]);
 	}
 
-	String translate(String text, int tagId) throws Exception {
-		int[] srcIds = srcTok.encode(text, tagId);
-		int n = srcIds.length;
-		long[] inputIds = new long[n];
-		long[] attMask = new long[n];
+	synchronized String translate(String text, int tagId) throws Exception {
+		return translate(new int[][]{srcTok.encode(text, tagId)})[0];
+	}
+
+	/**
+	 * Translates the texts in batches. The texts are sorted by length and grouped into batches of
+	 * similar length, to minimize padding.
+	 */
+	synchronized List<String> translate(List<String> texts, int tagId) throws Exception {
+		int n = texts.size();
+		var src = new int[n][];
+		var order = new Integer[n];
 		for (int i = 0; i < n; i++) {
-			inputIds[i] = srcIds[i];
-			attMask[i] = 1;
+			src[i] = srcTok.encode(texts.get(i), tagId);
+			order[i] = i;
 		}
 
-		long[][] inputIdsBatch = {inputIds};
-		long[][] attMaskBatch = {attMask};
+		Arrays.sort(order, (a, b) -> Integer.compare(src[a].length, src[b].length));
+		var result = new String[n];
+
+		for (int i = 0; i < n; ) {
+			int minLen = src[order[i]].length;
+			int end = i + 1;
+
+			for (; (end < n) && (end - i < MAX_BATCH_SIZE); end++) {
+				int len = src[order[end]].length;
+				if ((len > minLen * MAX_PAD_FACTOR) || ((end - i + 1) * len > MAX_BATCH_TOKENS)) break;
+			}
+
+			var batch = new int[end - i][];
+			for (int j = i; j < end; j++) batch[j - i] = src[order[j]];
+			var tr = translate(batch);
+			for (int j = i; j < end; j++) result[order[j]] = tr[j - i];
+			i = end;
+		}
+
+		return Arrays.asList(result);
+	}
+
+	private String[] translate(int[][] src) throws Exception {
+		int b = src.length;
+		int n = 0;
+		for (int[] ids : src) n = Math.max(n, ids.length);
+
+		int padId = srcTok.getPadId();
+		long[][] inputIds = new long[b][n];
+		long[][] attMask = new long[b][n];
+		int[] limits = new int[b];
+		int maxLen = 0;
+
+		for (int r = 0; r < b; r++) {
+			int[] ids = src[r];
+			for (int i = 0; i < n; i++) {
+				if (i < ids.length) {
+					inputIds[r][i] = ids[i];
+					attMask[r][i] = 1;
+				} else {
+					inputIds[r][i] = padId;
+				}
+			}
+			limits[r] = Math.min(MAX_OUTPUT_LEN, (int) (ids.length * MAX_LEN_FACTOR));
+			maxLen = Math.max(maxLen, limits[r]);
+		}
 
 		OnnxTensor encoderHidden;
-		try (var inputIdsTensor = OnnxTensor.createTensor(env, inputIdsBatch);
-				 var attMaskTensor = OnnxTensor.createTensor(env, attMaskBatch)) {
+		try (var inputIdsTensor = OnnxTensor.createTensor(env, inputIds);
+				 var attMaskTensor = OnnxTensor.createTensor(env, attMask)) {
 			var encoderInputs = new HashMap<String, OnnxTensor>(2);
 			encoderInputs.put("input_ids", inputIdsTensor);
 			encoderInputs.put("attention_mask", attMaskTensor);
@@ -53,57 +166,161 @@ class OpusMtModel {
 			encoderHidden = (OnnxTensor) result.get(0);
 		}
 
-		int eosId = tgtTok.getEosId();
-		int padId = tgtTok.getPadId();
-		int maxLen = Math.min(MAX_OUTPUT_LEN, (int) (n * MAX_LEN_FACTOR));
-		long[] decTokens = new long[maxLen + 1];
-		decTokens[0] = padId;
-		int decLen = 1;
-		int bestId;
+		int[][] out = new int[b][maxLen];
+		int[] lens = new int[b];
+		long start = System.nanoTime();
 
 		var decoderInputs = new HashMap<String, OnnxTensor>(3);
 		decoderInputs.put("encoder_hidden_states", encoderHidden);
 
-		try (var attMaskTensor = OnnxTensor.createTensor(env, attMaskBatch)) {
+		try (var attMaskTensor = OnnxTensor.createTensor(env, attMask)) {
 			decoderInputs.put("encoder_attention_mask", attMaskTensor);
-			for (int step = 0; step < maxLen; step++) {
-				OnnxTensor logits;
-				try (var decInputTensor = OnnxTensor.createTensor(env,
-						new long[][]{copyOf(decTokens, decLen)})) {
-					decoderInputs.put("input_ids", decInputTensor);
-					var result = decoder.run(decoderInputs);
-					logits = (OnnxTensor) result.get(0);
+			if (decoderWithPast == null) decode(decoderInputs, limits, out, lens);
+			else decodeWithPast(decoderWithPast, decoderInputs, limits, out, lens);
+		} finally {
+			encoderHidden.close();
+		}
+
+		if (Log.isLoggableD()) {
+			long time = System.nanoTime() - start;
+			int count = 0;
+			for (int len : lens) count += len + 1;
+			tokens += count;
+			decodeTime += time;
+			Log.d("Decoded ", count, " tokens of ", b, " sentences in ", time / 1000000L,
+					" ms, average: ", decodeTime / tokens / 1000L, " us/token, cached: ",
+					decoderWithPast != null);
+		}
+
+		var result = new String[b];
+		for (int r = 0; r < b; r++) result[r] = tgtTok.decode(Arrays.copyOf(out[r], lens[r]));
+		return result;
+	}
+
+	/**
+	 * Decodes the whole prefix at each step.
+	 */
+	private void decode(Map<String, OnnxTensor> inputs, int[] limits, int[][] out, int[] lens)
+			throws OrtException {
+		int b = out.length;
+		int padId = tgtTok.getPadId();
+		LongBuffer buf = decIds;
+
+		for (int step = 0, maxLen = out[0].length; step < maxLen; step++) {
+			buf.clear();
+
+			for (int r = 0; r < b; r++) {
+				buf.put(padId);
+				for (int i = 0; i < step; i++) buf.put((i < lens[r]) ? out[r][i] : padId);
+			}
+
+			buf.flip();
+
+			try (var decInputTensor = OnnxTensor.createTensor(env, buf, new long[]{b, step + 1})) {
+				inputs.put("input_ids", decInputTensor);
+				try (var result = decoder.run(inputs)) {
+					if (next(result.get(0), step, limits, out, lens)) return;
 				}
-				try {
-					var buf = logits.getFloatBuffer();
-					int vocabSize = (int) logits.getInfo().getShape()[2];
-					int offset = (buf.limit() - vocabSize);
-					bestId = 0;
-					float bestScore = buf.get(offset);
-					for (int i = 1; i < vocabSize; i++) {
-						float s = buf.get(offset + i);
-						if (s > bestScore) {
-							bestScore = s;
-							bestId = i;
-						}
-					}
-				} finally {
-					logits.close();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the first token with the decoder, that returns the key/value cache of the encoder
+	 * and the decoder, and the next tokens one by one with the decoder, accepting the past
+	 * key/value cache. The encoder cache is only returned by the first step.
+	 */
+	private void decodeWithPast(OrtSession withPast, Map<String, OnnxTensor> inputs, int[] limits,
+															int[][] out, int[] lens) throws OrtException {
+		int b = out.length;
+		int maxLen = out[0].length;
+		int padId = tgtTok.getPadId();
+		var inputNames = withPast.getInputNames();
+		var pastInputs = new HashMap<String, OnnxTensor>(inputNames.size() * 2);
+		OrtSession.Result first = null;
+		OrtSession.Result prev = null;
+		LongBuffer buf = tokenIds;
+		buf.clear().limit(b);
+		for (int r = 0; r < b; r++) buf.put(r, padId);
+
+		try (var decInputTensor = OnnxTensor.createTensor(env, buf, new long[]{b, 1})) {
+			inputs.put("input_ids", decInputTensor);
+			first = prev = decoder.run(inputs);
+
+			for (var name : inputNames) {
+				var t = inputs.get(name);
+				if (t != null) pastInputs.put(name, t);
+			}
+
+			for (int step = 0; ; step++) {
+				if (next(prev.get(0), step, limits, out, lens) || (step + 1 == maxLen)) return;
+				for (int r = 0; r < b; r++) buf.put(r, (lens[r] == step + 1) ? out[r][step] : padId);
+
+				for (int i = 0; i < pastNames.length; i++) {
+					var v = prev.get(presentNames[i]);
+					if (!v.isPresent()) v = first.get(presentNames[i]);
+					pastInputs.put(pastNames[i], (OnnxTensor) v.get());
 				}
-				if (bestId == eosId) break;
-				decTokens[decLen++] = bestId;
+
+				var result = withPast.run(pastInputs);
+				if (prev != first) prev.close();
+				prev = result;
 			}
 		} finally {
-			encoderHidden.close();
+			if ((prev != null) && (prev != first)) prev.close();
+			if (first != null) first.close();
 		}
+	}
+
+	/**
+	 * Appends the most probable token to each incomplete sequence. A sequence is incomplete at the
+	 * specified step, if its length is equal to the step and less than its limit. The finished
+	 * sequences are padded by the caller.
+	 *
+	 * @return true if all sequences are complete.
+	 */
+	private boolean next(OnnxValue value, int step, int[] limits, int[][] out, int[] lens)
+			throws OrtException {
+		var logits = (OnnxTensor) value;
+		var buf = logits.getFloatBuffer();
+		long[] shape = logits.getInfo().getShape();
+		int seqLen = (int) shape[1];
+		int vocabSize = (int) shape[2];
+		int eosId = tgtTok.getEosId();
+		boolean done = true;
+
+		for (int r = 0; r < out.length; r++) {
+			if ((lens[r] != step) || (step >= limits[r])) continue;
+			int id = argmax(buf, ((r + 1) * seqLen - 1) * vocabSize, vocabSize);
+			if (id == eosId) continue;
+			out[r][step] = id;
+			lens[r] = step + 1;
+			if (lens[r] < limits[r]) done = false;
+		}
+
+		return done;
+	}
+
+	private static int argmax(FloatBuffer buf, int offset, int vocabSize) {
+		int bestId = 0;
+		float bestScore = buf.get(offset);
+		for (int i = 1; i < vocabSize; i++) {
+			float s = buf.get(offset + i);
+			if (s > bestScore) {
+				bestScore = s;
+				bestId = i;
+			}
+		}
+		return bestId;
+	}
 
-		int[] ids = new int[decLen - 1];
-		for (int i = 1; i < decLen; i++) ids[i - 1] = (int) decTokens[i];
-		return tgtTok.decode(ids);
+	private static LongBuffer allocLong(int size) {
+		return ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder())
+				.asLongBuffer();
 	}
 
 	@Override
 	protected void finalize() {
-		IoUtils.close(encoder, decoder);
+		IoUtils.close(encoder, decoder, decoderWithPast);
 	}
 }
@@ -1,10 +1,8 @@
 package me.aap.fermata.opusmt;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.nio.file.Files.readAllBytes;
 import static java.util.Collections.emptyList;
 import static java.util.Objects.requireNonNull;
-import static me.aap.fermata.opusmt.SentencePieceTokenizer.fromJson;
+import static me.aap.fermata.opusmt.SentencePieceTokenizer.load;
 import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.async.Completed.failed;
 
@@ -96,25 +94,45 @@ public class OpusMtTranslateAddon extends TranslateAddon {
 			var t1 = srcToEn.peek();
 			var t2 = enToTgt.peek();
 			assert t1 != null && t2 != null;
-			return (Translator) text -> t1.translate(text).then(t2::translate);
+			return (Translator) new Translator() {
+				@Override
+				public FutureSupplier<String> translate(String text) {
+					return t1.translate(text).then(tr -> t2.translate(tr));
+				}
+
+				@Override
+				public FutureSupplier<List<String>> translate(List<String> texts) {
+					return t1.translate(texts).then(tr -> t2.translate(tr));
+				}
+			};
 		});
 	}
 
-	@SuppressWarnings({"ReadWriteStringCanBeUsed", "ResultOfMethodCallIgnored"})
+	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private FutureSupplier<Translator> loadModel(ModelInfo m, String srcLang, String tgtLang) {
 		return m.getModelFiles(srcLang, tgtLang).map(files -> {
 			var encoderFile = files[0];
 			var decoderFile = files[1];
 			var srcTokFile = files[2];
 			var tgtTokFile = files[3];
+			var decoderWithPastFile = files[4];
 			try {
-				var srcTok = fromJson(new String(readAllBytes(srcTokFile.toPath()), UTF_8));
-				var tgtTok = srcTokFile.equals(tgtTokFile) ? srcTok :
-						fromJson(new String(readAllBytes(tgtTokFile.toPath()), UTF_8));
+				var srcTok = load(srcTokFile);
+				var tgtTok = srcTokFile.equals(tgtTokFile) ? srcTok : load(tgtTokFile);
 				var tag = m.getTag(tgtLang);
 				var tagId = tag != null ? srcTok.getTokenId(tag) : -1;
-				var model = new OpusMtModel(encoderFile, decoderFile, srcTok, tgtTok);
-				return text -> queue.enqueue(() -> model.translate(text, tagId));
+				var model = new OpusMtModel(encoderFile, decoderFile, decoderWithPastFile, srcTok, tgtTok);
+				return new Translator() {
+					@Override
+					public FutureSupplier<String> translate(String text) {
+						return queue.enqueue(() -> model.translate(text, tagId));
+					}
+
+					@Override
+					public FutureSupplier<List<String>> translate(List<String> texts) {
+						return queue.enqueue(() -> model.translate(texts, tagId));
+					}
+				};
 			} catch (Exception e) {
 				srcTokFile.delete();
 				tgtTokFile.delete();
@@ -203,10 +221,14 @@ public class OpusMtTranslateAddon extends TranslateAddon {
 			var tgtTok = new File(baseDir, tgtTokenizerFileName());
 			var modelUrl = modelUrl(srcLang, tgtLang);
 			var tokUrl = tokenizerUrl(srcLang, tgtLang);
+			var withPastName = decoderWithPastFileName();
+			var withPast = (withPastName == null) ? null : new File(baseDir, withPastName);
 			var tokDownload = download(tokUrl, srcTok);
 			return Async.all(tokDownload, srcTok.equals(tgtTok) ? tokDownload : download(tokUrl, tgtTok),
-							download(modelUrl, encoder), download(modelUrl, decoder))
-					.map(v -> new File[]{encoder, decoder, srcTok, tgtTok});
+							download(modelUrl, encoder), download(modelUrl, decoder),
+							downloadOptional(modelUrl, withPast))
+					.map(v -> new File[]{encoder, decoder, srcTok, tgtTok,
+							((withPast != null) && withPast.isFile()) ? withPast : null});
 		}
 
 		ModelInfo join(ModelInfo with) {
@@ -253,6 +275,14 @@ public class OpusMtTranslateAddon extends TranslateAddon {
 			return "decoder_model.onnx";
 		}
 
+		/**
+		 * The decoder, accepting the past key/value cache, or null if the model has no such decoder.
+		 */
+		@Nullable
+		String decoderWithPastFileName() {
+			return "decoder_with_past_model.onnx";
+		}
+
 		String srcTokenizerFileName() {
 			return "tokenizer.json";
 		}
@@ -276,6 +306,19 @@ public class OpusMtTranslateAddon extends TranslateAddon {
 			Log.i("Downloading OpusMT model file: ", url);
 			return Utils.createDownloader(url).download(url, dest);
 		}
+
+		/**
+		 * Failure is ignored, the model works without optional files.
+		 */
+		@SuppressWarnings("ResultOfMethodCallIgnored")
+		private static FutureSupplier<?> downloadOptional(String base, @Nullable File dest) {
+			if (dest == null) return completedVoid();
+			return download(base, dest).ifFail(err -> {
+				Log.w(err, "Failed to download optional OpusMT model file: ", dest.getName());
+				dest.delete();
+				return null;
+			});
+		}
 	}
 
 	private static class DeZleModelInfo extends ModelInfo {
@@ -309,6 +352,12 @@ public class OpusMtTranslateAddon extends TranslateAddon {
 			return "decoder_model_int8.onnx";
 		}
 
+		@Nullable
+		@Override
+		String decoderWithPastFileName() {
+			return null;
+		}
+
 		@Override
 		String tgtTokenizerFileName() {
 			return "target_tokenizer.json";
@@ -1,27 +1,82 @@
 package me.aap.fermata.opusmt;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.readAllBytes;
+
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.aap.utils.log.Log;
 
+/**
+ * The vocabulary is stored in a prefix trie with primitive arrays, so that encoding does not
+ * allocate objects per substring. The parsed vocabulary is cached in a binary file next to the
+ * JSON file, that is loaded instead of parsing the JSON, until the JSON file is changed.
+ */
 class SentencePieceTokenizer {
 	private static final char SPACE = '▁';
 	private static final int UNK_ID = 3;
+	private static final int CACHE_MAGIC = 0x53505631; // SPV1
+	private static final String CACHE_SUFFIX = ".bin";
 
 	private final String[] idToToken;
-	private final HashMap<String, Integer> tokenToId;
 	private final float[] scores;
+	private final Trie vocab;
 	private final int bosId;
 	private final int eosId;
+	private final int padId;
+	// Encoding buffers, grown on demand
+	private float[] best = new float[32];
+	private int[] backtrack = new int[32];
+	private int[] out = new int[128];
 
-	private SentencePieceTokenizer(String[] idToToken, HashMap<String, Integer> tokenToId,
-			float[] scores, int bosId, int eosId) {
+	private SentencePieceTokenizer(String[] idToToken, float[] scores, Trie vocab, int bosId,
+																 int eosId) {
 		this.idToToken = idToToken;
-		this.tokenToId = tokenToId;
 		this.scores = scores;
+		this.vocab = vocab;
 		this.bosId = bosId;
 		this.eosId = eosId;
+		int pad = vocab.get("<pad>");
+		padId = (pad < 0) ? eosId : pad;
+	}
+
+	/**
+	 * Loads the tokenizer from the binary cache, if it's up-to-date, or parses the JSON file and
+	 * creates the cache.
+	 */
+	static SentencePieceTokenizer load(File json) throws Exception {
+		var cache = new File(json.getPath() + CACHE_SUFFIX);
+
+		if (cache.isFile()) {
+			try {
+				var tok = readCache(cache, json);
+				if (tok != null) return tok;
+			} catch (Exception err) {
+				Log.e(err, "Failed to read vocabulary cache ", cache);
+			}
+		}
+
+		var tok = fromJson(new String(readAllBytes(json.toPath()), UTF_8));
+
+		try {
+			tok.writeCache(cache, json);
+		} catch (Exception err) {
+			Log.e(err, "Failed to write vocabulary cache ", cache);
+		}
+
+		return tok;
 	}
 
 	static SentencePieceTokenizer fromJson(String json) throws Exception {
@@ -60,59 +115,106 @@ class SentencePieceTokenizer {
 			if (id < idToToken.length) idToToken[id] = entry.getKey();
 		}
 
-		return new SentencePieceTokenizer(idToToken, tokenToId, scores, bosId, eosId);
+		return new SentencePieceTokenizer(idToToken, scores, Trie.build(tokenToId), bosId, eosId);
 	}
 
-	int[] encode(String text, int prefixId) {
-		var words = text.trim().split(" ");
-		var tokens = new ArrayList<Integer>();
-		for (var word : words) encodeWord(SPACE + word, tokens);
-		tokens.add(eosId);
-		int offset = prefixId >= 0 ? 1 : 0;
-		int[] ids = new int[tokens.size() + offset];
-		if (offset > 0) ids[0] = prefixId;
-		for (int i = 0; i < tokens.size(); i++) ids[i + offset] = tokens.get(i);
-		return ids;
+	synchronized int[] encode(String text, int prefixId) {
+		int off = prefixId >= 0 ? 1 : 0;
+		int len = off;
+		int start = 0;
+		int end = text.length();
+		while ((start < end) && (text.charAt(start) <= ' ')) start++;
+		while ((end > start) && (text.charAt(end - 1) <= ' ')) end--;
+
+		for (int i = start; ; ) {
+			int j = text.indexOf(' ', i);
+			if ((j < 0) || (j > end)) j = end;
+			len = encodeWord(text, i, j, len);
+			if (j == end) break;
+			i = j + 1;
+		}
+
+		int[] ids = ensureOut(len + 1);
+		ids[len++] = eosId;
+		if (off > 0) ids[0] = prefixId;
+		return Arrays.copyOf(ids, len);
 	}
 
 	int getTokenId(String token) {
-		return tokenToId.getOrDefault(token, -1);
+		return vocab.get(token);
 	}
 
-	private void encodeWord(String word, ArrayList<Integer> out) {
-		int n = word.length();
-		float[] best = new float[n + 1];
-		int[] backtrack = new int[n + 1];
+	/**
+	 * Encodes the word text[start, end), prefixed with the space mark, to the output buffer
+	 * starting at the specified position.
+	 *
+	 * @return the new output position.
+	 */
+	private int encodeWord(String text, int start, int end, int pos) {
+		int n = end - start + 1;
+		float[] best = ensureBest(n + 1);
+		int[] backtrack = this.backtrack;
 		best[0] = 0;
 		for (int i = 1; i <= n; i++) best[i] = Float.NEGATIVE_INFINITY;
 
 		for (int i = 0; i < n; i++) {
 			if (best[i] == Float.NEGATIVE_INFINITY) continue;
-			for (int j = i + 1; j <= n; j++) {
-				var id = tokenToId.get(word.substring(i, j));
-				if (id != null) {
-					float s = best[i] + scores[id];
-					if (s > best[j]) {
-						best[j] = s;
-						backtrack[j] = i;
-					}
+			for (int j = i, node = Trie.ROOT; j < n; ) {
+				node = vocab.child(node, charAt(text, start, j++));
+				if (node < 0) break;
+				int id = vocab.id(node);
+				if (id < 0) continue;
+				float s = best[i] + ((id < scores.length) ? scores[id] : 0f);
+				if (s > best[j]) {
+					best[j] = s;
+					backtrack[j] = i;
 				}
 			}
 		}
 
 		if (best[n] == Float.NEGATIVE_INFINITY) {
-			for (int i = 0; i < n; i++)
-				out.add(tokenToId.getOrDefault(String.valueOf(word.charAt(i)), UNK_ID));
-			return;
+			int[] out = ensureOut(pos + n);
+			for (int i = 0; i < n; i++) {
+				int node = vocab.child(Trie.ROOT, charAt(text, start, i));
+				int id = (node < 0) ? -1 : vocab.id(node);
+				out[pos++] = (id < 0) ? UNK_ID : id;
+			}
+			return pos;
 		}
 
-		int pos = n;
-		int start = out.size();
-		while (pos > 0) {
-			int prev = backtrack[pos];
-			out.add(start, tokenToId.getOrDefault(word.substring(prev, pos), UNK_ID));
-			pos = prev;
+		int count = 0;
+		for (int p = n; p > 0; p = backtrack[p]) count++;
+		int[] out = ensureOut(pos + count);
+
+		for (int p = n, i = pos + count - 1; p > 0; p = backtrack[p], i--) {
+			int prev = backtrack[p];
+			int id = vocab.get(text, start, prev, p);
+			out[i] = (id < 0) ? UNK_ID : id;
 		}
+
+		return pos + count;
+	}
+
+	/**
+	 * The character at the specified index of the word text[start, end), prefixed with the space
+	 * mark.
+	 */
+	private static char charAt(String text, int start, int idx) {
+		return (idx == 0) ? SPACE : text.charAt(start + idx - 1);
+	}
+
+	private float[] ensureBest(int size) {
+		if (best.length < size) {
+			int cap = Math.max(size, best.length * 2);
+			best = new float[cap];
+			backtrack = new int[cap];
+		}
+		return best;
+	}
+
+	private int[] ensureOut(int size) {
+		if (out.length < size) out = Arrays.copyOf(out, Math.max(size, out.length * 2));
+		return out;
 	}
 
 	String decode(int[] ids) {
@@ -132,5 +234,232 @@ class SentencePieceTokenizer {
 	}
 
 	int getEosId() { return eosId; }
-	int getPadId() { return tokenToId.getOrDefault("<pad>", eosId); }
-}
\ No newline at end of file
+	int getPadId() { return padId; }
+
+	/*
+	 * Cache format: header, scores, token lengths (-1 for null), token chars and the trie arrays.
+	 * All values are in the native byte order.
+	 */
+	private void writeCache(File cache, File json) throws IOException {
+		int nchars = 0;
+		for (var t : idToToken) if (t != null) nchars += t.length();
+		var t = vocab;
+		long size = 4L * 6 + 8L * 2 + 4L * scores.length + 4L * idToToken.length + 2L * nchars +
+				4L * t.childStart.length + 2L * t.childChar.length + 4L * t.childNode.length +
+				4L * t.nodeId.length + 4L * 4;
+		if (size > Integer.MAX_VALUE) throw new IOException("Vocabulary is too large");
+
+		var bb = ByteBuffer.allocate((int) size).order(ByteOrder.nativeOrder());
+		bb.putInt(CACHE_MAGIC).putLong(json.length()).putLong(json.lastModified());
+		bb.putInt(bosId).putInt(eosId);
+		putFloats(bb, scores);
+		bb.putInt(idToToken.length);
+		for (var tok : idToToken) bb.putInt((tok == null) ? -1 : tok.length());
+		bb.putInt(nchars);
+		for (var tok : idToToken) {
+			if (tok == null) continue;
+			for (int i = 0, n = tok.length(); i < n; i++) bb.putChar(tok.charAt(i));
+		}
+		putInts(bb, t.childStart);
+		putChars(bb, t.childChar);
+		putInts(bb, t.childNode);
+		putInts(bb, t.nodeId);
+		bb.flip();
+
+		var tmp = new File(cache.getPath() + ".tmp");
+		try (var out = new FileOutputStream(tmp); var ch = out.getChannel()) {
+			while (bb.hasRemaining()) ch.write(bb);
+		}
+		if (!tmp.renameTo(cache)) throw new IOException("Failed to rename " + tmp + " to " + cache);
+	}
+
+	private static SentencePieceTokenizer readCache(File cache, File json) throws IOException {
+		var bb = ByteBuffer.wrap(readAllBytes(cache.toPath())).order(ByteOrder.nativeOrder());
+		if ((bb.getInt() != CACHE_MAGIC) || (bb.getLong() != json.length()) ||
+				(bb.getLong() != json.lastModified())) {
+			return null;
+		}
+
+		int bosId = bb.getInt();
+		int eosId = bb.getInt();
+		float[] scores = getFloats(bb);
+		var idToToken = new String[bb.getInt()];
+		int[] lengths = new int[idToToken.length];
+		bb.asIntBuffer().get(lengths);
+		bb.position(bb.position() + lengths.length * 4);
+		char[] chars = getChars(bb);
+
+		for (int i = 0, off = 0; i < lengths.length; i++) {
+			int len = lengths[i];
+			if (len < 0) continue;
+			idToToken[i] = new String(chars, off, len);
+			off += len;
+		}
+
+		var trie = new Trie(getInts(bb), getChars(bb), getInts(bb), getInts(bb));
+		return new SentencePieceTokenizer(idToToken, scores, trie, bosId, eosId);
+	}
+
+	private static void putInts(ByteBuffer bb, int[] a) {
+		bb.putInt(a.length);
+		bb.asIntBuffer().put(a);
+		bb.position(bb.position() + a.length * 4);
+	}
+
+	private static void putChars(ByteBuffer bb, char[] a) {
+		bb.putInt(a.length);
+		bb.asCharBuffer().put(a);
+		bb.position(bb.position() + a.length * 2);
+	}
+
+	private static void putFloats(ByteBuffer bb, float[] a) {
+		bb.putInt(a.length);
+		bb.asFloatBuffer().put(a);
+		bb.position(bb.position() + a.length * 4);
+	}
+
+	private static int[] getInts(ByteBuffer bb) {
+		int[] a = new int[bb.getInt()];
+		bb.asIntBuffer().get(a);
+		bb.position(bb.position() + a.length * 4);
+		return a;
+	}
+
+	private static char[] getChars(ByteBuffer bb) {
+		char[] a = new char[bb.getInt()];
+		bb.asCharBuffer().get(a);
+		bb.position(bb.position() + a.length * 2);
+		return a;
+	}
+
+	private static float[] getFloats(ByteBuffer bb) {
+		float[] a = new float[bb.getInt()];
+		bb.asFloatBuffer().get(a);
+		bb.position(bb.position() + a.length * 4);
+		return a;
+	}
+
+	/**
+	 * Prefix trie of the vocabulary. The children of the node n are stored in the range
+	 * [childStart[n], childStart[n + 1]) of the childChar and childNode arrays, sorted by char.
+	 * The token id of the node n is nodeId[n] or -1, if the node is not a token.
+	 */
+	private static final class Trie {
+		static final int ROOT = 0;
+		final int[] childStart;
+		final char[] childChar;
+		final int[] childNode;
+		final int[] nodeId;
+
+		Trie(int[] childStart, char[] childChar, int[] childNode, int[] nodeId) {
+			this.childStart = childStart;
+			this.childChar = childChar;
+			this.childNode = childNode;
+			this.nodeId = nodeId;
+		}
+
+		static Trie build(Map<String, Integer> tokens) {
+			var root = new Node();
+
+			for (var e : tokens.entrySet()) {
+				var node = root;
+				var tok = e.getKey();
+				for (int i = 0, n = tok.length(); i < n; i++) {
+					char c = tok.charAt(i);
+					var child = node.children.get(c);
+					if (child == null) node.children.put(c, child = new Node());
+					node = child;
+				}
+				node.id = e.getValue();
+			}
+
+			// Breadth-first numbering, the children of each node get consecutive numbers
+			List<Node> nodes = new ArrayList<>();
+			var queue = new ArrayDeque<Node>();
+			queue.add(root);
+			nodes.add(root);
+			int edges = 0;
+
+			for (var node = queue.poll(); node != null; node = queue.poll()) {
+				var chars = new char[node.children.size()];
+				int i = 0;
+				for (var c : node.children.keySet()) chars[i++] = c;
+				Arrays.sort(chars);
+				node.chars = chars;
+				edges += chars.length;
+
+				for (char c : chars) {
+					var child = node.children.get(c);
+					child.index = nodes.size();
+					nodes.add(child);
+					queue.add(child);
+				}
+			}
+
+			int[] childStart = new int[nodes.size() + 1];
+			char[] childChar = new char[edges];
+			int[] childNode = new int[edges];
+			int[] nodeId = new int[nodes.size()];
+
+			for (int n = 0, e = 0; n < nodes.size(); n++) {
+				var node = nodes.get(n);
+				childStart[n] = e;
+				nodeId[n] = node.id;
+				for (char c : node.chars) {
+					childChar[e] = c;
+					childNode[e++] = node.children.get(c).index;
+				}
+				childStart[n + 1] = e;
+			}
+
+			return new Trie(childStart, childChar, childNode, nodeId);
+		}
+
+		/**
+		 * @return the child node or -1 if not found.
+		 */
+		int child(int node, char c) {
+			int lo = childStart[node];
+			int hi = childStart[node + 1] - 1;
+
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				char m = childChar[mid];
+				if (m < c) lo = mid + 1;
+				else if (m > c) hi = mid - 1;
+				else return childNode[mid];
+			}
+
+			return -1;
+		}
+
+		int id(int node) {
+			return nodeId[node];
+		}
+
+		int get(String token) {
+			int node = ROOT;
+			for (int i = 0, n = token.length(); (i < n) && (node >= 0); i++) {
+				node = child(node, token.charAt(i));
+			}
+			return (node < 0) ? -1 : nodeId[node];
+		}
+
+		/**
+		 * Returns the id of the substring [from, to) of the word text[start, ...), prefixed with
+		 * the space mark, or -1 if not found.
+		 */
+		int get(String text, int start, int from, int to) {
+			int node = ROOT;
+			for (int i = from; (i < to) && (node >= 0); i++) node = child(node, charAt(text, start, i));
+			return (node < 0) ? -1 : nodeId[node];
+		}
+
+		private static final class Node {
+			final Map<Character, Node> children = new HashMap<>(4);
+			char[] chars;
+			int index;
+			int id = -1;
+		}
+	}
+}
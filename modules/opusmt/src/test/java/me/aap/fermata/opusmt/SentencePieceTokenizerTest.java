@@ -0,0 +1,106 @@
+package me.aap.fermata.opusmt;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class SentencePieceTokenizerTest extends Assert {
+	private static final String JSON = "{\"model\": {\"vocab\": [" +
+			"[\"<pad>\", 0], [\"</s>\", 0], [\"<s>\", 0], [\"<unk>\", 0], " +
+			"[\"▁\", -3], [\"▁a\", -1], [\"▁ab\", -1.5], [\"▁abc\", -1], [\"▁c\", -2], " +
+			"[\"a\", -2], [\"b\", -2], [\"c\", -2], [\"bc\", -1]" +
+			"]}}";
+	private static final int PAD = 0;
+	private static final int EOS = 1;
+	private static final int UNK = 3;
+	private static final int SPACE = 4;
+	private static final String[] TEXTS = {
+			"", " ", "a", "abc", "ab c", "  abc   a  ", "a  b", "cab bca", "axb", "x", "a x\tb",
+			"абв", "abc\nc"
+	};
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testEncode() throws Exception {
+		var tok = SentencePieceTokenizer.fromJson(JSON);
+		assertEquals(PAD, tok.getPadId());
+		assertEquals(EOS, tok.getEosId());
+		assertEquals(7, tok.getTokenId("▁abc"));
+		assertEquals(-1, tok.getTokenId("x"));
+
+		// The highest score wins: ▁abc (-1) over ▁a bc (-2), ▁ab c (-3.5) and ▁a b c (-5)
+		assertArrayEquals(new int[]{7, EOS}, tok.encode("abc", -1));
+		assertArrayEquals(new int[]{2, 7, EOS}, tok.encode("abc", 2));
+		assertArrayEquals(new int[]{6, 8, EOS}, tok.encode(" ab c ", -1));
+		assertEquals("abc", tok.decode(tok.encode("abc", 2)));
+		assertEquals("ab c", tok.decode(tok.encode("ab c", -1)));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		var tok = SentencePieceTokenizer.fromJson(JSON);
+		assertArrayEquals(new int[]{SPACE, EOS}, tok.encode("", -1));
+		assertArrayEquals(new int[]{SPACE, EOS}, tok.encode(" \t\n ", -1));
+		assertArrayEquals(new int[]{2, SPACE, EOS}, tok.encode("", 2));
+		assertEquals("", tok.decode(tok.encode("", -1)));
+	}
+
+	@Test
+	public void testRepeatedSpaces() throws Exception {
+		var tok = SentencePieceTokenizer.fromJson(JSON);
+		// Each additional space produces an empty word
+		assertArrayEquals(new int[]{5, SPACE, SPACE, 10, EOS}, tok.encode("a  b", -1));
+		assertArrayEquals(new int[]{5, SPACE, SPACE, 5, EOS}, tok.encode("  a   a  ", -1));
+	}
+
+	@Test
+	public void testUnknownChars() throws Exception {
+		var tok = SentencePieceTokenizer.fromJson(JSON);
+		// A word, that can not be segmented, is encoded char by char
+		assertArrayEquals(new int[]{SPACE, 9, UNK, 10, EOS}, tok.encode("axb", -1));
+		assertArrayEquals(new int[]{SPACE, UNK, EOS}, tok.encode("x", -1));
+		assertArrayEquals(new int[]{7, SPACE, UNK, UNK, EOS}, tok.encode("abc жы", -1));
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		var json = tmp.newFile("vocab.json");
+		Files.write(json.toPath(), JSON.getBytes(UTF_8));
+		var parsed = SentencePieceTokenizer.fromJson(JSON);
+		var loaded = SentencePieceTokenizer.load(json);
+		var cache = new File(json.getPath() + ".bin");
+		assertTrue(cache.isFile());
+
+		// Replace the JSON with garbage of the same length and time - the cache must be used
+		long time = json.lastModified();
+		var garbage = new byte[(int) json.length()];
+		Arrays.fill(garbage, (byte) '#');
+		Files.write(json.toPath(), garbage);
+		assertTrue(json.setLastModified(time));
+		var cached = SentencePieceTokenizer.load(json);
+
+		assertEquals(parsed.getPadId(), cached.getPadId());
+		assertEquals(parsed.getEosId(), cached.getEosId());
+
+		for (var text : TEXTS) {
+			var ids = parsed.encode(text, -1);
+			assertArrayEquals(text, ids, loaded.encode(text, -1));
+			assertArrayEquals(text, ids, cached.encode(text, -1));
+			assertArrayEquals(text, parsed.encode(text, 2), cached.encode(text, 2));
+			assertEquals(text, parsed.decode(ids), cached.decode(ids));
+		}
+
+		// The JSON has changed - the cache is not used
+		Files.write(json.toPath(), JSON.replace("[\"▁abc\", -1]", "[\"▁abc\", -5.5]").getBytes(UTF_8));
+		assertTrue(json.setLastModified(time + 2000));
+		assertArrayEquals(new int[]{5, 12, EOS}, SentencePieceTokenizer.load(json).encode("abc", -1));
+	}
+}
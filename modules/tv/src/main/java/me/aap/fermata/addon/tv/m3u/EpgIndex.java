@@ -0,0 +1,119 @@
+package me.aap.fermata.addon.tv.m3u;
+
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable in-memory index of the current and upcoming programmes. Up to {@link #SLOTS}
+ * programmes per channel are stored in arrays, indexed by the channel id. The index answers
+ * the current programme queries without database access until it becomes stale, i.e. the
+ * last loaded programme of any channel is over.
+ *
+ * @author Andrey Pavlenko
+ */
+final class EpgIndex {
+	static final int NONE = -1;
+	static final int UNKNOWN = -2;
+	static final long WINDOW = 12 * 60 * 60000L;
+	private static final int SLOTS = 4;
+	private final long[] start;
+	private final long[] stop;
+	private final String[] title;
+	private final String[] desc;
+	private final String[] icon;
+	private final byte[] count;
+	private final long loadTime;
+	private final long staleTime;
+
+	/**
+	 * @param c        the cursor with the columns ChId, Start, Stop, Title, Dsc, Icon, containing
+	 *                 the programmes, that stop after the load time, ordered by ChId and Start.
+	 * @param maxChId  the maximum channel id.
+	 * @param loadTime the time of loading.
+	 */
+	EpgIndex(Cursor c, int maxChId, long loadTime) {
+		int channels = maxChId + 1;
+		int size = channels * SLOTS;
+		start = new long[size];
+		stop = new long[size];
+		title = new String[size];
+		desc = new String[size];
+		icon = new String[size];
+		count = new byte[channels];
+		this.loadTime = loadTime;
+
+		while (c.moveToNext()) {
+			int ch = c.getInt(0);
+			if ((ch < 0) || (ch >= channels)) continue;
+			int n = count[ch];
+			if (n == SLOTS) continue;
+			int i = ch * SLOTS + n;
+			start[i] = c.getLong(1);
+			stop[i] = c.getLong(2);
+			title[i] = c.getString(3);
+			desc[i] = c.getString(4);
+			icon[i] = c.getString(5);
+			count[ch] = (byte) (n + 1);
+		}
+
+		long stale = loadTime + WINDOW;
+
+		for (int ch = 0; ch < channels; ch++) {
+			// If less than SLOTS, the channel has no more programmes in the window
+			if (count[ch] == SLOTS) stale = Math.min(stale, stop[ch * SLOTS + SLOTS - 1]);
+		}
+
+		staleTime = stale;
+	}
+
+	/**
+	 * @return the slot of the programme, running at the specified time, {@link #NONE} if the
+	 * channel has no programme at this time or {@link #UNKNOWN} if the index has no information.
+	 */
+	int find(int chId, long time) {
+		if ((chId < 0) || (chId >= count.length) || (time < loadTime)) return UNKNOWN;
+		int n = count[chId];
+
+		for (int i = chId * SLOTS, end = i + n; i < end; i++) {
+			if (time < start[i]) return NONE;
+			if (time < stop[i]) return i;
+		}
+
+		return ((n < SLOTS) && (time < loadTime + WINDOW)) ? NONE : UNKNOWN;
+	}
+
+	boolean isStale(long time) {
+		return time >= staleTime;
+	}
+
+	long getStart(int slot) {
+		return start[slot];
+	}
+
+	long getStop(int slot) {
+		return stop[slot];
+	}
+
+	String getTitle(int slot) {
+		return title[slot];
+	}
+
+	String getDesc(int slot) {
+		return desc[slot];
+	}
+
+	String getIcon(int slot) {
+		return icon[slot];
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "EpgIndex{" +
+				"channels=" + count.length +
+				", loadTime=" + loadTime +
+				", staleTime=" + staleTime +
+				'}';
+	}
+}
@@ -13,6 +13,7 @@ import static me.aap.utils.text.TextUtils.trim;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.net.MalformedURLException;
@@ -28,6 +29,7 @@ import me.aap.utils.function.LongSupplier;
 import me.aap.utils.function.Supplier;
 import me.aap.utils.log.Log;
 import me.aap.utils.net.http.HttpFileDownloader;
+import me.aap.utils.net.http.HttpFileDownloader.PayloadConsumer;
 import me.aap.utils.net.http.HttpFileDownloader.Status;
 import me.aap.utils.pref.PreferenceStore;
 import me.aap.utils.pref.PreferenceStore.Pref;
@@ -46,6 +48,7 @@ public class TvM3uFile extends M3uFile {
 	public static final int CATCHUP_TYPE_FLUSSONIC = 4;
 	public static final Pref<Supplier<String>> EPG_URL = Pref.s("EPG_URL");
 	public static final Pref<DoubleSupplier> EPG_SHIFT = Pref.f("EPG_SHIFT", 0);
+	public static final Pref<IntSupplier> EPG_DAYS = Pref.i("EPG_DAYS", 7);
 	public static final Pref<Supplier<String>> CATCHUP_QUERY = Pref.s("CATCHUP_QUERY");
 	public static final Pref<IntSupplier> CATCHUP_TYPE = Pref.i("CATCHUP_TYPE", CATCHUP_TYPE_AUTO);
 	public static final Pref<IntSupplier> CATCHUP_DAYS = Pref.i("CATCHUP_DAYS", 0);
@@ -78,6 +81,17 @@ public class TvM3uFile extends M3uFile {
 		getPrefs().applyFloatPref(EPG_SHIFT, shift);
 	}
 
+	/**
+	 * The number of days of the upcoming programmes, loaded from XMLTV.
+	 */
+	public int getEpgDays() {
+		return getPrefs().getIntPref(EPG_DAYS);
+	}
+
+	public void setEpgDays(int days) {
+		getPrefs().applyIntPref(EPG_DAYS, days);
+	}
+
 	public String getCatchupQuery() {
 		return getPrefs().getStringPref(CATCHUP_QUERY);
 	}
@@ -150,6 +164,13 @@ public class TvM3uFile extends M3uFile {
 	}
 
 	public FutureSupplier<Status> downloadEpg() {
+		return downloadEpg(null);
+	}
+
+	/**
+	 * @param consumer if not null, receives the decoded EPG payload, while it's being downloaded.
+	 */
+	public FutureSupplier<Status> downloadEpg(@Nullable PayloadConsumer consumer) {
 		String url = getEpgUrl();
 		if (url == null) return failed(new MalformedURLException("EPG URL is not set"));
 		File epgFile = getEpgFile();
@@ -161,7 +182,7 @@ public class TvM3uFile extends M3uFile {
 		l.setFailureTitle(s -> ctx.getResources().getString(me.aap.fermata.R.string.err_failed_to_download, url));
 		d.setStatusListener(l);
 		d.setReturnExistingOnFail(true);
-		return d.download(url, epgFile, getEpgPrefs());
+		return d.download(url, epgFile, getEpgPrefs(), consumer);
 	}
 
 	protected void cleanUp() {
@@ -6,6 +6,7 @@ import static me.aap.fermata.addon.tv.m3u.TvM3uFile.CATCHUP_TYPE;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.CATCHUP_TYPE_APPEND;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.CATCHUP_TYPE_AUTO;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.CATCHUP_TYPE_DEFAULT;
+import static me.aap.fermata.addon.tv.m3u.TvM3uFile.EPG_DAYS;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.EPG_FILE_AGE;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.EPG_SHIFT;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.EPG_URL;
@@ -55,6 +56,7 @@ public class TvM3uFileSystemProvider extends M3uFileSystemProvider {
 		String url = f.getUrl();
 		String epgUrl = f.getEpgUrl();
 		float shift = f.getEpgShift();
+		int days = f.getEpgDays();
 
 		try (PreferenceStore.Edit e = ps.editPreferenceStore()) {
 			e.setStringPref(NAME, f.getName());
@@ -62,6 +64,7 @@ public class TvM3uFileSystemProvider extends M3uFileSystemProvider {
 			e.setStringPref(EPG_URL, f.getEpgUrl());
 			e.setBooleanPref(LOGO_PREFER_EPG, f.isPreferEpgLogo());
 			e.setFloatPref(EPG_SHIFT, f.getEpgShift());
+			e.setIntPref(EPG_DAYS, f.getEpgDays());
 			e.setIntPref(CATCHUP_TYPE, f.getCatchupType());
 			e.setIntPref(CATCHUP_DAYS, f.getCatchupDays());
 			e.setStringPref(CATCHUP_QUERY, f.getCatchupQuery());
@@ -76,7 +79,8 @@ public class TvM3uFileSystemProvider extends M3uFileSystemProvider {
 
 			if (!Objects.equals(url, f.getUrl())
 					|| !Objects.equals(epgUrl, f.getEpgUrl())
-					|| (shift != f.getEpgShift())) {
+					|| (shift != f.getEpgShift())
+					|| (days != f.getEpgDays())) {
 				Log.d("TV source has been modified - clearing stamps.");
 				f.clearStamps();
 			}
@@ -121,6 +125,13 @@ public class TvM3uFileSystemProvider extends M3uFileSystemProvider {
 			o.seekMax = 12;
 			o.title = R.string.epg_time_shift;
 		});
+		sub.addIntPref(o -> {
+			o.store = ps;
+			o.pref = EPG_DAYS;
+			o.seekMin = 1;
+			o.seekMax = 30;
+			o.title = R.string.epg_days;
+		});
 
 		sub = prefs.subSet(o -> o.title = R.string.catchup);
 		sub.addListPref(o -> {
@@ -208,6 +219,7 @@ public class TvM3uFileSystemProvider extends M3uFileSystemProvider {
 		f.setVideo(true);
 		f.setEpgUrl(ps.getStringPref(EPG_URL));
 		f.setEpgShift(ps.getFloatPref(EPG_SHIFT));
+		f.setEpgDays(ps.getIntPref(EPG_DAYS));
 		f.setCatchupQuery(ps.getStringPref(CATCHUP_QUERY));
 		f.setCatchupType(ps.getIntPref(CATCHUP_TYPE));
 		f.setCatchupDays(ps.getIntPref(CATCHUP_DAYS));
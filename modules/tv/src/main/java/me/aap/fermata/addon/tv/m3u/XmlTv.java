@@ -1,7 +1,7 @@
 package me.aap.fermata.addon.tv.m3u;
 
-import static java.lang.Character.NON_SPACING_MARK;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
 import static me.aap.fermata.addon.tv.m3u.TvM3uFile.EPG_FILE_AGE;
 import static me.aap.fermata.addon.tv.m3u.TvM3uTrackItem.EPG_ID_NOT_FOUND;
 import static me.aap.fermata.addon.tv.m3u.TvM3uTrackItem.EPG_ID_UNKNOWN;
@@ -16,6 +16,8 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 
+import androidx.annotation.Nullable;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -23,7 +25,6 @@ import org.xml.sax.helpers.DefaultHandler;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.Normalizer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -45,11 +46,14 @@ import javax.xml.parsers.SAXParserFactory;
 import me.aap.fermata.media.lib.MediaLib.BrowsableItem;
 import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
 import me.aap.utils.db.SQLite;
 import me.aap.utils.holder.BooleanHolder;
+import me.aap.utils.holder.Holder;
+import me.aap.utils.io.IoUtils;
 import me.aap.utils.log.Log;
 import me.aap.utils.net.http.HttpFileDownloader.Status;
-import me.aap.utils.text.SharedTextBuilder;
+import me.aap.utils.text.TextUtils;
 
 /**
  * @author Andrey Pavlenko
@@ -59,7 +63,12 @@ public class XmlTv implements Closeable {
 	private static final String TABLE_PROG = "Prog";
 	private static final String TABLE_NAME_TO_ID = "NameToId";
 	private static final String TABLE_NAME_TO_ICON = "NameToIcon";
-	private static final String IDX_PROG_CH = "ProgChIdx";
+	private static final String IDX_PROG_CH = "ProgChStartIdx";
+	private static final String IDX_PROG_CH_OLD = "ProgChIdx";
+	private static final String SHADOW = "New";
+	private static final String[] TABLES = {TABLE_CH, TABLE_PROG, TABLE_NAME_TO_ID, TABLE_NAME_TO_ICON};
+	private static final int DB_VERSION = 1;
+	private static final int BATCH_SIZE = 1000;
 	private static final String COL_ID = "Id";
 	private static final String COL_EPG_ID = "EpgId";
 	private static final String COL_NAME = "Name";
@@ -69,10 +78,13 @@ public class XmlTv implements Closeable {
 	private static final String COL_STOP = "Stop";
 	private static final String COL_TITLE = "Title";
 	private static final String COL_DSC = "Dsc";
+	private static final String COL_HASH = "Hash";
 	private static final String[] Q_COL_ID_ICON = new String[]{COL_ID, COL_ICON};
+	private static final String[] Q_COL_ID_EPG_ID_HASH = new String[]{COL_ID, COL_EPG_ID, COL_HASH};
 	private static final String[] Q_COL_CH_ID = new String[]{COL_CH_ID};
 	private static final String[] Q_COL_ICON = new String[]{COL_ICON};
 	private static final String[] Q_COL_EPG = new String[]{COL_START, COL_STOP, COL_TITLE, COL_DSC, COL_ICON};
+	private static final String[] Q_COL_INDEX = new String[]{COL_CH_ID, COL_START, COL_STOP, COL_TITLE, COL_DSC, COL_ICON};
 	private static final String Q_SEL_ID = COL_ID + " = ?";
 	private static final String Q_SEL_EPG_ID = COL_EPG_ID + " = ?";
 	private static final String Q_SEL_NAME = COL_NAME + " = ?";
@@ -80,7 +92,12 @@ public class XmlTv implements Closeable {
 	private static final String Q_SEL_CH_ID = COL_CH_ID + " = ? ";
 	private static final String Q_SEL_CH_ID_TIME = COL_CH_ID + " = ? AND " +
 			COL_START + " <= ? AND " + COL_STOP + " > ?";
+	private static final String Q_SEL_TIME_RANGE = COL_STOP + " > ? AND " + COL_START + " < ?";
 	private final SQLite sql;
+	private Promise<XmlTv> importing;
+	private volatile EpgIndex index;
+	private boolean indexLoading;
+	private boolean indexReloadPending;
 
 	private XmlTv(SQLite sql) {
 		this.sql = sql;
@@ -109,6 +126,7 @@ public class XmlTv implements Closeable {
 			return xml.sql.query(db -> {
 				if (hasIndex(db)) {
 					xml.load(item, true);
+					xml.reloadIndex();
 					return completed(xml);
 				} else {
 					return xml.load(item, false);
@@ -129,6 +147,9 @@ public class XmlTv implements Closeable {
 			Log.d("Database is closed: ", sql);
 		}
 
+		int id = track.getEpgId();
+		if ((id >= 0) && updateFromIndex(track, id, track.getEpgChIcon())) return completedVoid();
+
 		return sql.execute(db -> {
 			try {
 				updateTrack(db, track);
@@ -138,7 +159,7 @@ public class XmlTv implements Closeable {
 		});
 	}
 
-	private static int updateTrack(SQLiteDatabase db, TvM3uTrackItem track) {
+	private int updateTrack(SQLiteDatabase db, TvM3uTrackItem track) {
 		int id = track.getEpgId();
 		String icon = track.getEpgChIcon();
 
@@ -202,10 +223,11 @@ public class XmlTv implements Closeable {
 			return EPG_ID_UNKNOWN;
 		}
 
+		if (updateFromIndex(track, id, icon)) return id;
 		String time = String.valueOf(System.currentTimeMillis());
 
 		try (Cursor c = db.query(TABLE_PROG, Q_COL_EPG, Q_SEL_CH_ID_TIME,
-				new String[]{String.valueOf(id), time, time}, null, null, null)) {
+				new String[]{String.valueOf(id), time, time}, null, null, COL_START + " DESC", "1")) {
 			if (c.moveToFirst()) {
 				track.update(id, icon, c.getLong(0), c.getLong(1), c.getString(2),
 						c.getString(3), c.getString(4), false);
@@ -217,6 +239,90 @@ public class XmlTv implements Closeable {
 		return id;
 	}
 
+	private boolean updateFromIndex(TvM3uTrackItem track, int id, String icon) {
+		EpgIndex idx = index;
+		if (idx == null) return false;
+		long time = System.currentTimeMillis();
+		if (idx.isStale(time)) reloadIndex();
+		int slot = idx.find(id, time);
+
+		if (slot >= 0) {
+			track.update(id, icon, idx.getStart(slot), idx.getStop(slot), idx.getTitle(slot),
+					idx.getDesc(slot), idx.getIcon(slot), false);
+			return true;
+		} else if (slot == EpgIndex.NONE) {
+			track.update(id, icon, 0, 0, null, null, null, false);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Discards the index, because the programmes have changed. If the index is being loaded, the
+	 * loaded index may not reflect the changes, thus it's discarded too and the index is reloaded
+	 * once again, when the current loading is completed.
+	 */
+	private void invalidateIndex() {
+		synchronized (this) {
+			index = null;
+
+			if (indexLoading) {
+				indexReloadPending = true;
+				return;
+			}
+
+			indexLoading = true;
+		}
+
+		loadIndex();
+	}
+
+	private void reloadIndex() {
+		synchronized (this) {
+			if (indexLoading) return;
+			indexLoading = true;
+		}
+
+		loadIndex();
+	}
+
+	private void loadIndex() {
+		sql.query(db -> {
+			long time = System.currentTimeMillis();
+			int maxId;
+
+			try (Cursor c = db.rawQuery("SELECT max(" + COL_ID + ") FROM " + TABLE_CH, null)) {
+				maxId = c.moveToFirst() ? c.getInt(0) : -1;
+			}
+
+			String[] args = new String[]{String.valueOf(time), String.valueOf(time + EpgIndex.WINDOW)};
+			try (Cursor c = db.query(TABLE_PROG, Q_COL_INDEX, Q_SEL_TIME_RANGE, args, null, null,
+					COL_CH_ID + ", " + COL_START)) {
+				return new EpgIndex(c, maxId, time);
+			}
+		}).onCompletion((idx, err) -> {
+			if (err != null) Log.e(err, "Failed to load EPG index");
+
+			synchronized (this) {
+				if (indexReloadPending) {
+					Log.d("EPG index is outdated, reloading: ", idx);
+					indexReloadPending = false;
+				} else {
+					if (err == null) {
+						Log.d("EPG index loaded: ", idx);
+						index = idx;
+					}
+
+					indexLoading = false;
+					return;
+				}
+			}
+
+			loadIndex();
+		});
+	}
+
 	public FutureSupplier<List<TvM3uEpgItem>> getEpg(TvM3uTrackItem track) {
 		return sql.query(db -> {
 			try {
@@ -263,9 +369,21 @@ public class XmlTv implements Closeable {
 		return sql.query(db -> load(item, hasIndex(db)));
 	}
 
+	/**
+	 * If a new XMLTV content is received, it's imported while being downloaded. Otherwise,
+	 * the previously downloaded file is imported, if there is no index.
+	 */
 	private FutureSupplier<XmlTv> load(TvM3uItem item, boolean hasIndex) {
 		BooleanHolder noUpdate = new BooleanHolder();
-		return item.getResource().downloadEpg().then(status -> {
+		Holder<FutureSupplier<XmlTv>> streaming = new Holder<>();
+		return item.getResource().downloadEpg((status, in) -> {
+			FutureSupplier<XmlTv> f = load(item, status, in);
+			if (f == null) IoUtils.close(in);
+			streaming.value = f;
+		}).then(status -> {
+			FutureSupplier<XmlTv> f = streaming.value;
+			if (f != null) return f;
+
 			if ((status.bytesDownloaded() == 0) && hasIndex) {
 				Log.i("XMLTV is up to date: ", status.getUrl());
 				return completed(this);
@@ -274,10 +392,10 @@ public class XmlTv implements Closeable {
 			if (hasIndex) {
 				noUpdate.value = true;
 				Log.i("Scheduling XMLTV update in 30 seconds: ", status.getUrl());
-				Async.schedule(() -> load(item, status), 30000);
+				Async.schedule(() -> load(item, status, null), 30000);
 				return completed(this);
 			} else {
-				return load(item, status);
+				return load(item, status, null);
 			}
 		}).onFailure(err -> {
 			String url = item.getResource().getEpgUrl();
@@ -303,11 +421,39 @@ public class XmlTv implements Closeable {
 		});
 	}
 
-	private FutureSupplier<XmlTv> load(TvM3uItem item, Status status) {
+	/**
+	 * @param in the payload stream or null to import the downloaded file.
+	 * @return null if the stream is specified, but an import is already in progress.
+	 */
+	@Nullable
+	private FutureSupplier<XmlTv> load(TvM3uItem item, Status status, @Nullable InputStream in) {
+		Promise<XmlTv> p;
+
+		synchronized (this) {
+			if (importing != null) {
+				Log.d("XMLTV import is already in progress: ", status.getUrl());
+				return (in == null) ? importing : null;
+			}
+			importing = p = new Promise<>();
+		}
+
 		Map<String, List<TvM3uTrackItem>> idToTrack = new HashMap<>();
 		Map<String, List<TvM3uTrackItem>> nameToTrack = new HashMap<>();
-		return loadChannels(item, idToTrack, nameToTrack)
-				.then(v -> sql.query(db -> loadXml(item, status, db, idToTrack, nameToTrack)));
+		loadChannels(item, idToTrack, nameToTrack)
+				.then(v -> sql.query(XmlTv::prepareImport))
+				.onCompletion((prev, err) -> {
+					if (err != null) {
+						IoUtils.close(in);
+						p.completeExceptionally(err);
+					} else {
+						startImport(p, item, status, in, prev, idToTrack, nameToTrack);
+					}
+				});
+		return p.onCompletion((r, err) -> {
+			synchronized (this) {
+				importing = null;
+			}
+		});
 	}
 
 	private FutureSupplier<Void> loadChannels(BrowsableItem item,
@@ -330,53 +476,93 @@ public class XmlTv implements Closeable {
 	}
 
 	private static String normalizeName(String name) {
-		name = Normalizer.normalize(name, Normalizer.Form.NFD);
-		try (SharedTextBuilder b = SharedTextBuilder.get()) {
-			for (int i = 0, s = name.length(); i < s; i++) {
-				char c = name.charAt(i);
-				if (Character.getType(c) != NON_SPACING_MARK) b.append(Character.toLowerCase(c));
+		return TextUtils.normalize(name);
+	}
+
+	/**
+	 * The XML is parsed on a separate low priority thread, the programmes are inserted into the
+	 * shadow tables in batches by the database queue, so the current EPG remains available during
+	 * the import. The parser blocks while waiting for the batches and, if streamed, for the
+	 * payload, that is written by the network callbacks. Both are run by the application
+	 * executor, thus the parser must not run on it. When parsed, the shadow tables are applied
+	 * by the database queue.
+	 */
+	private void startImport(Promise<XmlTv> p, TvM3uItem item, Status status,
+													 @Nullable InputStream in, Map<String, PrevChannel> prev,
+													 Map<String, List<TvM3uTrackItem>> idToTrack,
+													 Map<String, List<TvM3uTrackItem>> nameToTrack) {
+		long time = System.currentTimeMillis();
+		Promise<XmlHandler> parsed = new Promise<>();
+		Thread t = new Thread("XmlTv") {
+			@Override
+			public void run() {
+				try {
+					parsed.complete(parseXml(item, status, in, prev, idToTrack, nameToTrack));
+				} catch (Throwable ex) {
+					parsed.completeExceptionally(ex);
+				}
 			}
-			return b.toString();
-		}
+		};
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+
+		parsed.then(handler -> sql.query(handler::apply).map(full -> {
+			invalidateIndex();
+			handler.updateTracks(full);
+			Log.i("XMLTV has been successfully loaded in ", (System.currentTimeMillis() - time),
+					" milliseconds (", full ? "full" : "incremental", " update): ", status.getUrl());
+			return XmlTv.this;
+		})).onCompletion((r, err) -> {
+			if (err == null) {
+				p.complete(r);
+			} else {
+				if (!isClosed()) sql.execute(XmlTv::dropShadowTables);
+				p.completeExceptionally(err);
+			}
+		});
 	}
 
-	private XmlTv loadXml(TvM3uItem item, Status status, SQLiteDatabase db,
-												Map<String, List<TvM3uTrackItem>> idToTrack,
-												Map<String, List<TvM3uTrackItem>> nameToTrack)
+	private XmlHandler parseXml(TvM3uItem item, Status status, @Nullable InputStream payload,
+															Map<String, PrevChannel> prev,
+															Map<String, List<TvM3uTrackItem>> idToTrack,
+															Map<String, List<TvM3uTrackItem>> nameToTrack)
 			throws ParserConfigurationException, SAXException, IOException {
 		Log.i("Loading XMLTV: ", status.getUrl());
-		long time = System.currentTimeMillis();
+		TvM3uFile file = item.getResource();
 		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SAXParser parser = factory.newSAXParser();
+		XmlHandler handler = new XmlHandler(sql, idToTrack, nameToTrack, prev, file.getEpgShift(),
+				file.getEpgDays());
 
-		try (InputStream in = status.getFileStream(true)) {
-			createTables(db);
-			db.beginTransaction();
-			parser.parse(in, new XmlHandler(db, idToTrack, nameToTrack, item.getResource().getEpgShift()));
-			db.setTransactionSuccessful();
-		} finally {
-			db.endTransaction();
+		try (InputStream in = (payload != null) ? payload : status.getFileStream(true)) {
+			parser.parse(in, handler);
 		}
 
-		Log.i("XMLTV has been successfully loaded in ", (System.currentTimeMillis() - time),
-				" milliseconds: ", status.getUrl());
-		return this;
+		return handler;
 	}
 
-	private static void createTables(SQLiteDatabase db) {
-		db.execSQL("DROP INDEX IF EXISTS " + IDX_PROG_CH);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_CH);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_PROG);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME_TO_ID);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME_TO_ICON);
+	private static Map<String, PrevChannel> prepareImport(SQLiteDatabase db) {
+		dropShadowTables(db);
+		createTables(db, SHADOW);
+		if ((db.getVersion() != DB_VERSION) || !hasIndex(db)) return emptyMap();
+		Map<String, PrevChannel> prev = new HashMap<>();
+
+		try (Cursor c = db.query(TABLE_CH, Q_COL_ID_EPG_ID_HASH, null, null, null, null, null)) {
+			while (c.moveToNext()) prev.put(c.getString(1), new PrevChannel(c.getInt(0), c.getLong(2)));
+		}
 
-		db.execSQL("CREATE TABLE " + TABLE_CH + '(' +
+		return prev;
+	}
+
+	private static void createTables(SQLiteDatabase db, String suffix) {
+		db.execSQL("CREATE TABLE " + TABLE_CH + suffix + '(' +
 				COL_ID + " INTEGER PRIMARY KEY, " +
 				COL_EPG_ID + " VARCHAR UNIQUE, " +
-				COL_ICON + " VARCHAR" +
+				COL_ICON + " VARCHAR, " +
+				COL_HASH + " INTEGER" +
 				");"
 		);
-		db.execSQL("CREATE TABLE " + TABLE_PROG + '(' +
+		db.execSQL("CREATE TABLE " + TABLE_PROG + suffix + '(' +
 				COL_CH_ID + " INTEGER, " +
 				COL_START + " INTEGER, " +
 				COL_STOP + " INTEGER, " +
@@ -385,21 +571,44 @@ public class XmlTv implements Closeable {
 				COL_ICON + " VARCHAR" +
 				");"
 		);
-		db.execSQL("CREATE TABLE " + TABLE_NAME_TO_ID + '(' +
+		db.execSQL("CREATE TABLE " + TABLE_NAME_TO_ID + suffix + '(' +
 				COL_NAME + " VARCHAR PRIMARY KEY, " +
 				COL_CH_ID + " INTEGER" +
 				");"
 		);
-		db.execSQL("CREATE TABLE " + TABLE_NAME_TO_ICON + '(' +
+		db.execSQL("CREATE TABLE " + TABLE_NAME_TO_ICON + suffix + '(' +
 				COL_NAME + " VARCHAR PRIMARY KEY, " +
 				COL_ICON + " VARCHAR NOT NULL" +
 				");"
 		);
 	}
 
+	private static void dropShadowTables(SQLiteDatabase db) {
+		for (String t : TABLES) db.execSQL("DROP TABLE IF EXISTS " + t + SHADOW);
+	}
+
+	private static void swapTable(SQLiteDatabase db, String table) {
+		db.execSQL("DROP TABLE IF EXISTS " + table);
+		db.execSQL("ALTER TABLE " + table + SHADOW + " RENAME TO " + table);
+	}
+
+	private static void createIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX " + IDX_PROG_CH + " ON " + TABLE_PROG +
+				'(' + COL_CH_ID + ", " + COL_START + ");");
+	}
+
 	private static boolean hasIndex(SQLiteDatabase db) {
+		if (hasIndex(db, IDX_PROG_CH)) return true;
+		if (!hasIndex(db, IDX_PROG_CH_OLD)) return false;
+		Log.i("Upgrading XMLTV index");
+		db.execSQL("DROP INDEX " + IDX_PROG_CH_OLD);
+		createIndex(db);
+		return true;
+	}
+
+	private static boolean hasIndex(SQLiteDatabase db, String name) {
 		try (Cursor c = db.rawQuery("SELECT count(*) FROM sqlite_master WHERE type='index' AND name=?;",
-				new String[]{IDX_PROG_CH})) {
+				new String[]{name})) {
 			return c.moveToFirst() && (c.getInt(0) != 0);
 		} catch (Throwable ex) {
 			Log.d(ex, "Failed to get index");
@@ -407,22 +616,30 @@ public class XmlTv implements Closeable {
 		}
 	}
 
+	private static void bindString(SQLiteStatement stmt, int index, String value) {
+		if (value == null) stmt.bindNull(index);
+		else stmt.bindString(index, value);
+	}
+
 	private static final class XmlHandler extends DefaultHandler {
+		private static final long DAY = 24 * 60 * 60000L;
 		private final SimpleDateFormat TIME = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.getDefault());
 		private final long time = System.currentTimeMillis();
-		private final SQLiteDatabase db;
+		private final SQLite sql;
 		private final Map<String, List<TvM3uTrackItem>> idToTrack;
 		private final Map<String, List<TvM3uTrackItem>> nameToTrack;
+		private final Map<String, PrevChannel> prev;
 		private final long epgShift;
+		private final long minTime;
+		private final long maxTime;
 		private final Map<String, ChannelInfo> channels;
 		private final Map<String, InfoIcon> channelNames;
+		private final Map<TvM3uTrackItem, String> trackIcons = new HashMap<>();
 		private final String localLang = Locale.getDefault().getLanguage();
-		private final SQLiteStatement chStmt;
-		private final SQLiteStatement progStmt;
-		private final SQLiteStatement nameToIdStmt;
-		private final SQLiteStatement nameToIconStmt;
 		private final Set<String> names = new HashSet<>();
 		private final StringBuilder sb = new StringBuilder(1024);
+		private List<Prog> batch = new ArrayList<>(BATCH_SIZE);
+		private FutureSupplier<Void> pending = completedVoid();
 		private String epgId;
 		private String icon;
 		private String start;
@@ -434,19 +651,29 @@ public class XmlTv implements Closeable {
 		private Tag tag = Tag.IGNORE;
 		private int counter;
 
-		XmlHandler(SQLiteDatabase db, Map<String, List<TvM3uTrackItem>> idToTrack,
-							 Map<String, List<TvM3uTrackItem>> nameToTrack, float epgShift) {
-			chStmt = db.compileStatement("INSERT INTO " + TABLE_CH + " VALUES(?, ?, ?)");
-			progStmt = db.compileStatement("INSERT INTO " + TABLE_PROG + " VALUES(?, ?, ?, ?, ?, ?)");
-			nameToIdStmt = db.compileStatement("INSERT INTO " + TABLE_NAME_TO_ID + " VALUES(?, ?)");
-			nameToIconStmt = db.compileStatement("INSERT INTO " + TABLE_NAME_TO_ICON + " VALUES(?, ?)");
-			this.db = db;
+		XmlHandler(SQLite sql, Map<String, List<TvM3uTrackItem>> idToTrack,
+							 Map<String, List<TvM3uTrackItem>> nameToTrack, Map<String, PrevChannel> prev,
+							 float epgShift, int epgDays) {
+			this.sql = sql;
 			this.idToTrack = idToTrack;
 			this.nameToTrack = nameToTrack;
+			this.prev = prev;
 			this.epgShift = (long) (60 * 60000 * epgShift);
 			int capacity = idToTrack.size() + nameToTrack.size();
 			channels = new HashMap<>(capacity);
 			channelNames = new HashMap<>(capacity);
+
+			for (PrevChannel c : prev.values()) counter = Math.max(counter, c.id + 1);
+
+			// The window is aligned to days, so the unchanged channels have the same hash
+			// during the day and are skipped by the incremental update.
+			int pastDays = 1;
+			for (List<TvM3uTrackItem> l : nameToTrack.values()) {
+				for (TvM3uTrackItem t : l) pastDays = Math.max(pastDays, t.getCatchUpDays());
+			}
+			long today = time - time % DAY;
+			minTime = today - pastDays * DAY;
+			maxTime = today + (Math.max(1, epgDays) + 1) * DAY;
 		}
 
 		@Override
@@ -526,42 +753,145 @@ public class XmlTv implements Closeable {
 
 		@Override
 		public void endDocument() {
-			Log.d("Inserting ", channels.size(), " channels");
-			for (Map.Entry<String, ChannelInfo> e : channels.entrySet()) {
-				try {
-					ChannelInfo i = e.getValue();
-					chStmt.clearBindings();
-					chStmt.bindLong(1, i.id);
-					bindString(chStmt, 2, e.getKey());
-					bindString(chStmt, 3, i.icon);
-					chStmt.execute();
-				} catch (Exception ex) {
-					Log.e(ex, "Failed to insert channel: ", e.getKey());
+			flush();
+			pending.getOrThrow();
+		}
+
+		/**
+		 * Replaces the current tables with the shadow tables. If most of the channels have been
+		 * changed, the programmes table is swapped as well, otherwise only the programmes of the
+		 * changed channels are replaced.
+		 *
+		 * @return true if the programmes table has been swapped.
+		 */
+		boolean apply(SQLiteDatabase db) {
+			int changed = 0;
+			for (ChannelInfo i : channels.values()) {
+				if (i.isChanged()) changed++;
+			}
+
+			boolean full = prev.isEmpty() || (changed * 2 > channels.size());
+			Log.d("Applying XMLTV: channels=", channels.size(), ", changed=", changed,
+					", names=", channelNames.size());
+			db.beginTransaction();
+
+			try {
+				insertChannels(db);
+
+				if (full) {
+					swapTable(db, TABLE_PROG);
+					createIndex(db);
+				} else {
+					db.execSQL("CREATE INDEX " + IDX_PROG_CH + SHADOW + " ON " + TABLE_PROG + SHADOW +
+							'(' + COL_CH_ID + ");");
+					db.execSQL("DELETE FROM " + TABLE_PROG + " WHERE " + COL_CH_ID +
+							" NOT IN (SELECT " + COL_ID + " FROM " + TABLE_CH + SHADOW + ");");
+
+					for (ChannelInfo i : channels.values()) {
+						if (!i.isChanged()) continue;
+						String[] args = new String[]{String.valueOf(i.id)};
+						db.delete(TABLE_PROG, Q_SEL_CH_ID, args);
+						db.execSQL("INSERT INTO " + TABLE_PROG + " SELECT * FROM " + TABLE_PROG + SHADOW +
+								" WHERE " + Q_SEL_CH_ID, args);
+					}
+
+					db.execSQL("DROP TABLE " + TABLE_PROG + SHADOW);
 				}
+
+				swapTable(db, TABLE_CH);
+				swapTable(db, TABLE_NAME_TO_ID);
+				swapTable(db, TABLE_NAME_TO_ICON);
+				db.setVersion(DB_VERSION);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
 			}
 
-			Log.d("Inserting ", channelNames.size(), " channel names");
-			for (Map.Entry<String, InfoIcon> e : channelNames.entrySet()) {
-				try {
-					InfoIcon i = e.getValue();
-					nameToIdStmt.clearBindings();
-					nameToIdStmt.bindString(1, e.getKey());
-					nameToIdStmt.bindLong(2, i.info.id);
-					nameToIdStmt.execute();
-
-					if ((i.icon != null) && !i.icon.equals(i.info.icon)) {
-						nameToIconStmt.clearBindings();
-						nameToIconStmt.bindString(1, e.getKey());
-						nameToIconStmt.bindString(2, i.icon);
-						nameToIconStmt.execute();
+			return full;
+		}
+
+		void updateTracks(boolean full) {
+			for (ChannelInfo i : channels.values()) {
+				boolean changed = full || i.isChanged();
+
+				for (TvM3uTrackItem t : i.tracks) {
+					String icon = trackIcons.containsKey(t) ? trackIcons.get(t)
+							: (t.getEpgId() < 0) ? i.icon : t.getEpgChIcon();
+					if (changed || (t.getEpgId() != i.id) || (t.getEpgStart() != i.curStart)
+							|| !Objects.equals(icon, t.getEpgChIcon())) {
+						t.update(i.id, icon, i.curStart, i.curStop, i.curTitle, i.curDesc, i.curIcon, true);
+					}
+				}
+			}
+		}
+
+		private void insertChannels(SQLiteDatabase db) {
+			try (SQLiteStatement chStmt = db.compileStatement("INSERT INTO " + TABLE_CH + SHADOW +
+					" VALUES(?, ?, ?, ?)")) {
+				for (Map.Entry<String, ChannelInfo> e : channels.entrySet()) {
+					try {
+						ChannelInfo i = e.getValue();
+						chStmt.clearBindings();
+						chStmt.bindLong(1, i.id);
+						bindString(chStmt, 2, e.getKey());
+						bindString(chStmt, 3, i.icon);
+						chStmt.bindLong(4, i.hash);
+						chStmt.execute();
+					} catch (Exception ex) {
+						Log.e(ex, "Failed to insert channel: ", e.getKey());
+					}
+				}
+			}
+
+			try (SQLiteStatement nameToIdStmt = db.compileStatement("INSERT INTO " +
+					TABLE_NAME_TO_ID + SHADOW + " VALUES(?, ?)");
+					 SQLiteStatement nameToIconStmt = db.compileStatement("INSERT INTO " +
+							 TABLE_NAME_TO_ICON + SHADOW + " VALUES(?, ?)")) {
+				for (Map.Entry<String, InfoIcon> e : channelNames.entrySet()) {
+					try {
+						InfoIcon i = e.getValue();
+						nameToIdStmt.clearBindings();
+						nameToIdStmt.bindString(1, e.getKey());
+						nameToIdStmt.bindLong(2, i.info.id);
+						nameToIdStmt.execute();
+
+						if ((i.icon != null) && !i.icon.equals(i.info.icon)) {
+							nameToIconStmt.clearBindings();
+							nameToIconStmt.bindString(1, e.getKey());
+							nameToIconStmt.bindString(2, i.icon);
+							nameToIconStmt.execute();
+						}
+					} catch (Exception ex) {
+						Log.e(ex, "Failed to insert channel name: ", e.getKey());
 					}
-				} catch (Exception ex) {
-					Log.e(ex, "Failed to insert channel name: ", e.getKey());
 				}
 			}
+		}
+
+		private static void insertProgs(SQLiteDatabase db, List<Prog> progs) {
+			db.beginTransaction();
+
+			try (SQLiteStatement progStmt = db.compileStatement("INSERT INTO " + TABLE_PROG + SHADOW +
+					" VALUES(?, ?, ?, ?, ?, ?)")) {
+				for (Prog p : progs) {
+					try {
+						progStmt.clearBindings();
+						progStmt.bindLong(1, p.chId);
+						progStmt.bindLong(2, p.start);
+						progStmt.bindLong(3, p.stop);
+						bindString(progStmt, 4, p.title);
+						bindString(progStmt, 5, p.desc);
+						bindString(progStmt, 6, p.icon);
+						progStmt.execute();
+					} catch (Exception ex) {
+						Log.e(ex, "Failed to insert programme: ", p.title);
+					}
+				}
 
-			Log.i("Creating XMLTV index");
-			db.execSQL("CREATE INDEX " + IDX_PROG_CH + " ON " + TABLE_PROG + '(' + COL_CH_ID + ");");
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
 		}
 
 		private void addChannel() {
@@ -582,12 +912,7 @@ public class XmlTv implements Closeable {
 						return v;
 					});
 
-					for (TvM3uTrackItem t : tracks) {
-						if (!Objects.equals(icon, t.getEpgChIcon())) {
-							t.update(t.getEpgId(), icon, t.getEpgStart(), t.getEpgStop(), t.getEpgTitle(),
-									t.getEpgDesc(), t.getEpgProgIcon(), true);
-						}
-					}
+					for (TvM3uTrackItem t : tracks) trackIcons.put(t, icon);
 				}
 			}
 
@@ -597,8 +922,13 @@ public class XmlTv implements Closeable {
 
 		private ChannelInfo createChannel(List<TvM3uTrackItem> tracks) {
 			ChannelInfo info = compute(channels, epgId, (k, v) -> {
-				if (v == null) return new ChannelInfo(counter++, icon);
-				else if (v.icon == null) v.icon = icon;
+				if (v == null) {
+					PrevChannel p = prev.get(k);
+					return (p != null) ? new ChannelInfo(p.id, icon, p.hash) :
+							new ChannelInfo(counter++, icon, null);
+				} else if (v.icon == null) {
+					v.icon = icon;
+				}
 				return v;
 			});
 			assert info != null;
@@ -612,25 +942,20 @@ public class XmlTv implements Closeable {
 			if (!isEmpty(epgId) && ((info = channels.get(epgId)) != null)) {
 				long start = toTime(this.start);
 				long stop = toTime(this.stop);
-				String t = (title != null) ? title : altTile;
-				String d = (desc != null) ? desc : altDesc;
 
-				try {
-					progStmt.clearBindings();
-					progStmt.bindLong(1, info.id);
-					progStmt.bindLong(2, start);
-					progStmt.bindLong(3, stop);
-					bindString(progStmt, 4, t);
-					bindString(progStmt, 5, d);
-					bindString(progStmt, 6, icon);
-					progStmt.execute();
-				} catch (Exception ex) {
-					Log.e(ex, "Failed to insert programme: ", epgId);
-				}
-
-				if ((start <= time) && (stop > time)) {
-					for (TvM3uTrackItem tr : info.tracks) {
-						tr.update(info.id, tr.getEpgChIcon(), start, stop, t, d, icon, true);
+				if ((stop > minTime) && (start < maxTime)) {
+					String t = (title != null) ? title : altTile;
+					String d = (desc != null) ? desc : altDesc;
+					info.addHash(start, stop, t, d, icon);
+					batch.add(new Prog(info.id, start, stop, t, d, icon));
+					if (batch.size() == BATCH_SIZE) flush();
+
+					if ((start <= time) && (stop > time)) {
+						info.curStart = start;
+						info.curStop = stop;
+						info.curTitle = t;
+						info.curDesc = d;
+						info.curIcon = icon;
 					}
 				}
 			}
@@ -638,9 +963,14 @@ public class XmlTv implements Closeable {
 			epgId = start = stop = icon = title = altTile = desc = altDesc = null;
 		}
 
-		private void bindString(SQLiteStatement stmt, int index, String value) {
-			if (value == null) stmt.bindNull(index);
-			else stmt.bindString(index, value);
+		private void flush() {
+			if (batch.isEmpty()) return;
+			if (sql.isClosed()) throw new IllegalStateException("Database is closed");
+			List<Prog> progs = batch;
+			batch = new ArrayList<>(BATCH_SIZE);
+			// Wait for the previous batch to limit the memory usage
+			pending.getOrThrow();
+			pending = sql.execute(db -> insertProgs(db, progs));
 		}
 
 		private long toTime(String time) {
@@ -666,22 +996,38 @@ public class XmlTv implements Closeable {
 		private static final class ChannelInfo {
 			final Set<TvM3uTrackItem> tracks = new HashSet<>();
 			final int id;
+			@Nullable
+			final Long prevHash;
 			String icon;
-
-			ChannelInfo(int id, String icon) {
+			long hash;
+			long curStart;
+			long curStop;
+			String curTitle;
+			String curDesc;
+			String curIcon;
+
+			ChannelInfo(int id, String icon, @Nullable Long prevHash) {
 				this.id = id;
 				this.icon = icon;
+				this.prevHash = prevHash;
 			}
 
 			void addTracks(List<TvM3uTrackItem> tracks) {
 				this.tracks.addAll(tracks);
+			}
 
-				for (TvM3uTrackItem t : tracks) {
-					if (t.getEpgId() < 0) {
-						t.update(id, icon, t.getEpgStart(), t.getEpgStop(), t.getEpgTitle(),
-								t.getEpgDesc(), t.getEpgProgIcon(), true);
-					}
-				}
+			void addHash(long start, long stop, String title, String desc, String icon) {
+				long h = start;
+				h = 31 * h + stop;
+				h = 31 * h + Objects.hashCode(title);
+				h = 31 * h + Objects.hashCode(desc);
+				h = 31 * h + Objects.hashCode(icon);
+				// Order independent
+				hash += h;
+			}
+
+			boolean isChanged() {
+				return (prevHash == null) || (prevHash != hash);
 			}
 		}
 
@@ -694,5 +1040,33 @@ public class XmlTv implements Closeable {
 				this.icon = icon;
 			}
 		}
+
+		private static final class Prog {
+			final int chId;
+			final long start;
+			final long stop;
+			final String title;
+			final String desc;
+			final String icon;
+
+			Prog(int chId, long start, long stop, String title, String desc, String icon) {
+				this.chId = chId;
+				this.start = start;
+				this.stop = stop;
+				this.title = title;
+				this.desc = desc;
+				this.icon = icon;
+			}
+		}
+	}
+
+	private static final class PrevChannel {
+		final int id;
+		final long hash;
+
+		PrevChannel(int id, long hash) {
+			this.id = id;
+			this.hash = hash;
+		}
 	}
 }